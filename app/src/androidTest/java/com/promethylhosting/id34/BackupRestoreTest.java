@@ -0,0 +1,77 @@
+package com.promethylhosting.id34;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+/** On a device: ./gradlew connectedAndroidTest. Works on the app's own database. */
+@RunWith(AndroidJUnit4.class)
+public class BackupRestoreTest {
+
+	private Context context;
+	private SQLCipherAdapter sql;
+
+	@Before
+	public void open() {
+		context = InstrumentationRegistry.getTargetContext();
+		sql = new SQLCipherAdapter(context);
+		sql.openToWrite();
+	}
+
+	@After
+	public void close() {
+		sql.close();
+	}
+
+	@Test
+	public void restoreGoesBackToTheBackupAndItsCaches() throws Exception {
+		String stamp = String.valueOf(System.currentTimeMillis());
+		long kept = sql.saveIdeaLocal("before the backup #restorekept" + stamp);
+		assertTrue(kept != -1);
+		sql.rebuildBlindIndexIfNeeded();
+		sql.loadHashtagIndexIfNeeded();
+
+		sql.acquire(); // as backupIfDue: no swap while the file is copied
+		try {
+			assertNotNull(new BackupEngine(context, SQLCipherAdapter.MYDATABASE_NAME).backup("test"));
+		} finally {
+			sql.release();
+		}
+		int seq = new BackupEngine(context, SQLCipherAdapter.MYDATABASE_NAME).lastSeq();
+
+		long lost = sql.saveIdeaLocal("after the backup #restorelost" + stamp);
+		assertTrue(lost != -1);
+		assertEquals(1, HashtagIndex.get().suggest("restorelost" + stamp, 5).length);
+		assertEquals(1, count("restorelost" + stamp));
+
+		assertTrue(sql.restoreBackup(seq));
+
+		assertEquals("before the backup #restorekept" + stamp, sql.getIdeaNameFromId(kept));
+		assertEquals("Unknown", sql.getIdeaNameFromId(lost));
+		// the caches were read again from the restored file
+		assertTrue(HashtagIndex.get().isLoaded());
+		assertEquals(0, HashtagIndex.get().suggest("restorelost" + stamp, 5).length);
+		assertEquals(1, HashtagIndex.get().suggest("restorekept" + stamp, 5).length);
+		assertEquals(0, count("restorelost" + stamp));
+		assertEquals(1, count("restorekept" + stamp));
+	}
+
+	private int count(String tag) {
+		Cursor ideas = sql.queryIdeasByCatName(tag);
+		try {
+			return ideas.getCount();
+		} finally {
+			ideas.close();
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package com.promethylhosting.id34;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * Upgrades the database of every past version, as that version left it, to the current one.
+ * The fixtures (androidTest/assets/schema/v2.db ... v8.db) come from
+ * scripts/make_schema_fixtures.py and all hold the rows below. On a device:
+ * ./gradlew connectedAndroidTest.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SchemaMigrationsTest {
+
+	private static final String OLD_DEFAULT = "1970-01-01 06:00:00";
+
+	// id, name, created, updated, reminder as make_schema_fixtures.py writes them
+	private static final Object[][] IDEAS = {
+		{1L, "finish the report #work", "2015-06-01 09:30:00", "2015-06-02 10:00:00", OLD_DEFAULT},
+		{2L, "paint the fence #home #work", "2015-06-01 12:00:00", "2015-06-03 11:15:00", OLD_DEFAULT},
+		{3L, "an old note #ideas", "2015-05-20 08:00:00", "2015-05-21 08:00:00", OLD_DEFAULT},
+		{4L, "call mom #home", "2015-06-04 17:45:00", "2015-06-04 17:45:00", "2015-07-01 18:00:00"},
+		{5L, "no tags at all", "2015-06-05 07:00:00", "2015-06-05 07:00:00", OLD_DEFAULT},
+		{6L, "listed twice #work", "2015-06-06 06:54:44", "2015-06-06 06:54:44", OLD_DEFAULT},
+	};
+	private static final long[][] IDEA_CIDS = {{101}, {102, 101}, {103}, {102}, {}, {101, 101}};
+	private static final Object[][] CATEGORIES = {
+		{101L, "#work", "2015-06-02 10:00:00"},
+		{102L, "#home", "2015-06-03 11:15:00"},
+		{103L, "#ideas", "2015-05-20 08:00:00"},
+	};
+
+	private static final String[] TRIGGERS = {"stats_idea_insert", "stats_idea_delete", "stats_idea_update",
+			"cid_idea_insert", "cid_idea_delete", "cid_idea_update"};
+
+	private SQLiteDatabase db;
+	private File file;
+
+	@After
+	public void closeFixture() {
+		if (db != null) db.close();
+		if (file != null) SQLiteDatabase.deleteDatabase(file);
+	}
+
+	@Test public void fromV2() throws Exception { upgrade(2); }
+	@Test public void fromV3() throws Exception { upgrade(3); }
+	@Test public void fromV4() throws Exception { upgrade(4); }
+	@Test public void fromV5() throws Exception { upgrade(5); }
+	@Test public void fromV6() throws Exception { upgrade(6); }
+	@Test public void fromV7() throws Exception { upgrade(7); }
+	@Test public void fromV8() throws Exception { upgrade(8); }
+
+	private void upgrade(int from) throws Exception {
+		if (from >= 8) assumeTrue("v8 has partial indexes this SQLite can't read", partialIndexes());
+		db = openFixture(from);
+		assertEquals(from, db.getVersion());
+
+		assertTrue(SchemaMigrations.migrate(db, from, SQLCipherAdapter.MYDATABASE_VERSION));
+
+		assertRowsSurvived(from);
+		assertStatsMatchRecount();
+		assertCidTokensMatchColumns();
+		assertSchemaIsCurrent();
+
+		// the triggers keep both up to date from now on
+		db.execSQL("UPDATE tblIdea SET completed = 1, updated = 1500000000000 WHERE id = 1");
+		db.execSQL("UPDATE tblIdea SET cid0 = 103, cid1 = 0 WHERE id = 2");
+		db.execSQL("DELETE FROM tblIdea WHERE id = 4");
+		db.execSQL("INSERT INTO tblIdea (id, uid, name, created, updated, reminder, num, cid0, cid1, cid2, cid3, cid4)"
+				+ " VALUES (7, 7, 'new #home', 1500000000000, 1500000000001, 0, 0, 102, 0, 0, 0, 0)");
+		assertStatsMatchRecount();
+		assertCidTokensMatchColumns();
+	}
+
+	private void assertRowsSurvived(int from) throws Exception {
+		assertEquals(IDEAS.length, count("SELECT COUNT(*) FROM tblIdea"));
+		for (int i = 0; i < IDEAS.length; i++) {
+			Object[] idea = IDEAS[i];
+			Cursor c = db.rawQuery("SELECT name, created, updated, reminder, cid0, cid1, cid2, cid3, cid4, key_ver, dirty, synced"
+					+ " FROM tblIdea WHERE id = ?", new String[]{String.valueOf(idea[0])});
+			try {
+				assertTrue("idea " + idea[0], c.moveToFirst());
+				assertEquals(idea[1], c.getString(0));
+				assertEquals("integer", type("created", idea[0]));
+				assertEquals(millis((String) idea[2], from), c.getLong(1));
+				assertEquals(millis((String) idea[3], from), c.getLong(2));
+				assertEquals(millis((String) idea[4], from), c.getLong(3));
+				for (int j = 0; j < 5; j++) {
+					assertEquals(j < IDEA_CIDS[i].length ? IDEA_CIDS[i][j] : 0, c.getLong(4 + j));
+				}
+				assertEquals(0, c.getInt(9));  // plaintext, as it was
+				assertEquals(0, c.getInt(10)); // nothing local to push
+				assertEquals(c.getLong(2), c.getLong(11)); // based on the server version it had
+			} finally {
+				c.close();
+			}
+		}
+		assertEquals(CATEGORIES.length, count("SELECT COUNT(*) FROM tblCategory"));
+		for (Object[] cat : CATEGORIES) {
+			Cursor c = db.rawQuery("SELECT cat, updated FROM tblCategory WHERE id = ?", new String[]{String.valueOf(cat[0])});
+			try {
+				assertTrue("category " + cat[0], c.moveToFirst());
+				assertEquals(cat[1], c.getString(0));
+				assertEquals(millis((String) cat[2], from), c.getLong(1));
+			} finally {
+				c.close();
+			}
+		}
+	}
+
+	// tblCategoryStats against the ideas counted again, once per distinct category of each
+	private void assertStatsMatchRecount() {
+		String links = "SELECT id, cid0 AS cid, deleted, completed, updated FROM tblIdea"
+				+ " UNION SELECT id, cid1, deleted, completed, updated FROM tblIdea"
+				+ " UNION SELECT id, cid2, deleted, completed, updated FROM tblIdea"
+				+ " UNION SELECT id, cid3, deleted, completed, updated FROM tblIdea"
+				+ " UNION SELECT id, cid4, deleted, completed, updated FROM tblIdea";
+		String recount = "SELECT cid, SUM(deleted = 0 AND completed = 0) AS active, SUM(deleted = 0 AND completed <> 0) AS completed,"
+				+ " MAX(updated) AS touched FROM (" + links + ") WHERE cid <> 0 GROUP BY cid";
+		// every category with ideas has its row, and every row with ideas counted agrees
+		assertEquals(0, count("SELECT COUNT(*) FROM (" + recount + ") r LEFT JOIN tblCategoryStats s ON s.cid = r.cid"
+				+ " WHERE s.cid IS NULL OR s.active <> r.active OR s.completed <> r.completed"));
+		// rows left behind by ideas moved away only count nothing
+		assertEquals(0, count("SELECT COUNT(*) FROM tblCategoryStats WHERE cid NOT IN (SELECT cid FROM (" + recount + "))"
+				+ " AND (active <> 0 OR completed <> 0)"));
+		// touched only moves forward, so it may be past the latest idea left, never before it
+		assertEquals(0, count("SELECT COUNT(*) FROM (" + recount + ") r JOIN tblCategoryStats s ON s.cid = r.cid"
+				+ " WHERE typeof(s.touched) <> 'integer' OR s.touched < r.touched"));
+	}
+
+	private void assertCidTokensMatchColumns() {
+		String cids = "SELECT id AS ref, cid0 AS c FROM tblIdea UNION SELECT id, cid1 FROM tblIdea UNION SELECT id, cid2 FROM tblIdea"
+				+ " UNION SELECT id, cid3 FROM tblIdea UNION SELECT id, cid4 FROM tblIdea";
+		String tokens = "SELECT ref, token AS c FROM tblBlindIndex WHERE kind = " + BlindIndex.KIND_IDEA_CID;
+		assertEquals(0, count("SELECT COUNT(*) FROM (SELECT ref, c FROM (" + cids + ") WHERE c <> 0 EXCEPT " + tokens + ")"));
+		assertEquals(0, count("SELECT COUNT(*) FROM (" + tokens + " EXCEPT SELECT ref, c FROM (" + cids + "))"));
+		assertEquals(count("SELECT COUNT(*) FROM (" + tokens + ")"), count("SELECT COUNT(*) FROM (SELECT DISTINCT * FROM (" + tokens + "))"));
+	}
+
+	private void assertSchemaIsCurrent() {
+		for (String table : new String[]{"tblIdea", "tblCategory", "tblCategoryStats", "tblBlindIndex", "tblCodecDict",
+				"tblResponses", DatabaseState.TABLE}) {
+			assertTrue(table, exists("table", table));
+		}
+		assertTrue(columns("tblIdea").containsAll(Arrays.asList("key_ver", "dirty", "synced", "text_token")));
+		assertTrue(columns("tblCategory").containsAll(Arrays.asList("key_ver", "dirty", "synced", "text_token")));
+		assertTrue(columns(IdeaTextCodec.TABLE_DICT).contains("key_ver"));
+
+		for (String index : new String[]{"cid0", "idx_idea_updated", "idx_idea_created", "idx_blind_token", "idx_blind_ref"}) {
+			assertTrue(index, exists("index", index));
+		}
+		boolean partial = SchemaMigrations.supportsPartialIndexes(db);
+		assertEquals(partial, exists("index", "idx_idea_live_created"));
+		assertEquals(partial, exists("index", "idx_idea_pending_reminder"));
+		assertEquals(!partial, exists("index", "idx_idea_reminder"));
+
+		for (String trigger : TRIGGERS) assertTrue(trigger, exists("trigger", trigger));
+		assertFalse(DatabaseState.isSet(db, "dbmig_done")); // nothing has run over the file yet
+	}
+
+	// Text up to v4, in the zone of the device that wrote it; the fixtures' epoch ms from v5
+	private static long millis(String text, int from) throws Exception {
+		if (text.compareTo("1970-01-02") < 0) return TimeFormat.NONE;
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+		if (from >= 5) format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.parse(text).getTime();
+	}
+
+	private SQLiteDatabase openFixture(int version) throws Exception {
+		Context context = InstrumentationRegistry.getTargetContext();
+		file = context.getDatabasePath("schema_test_v" + version + ".db");
+		SQLiteDatabase.deleteDatabase(file);
+		file.getParentFile().mkdirs();
+		InputStream in = InstrumentationRegistry.getContext().getAssets().open("schema/v" + version + ".db");
+		try {
+			OutputStream out = new FileOutputStream(file);
+			try {
+				byte[] buffer = new byte[8192];
+				for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		SQLiteDatabase fixture = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+		fixture.execSQL("PRAGMA recursive_triggers = ON"); // as SQLiteHelper.onConfigure
+		return fixture;
+	}
+
+	private static boolean partialIndexes() {
+		SQLiteDatabase memory = SQLiteDatabase.create(null);
+		try {
+			return SchemaMigrations.supportsPartialIndexes(memory);
+		} finally {
+			memory.close();
+		}
+	}
+
+	private long count(String sql) {
+		return DatabaseUtils.longForQuery(db, sql, null);
+	}
+
+	private String type(String column, Object id) {
+		return DatabaseUtils.stringForQuery(db, "SELECT typeof(" + column + ") FROM tblIdea WHERE id = " + id, null);
+	}
+
+	private boolean exists(String type, String name) {
+		return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM sqlite_master WHERE type = ? AND name = ?",
+				new String[]{type, name}) == 1;
+	}
+
+	private List<String> columns(String table) {
+		List<String> names = new ArrayList<String>();
+		Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+		try {
+			while (c.moveToNext()) names.add(c.getString(c.getColumnIndex("name")));
+		} finally {
+			c.close();
+		}
+		return names;
+	}
+}
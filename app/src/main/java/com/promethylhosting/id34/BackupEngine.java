@@ -0,0 +1,549 @@
+package com.promethylhosting.id34;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.GCMParameterSpec;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Online, incremental, page-level backups of the database file.
+ *
+ * The first backup is a full copy; each later one holds only the pages whose digest changed
+ * since the backup before it, so a backup of a mostly idle database is a few kilobytes. A
+ * backup file is a small header followed by a deflated stream of [page number][page bytes]
+ * records, AES-GCM encrypted with the current field key when field encryption is on (the
+ * header is authenticated too). The digests of the newest backup live in a sidecar manifest.
+ *
+ * Backups never take the write lock. The database runs in WAL mode, where the main file only
+ * changes when a checkpoint copies committed frames back into it: the engine runs a PASSIVE
+ * checkpoint, copies the file, and then compares the checkpoint counters in the WAL index
+ * (-shm) with the ones read before the copy. If a checkpoint ran in between the copy is thrown
+ * away and retried.
+ *
+ * Restore replays the chain from the newest full backup at or before the requested one.
+ * compact() keeps at most MAX_BACKUPS by folding the oldest delta into the full one before it.
+ */
+public class BackupEngine {
+
+	public static final int MAX_BACKUPS = 25;
+
+	private static final String LOG_TAG = "id34";
+	private static final String BACKUP_DIR_NAME = "backup";
+	private static final String MANIFEST_NAME = "pages.idx";
+	private static final String FILE_PREFIX = "id34-";
+	private static final String FILE_SUFFIX = ".ibk";
+	private static final byte[] MAGIC = {'I', '3', '4', 'K'};
+	private static final int FORMAT = 1;
+	private static final int FLAG_FULL = 1;
+	private static final int FLAG_ENCRYPTED = 2;
+	private static final int COPY_ATTEMPTS = 3;
+	private static final long RETRY_DELAY_MS = 250;
+	private static final int IV_SIZE = 12;
+	private static final int TAG_BITS = 128;
+
+	private static final int DB_HEADER_USER_VERSION = 60; // big-endian, in the database file header
+
+	// WAL-index header offsets, see "WAL-Index Format" in the SQLite file format documentation
+	private static final int SHM_HEADER_SIZE = 136;
+	private static final int SHM_SALT = 32;
+	private static final int SHM_BACKFILL = 96;
+	private static final int SHM_BACKFILL_ATTEMPTED = 128; // SQLite 3.12+, zero before
+
+	private final File dbFile;
+	private final File dir;
+
+	public BackupEngine(Context context, String databaseName) {
+		dbFile = context.getDatabasePath(databaseName);
+		dir = new File(context.getFilesDir(), BACKUP_DIR_NAME);
+	}
+
+	private static class Header {
+		int flags;
+		int seq;
+		int baseSeq; // seq this delta applies on top of, 0 for a full backup
+		long created;
+		int pageSize;
+		int pageCount;
+		String reason;
+
+		boolean isFull() { return (flags & FLAG_FULL) != 0; }
+	}
+
+	/**
+	 * Back up now: a delta against the previous backup, or a full copy when there is none.
+	 * @return the new backup file, or null if there is no database or it stayed too busy
+	 */
+	public synchronized File backup(String reason) throws IOException {
+		if (!dbFile.exists()) return null;
+		if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+		long start = System.currentTimeMillis();
+
+		// our own connection also keeps other connections from checkpointing on close
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(dbFile.getPath(), null,
+				SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+		try {
+			for (int attempt = 1; attempt <= COPY_ATTEMPTS; attempt++) {
+				if (attempt > 1) sleep(RETRY_DELAY_MS);
+				if (!checkpoint(db)) continue;
+				int[] before = readCheckpointState();
+				if (before != null && before[3] != 0 && before[3] != before[2]) continue; // checkpoint running
+
+				Manifest previous = readManifest();
+				int seq = lastSeq() + 1;
+				Header header = new Header();
+				header.seq = seq;
+				header.created = System.currentTimeMillis();
+				header.reason = reason == null ? "" : reason;
+				boolean full = previous == null || previous.seq != seq - 1;
+				header.flags = full ? FLAG_FULL : 0;
+				header.baseSeq = full ? 0 : previous.seq;
+
+				File tmp = new File(dir, fileName(seq) + ".tmp");
+				RandomAccessFile image = new RandomAccessFile(dbFile, "r");
+				Manifest written;
+				try {
+					written = write(tmp, header, image, full ? null : previous);
+				} finally {
+					image.close();
+				}
+
+				if (!Arrays.equals(before, readCheckpointState())) {
+					Log.i(LOG_TAG, "BackupEngine: database checkpointed during copy, retrying");
+					tmp.delete();
+					continue;
+				}
+				File out = new File(dir, fileName(seq));
+				if (!tmp.renameTo(out)) throw new IOException("Cannot rename " + tmp);
+				writeManifest(written);
+				Log.i(LOG_TAG, "BackupEngine: " + (header.isFull() ? "full" : "delta") + " backup #" + seq + " (" + reason + "), "
+						+ out.length() + " bytes in " + (System.currentTimeMillis() - start) + "ms");
+				compact(MAX_BACKUPS);
+				return out;
+			}
+			Log.e(LOG_TAG, "BackupEngine: database too busy, backup skipped");
+			return null;
+		} finally {
+			db.close();
+		}
+	}
+
+	/**
+	 * Whether the database may need upgrading to newVersion, from the schema version in the file
+	 * header alone (a 4-byte read, fine on the main thread). A version committed to the WAL and not
+	 * yet checkpointed reads as older, so this can say yes when backupBeforeUpgrade then finds
+	 * nothing to do, never the other way round.
+	 */
+	public boolean mayNeedUpgrade(int newVersion) throws IOException {
+		if (!dbFile.exists()) return false;
+		RandomAccessFile file = new RandomAccessFile(dbFile, "r");
+		try {
+			if (file.length() < DB_HEADER_USER_VERSION + 4) return false;
+			file.seek(DB_HEADER_USER_VERSION);
+			return file.readInt() < newVersion;
+		} finally {
+			file.close();
+		}
+	}
+
+	/** Back up before the helper upgrades an existing database to newVersion. */
+	public File backupBeforeUpgrade(int newVersion) throws IOException {
+		if (!dbFile.exists()) return null;
+		int version;
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(dbFile.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+		try {
+			version = db.getVersion();
+		} finally {
+			db.close();
+		}
+		return version != 0 && version < newVersion ? backup("before schema v" + version + " -> v" + newVersion) : null;
+	}
+
+	/**
+	 * Rebuild the database as of backup seq into dest (any existing content is replaced) and
+	 * check it with PRAGMA quick_check.
+	 */
+	public synchronized void restore(int seq, File dest) throws IOException {
+		List<File> files = list();
+		int end = -1;
+		for (int i = 0; i < files.size(); i++) {
+			if (seqOf(files.get(i)) == seq) end = i;
+		}
+		if (end < 0) throw new IOException("No backup #" + seq);
+
+		RandomAccessFile out = new RandomAccessFile(dest, "rw");
+		try {
+			out.setLength(0);
+			replay(chainTo(files, end), out);
+		} finally {
+			out.close();
+		}
+
+		SQLiteDatabase db = SQLiteDatabase.openDatabase(dest.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+		try {
+			Cursor c = db.rawQuery("PRAGMA quick_check", null);
+			try {
+				if (!c.moveToFirst() || !"ok".equals(c.getString(0))) {
+					throw new IOException("Restored database failed quick_check: " + (c.getCount() > 0 ? c.getString(0) : "?"));
+				}
+			} finally {
+				c.close();
+			}
+		} finally {
+			db.close();
+		}
+		Log.i(LOG_TAG, "BackupEngine: restored backup #" + seq + " to " + dest);
+	}
+
+	/** Seq of the newest backup, 0 if there is none. */
+	public synchronized int lastSeq() {
+		List<File> files = list();
+		return files.isEmpty() ? 0 : seqOf(files.get(files.size() - 1));
+	}
+
+	/**
+	 * Keep at most keep backups. The oldest backup is always a full one; dropping it means
+	 * replaying the delta after it and rewriting that as the new full backup.
+	 * @return number of backups removed
+	 */
+	public synchronized int compact(int keep) throws IOException {
+		List<File> files = list();
+		int removed = 0;
+		while (files.size() > Math.max(keep, 1)) {
+			File oldest = files.get(0);
+			File next = files.get(1);
+			Header header = readHeader(next);
+			if (!header.isFull()) {
+				File image = new File(dir, "compact.img");
+				File tmp = new File(dir, next.getName() + ".tmp");
+				RandomAccessFile raf = new RandomAccessFile(image, "rw");
+				try {
+					raf.setLength(0);
+					replay(files.subList(0, 2), raf);
+					header.flags |= FLAG_FULL;
+					header.baseSeq = 0;
+					write(tmp, header, raf, null);
+				} finally {
+					raf.close();
+					image.delete();
+				}
+				if (!tmp.renameTo(next)) throw new IOException("Cannot replace " + next);
+			}
+			if (!oldest.delete()) throw new IOException("Cannot delete " + oldest);
+			files.remove(0);
+			removed++;
+		}
+		return removed;
+	}
+
+	// === copy and replay ===
+
+	/**
+	 * Write the pages of image that differ from previous (all of them when null). A page size
+	 * other than previous's (a VACUUM after PRAGMA page_size) makes it a full backup: no page
+	 * lines up with the old ones, so a new chain starts here.
+	 */
+	private Manifest write(File file, Header header, RandomAccessFile image, Manifest previous) throws IOException {
+		header.pageSize = pageSizeOf(image);
+		if (previous != null && previous.pageSize != header.pageSize) {
+			Log.i(LOG_TAG, "BackupEngine: page size " + previous.pageSize + " -> " + header.pageSize + ", taking a full backup");
+			previous = null;
+			header.flags |= FLAG_FULL;
+			header.baseSeq = 0;
+		}
+		header.pageCount = (int) (image.length() / header.pageSize);
+
+		Manifest manifest = new Manifest();
+		manifest.seq = header.seq;
+		manifest.pageSize = header.pageSize;
+		manifest.digests = new long[header.pageCount];
+
+		boolean encrypted = FieldCipher.isEnabled();
+		header.flags = (header.flags & FLAG_FULL) | (encrypted ? FLAG_ENCRYPTED : 0);
+		byte[] headerBytes = headerBytes(header);
+
+		OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(file));
+		DataOutputStream pages = null;
+		try {
+			fileOut.write(headerBytes);
+			OutputStream body = fileOut;
+			if (encrypted) {
+				int keyVersion = FieldCipher.getCurrentKeyVersion();
+				byte[] iv = new byte[IV_SIZE];
+				new SecureRandom().nextBytes(iv);
+				fileOut.write(keyVersion);
+				fileOut.write(iv);
+				body = new CipherOutputStream(fileOut, cipher(Cipher.ENCRYPT_MODE, keyVersion, iv, headerBytes));
+			}
+			pages = new DataOutputStream(new DeflaterOutputStream(body));
+
+			MessageDigest sha = sha1();
+			byte[] page = new byte[header.pageSize];
+			image.seek(0);
+			for (int i = 0; i < header.pageCount; i++) {
+				image.readFully(page);
+				long digest = digest(sha, page);
+				manifest.digests[i] = digest;
+				if (previous == null || i >= previous.digests.length || previous.digests[i] != digest) {
+					pages.writeInt(i + 1);
+					pages.write(page);
+				}
+			}
+			pages.writeInt(0);
+		} finally {
+			if (pages != null) pages.close();
+			else fileOut.close();
+		}
+		return manifest;
+	}
+
+	private void replay(List<File> chain, RandomAccessFile out) throws IOException {
+		for (File file : chain) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				Header header = readHeader(new DataInputStream(in));
+				InputStream body = in;
+				if ((header.flags & FLAG_ENCRYPTED) != 0) {
+					int keyVersion = in.read();
+					byte[] iv = new byte[IV_SIZE];
+					new DataInputStream(in).readFully(iv);
+					body = new CipherInputStream(in, cipher(Cipher.DECRYPT_MODE, keyVersion, iv, headerBytes(header)));
+				}
+				DataInputStream pages = new DataInputStream(new InflaterInputStream(body));
+				byte[] page = new byte[header.pageSize];
+				int pageNo;
+				while ((pageNo = pages.readInt()) != 0) {
+					pages.readFully(page);
+					out.seek((long) (pageNo - 1) * header.pageSize);
+					out.write(page);
+				}
+				// run the cipher to the end so the GCM tag is checked
+				byte[] rest = new byte[512];
+				while (body.read(rest) != -1) { }
+				out.setLength((long) header.pageCount * header.pageSize);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/** Files from the newest full backup at or before end, through end. */
+	private List<File> chainTo(List<File> files, int end) throws IOException {
+		int start = end;
+		while (!readHeader(files.get(start)).isFull()) {
+			if (--start < 0) throw new IOException("No full backup before #" + seqOf(files.get(end)));
+		}
+		for (int i = start + 1; i <= end; i++) {
+			if (readHeader(files.get(i)).baseSeq != seqOf(files.get(i - 1))) {
+				throw new IOException("Broken backup chain at #" + seqOf(files.get(i)));
+			}
+		}
+		return files.subList(start, end + 1);
+	}
+
+	// === WAL checkpoint state ===
+
+	/** PASSIVE never waits for writers; true when every committed frame is now in the main file. */
+	private static boolean checkpoint(SQLiteDatabase db) {
+		Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+		try {
+			return c.moveToFirst() && c.getInt(1) == c.getInt(2);
+		} finally {
+			c.close();
+		}
+	}
+
+	/** {salt1, salt2, nBackfill, nBackfillAttempted} from the WAL index, null when not in WAL mode. */
+	private int[] readCheckpointState() throws IOException {
+		File shm = new File(dbFile.getPath() + "-shm");
+		if (!shm.exists()) return null;
+		byte[] bytes = new byte[SHM_HEADER_SIZE];
+		RandomAccessFile raf = new RandomAccessFile(shm, "r");
+		try {
+			if (raf.length() < SHM_HEADER_SIZE) return null;
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
+		}
+		ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+		return new int[]{buf.getInt(SHM_SALT), buf.getInt(SHM_SALT + 4), buf.getInt(SHM_BACKFILL), buf.getInt(SHM_BACKFILL_ATTEMPTED)};
+	}
+
+	// === files ===
+
+	private static class Manifest {
+		int seq;
+		int pageSize;
+		long[] digests;
+	}
+
+	private Manifest readManifest() {
+		File file = new File(dir, MANIFEST_NAME);
+		if (!file.exists()) return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				Manifest manifest = new Manifest();
+				manifest.seq = in.readInt();
+				manifest.pageSize = in.readInt();
+				manifest.digests = new long[in.readInt()];
+				for (int i = 0; i < manifest.digests.length; i++) manifest.digests[i] = in.readLong();
+				return manifest;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "BackupEngine: unreadable manifest, next backup will be full: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void writeManifest(Manifest manifest) throws IOException {
+		File tmp = new File(dir, MANIFEST_NAME + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(manifest.seq);
+			out.writeInt(manifest.pageSize);
+			out.writeInt(manifest.digests.length);
+			for (long digest : manifest.digests) out.writeLong(digest);
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(dir, MANIFEST_NAME))) throw new IOException("Cannot write manifest");
+	}
+
+	private List<File> list() {
+		List<File> files = new ArrayList<File>();
+		File[] all = dir.listFiles();
+		if (all == null) return files;
+		for (File file : all) {
+			String name = file.getName();
+			if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) files.add(file);
+		}
+		java.util.Collections.sort(files); // zero-padded seq, so name order is seq order
+		return files;
+	}
+
+	private static String fileName(int seq) {
+		return String.format(Locale.US, "%s%08d%s", FILE_PREFIX, seq, FILE_SUFFIX);
+	}
+
+	private static int seqOf(File file) {
+		String name = file.getName();
+		return Integer.parseInt(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+	}
+
+	private static Header readHeader(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return readHeader(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static Header readHeader(DataInputStream in) throws IOException {
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC)) throw new IOException("Not a backup file");
+		int format = in.readUnsignedByte();
+		if (format != FORMAT) throw new IOException("Unknown backup format " + format);
+		Header header = new Header();
+		header.flags = in.readUnsignedByte();
+		header.seq = in.readInt();
+		header.baseSeq = in.readInt();
+		header.created = in.readLong();
+		header.pageSize = in.readInt();
+		header.pageCount = in.readInt();
+		header.reason = in.readUTF();
+		return header;
+	}
+
+	private static byte[] headerBytes(Header header) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.write(MAGIC);
+		out.writeByte(FORMAT);
+		out.writeByte(header.flags);
+		out.writeInt(header.seq);
+		out.writeInt(header.baseSeq);
+		out.writeLong(header.created);
+		out.writeInt(header.pageSize);
+		out.writeInt(header.pageCount);
+		out.writeUTF(header.reason);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/** Page size from the database header (big-endian u16 at offset 16, 1 meaning 65536). */
+	private static int pageSizeOf(RandomAccessFile image) throws IOException {
+		if (image.length() < 100) throw new EOFException("Database file too short");
+		image.seek(16);
+		int size = image.readUnsignedShort();
+		return size == 1 ? 65536 : size;
+	}
+
+	private static Cipher cipher(int mode, int keyVersion, byte[] iv, byte[] aad) throws IOException {
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(mode, FieldCipher.key(keyVersion), new GCMParameterSpec(TAG_BITS, iv));
+			cipher.updateAAD(aad);
+			return cipher;
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Backup cipher unavailable", e);
+		}
+	}
+
+	private static MessageDigest sha1() throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (GeneralSecurityException e) {
+			throw new IOException("SHA-1 unavailable", e);
+		}
+	}
+
+	/** First 64 bits of the page's SHA-1; collisions between two versions of a page are not a practical concern. */
+	private static long digest(MessageDigest sha, byte[] page) {
+		byte[] h = sha.digest(page);
+		long d = 0;
+		for (int i = 0; i < 8; i++) d = (d << 8) | (h[i] & 0xff);
+		return d;
+	}
+
+	private static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,259 @@
+package com.promethylhosting.id34;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Keyed-HMAC "blind index" over hashtags and category names.
+ *
+ * With text and names encrypted, equality lookups can't use the stored values. Instead every
+ * write also stores HMAC-SHA256(key, kind | lowercase value) truncated to 64 bits, and lookups
+ * hash the search term the same way and probe the token index; only matching rows are ever
+ * decrypted. Tokens are deterministic per value but reveal nothing about it without the key,
+ * which is kept in private preferences through SecretStore (wrapped by the keystore on API 23+,
+ * so the prefs alone don't let anyone hash guessed hashtags). Category names also get prefix tokens (up to
+ * MAX_PREFIX chars) so autocomplete can be an indexed lookup too, and idea text and category
+ * names get a token per distinct word trigram for FuzzySearch.
+ */
+public class BlindIndex {
+
+	public static final String TABLE = "tblBlindIndex";
+	public static final String SCRIPT_CREATE =
+		"CREATE TABLE IF NOT EXISTS `" + TABLE + "` (\n" +
+		"  `token` INTEGER NOT NULL,\n" +
+		"  `kind` INTEGER NOT NULL,\n" +
+		"  `ref` INTEGER NOT NULL\n" +
+		");\n";
+	public static final String SCRIPT_CREATE_INDEX_TOKEN =
+		"CREATE INDEX IF NOT EXISTS idx_blind_token ON `" + TABLE + "` (`token`, `kind`, `ref`);";
+	public static final String SCRIPT_CREATE_INDEX_REF =
+		"CREATE INDEX IF NOT EXISTS idx_blind_ref ON `" + TABLE + "` (`ref`, `kind`);";
+
+	public static final int KIND_CAT_NAME = 1;   // ref = tblCategory.id
+	public static final int KIND_CAT_PREFIX = 2; // ref = tblCategory.id
+	public static final int KIND_IDEA_TAG = 3;   // ref = tblIdea.id
+	public static final int KIND_IDEA_TRIGRAM = 4; // ref = tblIdea.id
+	public static final int KIND_CAT_TRIGRAM = 5;  // ref = tblCategory.id
+	// token = a category id the idea's cid0..cid4 hold (in the clear, as the columns are), ref = tblIdea.id;
+	// kept by triggers (SchemaMigrations), so every write path is covered: sync, moves, imports
+	public static final int KIND_IDEA_CID = 6;
+
+	public static final String DEFAULT_TAG = "General"; // ideas without hashtags land here
+	public static final Pattern HASHTAG = Pattern.compile("#\\w+");
+
+	private static final String PREFS_NAME = "com.promethylhosting.id34.crypto";
+	private static final String PREF_SECRET = "blind_index_secret";
+	private static final int MAX_PREFIX = 12;
+	private static final int FINGERPRINT = 0; // not a kind in the table, just keeps fingerprints apart from tokens
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static volatile SecretKeySpec key;
+	private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("HmacSHA256 unavailable", e);
+			}
+		}
+	};
+
+	private BlindIndex() {}
+
+	public static synchronized void init(Context context) {
+		if (key != null) return;
+		SharedPreferences prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		byte[] secret = SecretStore.read(prefs, PREF_SECRET);
+		if (secret == null) {
+			secret = new byte[32];
+			new SecureRandom().nextBytes(secret);
+			SharedPreferences.Editor editor = prefs.edit();
+			SecretStore.write(editor, PREF_SECRET, secret);
+			editor.commit();
+		}
+		key = new SecretKeySpec(secret, "HmacSHA256");
+	}
+
+	public static long token(int kind, String value) {
+		return hmac(kind, value.toLowerCase(Locale.US));
+	}
+
+	/**
+	 * Keyed hash of the exact text, case and all, stored with each row (text_token) so sync can
+	 * tell changed text from text sent again without decrypting either.
+	 */
+	public static long fingerprint(String text) {
+		return hmac(FINGERPRINT, text);
+	}
+
+	private static long hmac(int kind, String value) {
+		Mac mac = macs.get();
+		mac.update((byte) kind);
+		byte[] h = mac.doFinal(value.getBytes(UTF8));
+		long t = 0;
+		for (int i = 0; i < 8; i++) t = (t << 8) | (h[i] & 0xff);
+		return t;
+	}
+
+	/** Hashtags in the text without the '#', in order of appearance, or DEFAULT_TAG if there are none. */
+	public static Set<String> extractTags(String text) {
+		Set<String> tags = new LinkedHashSet<String>();
+		Matcher matcher = HASHTAG.matcher(text);
+		while (matcher.find()) {
+			tags.add(matcher.group().substring(1));
+		}
+		if (tags.isEmpty()) tags.add(DEFAULT_TAG);
+		return tags;
+	}
+
+	/** Replace one idea's tokens. For many, use one Writer's reindexIdea() instead. */
+	public static void indexIdea(SQLiteDatabase db, long ideaId, String text) {
+		Writer writer = new Writer(db);
+		db.beginTransaction(); // one commit for all the tokens, or joins the caller's
+		try {
+			writer.reindexIdea(ideaId, text);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			writer.close();
+		}
+	}
+
+	/** Replace one category's tokens. For many, use one Writer's reindexCategory() instead. */
+	public static void indexCategory(SQLiteDatabase db, long catId, String name) {
+		Writer writer = new Writer(db);
+		db.beginTransaction(); // one commit for all the tokens, or joins the caller's
+		try {
+			writer.reindexCategory(catId, name);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			writer.close();
+		}
+	}
+
+	/**
+	 * Distinct trigrams of the words in text: lower case, letters and digits only, each word
+	 * padded with a space at both ends so short words and word boundaries have trigrams too
+	 * ("idea" gives " id", "ide", "dea", "ea ").
+	 */
+	public static Set<String> trigrams(String text) {
+		Set<String> grams = new LinkedHashSet<String>();
+		String lower = text.toLowerCase(Locale.US);
+		StringBuilder word = new StringBuilder(" ");
+		for (int i = 0; i <= lower.length(); i++) {
+			char c = i < lower.length() ? lower.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				word.append(c);
+			} else if (word.length() > 1) {
+				word.append(' ');
+				for (int j = 0; j + 3 <= word.length(); j++) grams.add(word.substring(j, j + 3));
+				word.setLength(1);
+			}
+		}
+		return grams;
+	}
+
+	/**
+	 * Trigram tokens keep 31 bits: there are dozens per idea, so small integers halve the index,
+	 * and a collision only costs FuzzySearch one wasted candidate.
+	 */
+	public static long trigramToken(int kind, String gram) {
+		return token(kind, gram) >>> 33;
+	}
+
+	/** Name token followed by the prefix tokens. */
+	private static long[] categoryTokens(String name) {
+		int prefixes = Math.min(name.length(), MAX_PREFIX);
+		long[] tokens = new long[prefixes + 1];
+		tokens[0] = token(KIND_CAT_NAME, name);
+		for (int len = 1; len <= prefixes; len++) {
+			tokens[len] = token(KIND_CAT_PREFIX, name.substring(0, len));
+		}
+		return tokens;
+	}
+
+	/** Prefixes longer than MAX_PREFIX are looked up by their first MAX_PREFIX chars; callers re-check the decoded name. */
+	public static long prefixToken(String prefix) {
+		return token(KIND_CAT_PREFIX, prefix.length() > MAX_PREFIX ? prefix.substring(0, MAX_PREFIX) : prefix);
+	}
+
+	public static void remove(SQLiteDatabase db, int kind, long ref) {
+		db.execSQL("DELETE FROM " + TABLE + " WHERE ref = ? AND kind = ?", new Object[]{ref, kind});
+	}
+
+	/**
+	 * Token writer: compiled statements reused for every row of a batch. add*() are for new rows,
+	 * with nothing to delete first; reindex*() replace an existing row's tokens. Use inside the
+	 * caller's transaction and close() when done.
+	 */
+	public static class Writer {
+		private final SQLiteStatement insert;
+		private final SQLiteStatement delete;
+
+		public Writer(SQLiteDatabase db) {
+			insert = db.compileStatement("INSERT INTO " + TABLE + " (token, kind, ref) VALUES (?,?,?)");
+			delete = db.compileStatement("DELETE FROM " + TABLE + " WHERE ref = ? AND kind = ?");
+		}
+
+		public void reindexIdea(long ideaId, String text) {
+			remove(KIND_IDEA_TAG, ideaId);
+			remove(KIND_IDEA_TRIGRAM, ideaId);
+			addIdea(ideaId, extractTags(text), text);
+		}
+
+		public void reindexCategory(long catId, String name) {
+			remove(KIND_CAT_NAME, catId);
+			remove(KIND_CAT_PREFIX, catId);
+			remove(KIND_CAT_TRIGRAM, catId);
+			addCategory(catId, name);
+		}
+
+		public void addIdea(long ideaId, Set<String> tags, String text) {
+			for (String tag : tags) add(token(KIND_IDEA_TAG, tag), KIND_IDEA_TAG, ideaId);
+			for (String gram : trigrams(text)) add(trigramToken(KIND_IDEA_TRIGRAM, gram), KIND_IDEA_TRIGRAM, ideaId);
+		}
+
+		public void addCategory(long catId, String name) {
+			long[] tokens = categoryTokens(name);
+			add(tokens[0], KIND_CAT_NAME, catId);
+			for (int i = 1; i < tokens.length; i++) add(tokens[i], KIND_CAT_PREFIX, catId);
+			for (String gram : trigrams(name)) add(trigramToken(KIND_CAT_TRIGRAM, gram), KIND_CAT_TRIGRAM, catId);
+		}
+
+		private void add(long token, int kind, long ref) {
+			insert.bindLong(1, token);
+			insert.bindLong(2, kind);
+			insert.bindLong(3, ref);
+			insert.executeInsert();
+		}
+
+		private void remove(int kind, long ref) {
+			delete.bindLong(1, ref);
+			delete.bindLong(2, kind);
+			delete.executeUpdateDelete();
+		}
+
+		public void close() {
+			insert.close();
+			delete.close();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package com.promethylhosting.id34;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Loads the ideas IdeaDetailFragment shows, a category's or a search's, off the main thread.
+ *
+ * One load is current at a time. Starting one cancels the one before, and a load that finishes
+ * after the selection has moved on is dropped, not delivered. Loaded categories are kept decoded
+ * in a small LRU of Pages. prefetch() fills it, one worker behind the current load, with the
+ * categories around the selection and those on screen in IdeaListFragment. In two-pane mode
+ * most taps then render straight from memory. Any write to tblIdea empties the cache
+ * (invalidate()), and a load that started before the write doesn't put its page in.
+ */
+public class CategoryDetailLoader {
+
+	private static final String LOG_TAG = "id34";
+	private static final int MAX_PAGES = 16;
+	private static final int MAX_PAGE_ROWS = 300; // bigger categories load every time rather than crowd out the rest
+	private static final int MAX_PREFETCH = 8;    // per call; leaves room in the cache for the selection
+
+	/** A category's (or search's) live ideas, decoded. */
+	public static final class Page {
+		public final String title;
+		private final long[] ids;
+		private final String[] names;
+		private final boolean[] completed;
+		private final long[] reminders; // epoch ms, TimeFormat.NONE if none
+
+		Page(String title, long[] ids, String[] names, boolean[] completed, long[] reminders) {
+			this.title = title;
+			this.ids = ids;
+			this.names = names;
+			this.completed = completed;
+			this.reminders = reminders;
+		}
+
+		public int size() { return ids.length; }
+
+		public boolean isCompleted(long id) {
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] == id) return completed[i];
+			}
+			return false;
+		}
+
+		// After a bulk action, the page as it now is, without loading it again
+
+		/** This page without ideas (deleted, or moved to another category). */
+		public Page without(long[] removed) {
+			long[] sorted = sorted(removed);
+			int kept = 0;
+			for (long id : ids) {
+				if (Arrays.binarySearch(sorted, id) < 0) kept++;
+			}
+			long[] keptIds = new long[kept];
+			String[] keptNames = new String[kept];
+			boolean[] keptCompleted = new boolean[kept];
+			long[] keptReminders = new long[kept];
+			for (int i = 0, j = 0; i < ids.length; i++) {
+				if (Arrays.binarySearch(sorted, ids[i]) >= 0) continue;
+				keptIds[j] = ids[i];
+				keptNames[j] = names[i];
+				keptReminders[j] = reminders[i];
+				keptCompleted[j++] = completed[i];
+			}
+			return new Page(title, keptIds, keptNames, keptCompleted, keptReminders);
+		}
+
+		/** This page with ideas marked completed, or not. */
+		public Page withCompleted(long[] changed, boolean done) {
+			long[] sorted = sorted(changed);
+			boolean[] now = completed.clone();
+			for (int i = 0; i < ids.length; i++) {
+				if (Arrays.binarySearch(sorted, ids[i]) >= 0) now[i] = done;
+			}
+			return new Page(title, ids, names, now, reminders);
+		}
+
+		/** This page with new text for changed[i] wherever texts[i] isn't null. */
+		public Page withNames(long[] changed, String[] texts) {
+			String[] now = names.clone();
+			for (int c = 0; c < changed.length; c++) {
+				if (texts[c] == null) continue;
+				for (int i = 0; i < ids.length; i++) {
+					if (ids[i] == changed[c]) now[i] = texts[c];
+				}
+			}
+			return new Page(title, ids, now, completed, reminders);
+		}
+
+		private static long[] sorted(long[] ids) {
+			long[] sorted = ids.clone();
+			Arrays.sort(sorted);
+			return sorted;
+		}
+
+		/** A new cursor over the page: _id, name, completed, deleted, reminder like queryIdeasByCatName. */
+		public Cursor toCursor() {
+			MatrixCursor cursor = new MatrixCursor(new String[]{"_id", SQLCipherAdapter.KEY_NAME,
+					SQLCipherAdapter.KEY_COMPLETED, SQLCipherAdapter.KEY_DELETED, SQLCipherAdapter.KEY_REMINDER}, ids.length);
+			for (int i = 0; i < ids.length; i++) cursor.addRow(new Object[]{ids[i], names[i], completed[i] ? 1 : 0, 0, reminders[i]});
+			return cursor;
+		}
+	}
+
+	/** Called on the main thread with the page, unless the load was superseded or cancelled. */
+	public interface Callback {
+		void onLoaded(Page page);
+	}
+
+	private static final CategoryDetailLoader INSTANCE = new CategoryDetailLoader();
+
+	public static CategoryDetailLoader get() { return INSTANCE; }
+
+	private final ExecutorService worker = Executors.newSingleThreadExecutor();
+	private final Handler main = new Handler(Looper.getMainLooper());
+	private final Map<String, Page> cache = new LinkedHashMap<String, Page>(MAX_PAGES, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Page> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+	private final List<Future<?>> prefetches = new ArrayList<Future<?>>();
+	private Future<?> current;
+	private Callback currentCallback;
+	private int selection; // bumped by every load and cancel; a load delivers only if it is still the latest
+	private int version;   // bumped by every invalidate; a load caches only if nothing was written meanwhile
+	private SQLCipherAdapter sql; // worker thread only
+
+	private CategoryDetailLoader() {}
+
+	/**
+	 * Show category catId. Returns its page at once if cached; otherwise returns null and
+	 * callback gets the page once loaded.
+	 */
+	public synchronized Page load(Context context, String catId, Callback callback) {
+		Page page = cache.get(catId);
+		if (page != null) {
+			supersede(callback);
+			return page;
+		}
+		start(context, catId, null, 0, callback);
+		return null;
+	}
+
+	/** Show up to limit ideas matching query (FuzzySearch); never cached. */
+	public synchronized void search(Context context, String query, int limit, Callback callback) {
+		start(context, null, query, limit, callback);
+	}
+
+	/**
+	 * Load catIds into the cache behind whatever is loading now, the first MAX_PREFETCH not
+	 * already there. The next load() drops any that haven't run yet.
+	 */
+	public synchronized void prefetch(final Context context, List<String> catIds) {
+		for (Iterator<Future<?>> it = prefetches.iterator(); it.hasNext(); ) {
+			if (it.next().isDone()) it.remove();
+		}
+		int queued = 0;
+		for (final String catId : catIds) {
+			if (queued == MAX_PREFETCH) break;
+			if (catId == null || cache.containsKey(catId)) continue;
+			final int since = version;
+			prefetches.add(worker.submit(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (CategoryDetailLoader.this) {
+						if (cache.containsKey(catId)) return; // loaded meanwhile
+					}
+					Page page = read(context, catId, null, 0);
+					if (page != null) keep(catId, page, since);
+				}
+			}));
+			queued++;
+		}
+	}
+
+	/** Stop delivering to callback, if it is the current one (a fragment going away). */
+	public synchronized void cancel(Callback callback) {
+		if (callback != currentCallback) return;
+		supersede(null);
+	}
+
+	/** tblIdea changed: forget every cached page. */
+	public synchronized void invalidate() {
+		version++;
+		cache.clear();
+	}
+
+	private void start(final Context context, final String catId, final String query, final int limit, final Callback callback) {
+		supersede(callback);
+		final int ticket = selection;
+		final int since = version;
+		current = worker.submit(new Runnable() {
+			@Override
+			public void run() {
+				final Page page = read(context, catId, query, limit);
+				if (page == null) return;
+				if (catId != null) keep(catId, page, since);
+				main.post(new Runnable() {
+					@Override
+					public void run() {
+						synchronized (CategoryDetailLoader.this) {
+							if (ticket != selection) return;
+							current = null;
+							currentCallback = null;
+						}
+						callback.onLoaded(page);
+					}
+				});
+			}
+		});
+	}
+
+	// a new selection: whatever was loading or queued for the old one is of no use now
+	private void supersede(Callback callback) {
+		selection++;
+		currentCallback = callback;
+		if (current != null) current.cancel(true);
+		current = null;
+		for (Future<?> prefetch : prefetches) prefetch.cancel(false); // running ones finish into the cache
+		prefetches.clear();
+	}
+
+	private synchronized void keep(String catId, Page page, int since) {
+		if (since == version && page.size() <= MAX_PAGE_ROWS) cache.put(catId, page);
+	}
+
+	// on the worker; null if interrupted (superseded) or failed
+	private Page read(Context context, String catId, String query, int limit) {
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+		long start = System.currentTimeMillis();
+		Tracer.Span span = Tracer.begin("detail.load");
+		if (sql == null) sql = new SQLCipherAdapter(context.getApplicationContext());
+		sql.acquire(); // the cursor is read after the query returns: no file swap until it's closed
+		try {
+			sql.openToRead();
+			String title = query != null ? query : sql.getCatNameFromCatId(catId);
+			Cursor cursor = query != null ? sql.searchIdeas(query, limit) : sql.queryIdeasByCatName(title);
+			try {
+				int count = cursor.getCount();
+				long[] ids = new long[count];
+				String[] names = new String[count];
+				boolean[] completed = new boolean[count];
+				long[] reminders = new long[count];
+				int idIndex = cursor.getColumnIndex("_id");
+				int nameIndex = cursor.getColumnIndex(SQLCipherAdapter.KEY_NAME);
+				int completedIndex = cursor.getColumnIndex(SQLCipherAdapter.KEY_COMPLETED);
+				int reminderIndex = cursor.getColumnIndex(SQLCipherAdapter.KEY_REMINDER);
+				for (int i = 0; i < count && cursor.moveToNext(); i++) {
+					if (Thread.currentThread().isInterrupted()) return null; // each row is a decrypt; stop early
+					ids[i] = cursor.getLong(idIndex);
+					names[i] = cursor.getString(nameIndex);
+					completed[i] = cursor.getInt(completedIndex) == 1;
+					reminders[i] = reminderIndex < 0 ? TimeFormat.NONE : cursor.getLong(reminderIndex);
+				}
+				Log.i(LOG_TAG, "CategoryDetailLoader '" + title + "': " + count + " ideas in "
+						+ (System.currentTimeMillis() - start) + "ms");
+				return new Page(title, ids, names, completed, reminders);
+			} finally {
+				cursor.close();
+			}
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Loading ideas for " + (query != null ? "'" + query + "'" : "category " + catId) + " failed: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+		} finally {
+			sql.release();
+			sql.close();
+			span.end();
+		}
+	}
+}
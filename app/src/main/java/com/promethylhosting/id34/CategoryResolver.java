@@ -0,0 +1,114 @@
+package com.promethylhosting.id34;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Hashtag -> category id resolution for bulk jobs. All category names are decoded once into a
+ * map, so resolving a batch of tags costs no queries; tags not seen before become new categories
+ * (with their blind index tokens) through one compiled statement. Names match exactly, like
+ * getCatIdFromCatName: #Work and #work are two categories. Use from a single thread, inside the
+ * caller's transaction, and close() when done. A job that keeps one across several transactions
+ * calls catchUp() at the start of each, to pick up the categories others added or renamed in
+ * between, whatever their ids.
+ */
+public class CategoryResolver {
+
+	public static final int MAX_CATEGORIES_PER_IDEA = 5; // cid0..cid4
+	private static final long ID_RANGE = 100000000; // ids like saveCategoryIfNotExists makes them
+
+	private final Map<String, Long> ids = new HashMap<String, Long>(); // name -> id
+	private final Map<Long, String> names = new HashMap<Long, String>(); // id -> name, as last read
+	private final Map<Long, Long> versions = new HashMap<Long, Long>(); // id -> text_token it was read at
+	private final SQLiteStatement insert;
+	private final BlindIndex.Writer tokens;
+	private final long now;
+	private long lastNewId = 0;
+
+	public CategoryResolver(SQLiteDatabase db) {
+		catchUp(db);
+		now = System.currentTimeMillis();
+		insert = db.compileStatement(
+				"INSERT OR IGNORE INTO " + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY + " (" + SQLCipherAdapter.KEY_ID + ","
+				+ SQLCipherAdapter.KEY_UID + "," + SQLCipherAdapter.KEY_NUM + "," + SQLCipherAdapter.KEY_UPDATED + ","
+				+ SQLCipherAdapter.KEY_CAT + "," + SQLCipherAdapter.KEY_KEY_VER + "," + SQLCipherAdapter.KEY_TEXT_TOKEN
+				+ ") VALUES (?,1,0,?,?,?,?)");
+		tokens = new BlindIndex.Writer(db);
+	}
+
+	/**
+	 * Bring the map up to date with the category table. Every row is read, since saves and sync
+	 * add ids anywhere in the range, but only names whose text_token changed since the last look
+	 * are decoded again.
+	 */
+	public void catchUp(SQLiteDatabase db) {
+		Cursor c = db.query(SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY,
+				new String[]{SQLCipherAdapter.KEY_ID, SQLCipherAdapter.KEY_TEXT_TOKEN, SQLCipherAdapter.KEY_CAT},
+				null, null, null, null, SQLCipherAdapter.KEY_ID);
+		try {
+			while (c.moveToNext()) {
+				Long id = c.getLong(0);
+				Long version = c.isNull(1) ? null : c.getLong(1);
+				if (versions.containsKey(id) && equal(version, versions.get(id))) continue;
+				String old = names.get(id);
+				if (old != null && id.equals(ids.get(old))) ids.remove(old); // renamed
+				String name = SQLCipherAdapter.readText(c, 2);
+				names.put(id, name);
+				versions.put(id, version);
+				if (!ids.containsKey(name)) ids.put(name, id);
+			}
+		} finally {
+			c.close();
+		}
+	}
+
+	/** Id of the category named name, created if it doesn't exist yet. */
+	public long idFor(String name) {
+		Long id = ids.get(name);
+		if (id != null) return id;
+		// a free id near the clock; ids taken by a save or a sync are skipped, not overwritten
+		long candidate = Math.max(System.currentTimeMillis() % ID_RANGE, lastNewId + 1);
+		long fingerprint = BlindIndex.fingerprint(name);
+		while (true) {
+			insert.bindLong(1, candidate);
+			insert.bindLong(2, now);
+			SQLCipherAdapter.bindText(insert, 3, 4, name);
+			insert.bindLong(5, fingerprint);
+			if (insert.executeInsert() != -1) break;
+			candidate++;
+		}
+		lastNewId = candidate;
+		id = candidate;
+		tokens.addCategory(id, name);
+		HashtagIndex.get().add(id, name);
+		ids.put(name, id);
+		names.put(id, name);
+		versions.put(id, fingerprint);
+		return id;
+	}
+	/** Fill cids with the ids of the first MAX_CATEGORIES_PER_IDEA tags, 0 for unused slots. */
+	public void idsFor(Set<String> tags, long[] cids) {
+		int n = 0;
+		for (Iterator<String> it = tags.iterator(); it.hasNext() && n < cids.length; ) {
+			cids[n++] = idFor(it.next());
+		}
+		while (n < cids.length) cids[n++] = 0;
+	}
+
+	public BlindIndex.Writer tokens() { return tokens; }
+
+	public void close() {
+		insert.close();
+		tokens.close();
+	}
+
+	private static boolean equal(Long a, Long b) {
+		return a == null ? b == null : a.equals(b);
+	}
+}
@@ -0,0 +1,513 @@
+package com.promethylhosting.id34;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Moves a database that still holds plaintext rows (written before field encryption, key_ver 0)
+ * into a freshly written file with every text field encrypted, so no plaintext is left behind in
+ * free pages or the journal the way an in-place update would.
+ *
+ * Each table is copied in rowid order, BATCH_ROWS rows per transaction through one compiled
+ * insert, so memory stays flat however big the database is. Every batch is read back, decrypted,
+ * and its row count and CRC compared with those of the source rows it came from before the
+ * checkpoint moves on; a killed process resumes from the last good batch. The live database stays
+ * readable and writable throughout: triggers log the rowids changed while the copy runs and those
+ * rows are copied again.
+ *
+ * cutover() finishes the job once SQLCipherAdapter has closed the live database and holds its
+ * lock, so nothing can write to the old file any more: the last changes are replayed, indexes and
+ * triggers are created, the row counts compared, and the adapter swaps the file in with a single
+ * rename before it lets anyone open the database again. That the move is done is recorded in the
+ * new file (DatabaseState), so a restored backup from before it is moved again; the copy's own
+ * checkpoint is about the side file and stays in prefs, dropped by abandon() when the database
+ * it was copying is replaced.
+ */
+public class DatabaseMigrationJob {
+
+	public interface ProgressListener {
+		void onProgress(int done, int total);
+	}
+
+	private static final String LOG_TAG = "id34";
+	private static final String PREF_STATE = "dbmig_state";          // of the copy file, which no backup has
+	private static final String PREF_TABLES = "dbmig_tables";       // tables being copied, in order
+	private static final String PREF_TABLE = "dbmig_table";         // index into PREF_TABLES
+	private static final String PREF_LAST_ROWID = "dbmig_last_rowid";
+	private static final int STATE_IDLE = 0;
+	private static final int STATE_COPYING = 1;
+	private static final int STATE_DONE = 2;                         // before v11, now STATE_MIGRATED
+	private static final String STATE_MIGRATED = "dbmig_done";      // in DatabaseState: no plaintext rows left
+	private static final int BATCH_ROWS = 500;
+
+	private static final String TRACKING_PREFIX = "mig_"; // dirty log and its triggers, never copied
+	private static final String DIRTY_TABLE = "mig_dirty";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	// table, text column encrypted on the way over
+	private static final String[][] ENCRYPTED = {
+		{SQLCipherAdapter.MYDATABASE_TABLE_IDEA, SQLCipherAdapter.KEY_NAME},
+		{SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY, SQLCipherAdapter.KEY_CAT},
+	};
+
+	private final SharedPreferences prefs;
+	private final File copyFile;
+	private final Map<String, TableCopy> copies = new HashMap<String, TableCopy>();
+	private volatile boolean cancelled = false;
+	private ProgressListener listener;
+
+	public DatabaseMigrationJob(Context context) {
+		prefs = context.getApplicationContext().getSharedPreferences(SQLCipherAdapter.PREFS_NAME, Context.MODE_PRIVATE);
+		copyFile = new File(context.getDatabasePath(SQLCipherAdapter.MYDATABASE_NAME).getPath() + ".migrating");
+	}
+
+	public void setProgressListener(ProgressListener listener) { this.listener = listener; }
+
+	public void cancel() { cancelled = true; }
+
+	/** The finished copy, valid once run() has returned true. */
+	public File getCopyFile() { return copyFile; }
+
+	/**
+	 * True while db still has plaintext rows to move. When it has none (never had, or the
+	 * cutover happened and only the bookkeeping was lost) any half-done copy is discarded.
+	 */
+	public boolean isMigrationNeeded(SQLiteDatabase db) {
+		if (prefs.getInt(PREF_STATE, STATE_IDLE) == STATE_DONE) { // recorded in prefs before v11
+			DatabaseState.put(db, STATE_MIGRATED, 1);
+			prefs.edit().remove(PREF_STATE).commit();
+		}
+		if (!FieldCipher.isEnabled() || DatabaseState.isSet(db, STATE_MIGRATED)) return false;
+		boolean plaintext = DatabaseUtils.longForQuery(db, "SELECT EXISTS(SELECT 1 FROM "
+				+ SQLCipherAdapter.MYDATABASE_TABLE_IDEA + " WHERE " + SQLCipherAdapter.KEY_KEY_VER + " = 0) OR EXISTS(SELECT 1 FROM "
+				+ SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY + " WHERE " + SQLCipherAdapter.KEY_KEY_VER + " = 0)", null) != 0;
+		if (!plaintext) {
+			dropTracking(db);
+			abandon();
+			DatabaseState.put(db, STATE_MIGRATED, 1);
+		}
+		return plaintext;
+	}
+
+	/** Record a completed cutover; the copy, now the database, says so itself. */
+	public void markDone() {
+		prefs.edit().remove(PREF_STATE).remove(PREF_TABLES).remove(PREF_TABLE).remove(PREF_LAST_ROWID).commit();
+	}
+
+	/**
+	 * Drop a half-done copy and its checkpoint: the database it was copying has been replaced
+	 * (a restore), so the next run starts over from the new one.
+	 */
+	public void abandon() {
+		deleteCopy();
+		markDone();
+	}
+
+	/**
+	 * Copy source into getCopyFile() until done or cancelled, replaying the changes made
+	 * meanwhile. The caller then closes source and calls cutover().
+	 * @return true when every table has been copied and verified
+	 */
+	public boolean run(SQLiteDatabase source) {
+		if (prefs.getInt(PREF_STATE, STATE_IDLE) != STATE_COPYING || !copyFile.exists()) begin(source);
+		String[] tables = prefs.getString(PREF_TABLES, "").split(",");
+		int table = prefs.getInt(PREF_TABLE, 0);
+		long lastRowid = prefs.getLong(PREF_LAST_ROWID, Long.MIN_VALUE);
+		long start = System.currentTimeMillis();
+
+		SQLiteDatabase dest = openCopy();
+		try {
+			if (table < tables.length) {
+				// a batch may have committed here without its checkpoint
+				dest.delete(tables[table], "rowid > ?", new String[]{String.valueOf(lastRowid)});
+			}
+			int total = remainingRows(source, tables, table, lastRowid);
+			int done = 0;
+
+			while (table < tables.length) {
+				if (cancelled) {
+					Log.i(LOG_TAG, "DatabaseMigrationJob paused at " + tables[table] + " rowid " + lastRowid
+							+ " (" + done + "/" + total + ")");
+					return false;
+				}
+				long[] progress = copyBatch(source, dest, tables[table], lastRowid);
+				if (progress[0] == lastRowid) { // table done
+					table++;
+					lastRowid = Long.MIN_VALUE;
+				} else {
+					lastRowid = progress[0];
+					done += progress[1];
+				}
+				prefs.edit().putInt(PREF_TABLE, table).putLong(PREF_LAST_ROWID, lastRowid).commit();
+				replayChanges(source, dest, tables, table, lastRowid);
+				if (listener != null) listener.onProgress(done, total);
+			}
+			// most of what is left, so cutover() has little to do while the app waits
+			replayChanges(source, dest, tables, tables.length, Long.MIN_VALUE);
+		} finally {
+			closeCopy(dest);
+		}
+		Log.i(LOG_TAG, "DatabaseMigrationJob copied " + tables.length + " tables in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	/**
+	 * Bring the copy level with sourceFile and finish it. Only call once run() has returned true,
+	 * with every connection to sourceFile closed and no way for one to open until the copy has
+	 * been renamed over it: writes to the old file after this would be lost.
+	 */
+	public void cutover(File sourceFile) {
+		if (prefs.getInt(PREF_STATE, STATE_IDLE) != STATE_COPYING) throw new IllegalStateException("Copy abandoned, not swapped in");
+		long start = System.currentTimeMillis();
+		String[] tables = prefs.getString(PREF_TABLES, "").split(",");
+		SQLiteDatabase source = SQLiteDatabase.openDatabase(sourceFile.getPath(), null,
+				SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+		try {
+			SQLiteDatabase dest = openCopy();
+			try {
+				replayChanges(source, dest, tables, tables.length, Long.MIN_VALUE);
+				createSchemaObjects(source, dest);
+				for (String name : tables) {
+					long expected = DatabaseUtils.queryNumEntries(source, name);
+					long copied = DatabaseUtils.queryNumEntries(dest, name);
+					if (expected != copied) {
+						prefs.edit().putInt(PREF_STATE, STATE_IDLE).commit(); // start over next time
+						throw new IllegalStateException(name + " has " + copied + " rows in the copy, expected " + expected);
+					}
+				}
+				dest.execSQL(DatabaseState.SCRIPT_CREATE); // a copy begun before v11 has no tblState
+				DatabaseState.put(dest, STATE_MIGRATED, 1);
+				String check = DatabaseUtils.stringForQuery(dest, "PRAGMA quick_check", null);
+				if (!"ok".equals(check)) throw new IllegalStateException("Migrated copy failed quick_check: " + check);
+				dest.setVersion(source.getVersion());
+			} finally {
+				closeCopy(dest);
+			}
+		} finally {
+			source.close();
+		}
+		Log.i(LOG_TAG, "DatabaseMigrationJob cutover took " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	private void closeCopy(SQLiteDatabase dest) {
+		for (TableCopy copy : copies.values()) copy.close();
+		copies.clear();
+		dest.close();
+	}
+
+	/** Start a fresh copy: empty tables in the new file, change tracking on the old one. */
+	private void begin(SQLiteDatabase source) {
+		deleteCopy();
+		List<String> tables = new ArrayList<String>();
+		SQLiteDatabase dest = openCopy();
+		Cursor cursor = source.rawQuery("SELECT name, sql FROM sqlite_master WHERE type = 'table' AND sql NOT NULL"
+				+ " AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' AND name NOT LIKE '" + TRACKING_PREFIX + "%' ORDER BY name", null);
+		try {
+			while (cursor.moveToNext()) {
+				dest.execSQL(cursor.getString(1));
+				tables.add(cursor.getString(0));
+			}
+		} finally {
+			cursor.close();
+			dest.close();
+		}
+
+		source.execSQL("CREATE TABLE IF NOT EXISTS " + DIRTY_TABLE
+				+ " (seq INTEGER PRIMARY KEY AUTOINCREMENT, tbl TEXT NOT NULL, rid INTEGER NOT NULL)");
+		StringBuilder names = new StringBuilder();
+		for (String name : tables) {
+			String log = "INSERT INTO " + DIRTY_TABLE + " (tbl, rid) VALUES ";
+			source.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRACKING_PREFIX + "ins_" + name + " AFTER INSERT ON `" + name
+					+ "` BEGIN " + log + "('" + name + "', NEW.rowid); END");
+			source.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRACKING_PREFIX + "upd_" + name + " AFTER UPDATE ON `" + name
+					+ "` BEGIN " + log + "('" + name + "', OLD.rowid), ('" + name + "', NEW.rowid); END");
+			source.execSQL("CREATE TRIGGER IF NOT EXISTS " + TRACKING_PREFIX + "del_" + name + " AFTER DELETE ON `" + name
+					+ "` BEGIN " + log + "('" + name + "', OLD.rowid); END");
+			if (names.length() > 0) names.append(',');
+			names.append(name);
+		}
+		source.delete(DIRTY_TABLE, null, null);
+
+		prefs.edit().putInt(PREF_STATE, STATE_COPYING)
+			.putString(PREF_TABLES, names.toString())
+			.putInt(PREF_TABLE, 0)
+			.putLong(PREF_LAST_ROWID, Long.MIN_VALUE)
+			.commit();
+		Log.i(LOG_TAG, "DatabaseMigrationJob started, " + tables.size() + " tables");
+	}
+
+	/** @return {last rowid copied (unchanged if none), rows copied} */
+	private long[] copyBatch(SQLiteDatabase source, SQLiteDatabase dest, String table, long afterRowid) {
+		TableCopy copy = copyFor(dest, table);
+		CRC32 original = new CRC32();
+		long[] result;
+		dest.beginTransaction();
+		try {
+			result = copy.copy(source, "rowid > ?", String.valueOf(afterRowid), String.valueOf(BATCH_ROWS), original);
+			if (result[1] > 0) {
+				// read the batch back and decrypt it before it counts as done
+				CRC32 read = new CRC32();
+				int rows = copy.checksum(dest, afterRowid, result[0], read);
+				if (rows != result[1] || read.getValue() != original.getValue()) {
+					throw new IllegalStateException(table + " batch after rowid " + afterRowid + " did not verify: "
+							+ rows + "/" + result[1] + " rows");
+				}
+			}
+			dest.setTransactionSuccessful();
+		} finally {
+			dest.endTransaction();
+		}
+		return result;
+	}
+
+	/**
+	 * Copy again the rows changed in source since they were copied. Rows beyond the copy
+	 * position are skipped, the bulk copy reads their current state when it gets there.
+	 */
+	private void replayChanges(SQLiteDatabase source, SQLiteDatabase dest, String[] tables, int table, long lastRowid) {
+		while (true) {
+			long maxSeq = -1;
+			Cursor dirty = source.rawQuery("SELECT seq, tbl, rid FROM " + DIRTY_TABLE + " ORDER BY seq LIMIT " + BATCH_ROWS, null);
+			dest.beginTransaction();
+			try {
+				while (dirty.moveToNext()) {
+					maxSeq = dirty.getLong(0);
+					String name = dirty.getString(1);
+					long rowid = dirty.getLong(2);
+					int index = indexOf(tables, name);
+					if (index < 0 || index > table || (index == table && rowid > lastRowid)) continue;
+
+					String[] args = new String[]{String.valueOf(rowid)};
+					dest.delete(name, "rowid = ?", args);
+					copyFor(dest, name).copy(source, "rowid = ?", args[0], null, new CRC32());
+				}
+				dest.setTransactionSuccessful();
+			} finally {
+				dest.endTransaction();
+				dirty.close();
+			}
+			if (maxSeq < 0) return;
+			// only once the copy has them; replaying twice is harmless, missing one is not
+			source.delete(DIRTY_TABLE, "seq <= ?", new String[]{String.valueOf(maxSeq)});
+		}
+	}
+
+	/** Indexes, views and triggers, created once the data is in so the bulk copy doesn't maintain them. */
+	private void createSchemaObjects(SQLiteDatabase source, SQLiteDatabase dest) {
+		Cursor cursor = source.rawQuery("SELECT name, sql FROM sqlite_master WHERE type IN ('index', 'view', 'trigger')"
+				+ " AND sql NOT NULL AND name NOT LIKE '" + TRACKING_PREFIX + "%'"
+				+ " ORDER BY CASE type WHEN 'index' THEN 0 WHEN 'view' THEN 1 ELSE 2 END", null);
+		try {
+			while (cursor.moveToNext()) {
+				if (DatabaseUtils.longForQuery(dest, "SELECT COUNT(*) FROM sqlite_master WHERE name = ?",
+						new String[]{cursor.getString(0)}) == 0) {
+					dest.execSQL(cursor.getString(1));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private int remainingRows(SQLiteDatabase source, String[] tables, int table, long lastRowid) {
+		long rows = 0;
+		for (int i = table; i < tables.length; i++) {
+			rows += i == table
+					? DatabaseUtils.queryNumEntries(source, tables[i], "rowid > ?", new String[]{String.valueOf(lastRowid)})
+					: DatabaseUtils.queryNumEntries(source, tables[i]);
+		}
+		return (int) rows;
+	}
+
+	private void dropTracking(SQLiteDatabase db) {
+		Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'trigger' AND name LIKE '"
+				+ TRACKING_PREFIX + "%'", null);
+		try {
+			while (cursor.moveToNext()) db.execSQL("DROP TRIGGER IF EXISTS `" + cursor.getString(0) + "`");
+		} finally {
+			cursor.close();
+		}
+		db.execSQL("DROP TABLE IF EXISTS " + DIRTY_TABLE);
+	}
+
+	private void deleteCopy() {
+		copyFile.delete();
+		new File(copyFile.getPath() + "-journal").delete();
+	}
+
+	private SQLiteDatabase openCopy() {
+		return SQLiteDatabase.openDatabase(copyFile.getPath(), null,
+				SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY | SQLiteDatabase.NO_LOCALIZED_COLLATORS);
+	}
+
+	private TableCopy copyFor(SQLiteDatabase dest, String table) {
+		TableCopy copy = copies.get(table);
+		if (copy == null) {
+			copy = new TableCopy(dest, table);
+			copies.put(table, copy);
+		}
+		return copy;
+	}
+
+	private static int indexOf(String[] tables, String name) {
+		for (int i = 0; i < tables.length; i++) {
+			if (tables[i].equals(name)) return i;
+		}
+		return -1;
+	}
+
+	/** Column layout and compiled insert for one table; rowid is always column 0. */
+	private static class TableCopy {
+		final String table;
+		final String[] columns;
+		final SQLiteStatement insert;
+		int textColumn = -1;
+		int keyVerColumn = -1;
+
+		TableCopy(SQLiteDatabase dest, String table) {
+			this.table = table;
+			List<String> names = new ArrayList<String>();
+			names.add("rowid");
+			Cursor info = dest.rawQuery("PRAGMA table_info(`" + table + "`)", null);
+			try {
+				int pkColumns = 0;
+				String alias = null;
+				while (info.moveToNext()) {
+					names.add(info.getString(info.getColumnIndex("name")));
+					if (info.getInt(info.getColumnIndex("pk")) > 0) {
+						pkColumns++;
+						if ("INTEGER".equalsIgnoreCase(info.getString(info.getColumnIndex("type")))) alias = names.get(names.size() - 1);
+					}
+				}
+				if (pkColumns == 1 && alias != null) names.remove(alias); // INTEGER PRIMARY KEY is the rowid itself
+			} finally {
+				info.close();
+			}
+			columns = names.toArray(new String[names.size()]);
+			for (String[] encrypted : ENCRYPTED) {
+				if (!encrypted[0].equals(table)) continue;
+				textColumn = names.indexOf(encrypted[1]);
+				keyVerColumn = names.indexOf(SQLCipherAdapter.KEY_KEY_VER);
+			}
+
+			StringBuilder sql = new StringBuilder("INSERT INTO `").append(table).append("` (");
+			StringBuilder params = new StringBuilder();
+			for (int i = 0; i < columns.length; i++) {
+				if (i > 0) {
+					sql.append(',');
+					params.append(',');
+				}
+				sql.append('`').append(columns[i]).append('`');
+				params.append('?');
+			}
+			insert = dest.compileStatement(sql.append(") VALUES (").append(params).append(')').toString());
+		}
+
+		/** Copy the matching rows, encrypting plaintext text, and checksum the source rows as read. */
+		long[] copy(SQLiteDatabase source, String where, String arg, String limit, CRC32 crc) {
+			long lastRowid = Long.parseLong(arg);
+			int rows = 0;
+			Cursor cursor = source.query("`" + table + "`", columns, where, new String[]{arg}, null, null, "rowid", limit);
+			try {
+				while (cursor.moveToNext()) {
+					Object encoded = null;
+					boolean encrypt = textColumn >= 0 && keyVerColumn >= 0 && cursor.getInt(keyVerColumn) == 0;
+					if (encrypt) encoded = FieldCipher.encodeText(SQLCipherAdapter.readText(cursor, textColumn));
+
+					insert.clearBindings();
+					for (int i = 0; i < columns.length; i++) {
+						Object value;
+						if (encrypt && i == textColumn) value = encoded;
+						else if (encrypt && i == keyVerColumn) value = Long.valueOf(FieldCipher.keyVersionOf(encoded));
+						else value = valueOf(cursor, i);
+						bind(insert, i + 1, value);
+					}
+					checksumRow(cursor, crc);
+					insert.executeInsert();
+					lastRowid = cursor.getLong(0);
+					rows++;
+				}
+			} finally {
+				cursor.close();
+			}
+			return new long[]{lastRowid, rows};
+		}
+
+		/** Checksum the rows in (afterRowid, lastRowid] as stored, the way copy() does the source. */
+		int checksum(SQLiteDatabase db, long afterRowid, long lastRowid, CRC32 crc) {
+			int rows = 0;
+			Cursor cursor = db.query("`" + table + "`", columns, "rowid > ? AND rowid <= ?",
+					new String[]{String.valueOf(afterRowid), String.valueOf(lastRowid)}, null, null, "rowid");
+			try {
+				while (cursor.moveToNext()) {
+					checksumRow(cursor, crc);
+					rows++;
+				}
+			} finally {
+				cursor.close();
+			}
+			return rows;
+		}
+
+		void close() { insert.close(); }
+
+		// by content: the text decrypted and without its key version, so a source row and its
+		// encrypted copy checksum the same
+		private void checksumRow(Cursor cursor, CRC32 crc) {
+			for (int i = 0; i < columns.length; i++) {
+				if (i == keyVerColumn) continue;
+				update(crc, i == textColumn ? SQLCipherAdapter.readText(cursor, i) : valueOf(cursor, i));
+			}
+		}
+
+		private static Object valueOf(Cursor cursor, int i) {
+			switch (cursor.getType(i)) {
+				case Cursor.FIELD_TYPE_INTEGER: return Long.valueOf(cursor.getLong(i));
+				case Cursor.FIELD_TYPE_FLOAT: return Double.valueOf(cursor.getDouble(i));
+				case Cursor.FIELD_TYPE_STRING: return cursor.getString(i);
+				case Cursor.FIELD_TYPE_BLOB: return cursor.getBlob(i);
+				default: return null;
+			}
+		}
+
+		private static void bind(SQLiteStatement statement, int index, Object value) {
+			if (value instanceof Long) statement.bindLong(index, (Long) value);
+			else if (value instanceof Double) statement.bindDouble(index, (Double) value);
+			else SQLCipherAdapter.bindEncoded(statement, index, value);
+		}
+
+		private static void update(CRC32 crc, Object value) {
+			if (value == null) {
+				crc.update(0);
+			} else if (value instanceof Long) {
+				crc.update(1);
+				long v = (Long) value;
+				for (int shift = 56; shift >= 0; shift -= 8) crc.update((int) (v >>> shift));
+			} else if (value instanceof Double) {
+				crc.update(2);
+				long v = Double.doubleToLongBits((Double) value);
+				for (int shift = 56; shift >= 0; shift -= 8) crc.update((int) (v >>> shift));
+			} else if (value instanceof String) {
+				crc.update(3);
+				crc.update(((String) value).getBytes(UTF8));
+			} else {
+				crc.update(4);
+				crc.update((byte[]) value);
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package com.promethylhosting.id34;
+
+import java.util.Map;
+
+import android.content.SharedPreferences;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Markers about one database file rather than the device: whether its blind index is built, how
+ * far the hashtag backfill or a key rotation has got through its rows, whether its plaintext has
+ * been moved out. They are kept in the file itself (tblState), so a restored backup brings its
+ * own and the jobs carry on from where that file was, not from where the one it replaced was.
+ */
+public class DatabaseState {
+
+	public static final String TABLE = "tblState";
+	public static final String SCRIPT_CREATE = "CREATE TABLE IF NOT EXISTS " + TABLE
+			+ " (name TEXT PRIMARY KEY NOT NULL, value INTEGER NOT NULL)";
+
+	private DatabaseState() {}
+
+	public static long get(SQLiteDatabase db, String name, long missing) {
+		return DatabaseUtils.longForQuery(db, "SELECT IFNULL((SELECT value FROM " + TABLE + " WHERE name = ?), ?)",
+				new String[]{name, String.valueOf(missing)});
+	}
+
+	public static boolean isSet(SQLiteDatabase db, String name) {
+		return get(db, name, 0) != 0;
+	}
+
+	public static void put(SQLiteDatabase db, String name, long value) {
+		db.execSQL("INSERT OR REPLACE INTO " + TABLE + " (name, value) VALUES (?, ?)", new Object[]{name, value});
+	}
+
+	public static void remove(SQLiteDatabase db, String... names) {
+		for (String name : names) db.delete(TABLE, "name = ?", new String[]{name});
+	}
+
+	/**
+	 * Move markers kept in prefs before v11 into db, under the same names: they were about the
+	 * file in use then. Booleans become 0/1. Cheap once prefs no longer have them.
+	 */
+	public static void adopt(SQLiteDatabase db, SharedPreferences prefs, String... names) {
+		Map<String, ?> all = prefs.getAll();
+		SharedPreferences.Editor editor = null;
+		for (String name : names) {
+			Object value = all.get(name);
+			if (value == null) continue;
+			if (value instanceof Boolean) put(db, name, ((Boolean) value) ? 1 : 0);
+			else if (value instanceof Number) put(db, name, ((Number) value).longValue());
+			if (editor == null) editor = prefs.edit();
+			editor.remove(name);
+		}
+		if (editor != null) editor.commit();
+	}
+}
@@ -0,0 +1,50 @@
+package com.promethylhosting.id34;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.util.LruCache;
+
+/**
+ * Cursor that hands out stored text columns in readable form. Values are decrypted and
+ * decompressed only when a caller asks for them with getString, so an adapter pays for the
+ * rows it actually binds, not for the whole result set. Recently decoded values are kept so
+ * rows scrolling back into view aren't decrypted again.
+ */
+public class DecodingCursor extends CursorWrapper {
+
+	private static final int CACHED_VALUES = 64;
+
+	private final boolean[] decoded;
+	private final int columnCount;
+	private final LruCache<Integer, String> recent = new LruCache<Integer, String>(CACHED_VALUES);
+
+	public DecodingCursor(Cursor cursor, String... columns) {
+		super(cursor);
+		columnCount = cursor.getColumnCount();
+		decoded = new boolean[columnCount];
+		for (String column : columns) {
+			int index = cursor.getColumnIndex(column);
+			if (index >= 0) decoded[index] = true;
+		}
+	}
+
+	@Override
+	public String getString(int columnIndex) {
+		if (!decoded[columnIndex] || super.getType(columnIndex) != Cursor.FIELD_TYPE_BLOB) {
+			return super.getString(columnIndex);
+		}
+		Integer key = getPosition() * columnCount + columnIndex;
+		String value = recent.get(key);
+		if (value == null) {
+			value = FieldCipher.decodeText(super.getBlob(columnIndex));
+			recent.put(key, value);
+		}
+		return value;
+	}
+
+	@Override
+	public int getType(int columnIndex) {
+		return decoded[columnIndex] && super.getType(columnIndex) == Cursor.FIELD_TYPE_BLOB
+				? Cursor.FIELD_TYPE_STRING : super.getType(columnIndex);
+	}
+}
@@ -0,0 +1,208 @@
+package com.promethylhosting.id34;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Per-field AES-256-GCM encryption of stored idea text.
+ *
+ * Each key version is a random 256-bit key kept in private preferences through SecretStore,
+ * which on API 23+ stores it wrapped by a non-exportable AndroidKeyStore key, so the prefs file
+ * next to the database doesn't give the key away (below 23 it does; see SecretStore). Keys made
+ * before that were derived with PBKDF2 from a random secret stored next to the salt, which
+ * stretched nothing; they are still derived that way, from their now wrapped secret, until a
+ * rotation replaces them. A key is unwrapped (or derived) once per process; every later call
+ * reuses it and a per-thread Cipher, so encrypting or decrypting a row costs one GCM pass.
+ *
+ * Stored form: [TAG_AES_GCM][key version][12-byte IV][ciphertext + 16-byte tag], where the
+ * plaintext is the IdeaTextCodec byte form (compressed before encryption, never after).
+ * Values without the tag are unencrypted legacy rows and are decoded as they are.
+ *
+ * Because every value names its own key version, rows written under different keys can sit
+ * side by side: after beginRotation() new writes use the new key while KeyRotationJob
+ * re-encrypts the old rows in the background, and reads never notice.
+ */
+public class FieldCipher {
+
+	static final byte TAG_AES_GCM = 0x02;
+
+	private static final String LOG_TAG = "id34";
+	private static final String PREFS_NAME = "com.promethylhosting.id34.crypto";
+	private static final String PREF_ENABLED = "field_encryption";
+	private static final String PREF_KEY_VERSION = "key_version";
+	private static final String PREF_SECRET_PREFIX = "key_secret_v";
+	private static final String PREF_SALT_PREFIX = "key_salt_v";
+	private static final String PREF_KDF_PREFIX = "key_kdf_v";
+	private static final String PREF_ROTATED_AT = "key_rotated_at";
+	private static final String KDF_RAW = "raw"; // the secret is the key
+	private static final int PBKDF2_ITERATIONS = 310000; // keys made before KDF_RAW
+	private static final int KEY_BITS = 256;
+	private static final int IV_SIZE = 12;
+	private static final int TAG_BITS = 128;
+	private static final int HEADER_SIZE = 2 + IV_SIZE;
+
+	private static SharedPreferences prefs;
+	private static volatile boolean enabled = false;
+	private static volatile int currentKeyVersion = 1;
+	private static final SecretKeySpec[] keys = new SecretKeySpec[256]; // by key version, derived on first use
+
+	private static final SecureRandom secureRandom = new SecureRandom();
+	private static final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance("AES/GCM/NoPadding");
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("AES/GCM unavailable", e);
+			}
+		}
+	};
+
+	private FieldCipher() {}
+
+	public static synchronized void init(Context context) {
+		if (prefs != null) return;
+		prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		enabled = prefs.getBoolean(PREF_ENABLED, true);
+		currentKeyVersion = prefs.getInt(PREF_KEY_VERSION, 1);
+		if (!prefs.contains(PREF_ROTATED_AT)) prefs.edit().putLong(PREF_ROTATED_AT, System.currentTimeMillis()).commit();
+	}
+
+	public static boolean isEnabled() { return enabled; }
+
+	public static int getCurrentKeyVersion() { return currentKeyVersion; }
+
+	/** When the current key version was put into use. */
+	public static long getRotatedAt() { return prefs.getLong(PREF_ROTATED_AT, 0); }
+
+	/** Key version an encoded value was encrypted with, 0 if it isn't encrypted. */
+	public static int keyVersionOf(Object encoded) {
+		if (encoded instanceof byte[]) {
+			byte[] stored = (byte[]) encoded;
+			if (stored.length > 1 && stored[0] == TAG_AES_GCM) return stored[1] & 0xff;
+		}
+		return 0;
+	}
+
+	/**
+	 * Switch new writes to a fresh key version. The new key is created and persisted first, so a
+	 * row can never reference a key that isn't stored. Old keys stay available for reading.
+	 * @return the new key version
+	 */
+	public static synchronized int beginRotation() {
+		int version = currentKeyVersion + 1;
+		if (version >= keys.length) throw new IllegalStateException("Out of key versions");
+		key(version);
+		prefs.edit()
+			.putInt(PREF_KEY_VERSION, version)
+			.putLong(PREF_ROTATED_AT, System.currentTimeMillis())
+			.commit();
+		currentKeyVersion = version;
+		Log.i(LOG_TAG, "FieldCipher rotated to key v" + version);
+		return version;
+	}
+
+	/** Load the current key ahead of the first read so the keystore (or PBKDF2) cost isn't paid on the UI thread. */
+	public static void warmUp() {
+		if (enabled) key(currentKeyVersion);
+	}
+
+	/** Storage form of a text field: encrypted bytes when enabled, otherwise whatever the text codec picks. */
+	public static Object encodeText(String text) {
+		if (!enabled || text == null) return IdeaTextCodec.get().encode(text);
+		return encrypt(IdeaTextCodec.get().encodeBytes(text));
+	}
+
+	public static String decodeText(byte[] stored) {
+		if (stored != null && stored.length > 0 && stored[0] == TAG_AES_GCM) {
+			return IdeaTextCodec.get().decode(decrypt(stored));
+		}
+		return IdeaTextCodec.get().decode(stored);
+	}
+
+	public static byte[] encrypt(byte[] plain) {
+		int version = currentKeyVersion;
+		byte[] out = new byte[HEADER_SIZE + plain.length + TAG_BITS / 8];
+		out[0] = TAG_AES_GCM;
+		out[1] = (byte) version;
+		byte[] iv = new byte[IV_SIZE];
+		secureRandom.nextBytes(iv);
+		System.arraycopy(iv, 0, out, 2, IV_SIZE);
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.ENCRYPT_MODE, key(version), new GCMParameterSpec(TAG_BITS, iv));
+			cipher.doFinal(plain, 0, plain.length, out, HEADER_SIZE);
+			return out;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Field encryption failed", e);
+		}
+	}
+
+	public static byte[] decrypt(byte[] stored) {
+		try {
+			Cipher cipher = ciphers.get();
+			cipher.init(Cipher.DECRYPT_MODE, key(stored[1] & 0xff), new GCMParameterSpec(TAG_BITS, stored, 2, IV_SIZE));
+			return cipher.doFinal(stored, HEADER_SIZE, stored.length - HEADER_SIZE);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Field decryption failed (tampered row or lost key)", e);
+		}
+	}
+
+	static SecretKeySpec key(int version) {
+		SecretKeySpec key = keys[version];
+		if (key != null) return key;
+		synchronized (keys) {
+			if (keys[version] == null) keys[version] = deriveKey(version);
+			return keys[version];
+		}
+	}
+
+	private static SecretKeySpec deriveKey(int version) {
+		if (prefs == null) throw new IllegalStateException("FieldCipher.init() not called");
+		long start = System.currentTimeMillis();
+		byte[] secret = SecretStore.read(prefs, PREF_SECRET_PREFIX + version);
+		String kdf = prefs.getString(PREF_KDF_PREFIX + version, null);
+		if (secret == null) {
+			secret = new byte[KEY_BITS / 8];
+			secureRandom.nextBytes(secret);
+			kdf = KDF_RAW;
+			SharedPreferences.Editor editor = prefs.edit();
+			SecretStore.write(editor, PREF_SECRET_PREFIX + version, secret);
+			editor.putString(PREF_KDF_PREFIX + version, kdf).commit();
+		}
+		if (KDF_RAW.equals(kdf)) {
+			SecretKeySpec key = new SecretKeySpec(secret, "AES");
+			Arrays.fill(secret, (byte) 0);
+			Log.i(LOG_TAG, "FieldCipher loaded key v" + version + " in " + (System.currentTimeMillis() - start) + "ms");
+			return key;
+		}
+		// the password was the secret's Base64 text
+		String salt = prefs.getString(PREF_SALT_PREFIX + version, null);
+		PBEKeySpec spec = new PBEKeySpec(Base64.encodeToString(secret, Base64.NO_WRAP).toCharArray(),
+				Base64.decode(salt, Base64.NO_WRAP), PBKDF2_ITERATIONS, KEY_BITS);
+		Arrays.fill(secret, (byte) 0);
+		try {
+			byte[] raw = SecretKeyFactory.getInstance(kdf).generateSecret(spec).getEncoded();
+			SecretKeySpec key = new SecretKeySpec(raw, "AES");
+			Arrays.fill(raw, (byte) 0);
+			Log.i(LOG_TAG, "FieldCipher derived key v" + version + " in " + (System.currentTimeMillis() - start) + "ms");
+			return key;
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Key derivation failed", e);
+		} finally {
+			spec.clearPassword();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.promethylhosting.id34;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Typo-tolerant search over idea text and category names, for dictated ideas whose words come
+ * out misspelt.
+ *
+ * Candidates come from the trigram tokens BlindIndex keeps for every row: the query's trigrams
+ * are hashed the same way and one GROUP BY over idx_blind_token counts how many each row
+ * shares, among the rows that can be hits at all (deleted ideas are joined out there, so they
+ * never take a candidate's place). Only the MAX_CANDIDATES rows sharing the most are read and
+ * decoded, and those are ranked by edit distance between the query and the closest stretch of
+ * their text, so a misspelt word matches wherever it sits in the idea. Nothing scans tblIdea;
+ * the cost follows how many rows share the query's trigrams, not how many ideas there are.
+ */
+public final class FuzzySearch {
+
+	private static final String LOG_TAG = "id34";
+	private static final int MAX_CANDIDATES = 200;
+
+	public static final class Hit {
+		public final long id;
+		public final String text;
+		public final boolean completed;
+		public final int distance; // edits from the query to the closest part of text
+		final int shared;           // trigrams in common with the query
+
+		Hit(long id, String text, boolean completed, int distance, int shared) {
+			this.id = id;
+			this.text = text;
+			this.completed = completed;
+			this.distance = distance;
+			this.shared = shared;
+		}
+	}
+
+	private static final Comparator<Hit> BEST_FIRST = new Comparator<Hit>() {
+		@Override
+		public int compare(Hit a, Hit b) {
+			if (a.distance != b.distance) return a.distance < b.distance ? -1 : 1;
+			if (a.shared != b.shared) return a.shared > b.shared ? -1 : 1;
+			return a.id == b.id ? 0 : (a.id > b.id ? -1 : 1); // newer first
+		}
+	};
+
+	private FuzzySearch() {}
+
+	/** Up to limit live ideas matching query, closest first. */
+	public static List<Hit> ideas(SQLiteDatabase db, String query, int limit) {
+		return search(db, BlindIndex.KIND_IDEA_TRIGRAM, SQLCipherAdapter.MYDATABASE_TABLE_IDEA, SQLCipherAdapter.KEY_NAME,
+				SQLCipherAdapter.KEY_COMPLETED, "t." + SQLCipherAdapter.KEY_DELETED + " = 0", query, limit);
+	}
+
+	/** Up to limit categories whose name matches query, closest first. */
+	public static List<Hit> categories(SQLiteDatabase db, String query, int limit) {
+		return search(db, BlindIndex.KIND_CAT_TRIGRAM, SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY, SQLCipherAdapter.KEY_CAT,
+				"0", "1", query, limit);
+	}
+
+	/**
+	 * Edits allowed before a row stops matching: one per three characters of query, so short
+	 * words must be nearly right and a transposed or doubled letter in a long one still counts.
+	 */
+	static int maxDistance(String query) {
+		return Math.max(1, query.length() / 3);
+	}
+
+	// where is on table's rows, as t
+	private static List<Hit> search(SQLiteDatabase db, int kind, String table, String textColumn, String completedColumn,
+			String where, String query, int limit) {
+		long start = System.currentTimeMillis();
+		List<Hit> hits = new ArrayList<Hit>();
+		String needle = query == null ? "" : query.trim().toLowerCase(Locale.US);
+		Set<String> grams = BlindIndex.trigrams(needle);
+		if (grams.isEmpty() || limit <= 0) return hits;
+
+		// tokens are numbers we made, so they go in the SQL rather than one bind per trigram
+		StringBuilder tokens = new StringBuilder();
+		for (String gram : grams) {
+			if (tokens.length() > 0) tokens.append(',');
+			tokens.append(BlindIndex.trigramToken(kind, gram));
+		}
+		// a row has to share at least a quarter of the trigrams; each edit breaks up to three
+		int minShared = Math.max(1, grams.size() / 4);
+		Cursor candidates = db.rawQuery("SELECT b.ref, COUNT(*) FROM " + BlindIndex.TABLE + " b JOIN " + table + " t ON t."
+				+ SQLCipherAdapter.KEY_ID + " = b.ref WHERE b.token IN (" + tokens + ") AND b.kind = " + kind + " AND " + where
+				+ " GROUP BY b.ref HAVING COUNT(*) >= " + minShared + " ORDER BY COUNT(*) DESC LIMIT " + MAX_CANDIDATES, null);
+		Map<Long, Integer> shared = new HashMap<Long, Integer>();
+		StringBuilder ids = new StringBuilder();
+		try {
+			while (candidates.moveToNext()) {
+				shared.put(candidates.getLong(0), candidates.getInt(1));
+				if (ids.length() > 0) ids.append(',');
+				ids.append(candidates.getLong(0));
+			}
+		} finally {
+			candidates.close();
+		}
+		if (shared.isEmpty()) return hits;
+
+		int maxDistance = maxDistance(needle);
+		Cursor rows = db.rawQuery("SELECT t." + SQLCipherAdapter.KEY_ID + ", t." + textColumn + ", " + completedColumn + " FROM "
+				+ table + " t WHERE t." + SQLCipherAdapter.KEY_ID + " IN (" + ids + ") AND " + where, null);
+		try {
+			while (rows.moveToNext()) {
+				String text = SQLCipherAdapter.readText(rows, 1);
+				if (text == null) continue;
+				int distance = distance(needle, text.toLowerCase(Locale.US), maxDistance);
+				if (distance > maxDistance) continue;
+				long id = rows.getLong(0);
+				hits.add(new Hit(id, text, rows.getInt(2) == 1, distance, shared.get(id)));
+			}
+		} finally {
+			rows.close();
+		}
+		Collections.sort(hits, BEST_FIRST);
+		if (hits.size() > limit) hits = new ArrayList<Hit>(hits.subList(0, limit));
+		Log.i(LOG_TAG, "FuzzySearch '" + query + "': " + shared.size() + " candidates, " + hits.size() + " hits in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return hits;
+	}
+
+	/**
+	 * Fewest edits (insert, delete, substitute, swap two neighbours) turning query into any
+	 * substring of text: the usual edit distance table, except that starting and stopping
+	 * anywhere in text is free. Stops early with max + 1 once no column can get back under max.
+	 */
+	static int distance(String query, String text, int max) {
+		int m = query.length();
+		int n = text.length();
+		if (m == 0) return 0;
+		int[] before = new int[n + 1]; // row i - 2, for swaps
+		int[] prev = new int[n + 1];   // row i - 1
+		int[] row = new int[n + 1];
+		// row 0 is all zeros: the match may start anywhere
+		for (int i = 1; i <= m; i++) {
+			char q = query.charAt(i - 1);
+			row[0] = i;
+			int best = row[0];
+			for (int j = 1; j <= n; j++) {
+				char t = text.charAt(j - 1);
+				int cost = Math.min(prev[j - 1] + (q == t ? 0 : 1), Math.min(prev[j], row[j - 1]) + 1);
+				if (i > 1 && j > 1 && q == text.charAt(j - 2) && query.charAt(i - 2) == t) {
+					cost = Math.min(cost, before[j - 2] + 1);
+				}
+				row[j] = cost;
+				if (cost < best) best = cost;
+			}
+			if (best > max) return max + 1;
+			int[] recycled = before;
+			before = prev;
+			prev = row;
+			row = recycled;
+		}
+		int best = prev[0];
+		for (int j = 1; j <= n; j++) {
+			if (prev[j] < best) best = prev[j];
+		}
+		return best;
+	}
+}
@@ -0,0 +1,126 @@
+package com.promethylhosting.id34;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * One-off backfill linking ideas saved before hashtag categories existed (cid0 = 0) to the
+ * categories named by the hashtags in their text.
+ *
+ * Walks the unlinked ideas in id order, a chunk per transaction, resolving every tag through one
+ * CategoryResolver for the whole run instead of a lookup per tag; each chunk first catches it
+ * up with categories added since the last one. The last id done is checkpointed in the database
+ * (DatabaseState) after every chunk, so a killed process resumes where it stopped rather than
+ * starting over, a restored backup from where it had got, and the
+ * job can be cancelled between chunks. Chunks don't yield the lock part way, since the resolver's
+ * view of the category table has to stay current for the whole transaction. An idea without
+ * hashtags resolves to General, like a new one saved that way. Blind index tokens
+ * come from the idea text, not the cids, so they are left to rebuildBlindIndexIfNeeded.
+ */
+public class HashtagBackfillJob {
+
+	public interface ProgressListener {
+		void onProgress(int done, int total);
+	}
+
+	private static final String LOG_TAG = "id34";
+	private static final String STATE_COMPLETED = "migration_v1_completed";
+	private static final String STATE_LAST_ID = "backfill_last_id";
+	private static final int CHUNK_ROWS = 500;
+
+	private static final String UNLINKED = SQLCipherAdapter.KEY_CID0 + " = 0 AND " + SQLCipherAdapter.KEY_ID + " > ?";
+
+	private final SharedPreferences prefs; // where the markers were before v11
+	private volatile boolean cancelled = false;
+	private ProgressListener listener;
+
+	public HashtagBackfillJob(Context context) {
+		prefs = context.getApplicationContext().getSharedPreferences(SQLCipherAdapter.PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	public void setProgressListener(ProgressListener listener) { this.listener = listener; }
+
+	public void cancel() { cancelled = true; }
+
+	public boolean isComplete(SQLiteDatabase db) { return DatabaseState.isSet(db, STATE_COMPLETED); }
+
+	/**
+	 * Link unlinked ideas until done or cancelled.
+	 * @return true when the backfill is complete
+	 */
+	public boolean run(SQLiteDatabase db) {
+		DatabaseState.adopt(db, prefs, STATE_COMPLETED, STATE_LAST_ID);
+		if (isComplete(db)) return true;
+		long lastId = DatabaseState.get(db, STATE_LAST_ID, Long.MIN_VALUE);
+		long start = System.currentTimeMillis();
+		int total = (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ " WHERE " + UNLINKED, new String[]{String.valueOf(lastId)});
+		int done = 0;
+		int linked = 0;
+
+		CategoryResolver categories = new CategoryResolver(db);
+		try {
+			while (true) {
+				if (cancelled) {
+					Log.i(LOG_TAG, "HashtagBackfillJob paused at idea id " + lastId + " (" + done + "/" + total + ")");
+					return false;
+				}
+				long[] progress = linkChunk(db, categories, lastId);
+				if (progress[0] == lastId) break; // nothing left
+				lastId = progress[0];
+				done += progress[1];
+				linked += progress[2];
+				DatabaseState.put(db, STATE_LAST_ID, lastId);
+				if (listener != null) listener.onProgress(done, total);
+			}
+		} finally {
+			categories.close();
+		}
+
+		DatabaseState.put(db, STATE_COMPLETED, 1);
+		DatabaseState.remove(db, STATE_LAST_ID);
+		Log.i(LOG_TAG, "HashtagBackfillJob linked " + linked + " of " + done + " ideas in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	/** @return {last id seen (unchanged if none), ideas seen, ideas linked} */
+	private long[] linkChunk(SQLiteDatabase db, CategoryResolver categories, long afterId) {
+		long lastId = afterId;
+		int seen = 0;
+		int linked = 0;
+		long[] cids = new long[CategoryResolver.MAX_CATEGORIES_PER_IDEA];
+		Cursor cursor = db.query(SQLCipherAdapter.MYDATABASE_TABLE_IDEA,
+				new String[]{SQLCipherAdapter.KEY_ID, SQLCipherAdapter.KEY_NAME},
+				UNLINKED, new String[]{String.valueOf(afterId)},
+				null, null, SQLCipherAdapter.KEY_ID, String.valueOf(CHUNK_ROWS));
+		SQLiteStatement update = null;
+		db.beginTransaction();
+		try {
+			update = db.compileStatement("UPDATE " + SQLCipherAdapter.MYDATABASE_TABLE_IDEA + " SET "
+					+ SQLCipherAdapter.KEY_CID0 + " = ?, " + SQLCipherAdapter.KEY_CID1 + " = ?, "
+					+ SQLCipherAdapter.KEY_CID2 + " = ?, " + SQLCipherAdapter.KEY_CID3 + " = ?, "
+					+ SQLCipherAdapter.KEY_CID4 + " = ? WHERE " + SQLCipherAdapter.KEY_ID + " = ?");
+			categories.catchUp(db);
+			while (cursor.moveToNext()) {
+				lastId = cursor.getLong(0);
+				seen++;
+				categories.idsFor(BlindIndex.extractTags(SQLCipherAdapter.readText(cursor, 1)), cids);
+				for (int i = 0; i < cids.length; i++) update.bindLong(i + 1, cids[i]);
+				update.bindLong(cids.length + 1, lastId);
+				linked += update.executeUpdateDelete();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			cursor.close();
+			if (update != null) update.close();
+		}
+		return new long[]{lastId, seen, linked};
+	}
+}
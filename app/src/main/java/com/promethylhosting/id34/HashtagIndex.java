@@ -0,0 +1,199 @@
+package com.promethylhosting.id34;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Hashtag autocomplete: every category name, sorted case-insensitively, ranked by how much it is
+ * used and how recently.
+ *
+ * The index is an immutable array of Tags published through an AtomicReference. Readers take
+ * the current array with no lock, binary-search the prefix range and keep the best few by rank,
+ * so a lookup is microseconds on any thread however many tags there are. Writers build a new
+ * array (a full load from queryCats, or one tag added, used or removed: an array copy, no query)
+ * and swap it in with compare-and-set; a reader never sees a half-built one.
+ *
+ * Rank is uses decayed by age with a one-month half-life, kept as a log so it doesn't
+ * depend on the current time: log2(uses + 1) + touched / half-life. Comparing two of these
+ * orders tags the same as comparing (uses + 1) * 0.5^(age / half-life) at any moment.
+ */
+public class HashtagIndex {
+
+	private static final String LOG_TAG = "id34";
+	private static final double HALF_LIFE_MS = 30 * 24 * 60 * 60 * 1000.0; // a month later a use counts half
+
+	private static final class Tag implements Comparable<Tag> {
+		final String key;   // lower case
+		final String name;  // as the user wrote it
+		final long id;
+		final int uses;     // ideas tagged, open or done
+		final long touched; // epoch ms of the latest of them, TimeFormat.NONE if none
+		final double rank;
+
+		Tag(String name, long id, int uses, long touched) {
+			this.key = name.toLowerCase(Locale.US);
+			this.name = name;
+			this.id = id;
+			this.uses = uses;
+			this.touched = touched;
+			this.rank = Math.log(uses + 1) / Math.log(2) + touched / HALF_LIFE_MS;
+		}
+
+		@Override
+		public int compareTo(Tag other) { return key.compareTo(other.key); }
+	}
+
+	private static final Tag[] NOT_LOADED = new Tag[0];
+
+	private static final HashtagIndex INSTANCE = new HashtagIndex(); // after NOT_LOADED, which it uses
+
+	public static HashtagIndex get() { return INSTANCE; }
+
+	private final AtomicReference<Tag[]> current = new AtomicReference<Tag[]>(NOT_LOADED);
+
+	private HashtagIndex() {}
+
+	public boolean isLoaded() { return current.get() != NOT_LOADED; }
+
+	public int size() { return current.get().length; }
+
+	/** The database file was replaced: empty until loaded from the new one. */
+	public void reset() { current.set(NOT_LOADED); }
+
+	/**
+	 * Replace the index with the rows of a queryCats() cursor (_id, cat, active, completed,
+	 * touched), read from its current position to the end.
+	 */
+	public void load(Cursor cats) {
+		long start = System.currentTimeMillis();
+		int idIndex = cats.getColumnIndex("_id");
+		int catIndex = cats.getColumnIndex(SQLCipherAdapter.KEY_CAT);
+		int activeIndex = cats.getColumnIndex("active");
+		int completedIndex = cats.getColumnIndex("completed");
+		int touchedIndex = cats.getColumnIndex("touched");
+
+		List<Tag> tags = new ArrayList<Tag>(Math.max(cats.getCount(), 0));
+		while (cats.moveToNext()) {
+			String name = cats.getString(catIndex);
+			if (name == null || name.length() == 0) continue;
+			tags.add(new Tag(name, cats.getLong(idIndex), (int) (cats.getLong(activeIndex) + cats.getLong(completedIndex)),
+					cats.getLong(touchedIndex)));
+		}
+		Collections.sort(tags);
+
+		// one Tag per key: the same name can be in tblCategory twice with different case
+		List<Tag> merged = new ArrayList<Tag>(tags.size());
+		for (Tag tag : tags) {
+			int last = merged.size() - 1;
+			if (last >= 0 && merged.get(last).key.equals(tag.key)) {
+				Tag kept = merged.get(last);
+				merged.set(last, new Tag(kept.name, kept.id, kept.uses + tag.uses, Math.max(kept.touched, tag.touched)));
+			} else {
+				merged.add(tag);
+			}
+		}
+		current.set(merged.toArray(new Tag[merged.size()]));
+		Log.i(LOG_TAG, "HashtagIndex loaded " + merged.size() + " tags in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/** A category was created; no-op if the index has it already or isn't loaded yet. */
+	public void add(long id, String name) {
+		if (name == null || name.length() == 0) return;
+		Tag tag = new Tag(name, id, 0, TimeFormat.NONE);
+		while (true) {
+			Tag[] tags = current.get();
+			if (tags == NOT_LOADED) return; // the load will pick it up
+			int at = lowerBound(tags, tag.key);
+			if (at < tags.length && tags[at].key.equals(tag.key)) return;
+			if (current.compareAndSet(tags, with(tags, at, false, tag))) return;
+		}
+	}
+
+	/** An idea tagged name was saved at time; the tag ranks higher from now on. */
+	public void used(String name, long time) {
+		if (name == null || name.length() == 0) return;
+		String key = name.toLowerCase(Locale.US);
+		while (true) {
+			Tag[] tags = current.get();
+			if (tags == NOT_LOADED) return;
+			int at = lowerBound(tags, key);
+			boolean found = at < tags.length && tags[at].key.equals(key);
+			Tag tag = found ? new Tag(tags[at].name, tags[at].id, tags[at].uses + 1, Math.max(tags[at].touched, time))
+					: new Tag(name, 0, 1, time); // id comes with the next load
+			if (current.compareAndSet(tags, with(tags, at, found, tag))) return;
+		}
+	}
+
+	/** Category id was deleted. */
+	public void remove(long id) {
+		while (true) {
+			Tag[] tags = current.get();
+			int at = -1;
+			for (int i = 0; i < tags.length; i++) {
+				if (tags[i].id == id) { at = i; break; }
+			}
+			if (at < 0) return;
+			Tag[] next = new Tag[tags.length - 1];
+			System.arraycopy(tags, 0, next, 0, at);
+			System.arraycopy(tags, at + 1, next, at, next.length - at);
+			if (current.compareAndSet(tags, next)) return;
+		}
+	}
+
+	/**
+	 * Up to limit tag names starting with prefix (any case), best ranked first, ties in
+	 * alphabetical order.
+	 */
+	public String[] suggest(String prefix, int limit) {
+		Tag[] tags = current.get();
+		String key = prefix == null ? "" : prefix.toLowerCase(Locale.US);
+		int from = lowerBound(tags, key);
+		int to = lowerBound(tags, key + Character.MAX_VALUE);
+		if (to <= from || limit <= 0) return new String[0];
+
+		// insertion into a dropdown-sized array sorted by rank; one pass over the prefix range
+		Tag[] best = new Tag[Math.min(limit, to - from)];
+		int n = 0;
+		for (int i = from; i < to; i++) {
+			Tag tag = tags[i];
+			if (n == best.length && tag.rank <= best[n - 1].rank) continue;
+			int j = n < best.length ? n++ : n - 1;
+			while (j > 0 && best[j - 1].rank < tag.rank) {
+				best[j] = best[j - 1];
+				j--;
+			}
+			best[j] = tag;
+		}
+		String[] names = new String[n];
+		for (int i = 0; i < n; i++) names[i] = best[i].name;
+		return names;
+	}
+
+	// tags with tag inserted at index at, or replacing the one there
+	private static Tag[] with(Tag[] tags, int at, boolean replace, Tag tag) {
+		Tag[] next = new Tag[tags.length + (replace ? 0 : 1)];
+		System.arraycopy(tags, 0, next, 0, at);
+		next[at] = tag;
+		int tail = replace ? at + 1 : at;
+		System.arraycopy(tags, tail, next, at + 1, tags.length - tail);
+		return next;
+	}
+
+	// first index whose key is >= key
+	private static int lowerBound(Tag[] tags, String key) {
+		int lo = 0;
+		int hi = tags.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (tags[mid].key.compareTo(key) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+}
@@ -10,7 +10,6 @@ import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -26,6 +25,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.ArrayAdapter;
+import android.widget.Filter;
 import android.widget.MultiAutoCompleteTextView;
 import android.widget.MultiAutoCompleteTextView.Tokenizer;
 import android.widget.TextView;
@@ -61,8 +61,13 @@ public class IdeaAddActivity extends Activity {
 	public void returnToIdeaList() {
 		 runOnUiThread(new Runnable() {
 						   public void run() {
-							   getFragmentManager().popBackStackImmediate();
-							   startActivity(new Intent(IdeaAddActivity.this, IdeaListActivity.class));
+							   Tracer.Span span = Tracer.begin("save.returnToIdeaList");
+							   try {
+								   getFragmentManager().popBackStackImmediate();
+								   startActivity(new Intent(IdeaAddActivity.this, IdeaListActivity.class));
+							   } finally {
+								   span.end();
+							   }
 						   }
 					   }
 		 );
@@ -115,26 +120,21 @@ public class IdeaAddActivity extends Activity {
 	    // Check if we're in edit mode
 	    checkEditMode();
 	    
-	    //if (bSys_debug) Log.i(LOG_TAG, Arrays.toString(Iserver.getHashTags()));
 	    
-	    
-	    //REPLACE THIS WITH A DATABASE ARRAY ADAPTER
-	    Cursor c = sql.getCursorOnCatsForAutoCompleteTextView();
-	    Log.i(LOG_TAG, "Started cursor has " + c.getCount() + "rows");
-	    String[] strArray = new String[c.getCount()];
-	    c.moveToFirst();
-	    
-    for (int i=0;i<c.getCount();i++) {
-    	strArray[i]="#" + c.getString(1);
-    	Log.i(LOG_TAG, strArray[i]);
-    	if (i < c.getCount() - 1) {
-    		c.moveToNext();
-    	}
-    }
-	    aaStr = new ArrayAdapter<String>(this,android.R.layout.simple_dropdown_item_1line, strArray);
-	    
-	    //multiAutoCompleteTextView1.setAdapter(aaStr);
-	    //multiAutoCompleteTextView1.setTokenizer(new SpaceTokenizer());
+	    // Hashtag autocomplete from the shared HashtagIndex, normally loaded by the list already
+	    aaStr = new HashtagAdapter(this);
+	    multiAutoCompleteTextView1.setAdapter(aaStr);
+	    multiAutoCompleteTextView1.setTokenizer(new SpaceTokenizer());
+	    new Thread(new Runnable() {
+	    	@Override
+	    	public void run() {
+	    		try {
+	    			sql.loadHashtagIndexIfNeeded();
+	    		} catch (Exception e) {
+	    			Log.e(LOG_TAG, "Error loading hashtags: " + e.getMessage());
+	    		}
+	    	}
+	    }).start();
 	    
 	    showKeyboard();
 	}
@@ -244,6 +244,15 @@ public class IdeaAddActivity extends Activity {
 
 		@Override
 		protected Void doInBackground(Void... params) {
+			Tracer.Span span = Tracer.begin("save");
+			try {
+				return save();
+			} finally {
+				span.end();
+			}
+		}
+
+		private Void save() {
 			// OFFLINE MODE: Save directly to local SQLCipher database
 			Iserver.init(context);
 			
@@ -270,9 +279,6 @@ public class IdeaAddActivity extends Activity {
 					if (updated) {
 						Toast("Idea updated successfully!");
 						Log.i(LOG_TAG, "EDIT MODE: Idea updated successfully for ID: " + editingIdeaId);
-						
-						// Update widget to show latest idea
-						LatestIdeaWidget.updateAllWidgets(context);
 					} else {
 						Toast("Failed to update idea");
 						Log.e(LOG_TAG, "Failed to update idea in database");
@@ -285,9 +291,6 @@ public class IdeaAddActivity extends Activity {
 					if (savedId > 0) {
 						Toast("Idea saved successfully! ID: " + savedId);
 						Log.i(LOG_TAG, "ADD MODE: Idea saved successfully with ID: " + savedId);
-						
-						// Update widget to show latest idea
-						LatestIdeaWidget.updateAllWidgets(context);
 					} else {
 						Toast("Failed to save idea");
 						Log.e(LOG_TAG, "Failed to save idea to local database");
@@ -299,11 +302,7 @@ public class IdeaAddActivity extends Activity {
 				e.printStackTrace();
 			}
 
-			// Handle Twitter posting if requested
-			if (text.contains("#twitter") || text.contains("#tweet")) {
-				postTwitter(text);
-			}
-			
+			// The widget, tag counts and any #twitter post follow from PostSaveHooks
 			// Return to idea list to show updated data
 			returnToIdeaList();
 			return null;
@@ -322,12 +321,6 @@ public static final String CONSUMER_KEY = "**REDACTED**"; // See .secrets file f
 	final public static String	CALLBACK_URL = CALLBACK_SCHEME + "://callback";
 	final public static boolean bTwitterOAuthorized=false; // whether twitter has been authorized before this user
 
-	private void postTwitter (final String textUpdate) {
-		// Twitter functionality disabled for basic APK build
-		Log.i(LOG_TAG, "Twitter posting not available in basic build: " + textUpdate);
-		Toast("Twitter posting not available in basic build");
-	}
-
 	private boolean getTwitterOAuth() {
 		// Twitter OAuth functionality disabled for basic APK build
 		Log.i(LOG_TAG, "Twitter OAuth not available in basic build");
@@ -341,6 +334,55 @@ public static final String CONSUMER_KEY = "**REDACTED**"; // See .secrets file f
 	}
 
 
+	// Suggestions for the "#tag" being typed; HashtagIndex is searched on the filter's worker thread
+	public class HashtagAdapter extends ArrayAdapter<String> {
+
+		private static final int SUGGESTIONS = 8;
+		private static final int FUZZY_AFTER = 3; // chars typed before misspellings are guessed at
+
+		private final Filter filter = new Filter() {
+			@Override
+			protected FilterResults performFiltering(CharSequence constraint) {
+				String[] tags = new String[0];
+				if (constraint != null && constraint.length() > 1 && constraint.charAt(0) == '#') {
+					String typed = constraint.subSequence(1, constraint.length()).toString();
+					tags = HashtagIndex.get().suggest(typed, SUGGESTIONS);
+					if (tags.length == 0 && typed.length() >= FUZZY_AFTER) {
+						// nothing starts with it, maybe it's misspelt
+						try {
+							tags = sql.searchCatNames(typed, SUGGESTIONS).toArray(tags);
+						} catch (Exception e) {
+							Log.e(LOG_TAG, "Fuzzy hashtag lookup failed: " + e.getMessage());
+						}
+					}
+					for (int i = 0; i < tags.length; i++) tags[i] = "#" + tags[i];
+				}
+				FilterResults results = new FilterResults();
+				results.values = tags;
+				results.count = tags.length;
+				return results;
+			}
+
+			@Override
+			protected void publishResults(CharSequence constraint, FilterResults results) {
+				setNotifyOnChange(false);
+				clear();
+				addAll((String[]) results.values);
+				if (results.count > 0) notifyDataSetChanged();
+				else notifyDataSetInvalidated();
+			}
+		};
+
+		public HashtagAdapter(Context context) {
+			super(context, android.R.layout.simple_dropdown_item_1line, new ArrayList<String>());
+		}
+
+		@Override
+		public Filter getFilter() {
+			return filter;
+		}
+	}
+
 	public class SpaceTokenizer implements Tokenizer {
 
 		public int findTokenStart(CharSequence text, int cursor) {
@@ -19,6 +19,8 @@ public class IdeaDetailActivity extends Activity {
             Bundle arguments = new Bundle();
             arguments.putString(IdeaDetailFragment.ARG_ITEM_ID,
                     getIntent().getStringExtra(IdeaDetailFragment.ARG_ITEM_ID));
+            arguments.putString(IdeaDetailFragment.ARG_QUERY,
+                    getIntent().getStringExtra(IdeaDetailFragment.ARG_QUERY));
             IdeaDetailFragment fragment = new IdeaDetailFragment();
             fragment.setArguments(arguments);
             getFragmentManager().beginTransaction()
@@ -18,17 +18,15 @@ import android.app.Fragment;
 import android.widget.CursorAdapter;
 import android.widget.SimpleCursorAdapter;
 import android.util.Log;
-import android.view.ContextMenu;
-import android.view.ContextMenu.ContextMenuInfo;
+import android.view.ActionMode;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
-import android.view.View.OnCreateContextMenuListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
-import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ListAdapter;
 import android.widget.ListView;
@@ -40,10 +38,13 @@ import com.promethylhosting.id34.iserver.Iserver;
 public class IdeaDetailFragment extends Fragment {
 
     public static final String ARG_ITEM_ID = "item_id";
+    public static final String ARG_QUERY = "query"; // show FuzzySearch results instead of a category
+    private static final int SEARCH_RESULTS = 50;
     public static Context context ;
     //DummyContent.DummyItem mItem;
     String mItem;
     private String mItemId =""; 
+    private String mQuery = null;
     final static String LOG_TAG="id34";
     //TextView TextView1;
     ListView ListView1;
@@ -52,11 +53,22 @@ public class IdeaDetailFragment extends Fragment {
     //private static String saIdeas[];
     private static Boolean bDebug=false;
     private SQLCipherAdapter sql ;
+    private IDFListViewAdapter mAdapter;
+    private CategoryDetailLoader.Page mPage; // what the list shows
+    
+    private final CategoryDetailLoader.Callback mLoaded = new CategoryDetailLoader.Callback() {
+    	@Override
+    	public void onLoaded(CategoryDetailLoader.Page page) {
+    		if (mAdapter != null && getActivity() != null) show(page);
+    	}
+    };
     
 	protected static final int CONTEXTMENU_COMPLETEITEM = 2;
 	protected static final int CONTEXTMENU_EDITITEM = 1; 
 	protected static final int CONTEXTMENU_DELETEITEM = 0; 
 	protected static final int CONTEXTMENU_GOOGLEITEM = 3;
+	protected static final int CONTEXTMENU_MOVEITEM = 4;
+	protected static final int CONTEXTMENU_TAGITEM = 5;
     
     public IdeaDetailFragment() {
     }
@@ -67,13 +79,15 @@ public class IdeaDetailFragment extends Fragment {
         super.onCreate(savedInstanceState);
         
         context = getActivity();
-		sql = new SQLCipherAdapter(context);
-		sql.openToRead();
+		sql = new SQLCipherAdapter(context); // opened by the threads that use it
 		
-        if (getArguments().containsKey(ARG_ITEM_ID)) {
+        if (getArguments().getString(ARG_QUERY) != null) {
+        	mQuery = getArguments().getString(ARG_QUERY);
+        	mItem = mQuery;
+        } else if (getArguments().containsKey(ARG_ITEM_ID)) {
             //mItem = DummyContent.ITEM_MAP.get(getArguments().getString(ARG_ITEM_ID));
         	mItemId = getArguments().getString(ARG_ITEM_ID);
-        	mItem = sql.getCatNameFromCatId(mItemId);
+        	// the category name comes with its ideas, see loadIdeasFromDatabase
         }
         
         setHasOptionsMenu(true);
@@ -94,6 +108,7 @@ public class IdeaDetailFragment extends Fragment {
     
     @Override
     public void onDestroy() {
+    	CategoryDetailLoader.get().cancel(mLoaded);
     	try {
 			sql.close();
 		} catch (Exception e) {
@@ -103,12 +118,27 @@ public class IdeaDetailFragment extends Fragment {
     	super.onDestroy();
     }
     
-    private Cursor loadIdeasFromDatabase() {
-    		if (progressDialog != null) progressDialog = ProgressDialog.show(getActivity(), "", "Loading...");
-
-    		if (progressDialog != null) progressDialog.cancel();
-    		Log.d(LOG_TAG , "Loading ideas on " + mItem.toString());
-    		return sql.queryIdeasByCatName(mItem.toString());
+    // From memory when the category is cached, otherwise off the main thread; a tap on another
+    // category before it arrives drops it. See CategoryDetailLoader.
+    private void loadIdeasFromDatabase() {
+    		CategoryDetailLoader loader = CategoryDetailLoader.get();
+    		if (mQuery != null) {
+    			loader.search(context, mQuery, SEARCH_RESULTS, mLoaded);
+    			return;
+    		}
+    		CategoryDetailLoader.Page page = loader.load(context, mItemId, mLoaded);
+    		if (page != null) show(page);
+    }
+    
+    private void show(CategoryDetailLoader.Page page) {
+    		Tracer.Span span = Tracer.begin("detail.show");
+    		try {
+    			mPage = page;
+    			mItem = page.title;
+    			mAdapter.changeCursor(page.toCursor());
+    		} finally {
+    			span.end();
+    		}
     }
     
     public void loadIdeas() {
@@ -146,12 +176,10 @@ public class IdeaDetailFragment extends Fragment {
         
         ListView1 = ((ListView) rootView.findViewById(R.id.lv_idea_detail));
                 
-        Cursor mCursor = loadIdeasFromDatabase();
-        
-        // Now create a new list adapter bound to the cursor.
-        // SimpleListAdapter is designed for binding to a Cursor.
+        // Now create a new list adapter; the cursor comes from loadIdeasFromDatabase.
         
-        ListAdapter adapter= new IDFListViewAdapter(context, mCursor, R.layout.fragment_idea_list, R.id.tvListItemName, "name");
+        mAdapter = new IDFListViewAdapter(context, null, R.layout.fragment_idea_list, R.id.tvListItemName, "name");
+        ListAdapter adapter = mAdapter;
         
         /*ListAdapter adapter_OLD_NEEDS_DELETIONS = new SimpleCursorAdapter(context, // Context.
             //android.R.layout.two_line_list_item, 
@@ -169,19 +197,11 @@ public class IdeaDetailFragment extends Fragment {
          */
         
         ListView1.setAdapter(adapter); // Bind to our new adapter.
+        loadIdeasFromDatabase();
         
-        ListView1.setOnCreateContextMenuListener(new OnCreateContextMenuListener() { 
- 			@Override 
- 			public void onCreateContextMenu(ContextMenu menu, View v, ContextMenuInfo menuInfo) { 
- 			menu.setHeaderTitle("Action Menu");
- 			menu.add(0, CONTEXTMENU_GOOGLEITEM, 5, "Google this idea");
- 			menu.add(0, CONTEXTMENU_EDITITEM, 10, "Edit this idea...");
- 			menu.add(0, CONTEXTMENU_COMPLETEITEM, 20, "Complete this idea");
- 			menu.add(0, CONTEXTMENU_DELETEITEM, 30, "Delete this idea");
- 			
- 			//menu.add(0, CONTEXTMENU_DELETEITEM, 2, "" + v.toString());
- 			
- 		} });
+        // Long-press selects; the actions then apply to all the selected ideas at once
+        ListView1.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
+        ListView1.setMultiChoiceModeListener(new BulkActions());
 
         ListView1.setOnItemClickListener(new OnItemClickListener() {
 			@Override
@@ -196,131 +216,177 @@ public class IdeaDetailFragment extends Fragment {
         return rootView;
     }
     
-	@Override 
-	public boolean onContextItemSelected(final MenuItem aItem) {
-		final AdapterContextMenuInfo menuInfo = (AdapterContextMenuInfo) aItem.getMenuInfo();
-		
-		/* Switch on the ID of the item, to get what the user selected. */
-		//Cursor strIdeaContexted=null;
-		//Cursor strIdeaContexted = (Cursor) ListView1.getAdapter().getItem(menuInfo.position);
-		final String response = "";
-		
-		switch (aItem.getItemId()) { 
-			case CONTEXTMENU_GOOGLEITEM:
-				
-				
-				Thread thGetNameAndSearch = new Thread() {
-			        @Override
-			        public void run() {
-			            try {
-			            	String response = sql.getIdeaNameFromId(menuInfo.id);
-							Log.i(LOG_TAG, "Google search on " + menuInfo.id + " " + response) ;
-							
-							Intent intent = new Intent(Intent.ACTION_WEB_SEARCH);
-							intent.putExtra(SearchManager.QUERY, response ); // query contains search string
-							startActivity(intent);
-
-			            } catch(Exception e) {
-			                // do nothing
-			            	Log.e(LOG_TAG, "Error Posting message:  " + e.getMessage());
-			            } 
-			        }
-			    }; thGetNameAndSearch.start();
-				
-			return true;
-			
-			case CONTEXTMENU_EDITITEM:
-				/* Get the selected item out of the Adapter by its position. */
-				Log.i(LOG_TAG, "Edit request on " + menuInfo.id) ;
-				
-				// Launch IdeaAddActivity in edit mode
-				Intent editIntent = new Intent(context, IdeaAddActivity.class);
-				editIntent.putExtra(IdeaDetailFragment.ARG_ITEM_ID, String.valueOf(menuInfo.id));
-				editIntent.putExtra("EDIT_MODE", true);
-				startActivity(editIntent);
-				
-				return true; /* true means: "we handled the event". */
-			case CONTEXTMENU_COMPLETEITEM:
-			    Thread thUpdateServerComplete = new Thread() {
-			        @Override
-			        public void run() {
-			            try {
-			            	String response = sql.toggleCompleted(menuInfo.id);
-							Log.i(LOG_TAG, "Mark item Complete request on " + menuInfo.id + " " + response) ;
-			            } catch(Exception e) {
-			                // do nothing
-			            	Log.e(LOG_TAG, "Error Posting message:  " + e.getMessage());
-			            } 
-			        }
-			    };
-			    thUpdateServerComplete.start();
-				return true; /* true means: "we handled the event". */ 
-			case CONTEXTMENU_DELETEITEM:
-				// Show confirmation dialog before deleting
-				new android.app.AlertDialog.Builder(getActivity())
-					.setTitle("Delete Idea")
-					.setMessage("Are you sure you want to delete this idea?")
-					.setPositiveButton("Delete", new android.content.DialogInterface.OnClickListener() {
-						public void onClick(android.content.DialogInterface dialog, int which) {
-							performIdeaDelete(menuInfo.id);
-						}
-					})
-					.setNegativeButton("Cancel", null)
-					.show();
-				return true; /* true means: "we handled the event". */
-		} 
-		return false; 
-	} 
-	
-	
-    /**
-     * Actually perform the idea deletion after confirmation
-     */
-    private void performIdeaDelete(final long ideaId) {
-    	Thread thUpdateServerDelete = new Thread() {
+    /** The action mode of a multi-selection: each action is one operation for all of it. */
+    private class BulkActions implements AbsListView.MultiChoiceModeListener {
+    	@Override
+    	public boolean onCreateActionMode(ActionMode mode, Menu menu) {
+    		menu.add(0, CONTEXTMENU_COMPLETEITEM, 20, "Complete");
+    		menu.add(0, CONTEXTMENU_DELETEITEM, 30, "Delete");
+    		if (mQuery == null) menu.add(0, CONTEXTMENU_MOVEITEM, 40, "Move to...");
+    		menu.add(0, CONTEXTMENU_TAGITEM, 50, "Tag...");
+    		menu.add(0, CONTEXTMENU_EDITITEM, 60, "Edit this idea...");
+    		menu.add(0, CONTEXTMENU_GOOGLEITEM, 70, "Google this idea");
+    		return true;
+    	}
+    	
+    	@Override
+    	public boolean onPrepareActionMode(ActionMode mode, Menu menu) {
+    		boolean single = ListView1.getCheckedItemCount() == 1;
+    		menu.findItem(CONTEXTMENU_EDITITEM).setVisible(single);
+    		menu.findItem(CONTEXTMENU_GOOGLEITEM).setVisible(single);
+    		menu.findItem(CONTEXTMENU_COMPLETEITEM).setTitle(allCompleted(ListView1.getCheckedItemIds()) ? "Reopen" : "Complete");
+    		return true;
+    	}
+    	
+    	@Override
+    	public void onItemCheckedStateChanged(ActionMode mode, int position, long id, boolean checked) {
+    		mode.setTitle(ListView1.getCheckedItemCount() + " selected");
+    		mode.invalidate();
+    	}
+    	
+    	@Override
+    	public boolean onActionItemClicked(ActionMode mode, MenuItem item) {
+    		long[] ids = ListView1.getCheckedItemIds();
+    		if (ids.length == 0) return false;
+    		switch (item.getItemId()) {
+    			case CONTEXTMENU_GOOGLEITEM: googleIdea(ids[0]); break;
+    			case CONTEXTMENU_EDITITEM: editIdea(ids[0]); break;
+    			case CONTEXTMENU_COMPLETEITEM: runBulk(CONTEXTMENU_COMPLETEITEM, ids, null); break;
+    			case CONTEXTMENU_DELETEITEM: confirmDelete(ids); break;
+    			case CONTEXTMENU_MOVEITEM:
+    			case CONTEXTMENU_TAGITEM: askTag(item.getItemId(), ids); break;
+    			default: return false;
+    		}
+    		mode.finish();
+    		return true;
+    	}
+    	
+    	@Override
+    	public void onDestroyActionMode(ActionMode mode) {
+    	}
+    }
+    
+    private boolean allCompleted(long[] ids) {
+    	if (mPage == null || ids.length == 0) return false;
+    	for (long id : ids) {
+    		if (!mPage.isCompleted(id)) return false;
+    	}
+    	return true;
+    }
+    
+    private void googleIdea(final long id) {
+		Thread thGetNameAndSearch = new Thread() {
 	        @Override
 	        public void run() {
 	            try {
-	            	// Perform soft delete (set deleted=1)
-	            	boolean deleted = sql.deleteIdeaById(ideaId);
-	            	
-	            	if (deleted) {
-	            		Log.i(LOG_TAG, "Idea deleted successfully: " + ideaId);
-	            		getActivity().runOnUiThread(new Runnable() {
-	            			public void run() {
-	            				Toast("Idea deleted");
-	            				// Refresh the list view
-	            				try {
-	            					Cursor newCursor = loadIdeasFromDatabase();
-	            					IDFListViewAdapter adapter = (IDFListViewAdapter) ListView1.getAdapter();
-	            					if (adapter != null) {
-	            						adapter.changeCursor(newCursor);
-	            						adapter.notifyDataSetChanged();
-	            					}
-	            				} catch (Exception e) {
-	            					Log.e(LOG_TAG, "Error refreshing after delete: " + e.getMessage());
-	            				}
-	            			}
-	            		});
-	            	} else {
-	            		Log.e(LOG_TAG, "Failed to delete idea: " + ideaId);
-	            		getActivity().runOnUiThread(new Runnable() {
-	            			public void run() {
-	            				Toast("Delete failed");
-	            			}
-	            		});
-	            	}
-	            } catch(final Exception e) {
-	                Log.e(LOG_TAG, "Error deleting idea: " + e.getMessage());
-	                getActivity().runOnUiThread(new Runnable() {
-	            		public void run() {
-	            			Toast("Delete error: " + e.getMessage());
-	            		}
-	            	});
+	            	sql.openToRead();
+	            	String response = sql.getIdeaNameFromId(id);
+					Log.i(LOG_TAG, "Google search on " + id + " " + response) ;
+					
+					Intent intent = new Intent(Intent.ACTION_WEB_SEARCH);
+					intent.putExtra(SearchManager.QUERY, response ); // query contains search string
+					startActivity(intent);
+
+	            } catch(Exception e) {
+	                // do nothing
+	            	Log.e(LOG_TAG, "Error Posting message:  " + e.getMessage());
 	            } 
 	        }
-	    };
-	    thUpdateServerDelete.start();
+	    }; thGetNameAndSearch.start();
+    }
+    
+    private void editIdea(long id) {
+		Log.i(LOG_TAG, "Edit request on " + id) ;
+		
+		// Launch IdeaAddActivity in edit mode
+		Intent editIntent = new Intent(context, IdeaAddActivity.class);
+		editIntent.putExtra(IdeaDetailFragment.ARG_ITEM_ID, String.valueOf(id));
+		editIntent.putExtra("EDIT_MODE", true);
+		startActivity(editIntent);
+    }
+    
+    private void confirmDelete(final long[] ids) {
+		new android.app.AlertDialog.Builder(getActivity())
+			.setTitle(ids.length == 1 ? "Delete Idea" : "Delete " + ids.length + " Ideas")
+			.setMessage(ids.length == 1 ? "Are you sure you want to delete this idea?" : "Are you sure you want to delete these " + ids.length + " ideas?")
+			.setPositiveButton("Delete", new android.content.DialogInterface.OnClickListener() {
+				public void onClick(android.content.DialogInterface dialog, int which) {
+					runBulk(CONTEXTMENU_DELETEITEM, ids, null);
+				}
+			})
+			.setNegativeButton("Cancel", null)
+			.show();
+    }
+    
+    // the tag to move the ideas to, or to add to them
+    private void askTag(final int action, final long[] ids) {
+		final android.widget.EditText input = new android.widget.EditText(context);
+		input.setSingleLine(true);
+		input.setHint("#tag");
+		new android.app.AlertDialog.Builder(getActivity())
+			.setTitle((action == CONTEXTMENU_MOVEITEM ? "Move " : "Tag ") + ids.length + (ids.length == 1 ? " idea" : " ideas"))
+			.setView(input)
+			.setPositiveButton(action == CONTEXTMENU_MOVEITEM ? "Move" : "Tag", new android.content.DialogInterface.OnClickListener() {
+				public void onClick(android.content.DialogInterface dialog, int which) {
+					String tag = input.getText().toString().trim().replaceFirst("^#", "");
+					if (!BlindIndex.HASHTAG.matcher("#" + tag).matches()) {
+						Toast("A tag is one word of letters, digits or _");
+						return;
+					}
+					runBulk(action, ids, tag);
+				}
+			})
+			.setNegativeButton("Cancel", null)
+			.show();
+    }
+    
+    /**
+     * One bulk action off the main thread: a single statement or transaction locally, the server's
+     * toggles queued for PendingToggles (see SQLCipherAdapter.setCompleted and friends). The shown page is then
+     * changed in memory and swapped in once, instead of loading the category again.
+     */
+    private void runBulk(final int action, final long[] ids, final String tag) {
+    	final boolean done = !allCompleted(ids); // complete them, or reopen them if they all were
+    	final String fromTag = mQuery == null ? mItem : null;
+    	new AsyncTask<Void, Void, Object>() {
+    		@Override
+    		protected Object doInBackground(Void... params) {
+    			switch (action) {
+    				case CONTEXTMENU_COMPLETEITEM: return sql.setCompleted(ids, done);
+    				case CONTEXTMENU_DELETEITEM: return sql.deleteIdeas(ids);
+    				case CONTEXTMENU_MOVEITEM: return sql.retagIdeas(ids, fromTag, tag);
+    				default: return sql.retagIdeas(ids, null, tag);
+    			}
+    		}
+    		
+    		@Override
+    		protected void onPostExecute(Object result) {
+    			if (result == null || Integer.valueOf(-1).equals(result)) {
+    				Toast("Could not update " + (ids.length == 1 ? "the idea" : "the " + ids.length + " ideas"));
+    				return;
+    			}
+    			if (mPage == null || mAdapter == null || getActivity() == null) return;
+    			switch (action) {
+    				case CONTEXTMENU_COMPLETEITEM: show(mPage.withCompleted(ids, done)); break;
+    				case CONTEXTMENU_DELETEITEM: show(mPage.without(ids)); break;
+    				case CONTEXTMENU_MOVEITEM: show(mPage.without(retagged(ids, (String[]) result))); break;
+    				default: show(mPage.withNames(ids, (String[]) result)); break;
+    			}
+    		}
+    	}.execute();
+    }
+    
+    // the ids whose text retagIdeas changed
+    private static long[] retagged(long[] ids, String[] texts) {
+    	int count = 0;
+    	for (String text : texts) {
+    		if (text != null) count++;
+    	}
+    	long[] changed = new long[count];
+    	for (int i = 0, j = 0; i < ids.length; i++) {
+    		if (texts[i] != null) changed[j++] = ids[i];
+    	}
+    	return changed;
     }
     
     public void Toast(String msg) {
@@ -422,6 +488,18 @@ public class IdeaDetailFragment extends Fragment {
     		if (cursor.getInt(cursor.getColumnIndex("completed")) == 1) { tvName.setTextColor(0xffbdbdbd);; } else {tvName.setTextColor(0xff000000);}
     		if (cursor.getInt(cursor.getColumnIndex("deleted")) == 1) { tvName.setPaintFlags(tvName.getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG); } else { tvName.setPaintFlags(tvName.getPaintFlags() & (~ Paint.STRIKE_THRU_TEXT_FLAG));  /* TODO: FIX HERE LINE NEXT LINE*/ }
     		
+    		// reminders are stored as epoch ms and only turned into text here, in the device's locale
+    		TextView tvEtc = (TextView)view.findViewById(R.id.tvListItemEtc);
+    		int reminderIndex = cursor.getColumnIndex("reminder");
+    		long reminder = reminderIndex < 0 ? TimeFormat.NONE : cursor.getLong(reminderIndex);
+    		if (tvEtc != null) {
+    			if (reminder == TimeFormat.NONE) {
+    				tvEtc.setVisibility(View.GONE);
+    			} else {
+    				tvEtc.setText(getString(R.string.idea_reminder, TimeFormat.display(reminder)));
+    				tvEtc.setVisibility(View.VISIBLE);
+    			}
+    		}
     	}
      
     	@Override
@@ -38,6 +38,8 @@ public class IdeaListActivity extends Activity
     private static final boolean bDebug = true;
     private static boolean bUse_Storage_Server = true; // Server / Local
     private static boolean bGCM_Enabled = true; // use cloud storage, set in code below
+    private static boolean bCodecChecked = false; // compression dictionary checked this process
+    private static HashtagBackfillJob backfillJob; // running backfill, if any; resumes from its checkpoint
     
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -60,6 +62,43 @@ public class IdeaListActivity extends Activity
             fragListItem.setArguments(getIntent().getExtras())            ;
             getFragmentManager().beginTransaction().add(R.id.idea_list, fragListItem).commit();
         }
+        
+        // only the first creation: a rotation or other recreation gets the same intent again
+        if (savedInstanceState == null
+                && (getIntent().getFlags() & Intent.FLAG_ACTIVITY_LAUNCHED_FROM_HISTORY) == 0) {
+            handleShareIntent(getIntent());
+        }
+    }
+    
+    // Text or a file shared to id34 from another app: bulk-import it off the UI thread
+    private void handleShareIntent(final Intent intent) {
+    	if (intent == null || !Intent.ACTION_SEND.equals(intent.getAction())) return;
+    	new Thread(new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				int imported;
+    				SQLCipherAdapter sql = new SQLCipherAdapter(context);
+    				android.net.Uri stream = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+    				if (stream != null) {
+    					java.io.InputStream in = getContentResolver().openInputStream(stream);
+    					try {
+    						imported = sql.importIdeas(in, IdeaTransfer.formatFor(getContentResolver().getType(stream), stream.getLastPathSegment()));
+    					} finally {
+    						in.close();
+    					}
+    				} else {
+    					String text = intent.getStringExtra(Intent.EXTRA_TEXT);
+    					if (text == null) return;
+    					imported = sql.importIdeas(new java.io.ByteArrayInputStream(text.getBytes("UTF-8")), IdeaTransfer.FORMAT_TEXT);
+    				}
+    				ToastOnUiThread("Imported " + imported + " ideas");
+    			} catch (Exception e) {
+    				Log.e(LOG_TAG, "Share import failed: " + e.getMessage());
+    				ToastOnUiThread("Import failed");
+    			}
+    		}
+    	}).start();
     }
 
     public boolean getUser() {
@@ -191,23 +230,88 @@ public class IdeaListActivity extends Activity
     public void onResume() {
     	    super.onResume(); 
     	    
-    	    // Run migration once to fix existing ideas with missing category links
-    	    SharedPreferences prefs = getSharedPreferences("com.promethylhosting.id34", MODE_PRIVATE);
-    	    boolean migrationCompleted = prefs.getBoolean("migration_v1_completed", false);
+    	    // Link ideas saved before hashtag categories existed, resuming from its checkpoint in the
+    	    // database; returns at once when that says it is done
+    	    if (backfillJob == null) {
+    	        backfillJob = new HashtagBackfillJob(context);
+    	        final HashtagBackfillJob job = backfillJob;
+    	        job.setProgressListener(new HashtagBackfillJob.ProgressListener() {
+    	            @Override
+    	            public void onProgress(int done, int total) {
+    	                Log.i(LOG_TAG, "Hashtag backfill: " + done + "/" + total);
+    	            }
+    	        });
+    	        new Thread(new Runnable() {
+    	            @Override
+    	            public void run() {
+    	                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+    	                new SQLCipherAdapter(context).backfillHashtags(job);
+    	            }
+    	        }).start();
+    	    }
     	    
-    	    if (!migrationCompleted) {
+    	    // Once per process: make sure the maintenance alarm is set, derive the field key off the
+    	    // UI thread, (re)train the idea text compression dictionary when the corpus has grown and
+    	    // encrypt stored ones (before the copy below, so it never carries a plaintext one), move a
+    	    // database with plaintext rows left into an encrypted copy, switch an old file to
+    	    // incremental auto_vacuum (one full VACUUM, too long for the maintenance broadcast),
+    	    // backfill the blind index, start or resume a due key rotation and take the daily backup
+    	    if (!bCodecChecked) {
+    	        bCodecChecked = true;
     	        new Thread(new Runnable() {
     	            @Override
     	            public void run() {
+    	                android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+    	                // each step on its own: one failing doesn't keep the others from running
+    	                try {
+    	                    MaintenanceJob.schedule(context);
+    	                } catch (Exception e) {
+    	                    Log.e(LOG_TAG, "Maintenance alarm error: " + e.getMessage());
+    	                }
     	                try {
-    	                    SQLCipherAdapter sql = new SQLCipherAdapter(context);
-    	                    sql.migrateExistingIdeasToCategories();
-    	                    
-    	                    // Mark migration as completed
-    	                    SharedPreferences prefs = getSharedPreferences("com.promethylhosting.id34", MODE_PRIVATE);
-    	                    prefs.edit().putBoolean("migration_v1_completed", true).apply();
+    	                    FieldCipher.warmUp();
     	                } catch (Exception e) {
-    	                    Log.e("Id34", "Migration error: " + e.getMessage());
+    	                    Log.e(LOG_TAG, "Field key error: " + e.getMessage());
+    	                }
+    	                SQLCipherAdapter sql = new SQLCipherAdapter(context);
+    	                try {
+    	                    try {
+    	                        sql.trainCompressionDictionaryIfNeeded();
+    	                    } catch (Exception e) {
+    	                        Log.e(LOG_TAG, "Compression dictionary error: " + e.getMessage());
+    	                    }
+    	                    try {
+    	                        sql.migrateToEncryptedCopy(new DatabaseMigrationJob(context));
+    	                    } catch (Exception e) {
+    	                        Log.e(LOG_TAG, "Encrypted copy migration error: " + e.getMessage());
+    	                    }
+    	                    try {
+    	                        sql.convertAutoVacuumIfNeeded(new MaintenanceJob(context));
+    	                    } catch (Exception e) {
+    	                        Log.e(LOG_TAG, "Auto-vacuum conversion error: " + e.getMessage());
+    	                    }
+    	                    try {
+    	                        sql.rebuildBlindIndexIfNeeded();
+    	                    } catch (Exception e) {
+    	                        Log.e(LOG_TAG, "Blind index error: " + e.getMessage());
+    	                    }
+    	                    try {
+    	                        sql.rotateKeysIfDue(new KeyRotationJob(context));
+    	                    } catch (Exception e) {
+    	                        Log.e(LOG_TAG, "Key rotation error: " + e.getMessage());
+    	                    }
+    	                    try {
+    	                        sql.backupIfDue();
+    	                    } catch (Exception e) {
+    	                        Log.e(LOG_TAG, "Daily backup error: " + e.getMessage());
+    	                    }
+    	                    try {
+    	                        sql.rescheduleReminders(false);
+    	                    } catch (Exception e) {
+    	                        Log.e(LOG_TAG, "Reminder scheduling error: " + e.getMessage());
+    	                    }
+    	                } finally {
+    	                    sql.close();
     	                }
     	            }
     	        }).start();
@@ -216,17 +320,25 @@ public class IdeaListActivity extends Activity
     	//getData();
     }
     
-    public void ToastOnUiThread(String msg) {
+    @Override
+    public void onDestroy() {
+    	// the backfill checkpoints per chunk, so stop it with the app and pick up next launch
+    	if (isFinishing() && backfillJob != null) {
+    	    backfillJob.cancel();
+    	    backfillJob = null; // so the next onCreate in this process starts it again
+    	}
+    	super.onDestroy();
+    }
+    
+    public void ToastOnUiThread(final String msg) {
     	if (context==null) return;
     	try {
     		runOnUiThread(new Runnable() {
     			@Override
     		    public void run() {
-    		        Toast.makeText(context, "Hello", Toast.LENGTH_SHORT).show();
+    		        Toast.makeText(context, msg, Toast.LENGTH_LONG).show();
     		    }
     		});
-    		
-    		Toast.makeText(context, msg, Toast.LENGTH_LONG).show();	 // TODO: WTF?
     	}catch (Exception e) {}
     }
 
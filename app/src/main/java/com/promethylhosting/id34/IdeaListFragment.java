@@ -3,7 +3,6 @@ package com.promethylhosting.id34;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.Arrays;
 
 
 import android.app.Activity;
@@ -25,15 +24,16 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnCreateContextMenuListener;
+import android.widget.AbsListView;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 import android.widget.ArrayAdapter;
+import android.widget.TextView;
 import android.widget.ListAdapter;
 import android.widget.ListView;
 import android.widget.Toast;
 
 import com.promethylhosting.id34.dummy.DummyContent;
 import com.promethylhosting.id34.dummy.DummyContent.DummyItem;
-import com.promethylhosting.id34.iserver.Iserver;
 
 
 public class IdeaListFragment extends ListFragment {
@@ -50,8 +50,15 @@ public class IdeaListFragment extends ListFragment {
     private static ProgressDialog progressDialog;
 	protected static final int CONTEXTMENU_EDITITEM = 1; 
 	protected static final int CONTEXTMENU_DELETEITEM = 0; 
+	private static final int REQUEST_EXPORT_NDJSON = 11;
+	private static final int REQUEST_EXPORT_MARKDOWN = 12;
+	private static final int REQUEST_IMPORT = 13;
+	private static final int REQUEST_EXPORT_SLOW_QUERIES = 14;
     private static Boolean bSys_debug=false;
     private SQLCipherAdapter sql = null;
+    private int catOrder = SQLCipherAdapter.CAT_ORDER_NAME;
+    private static final String PREF_CAT_ORDER = "category_order";
+    private boolean mPrefetch = false; // two-pane: warm CategoryDetailLoader for the next tap
 
     MenuItem mnuAdd = null;
     MenuItem mnuRefresh = null; 
@@ -113,7 +120,7 @@ public class IdeaListFragment extends ListFragment {
 	            	String lastUpdate = prefs.getString("LastUpdateSuccessDT", "1970-01-01 00:06:00");
 	            	
 	            	
-	                sql = new SQLiteAdapter(context);
+	                sql = new SQLCipherAdapter(context);
 	                sql.openToWrite();
 	                Boolean bError1 = sql.updateDBCats(lastUpdate);
 	                Boolean bError2 = sql.updateDBIdeas(lastUpdate); // TEST THIS ~~~ /// TODO: 
@@ -150,6 +157,8 @@ public class IdeaListFragment extends ListFragment {
                 dcHashTags.ITEMS);
         */
 
+        catOrder = context.getSharedPreferences("com.promethylhosting.id34", Context.MODE_PRIVATE)
+                .getInt(PREF_CAT_ORDER, SQLCipherAdapter.CAT_ORDER_NAME);
         Cursor mCursor = loadDataFromDatabase();
         
         // Now create a new list adapter bound to the cursor.
@@ -163,10 +172,25 @@ public class IdeaListFragment extends ListFragment {
                                 // rows).
             mCursor, // Pass in the cursor to bind to.
             // Array of cursor columns to bind to.
-            new String[] { "cat" },
+            new String[] { "cat", "active" },
             // Parallel array of which template objects to bind to those
             // columns.
-            new int[] { R.id.tvListItemName }, 0 ); // initialized with zero flags in order to run on seperate thread
+            new int[] { R.id.tvListItemName, R.id.tvListItemEtc }, 0 ); // initialized with zero flags in order to run on seperate thread
+        ((SimpleCursorAdapter) adapter).setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (view.getId() != R.id.tvListItemEtc) return false;
+                // counts come precomputed from tblCategoryStats; the time is formatted only now, for the locale
+                int open = cursor.getInt(columnIndex);
+                int done = cursor.getInt(cursor.getColumnIndex("completed"));
+                long touched = cursor.getLong(cursor.getColumnIndex("touched"));
+                ((TextView) view).setText(touched == TimeFormat.NONE
+                        ? getString(R.string.category_counts, open, done)
+                        : getString(R.string.category_counts_touched, open, done, TimeFormat.display(touched)));
+                view.setVisibility(View.VISIBLE);
+                return true;
+            }
+        });
         
         setListAdapter(adapter);
         
@@ -189,6 +213,7 @@ public class IdeaListFragment extends ListFragment {
         // Keep references for backward compatibility
         mnuAdd = menu.findItem(R.id.action_add);
         mnuRefresh = menu.findItem(R.id.action_refresh);
+        menu.findItem(R.id.action_sort_activity).setChecked(catOrder == SQLCipherAdapter.CAT_ORDER_ACTIVE);
     }
     
     @Override
@@ -199,11 +224,37 @@ public class IdeaListFragment extends ListFragment {
                 startActivity(new Intent(context, IdeaAddActivity.class));
                 return true;
                 
+            case R.id.action_search:
+                final android.widget.EditText input = new android.widget.EditText(context);
+                input.setSingleLine(true);
+                new android.app.AlertDialog.Builder(getActivity())
+                    .setTitle("Search ideas")
+                    .setView(input)
+                    .setPositiveButton("Search", new android.content.DialogInterface.OnClickListener() {
+                        public void onClick(android.content.DialogInterface dialog, int which) {
+                            String query = input.getText().toString().trim();
+                            if (query.length() == 0) return;
+                            // typo-tolerant, see FuzzySearch
+                            startActivity(new Intent(context, IdeaDetailActivity.class).putExtra(IdeaDetailFragment.ARG_QUERY, query));
+                        }
+                    })
+                    .setNegativeButton("Cancel", null)
+                    .show();
+                return true;
+                
             case R.id.action_refresh:
                 Log.i(LOG_TAG, "Refreshing content...");
                 refreshContent(); // New lightweight refresh method
                 return true;
                 
+            case R.id.action_sort_activity:
+                catOrder = item.isChecked() ? SQLCipherAdapter.CAT_ORDER_NAME : SQLCipherAdapter.CAT_ORDER_ACTIVE;
+                item.setChecked(catOrder == SQLCipherAdapter.CAT_ORDER_ACTIVE);
+                context.getSharedPreferences("com.promethylhosting.id34", Context.MODE_PRIVATE)
+                        .edit().putInt(PREF_CAT_ORDER, catOrder).apply();
+                refreshContent();
+                return true;
+                
             case R.id.action_edit:
                 Log.i(LOG_TAG, "Edit action selected");
                 // Edit will be handled via context menu for now
@@ -216,11 +267,104 @@ public class IdeaListFragment extends ListFragment {
                 Toast.makeText(context, "Please long-press an item to delete", Toast.LENGTH_SHORT).show();
                 return true;
                 
+            case R.id.action_export_ndjson:
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("application/x-ndjson")
+                        .putExtra(Intent.EXTRA_TITLE, "id34-ideas.ndjson"), REQUEST_EXPORT_NDJSON);
+                return true;
+                
+            case R.id.action_export_markdown:
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("text/markdown")
+                        .putExtra(Intent.EXTRA_TITLE, "id34-ideas.md"), REQUEST_EXPORT_MARKDOWN);
+                return true;
+                
+            case R.id.action_import:
+                startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("*/*"), REQUEST_IMPORT);
+                return true;
+                
+            case R.id.action_export_slow_queries:
+                // for bug reports: the worst queries on this device's data, see SlowQueryLog
+                startActivityForResult(new Intent(Intent.ACTION_CREATE_DOCUMENT)
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .setType("application/json")
+                        .putExtra(Intent.EXTRA_TITLE, "id34-slow-queries.json"), REQUEST_EXPORT_SLOW_QUERIES);
+                return true;
+                
             default:
                 return super.onOptionsItemSelected(item);
         }
    	}
     
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != Activity.RESULT_OK || data == null || data.getData() == null) return;
+        if (requestCode == REQUEST_EXPORT_NDJSON || requestCode == REQUEST_EXPORT_MARKDOWN || requestCode == REQUEST_IMPORT
+                || requestCode == REQUEST_EXPORT_SLOW_QUERIES) {
+            new TransferTask(requestCode, data.getData()).execute();
+        }
+    }
+    
+    /** Export to / import from a document picked by the user, streaming so size doesn't matter. */
+    private class TransferTask extends AsyncTask<Void, Void, Integer> {
+        private final int requestCode;
+        private final android.net.Uri uri;
+        
+        TransferTask(int requestCode, android.net.Uri uri) {
+            this.requestCode = requestCode;
+            this.uri = uri;
+        }
+        
+        @Override
+        protected void onPreExecute() {
+            Toast.makeText(context, requestCode == REQUEST_IMPORT ? "Importing..." : "Exporting...", Toast.LENGTH_SHORT).show();
+        }
+        
+        @Override
+        protected Integer doInBackground(Void... params) {
+            try {
+                if (sql == null) sql = new SQLCipherAdapter(context);
+                android.content.ContentResolver resolver = context.getContentResolver();
+                if (requestCode == REQUEST_IMPORT) {
+                    java.io.InputStream in = resolver.openInputStream(uri);
+                    try {
+                        return sql.importIdeas(in, IdeaTransfer.formatFor(resolver.getType(uri), uri.getLastPathSegment()));
+                    } finally {
+                        in.close();
+                    }
+                }
+                java.io.OutputStream out = resolver.openOutputStream(uri);
+                try {
+                    if (requestCode == REQUEST_EXPORT_SLOW_QUERIES) return SlowQueryLog.export(out);
+                    return sql.exportIdeas(out, requestCode == REQUEST_EXPORT_NDJSON ? IdeaTransfer.FORMAT_NDJSON : IdeaTransfer.FORMAT_MARKDOWN);
+                } finally {
+                    out.close();
+                }
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Transfer failed: " + e.getMessage());
+                e.printStackTrace();
+                return -1;
+            }
+        }
+        
+        @Override
+        protected void onPostExecute(Integer rows) {
+            if (rows < 0) {
+                Toast.makeText(context, requestCode == REQUEST_IMPORT ? "Import failed" : "Export failed", Toast.LENGTH_LONG).show();
+            } else if (requestCode == REQUEST_IMPORT) {
+                Toast.makeText(context, "Imported " + rows + " ideas", Toast.LENGTH_LONG).show();
+                if (getActivity() != null) refreshContent();
+            } else {
+                Toast.makeText(context, "Exported " + rows + (requestCode == REQUEST_EXPORT_SLOW_QUERIES ? " slow queries" : " rows"), Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+    
     @Override
     public void onResume() {
     	super.onResume();
@@ -264,7 +408,7 @@ public class IdeaListFragment extends ListFragment {
                             sql = new SQLCipherAdapter(context);
                             sql.openToRead();
                         }
-                        return sql.queryCats();
+                        return sql.queryCats(catOrder);
                     } catch (Exception e) {
                         Log.e(LOG_TAG, "Error refreshing data: " + e.getMessage());
                         return null;
@@ -303,6 +447,41 @@ public class IdeaListFragment extends ListFragment {
                 .containsKey(STATE_ACTIVATED_POSITION)) {
             setActivatedPosition(savedInstanceState.getInt(STATE_ACTIVATED_POSITION));
         }
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView listView, int scrollState) {
+                if (scrollState == SCROLL_STATE_IDLE) prefetchAround(mActivatedPosition);
+            }
+            
+            @Override
+            public void onScroll(AbsListView listView, int firstVisible, int visibleCount, int totalCount) {
+            }
+        });
+    }
+    
+    /**
+     * Queue the categories next to position, then the ones on screen, for CategoryDetailLoader,
+     * so the detail pane has them in memory when they're tapped.
+     */
+    private void prefetchAround(int position) {
+        if (!mPrefetch || getListAdapter() == null) return;
+        ListView listView = getListView();
+        java.util.List<String> ids = new java.util.ArrayList<String>();
+        if (position != ListView.INVALID_POSITION) {
+            addCatId(ids, position + 1);
+            addCatId(ids, position - 1);
+        }
+        for (int i = listView.getFirstVisiblePosition(); i <= listView.getLastVisiblePosition(); i++) {
+            if (i != position) addCatId(ids, i);
+        }
+        CategoryDetailLoader.get().prefetch(context, ids);
+    }
+    
+    private void addCatId(java.util.List<String> ids, int position) {
+        if (position < 0 || position >= getListAdapter().getCount()) return;
+        Cursor c = (Cursor) getListAdapter().getItem(position);
+        String id = c.getString(0);
+        if (!ids.contains(id)) ids.add(id);
     }
 
     @Override
@@ -331,6 +510,7 @@ public class IdeaListFragment extends ListFragment {
         c.moveToPosition(position);
         
         mCallbacks.onItemSelected(c.getString(0)); // needs testing, supply id, will query for it next iteration
+        prefetchAround(position); // after the selection's own load, which cancels older prefetches
         //mCallbacks.onItemSelected(DummyContent.ITEMS.get(position).id);
     }
 
@@ -343,6 +523,7 @@ public class IdeaListFragment extends ListFragment {
     }
 
     public void setActivateOnItemClick(boolean activateOnItemClick) {
+        mPrefetch = activateOnItemClick;
         getListView().setChoiceMode(activateOnItemClick
                 ? ListView.CHOICE_MODE_SINGLE
                 : ListView.CHOICE_MODE_NONE);
@@ -478,7 +659,7 @@ public class IdeaListFragment extends ListFragment {
       			Log.e(LOG_TAG, "loadDataFromDatabaseFailed: "  + e.getMessage());
       			return null;
       		}
-      		return sql.queryCats();
+      		return sql.queryCats(catOrder);
     }
     
     public void getData(DummyContent dcHashTags) {
@@ -512,8 +693,11 @@ public class IdeaListFragment extends ListFragment {
     			// Create demo item if database is empty
     			sql.createDemoItemIfEmpty();
     			
-    			// Query categories from database
-    			return sql.queryCats();
+    			// Query categories from database, and refresh hashtag autocomplete from the same rows
+    			Cursor cursor = sql.queryCats(catOrder);
+    			HashtagIndex.get().load(cursor);
+    			cursor.moveToPosition(-1);
+    			return cursor;
     			
     		} catch (Exception e) {
     			Log.e(LOG_TAG, "Error loading data from database: " + e.getMessage());
@@ -532,7 +716,6 @@ public class IdeaListFragment extends ListFragment {
     		}
     		
     		try {
-    			String cats[] = new String[500];
     			int i = 0;
     			
     			// Process cursor data
@@ -540,18 +723,15 @@ public class IdeaListFragment extends ListFragment {
     			if (nameIndex == -1) nameIndex = cursor.getColumnIndex("KEY_CAT");
     			if (nameIndex == -1) nameIndex = 1; // fallback to second column
     			
-    			for (cursor.moveToFirst(); !cursor.isAfterLast() && i < 500; cursor.moveToNext()) {
+    			for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
     				String categoryName = cursor.getString(nameIndex);
     				if (categoryName != null && categoryName.length() > 0) {
     					Log.d(LOG_TAG, "Adding category: " + categoryName);
     					dcHashTags.addItem(new DummyItem(categoryName, categoryName, "false"));
-    					cats[i] = categoryName;
     					i++;
     				}
     			}
     			
-    			// Update Iserver hashtags
-    			Iserver.setHashTags(Arrays.copyOf(cats, i));
     			Log.i(LOG_TAG, "OFFLINE MODE: Loaded " + i + " categories from database");
     			
     			// Refresh the UI
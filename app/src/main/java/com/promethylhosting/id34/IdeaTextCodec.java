@@ -0,0 +1,296 @@
+package com.promethylhosting.id34;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Compression of idea text with a preset Deflate dictionary trained on the user's own ideas.
+ *
+ * Ideas are ~100 bytes, far too short for plain GZIP to find repeats; with a dictionary of the
+ * user's frequent words and hashtags most of a row becomes back-references. Compressed rows are
+ * stored as BLOBs: [TAG_DEFLATE][varint dictionary version][raw deflate]. Text that doesn't
+ * shrink stays a plain TEXT value, so rows written before compression existed decode as-is.
+ * Dictionaries are never overwritten, only added, so retraining leaves old rows readable.
+ *
+ * A dictionary is the user's most frequent words and hashtags in rank order, so with field
+ * encryption on it is stored encrypted like the text itself (FieldCipher, its key version in
+ * key_ver, schema v10); seal() encrypts one stored before that, or under an older key.
+ */
+public class IdeaTextCodec {
+
+	public static final String TABLE_DICT = "tblCodecDict";
+	public static final String SCRIPT_CREATE_DICT =
+		"CREATE TABLE IF NOT EXISTS `" + TABLE_DICT + "` (\n" +
+		"  `version` INTEGER PRIMARY KEY NOT NULL,\n" +
+		"  `dict` BLOB NOT NULL,\n" +
+		"  `trained_rows` INTEGER NOT NULL\n" +
+		");\n";
+
+	static final byte TAG_PLAIN = 0x00;   // [0x00][UTF-8], used when a byte form is needed but compression didn't pay
+	static final byte TAG_DEFLATE = 0x01;
+
+	private static final String LOG_TAG = "id34";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int DICT_MAX_BYTES = 4096;
+	private static final int MIN_TRAINING_ROWS = 200;
+	private static final int TRAINING_SAMPLE_ROWS = 5000;
+	private static final int MIN_SAVING_BYTES = 4;
+	private static final int MAX_VERSION_SHIFT = 28; // a varint int is at most 5 bytes
+
+	private static final IdeaTextCodec instance = new IdeaTextCodec();
+
+	private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<Integer, byte[]>();
+	private volatile int currentVersion = 0; // 0 = no dictionary yet, write plain text
+	private volatile int trainedRows = 0;
+	private volatile boolean loaded = false;
+
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() { return new Deflater(Deflater.BEST_COMPRESSION, true); }
+	};
+	private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() { return new Inflater(true); }
+	};
+	private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() { return new byte[4096]; }
+	};
+
+	public static IdeaTextCodec get() { return instance; }
+
+	private IdeaTextCodec() {}
+
+	/** Load the dictionaries once per process; cheap enough to call on every open. */
+	public void load(SQLiteDatabase db) {
+		if (loaded) return;
+		synchronized (this) {
+			if (loaded) return;
+			Cursor c = db.query(TABLE_DICT, new String[]{"version", "dict", "trained_rows", SQLCipherAdapter.KEY_KEY_VER},
+					null, null, null, null, "version");
+			try {
+				while (c.moveToNext()) {
+					byte[] dict = c.getBlob(1);
+					dictionaries.put(c.getInt(0), c.getInt(3) != 0 ? FieldCipher.decrypt(dict) : dict);
+					currentVersion = c.getInt(0);
+					trainedRows = c.getInt(2);
+				}
+			} finally {
+				c.close();
+			}
+			loaded = true;
+			Log.i(LOG_TAG, "IdeaTextCodec loaded " + dictionaries.size() + " dictionaries, current v" + currentVersion);
+		}
+	}
+
+	/** The database file was replaced: forget its dictionaries, the next open loads the new file's. */
+	public synchronized void reset() {
+		loaded = false;
+		currentVersion = 0;
+		trainedRows = 0;
+		dictionaries.clear();
+	}
+
+	/**
+	 * Encode text for storage: a byte[] when the current dictionary saves space, otherwise the
+	 * String itself.
+	 */
+	public Object encode(String text) {
+		int version = currentVersion;
+		if (version == 0 || text == null) return text;
+		byte[] raw = text.getBytes(UTF8);
+		byte[] packed = deflate(raw, dictionaries.get(version), version);
+		return packed.length + MIN_SAVING_BYTES < raw.length ? packed : text;
+	}
+
+	/** Encode to bytes unconditionally (TAG_PLAIN when compression doesn't help). */
+	public byte[] encodeBytes(String text) {
+		Object encoded = encode(text);
+		if (encoded instanceof byte[]) return (byte[]) encoded;
+		byte[] raw = text.getBytes(UTF8);
+		byte[] out = new byte[raw.length + 1];
+		out[0] = TAG_PLAIN;
+		System.arraycopy(raw, 0, out, 1, raw.length);
+		return out;
+	}
+
+	public String decode(byte[] stored) {
+		if (stored == null || stored.length == 0) return "";
+		if (stored[0] == TAG_PLAIN) return new String(stored, 1, stored.length - 1, UTF8);
+		if (stored[0] != TAG_DEFLATE) throw new IllegalArgumentException("Unknown text codec tag " + stored[0]);
+
+		// a truncated or corrupted row must fail like any other bad row, not index past the end
+		int pos = 1;
+		int version = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (pos == stored.length || shift > MAX_VERSION_SHIFT) throw new IllegalArgumentException("Corrupt text codec dictionary version");
+			b = stored[pos++];
+			version |= (b & 0x7f) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+
+		byte[] dict = dictionaries.get(version);
+		if (dict == null) throw new IllegalStateException("Missing codec dictionary v" + version);
+
+		Inflater inflater = inflaters.get();
+		inflater.reset();
+		inflater.setInput(stored, pos, stored.length - pos);
+		inflater.setDictionary(dict); // raw deflate carries no dictionary id, set it up front
+		byte[] out = scratch.get();
+		int len = 0;
+		try {
+			while (!inflater.finished()) {
+				if (len == out.length) {
+					byte[] bigger = new byte[out.length * 2];
+					System.arraycopy(out, 0, bigger, 0, len);
+					out = bigger;
+					scratch.set(out);
+				}
+				int n = inflater.inflate(out, len, out.length - len);
+				if (n == 0 && inflater.needsInput()) break;
+				len += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt compressed idea text", e);
+		}
+		return new String(out, 0, len, UTF8);
+	}
+
+	private byte[] deflate(byte[] raw, byte[] dict, int version) {
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setDictionary(dict);
+		deflater.setInput(raw);
+		deflater.finish();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 8);
+		out.write(TAG_DEFLATE);
+		int v = version;
+		while ((v & ~0x7f) != 0) { out.write((v & 0x7f) | 0x80); v >>>= 7; }
+		out.write(v);
+		byte[] chunk = scratch.get();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			out.write(chunk, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Train a new dictionary when there is enough text and the corpus has grown well past what
+	 * the current dictionary was built from.
+	 * @return true if a new dictionary version was stored
+	 */
+	public boolean trainIfNeeded(SQLiteDatabase db) {
+		load(db);
+		seal(db);
+		long rows = android.database.DatabaseUtils.queryNumEntries(db, SQLCipherAdapter.MYDATABASE_TABLE_IDEA);
+		if (rows < MIN_TRAINING_ROWS) return false;
+		if (currentVersion != 0 && rows < trainedRows * 4L) return false;
+
+		Cursor c = db.query(SQLCipherAdapter.MYDATABASE_TABLE_IDEA, new String[]{SQLCipherAdapter.KEY_NAME},
+				null, null, null, null, SQLCipherAdapter.KEY_ID + " DESC", String.valueOf(TRAINING_SAMPLE_ROWS));
+		final Map<String, int[]> counts = new HashMap<String, int[]>();
+		try {
+			while (c.moveToNext()) {
+				String text = SQLCipherAdapter.readText(c, 0);
+				for (String word : text.split("\\s+")) {
+					if (word.length() < 3) continue;
+					int[] n = counts.get(word);
+					if (n == null) counts.put(word, n = new int[1]);
+					n[0]++;
+				}
+			}
+		} finally {
+			c.close();
+		}
+
+		List<String> words = new ArrayList<String>(counts.keySet());
+		Collections.sort(words, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) { // bytes saved if every occurrence became a back-reference
+				long sa = (long) counts.get(a)[0] * a.length();
+				long sb = (long) counts.get(b)[0] * b.length();
+				return sa < sb ? 1 : (sa == sb ? 0 : -1);
+			}
+		});
+
+		// Deflate finds nearer matches cheaper, so the most valuable words go at the end.
+		List<byte[]> picked = new ArrayList<byte[]>();
+		int size = 0;
+		for (String word : words) {
+			if (counts.get(word)[0] < 2) break;
+			byte[] bytes = (word + " ").getBytes(UTF8);
+			if (size + bytes.length > DICT_MAX_BYTES) continue;
+			picked.add(bytes);
+			size += bytes.length;
+		}
+		if (size == 0) return false;
+		byte[] dict = new byte[size];
+		int pos = size;
+		for (byte[] bytes : picked) {
+			pos -= bytes.length;
+			System.arraycopy(bytes, 0, dict, pos, bytes.length);
+		}
+
+		int version = currentVersion + 1;
+		byte[] stored = FieldCipher.isEnabled() ? FieldCipher.encrypt(dict) : dict;
+		android.content.ContentValues values = new android.content.ContentValues();
+		values.put("version", version);
+		values.put("dict", stored);
+		values.put("trained_rows", (int) rows);
+		values.put(SQLCipherAdapter.KEY_KEY_VER, FieldCipher.keyVersionOf(stored));
+		db.insertOrThrow(TABLE_DICT, null, values);
+
+		dictionaries.put(version, dict);
+		trainedRows = (int) rows;
+		currentVersion = version;
+		Log.i(LOG_TAG, "IdeaTextCodec trained dictionary v" + version + " (" + size + " bytes) from " + rows + " ideas");
+		return true;
+	}
+
+	/**
+	 * Encrypt stored dictionaries that are plaintext, from before v10 or from while encryption
+	 * was off, or under an older key than the current one. Does nothing with encryption off.
+	 * @return the dictionaries rewritten
+	 */
+	public int seal(SQLiteDatabase db) {
+		if (!FieldCipher.isEnabled()) return 0;
+		load(db);
+		int target = FieldCipher.getCurrentKeyVersion();
+		int sealed = 0;
+		db.beginTransaction();
+		try {
+			for (Map.Entry<Integer, byte[]> entry : dictionaries.entrySet()) {
+				if (android.database.DatabaseUtils.longForQuery(db, "SELECT " + SQLCipherAdapter.KEY_KEY_VER + " FROM " + TABLE_DICT
+						+ " WHERE version = " + entry.getKey(), null) == target) continue;
+				byte[] stored = FieldCipher.encrypt(entry.getValue());
+				android.content.ContentValues values = new android.content.ContentValues();
+				values.put("dict", stored);
+				values.put(SQLCipherAdapter.KEY_KEY_VER, FieldCipher.keyVersionOf(stored));
+				sealed += db.update(TABLE_DICT, values, "version = " + entry.getKey(), null);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		if (sealed > 0) Log.i(LOG_TAG, "IdeaTextCodec encrypted " + sealed + " stored dictionaries under key v" + target);
+		return sealed;
+	}
+}
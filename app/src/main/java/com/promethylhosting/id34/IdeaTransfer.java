@@ -0,0 +1,321 @@
+package com.promethylhosting.id34;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Streaming export and bulk import of ideas and categories.
+ *
+ * Export walks a cursor in id order and writes each row as it is read, so memory stays flat
+ * however many ideas there are. NDJSON is one JSON object per line ("type" is "category" or
+ * "idea") and round-trips through import; Markdown is a readable checklist of live ideas.
+ *
+ * Import reads line by line and works in batches of IMPORT_BATCH lines: hashtags are resolved
+ * in memory by a CategoryResolver (missing categories created in the same transaction), then
+ * the ideas go in through one compiled statement in one transaction per batch. NDJSON ideas keep their ids, so importing the same export twice
+ * doesn't duplicate anything; plain text gets one new idea per non-empty line.
+ */
+public class IdeaTransfer {
+
+	public static final int FORMAT_NDJSON = 1;
+	public static final int FORMAT_MARKDOWN = 2; // export only
+	public static final int FORMAT_TEXT = 3;     // import only: one idea per line
+
+	private static final String LOG_TAG = "id34";
+	private static final int IMPORT_BATCH = 5000;
+	private static final int IO_BUFFER = 64 * 1024;
+	private static final String TYPE_IDEA = "idea";
+	private static final String TYPE_CATEGORY = "category";
+
+	private final SQLiteDatabase db;
+
+	/** Import format for a document: NDJSON for JSON-ish mime types or names, plain text otherwise. */
+	public static int formatFor(String mimeType, String name) {
+		if (mimeType != null && mimeType.contains("json")) return FORMAT_NDJSON;
+		if (name != null) {
+			String lower = name.toLowerCase(Locale.US);
+			if (lower.endsWith(".ndjson") || lower.endsWith(".jsonl") || lower.endsWith(".json")) return FORMAT_NDJSON;
+		}
+		return FORMAT_TEXT;
+	}
+
+	public IdeaTransfer(SQLiteDatabase db) {
+		this.db = db;
+	}
+
+	// === export ===
+
+	/** @return rows written */
+	public int export(OutputStream out, int format) throws IOException {
+		long start = System.currentTimeMillis();
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), IO_BUFFER);
+		int rows = 0;
+		try {
+			if (format == FORMAT_NDJSON) {
+				rows += exportCategories(writer);
+				rows += exportIdeasNdjson(writer);
+			} else if (format == FORMAT_MARKDOWN) {
+				rows += exportIdeasMarkdown(writer);
+			} else {
+				throw new IllegalArgumentException("Unsupported export format " + format);
+			}
+		} catch (JSONException e) {
+			throw new IOException("Export failed", e);
+		}
+		writer.flush();
+		Log.i(LOG_TAG, "IdeaTransfer exported " + rows + " rows in " + (System.currentTimeMillis() - start) + "ms");
+		return rows;
+	}
+
+	private int exportCategories(Writer writer) throws IOException, JSONException {
+		Cursor c = db.query(SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY,
+				new String[]{SQLCipherAdapter.KEY_ID, SQLCipherAdapter.KEY_CAT, SQLCipherAdapter.KEY_UPDATED},
+				null, null, null, null, SQLCipherAdapter.KEY_ID);
+		int rows = 0;
+		try {
+			while (c.moveToNext()) {
+				JSONObject row = new JSONObject();
+				row.put("type", TYPE_CATEGORY);
+				row.put(SQLCipherAdapter.KEY_ID, c.getLong(0));
+				row.put(SQLCipherAdapter.KEY_CAT, SQLCipherAdapter.readText(c, 1));
+				row.put(SQLCipherAdapter.KEY_UPDATED, c.getLong(2));
+				writer.write(row.toString());
+				writer.write('\n');
+				rows++;
+			}
+		} finally {
+			c.close();
+		}
+		return rows;
+	}
+
+	private int exportIdeasNdjson(Writer writer) throws IOException, JSONException {
+		Cursor c = db.query(SQLCipherAdapter.MYDATABASE_TABLE_IDEA,
+				new String[]{SQLCipherAdapter.KEY_ID, SQLCipherAdapter.KEY_NAME, SQLCipherAdapter.KEY_CREATED,
+						SQLCipherAdapter.KEY_UPDATED, SQLCipherAdapter.KEY_REMINDER, SQLCipherAdapter.KEY_DELETED,
+						SQLCipherAdapter.KEY_COMPLETED},
+				null, null, null, null, SQLCipherAdapter.KEY_ID);
+		int rows = 0;
+		try {
+			while (c.moveToNext()) {
+				JSONObject row = new JSONObject();
+				row.put("type", TYPE_IDEA);
+				row.put(SQLCipherAdapter.KEY_ID, c.getLong(0));
+				row.put(SQLCipherAdapter.KEY_NAME, SQLCipherAdapter.readText(c, 1));
+				row.put(SQLCipherAdapter.KEY_CREATED, c.getLong(2));
+				row.put(SQLCipherAdapter.KEY_UPDATED, c.getLong(3));
+				row.put(SQLCipherAdapter.KEY_REMINDER, c.getLong(4));
+				row.put(SQLCipherAdapter.KEY_DELETED, c.getInt(5) != 0);
+				row.put(SQLCipherAdapter.KEY_COMPLETED, c.getInt(6) != 0);
+				writer.write(row.toString());
+				writer.write('\n');
+				rows++;
+			}
+		} finally {
+			c.close();
+		}
+		return rows;
+	}
+
+	private int exportIdeasMarkdown(Writer writer) throws IOException {
+		writer.write("# id34 ideas\n\n");
+		Cursor c = db.query(SQLCipherAdapter.MYDATABASE_TABLE_IDEA,
+				new String[]{SQLCipherAdapter.KEY_NAME, SQLCipherAdapter.KEY_COMPLETED},
+				SQLCipherAdapter.KEY_DELETED + " = 0", null, null, null, SQLCipherAdapter.KEY_ID);
+		int rows = 0;
+		try {
+			while (c.moveToNext()) {
+				writer.write(c.getInt(1) != 0 ? "- [x] " : "- [ ] ");
+				writer.write(SQLCipherAdapter.readText(c, 0).replace('\n', ' '));
+				writer.write('\n');
+				rows++;
+			}
+		} finally {
+			c.close();
+		}
+		return rows;
+	}
+
+	// === import ===
+
+	private static class Pending {
+		long id; // 0 = assign a new one
+		String text;
+		long created;
+		long updated;
+		long reminder;
+		boolean deleted;
+		boolean completed;
+	}
+
+	private final List<String> pendingCategories = new ArrayList<String>();
+	private CategoryResolver categories;
+	private long nextIdeaId;
+	private long now;
+	private int duplicates;
+
+	/** @return ideas imported (lines that were duplicates or unreadable are skipped, see duplicates()) */
+	public int importFrom(InputStream in, int format) throws IOException {
+		if (format != FORMAT_NDJSON && format != FORMAT_TEXT) {
+			throw new IllegalArgumentException("Unsupported import format " + format);
+		}
+		long start = System.currentTimeMillis();
+		duplicates = 0;
+		nextIdeaId = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(" + SQLCipherAdapter.KEY_ID + "), 0) FROM "
+				+ SQLCipherAdapter.MYDATABASE_TABLE_IDEA, null) + 1;
+		now = System.currentTimeMillis();
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"), IO_BUFFER);
+		List<Pending> batch = new ArrayList<Pending>(IMPORT_BATCH);
+		int imported = 0;
+		int skipped = 0;
+		categories = new CategoryResolver(db);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0) continue;
+				Pending idea;
+				if (format == FORMAT_NDJSON) {
+					try {
+						idea = parseNdjson(line);
+					} catch (JSONException e) {
+						skipped++;
+						continue;
+					}
+					if (idea == null) continue; // category line, already taken care of
+				} else {
+					idea = new Pending();
+					idea.text = line;
+					idea.created = now;
+					idea.updated = now;
+					idea.reminder = TimeFormat.NONE;
+				}
+				batch.add(idea);
+				if (batch.size() == IMPORT_BATCH) {
+					imported += flush(batch);
+					batch.clear();
+				}
+			}
+			imported += flush(batch);
+		} finally {
+			categories.close();
+		}
+		Log.i(LOG_TAG, "IdeaTransfer imported " + imported + " ideas (" + duplicates + " already here, " + skipped + " unreadable lines) in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return imported;
+	}
+
+	/** Ideas the last importFrom() skipped because the same id already held the same text. */
+	public int duplicates() {
+		return duplicates;
+	}
+
+	private Pending parseNdjson(String line) throws JSONException {
+		JSONObject row = new JSONObject(line);
+		if (TYPE_CATEGORY.equals(row.optString("type"))) {
+			// categories are matched by name; queue the name so it exists even without ideas
+			pendingCategories.add(row.getString(SQLCipherAdapter.KEY_CAT));
+			return null;
+		}
+		Pending idea = new Pending();
+		idea.id = row.optLong(SQLCipherAdapter.KEY_ID, 0);
+		idea.text = row.getString(SQLCipherAdapter.KEY_NAME);
+		idea.created = timeOf(row, SQLCipherAdapter.KEY_CREATED, now);
+		idea.updated = timeOf(row, SQLCipherAdapter.KEY_UPDATED, now);
+		idea.reminder = timeOf(row, SQLCipherAdapter.KEY_REMINDER, TimeFormat.NONE);
+		idea.deleted = row.optBoolean(SQLCipherAdapter.KEY_DELETED, false);
+		idea.completed = row.optBoolean(SQLCipherAdapter.KEY_COMPLETED, false);
+		return idea;
+	}
+
+	// epoch ms as exported since schema v5, or the "yyyy-MM-dd HH:mm:ss" text of older exports
+	private static long timeOf(JSONObject row, String key, long fallback) {
+		Object value = row.opt(key);
+		if (value instanceof Number) return ((Number) value).longValue();
+		return value == null ? fallback : TimeFormat.fromWire(value.toString(), fallback);
+	}
+
+	private int flush(List<Pending> batch) {
+		if (batch.isEmpty() && pendingCategories.isEmpty()) return 0;
+		int inserted = 0;
+		SQLiteStatement ideaStmt = db.compileStatement(
+				"INSERT OR IGNORE INTO " + SQLCipherAdapter.MYDATABASE_TABLE_IDEA + " (" + SQLCipherAdapter.KEY_ID + ","
+				+ SQLCipherAdapter.KEY_UID + "," + SQLCipherAdapter.KEY_NUM + ","
+				+ SQLCipherAdapter.KEY_CID0 + "," + SQLCipherAdapter.KEY_CID1 + "," + SQLCipherAdapter.KEY_CID2 + ","
+				+ SQLCipherAdapter.KEY_CID3 + "," + SQLCipherAdapter.KEY_CID4 + ","
+				+ SQLCipherAdapter.KEY_CREATED + "," + SQLCipherAdapter.KEY_UPDATED + "," + SQLCipherAdapter.KEY_REMINDER + ","
+				+ SQLCipherAdapter.KEY_DELETED + "," + SQLCipherAdapter.KEY_COMPLETED + ","
+				+ SQLCipherAdapter.KEY_NAME + "," + SQLCipherAdapter.KEY_KEY_VER + "," + SQLCipherAdapter.KEY_TEXT_TOKEN
+				+ ") VALUES (?,1,0,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+		SQLiteStatement tokenStmt = db.compileStatement("SELECT IFNULL(" + SQLCipherAdapter.KEY_TEXT_TOKEN + ", 0) FROM "
+				+ SQLCipherAdapter.MYDATABASE_TABLE_IDEA + " WHERE " + SQLCipherAdapter.KEY_ID + " = ?");
+
+		db.beginTransaction();
+		try {
+			categories.catchUp(db); // saves and syncs between batches may have added categories
+			for (String name : pendingCategories) {
+				categories.idFor(name);
+			}
+			pendingCategories.clear();
+
+			long[] cids = new long[CategoryResolver.MAX_CATEGORIES_PER_IDEA];
+			for (Pending idea : batch) {
+				Set<String> tags = BlindIndex.extractTags(idea.text);
+				categories.idsFor(tags, cids);
+
+				long id = idea.id != 0 ? idea.id : nextIdeaId++;
+				ideaStmt.bindLong(1, id);
+				for (int i = 0; i < cids.length; i++) ideaStmt.bindLong(2 + i, cids[i]);
+				ideaStmt.bindLong(7, idea.created);
+				ideaStmt.bindLong(8, idea.updated);
+				ideaStmt.bindLong(9, idea.reminder);
+				ideaStmt.bindLong(10, idea.deleted ? 1 : 0);
+				ideaStmt.bindLong(11, idea.completed ? 1 : 0);
+				SQLCipherAdapter.bindText(ideaStmt, 12, 13, idea.text);
+				long fingerprint = BlindIndex.fingerprint(idea.text);
+				ideaStmt.bindLong(14, fingerprint);
+				if (ideaStmt.executeInsert() == -1) { // id already there
+					tokenStmt.bindLong(1, id);
+					if (tokenStmt.simpleQueryForLong() == fingerprint) {
+						duplicates++;
+						continue;
+					}
+					// a different idea has this id: keep both
+					if (id >= nextIdeaId) nextIdeaId = id + 1;
+					id = nextIdeaId++;
+					ideaStmt.bindLong(1, id);
+					if (ideaStmt.executeInsert() == -1) continue;
+				}
+				categories.tokens().addIdea(id, tags, idea.text);
+				inserted++;
+				if (id >= nextIdeaId) nextIdeaId = id + 1;
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			ideaStmt.close();
+			tokenStmt.close();
+		}
+		return inserted;
+	}
+}
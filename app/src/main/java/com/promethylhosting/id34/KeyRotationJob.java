@@ -0,0 +1,145 @@
+package com.promethylhosting.id34;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Background re-encryption of stored text after a key rotation.
+ *
+ * Rotation itself is instant (FieldCipher.beginRotation); this job then walks each table in id
+ * order, a small chunk per transaction, re-encrypting rows whose key_ver is behind. The last id
+ * done is checkpointed after every chunk, in the database (DatabaseState) since it is about its
+ * rows, so a killed process picks up where it stopped, a restored backup where it had, and the
+ * job yields the write lock to any waiting writer and pauses between chunks so the UI and sync
+ * never wait on it for long. Each update is conditional on the stored value being unchanged,
+ * so a row edited in the meantime (already under the new key) is left alone.
+ */
+public class KeyRotationJob {
+
+	public static final long ROTATION_INTERVAL_MS = 30L * 24 * 60 * 60 * 1000;
+
+	private static final String LOG_TAG = "id34";
+	private static final String PREFS_NAME = "com.promethylhosting.id34.crypto"; // where the markers were before v11
+	private static final String STATE_TARGET = "rotation_target";   // key version being rotated to, 0 = idle
+	private static final String STATE_TABLE = "rotation_table";     // index into TABLES
+	private static final String STATE_LAST_ID = "rotation_last_id";
+	private static final int CHUNK_ROWS = 100;
+	private static final long PAUSE_MS = 50;
+
+	// table, encrypted column
+	private static final String[][] TABLES = {
+		{SQLCipherAdapter.MYDATABASE_TABLE_IDEA, SQLCipherAdapter.KEY_NAME},
+		{SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY, SQLCipherAdapter.KEY_CAT},
+	};
+
+	private final SharedPreferences prefs;
+	private volatile boolean cancelled = false;
+
+	public KeyRotationJob(Context context) {
+		prefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	public void cancel() { cancelled = true; }
+
+	public boolean isRotating(SQLiteDatabase db) { return DatabaseState.isSet(db, STATE_TARGET); }
+
+	/**
+	 * Begin a rotation if the current key is older than ROTATION_INTERVAL_MS, then re-encrypt
+	 * until done or cancelled.
+	 * @return true when no rotation is left pending
+	 */
+	public boolean runIfDue(SQLiteDatabase db) {
+		DatabaseState.adopt(db, prefs, STATE_TARGET, STATE_TABLE, STATE_LAST_ID);
+		if (!isRotating(db)) {
+			if (!FieldCipher.isEnabled()) return true;
+			if (System.currentTimeMillis() - FieldCipher.getRotatedAt() < ROTATION_INTERVAL_MS) return true;
+			int target = FieldCipher.beginRotation();
+			checkpoint(db, target, 0, Long.MIN_VALUE);
+		}
+		return resume(db);
+	}
+
+	private boolean resume(SQLiteDatabase db) {
+		int target = (int) DatabaseState.get(db, STATE_TARGET, 0);
+		int table = (int) DatabaseState.get(db, STATE_TABLE, 0);
+		long lastId = DatabaseState.get(db, STATE_LAST_ID, Long.MIN_VALUE);
+		long start = System.currentTimeMillis();
+		int rotated = 0;
+
+		while (table < TABLES.length) {
+			if (cancelled) {
+				Log.i(LOG_TAG, "KeyRotationJob paused at " + TABLES[table][0] + " id " + lastId);
+				return false;
+			}
+			long[] progress = rotateChunk(db, TABLES[table][0], TABLES[table][1], target, lastId);
+			rotated += progress[1];
+			if (progress[0] == lastId) { // table done
+				table++;
+				lastId = Long.MIN_VALUE;
+			} else {
+				lastId = progress[0];
+			}
+			checkpoint(db, target, table, lastId);
+			try {
+				Thread.sleep(PAUSE_MS);
+			} catch (InterruptedException e) {
+				cancelled = true;
+			}
+		}
+
+		DatabaseState.remove(db, STATE_TARGET, STATE_TABLE, STATE_LAST_ID);
+		Log.i(LOG_TAG, "KeyRotationJob re-encrypted " + rotated + " rows to key v" + target + " in "
+				+ (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	private static void checkpoint(SQLiteDatabase db, int target, int table, long lastId) {
+		db.beginTransaction();
+		try {
+			DatabaseState.put(db, STATE_TARGET, target);
+			DatabaseState.put(db, STATE_TABLE, table);
+			DatabaseState.put(db, STATE_LAST_ID, lastId);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+
+	/** @return {last id seen (unchanged if none), rows re-encrypted} */
+	private long[] rotateChunk(SQLiteDatabase db, String table, String column, int target, long afterId) {
+		long lastId = afterId;
+		int rotated = 0;
+		SQLiteStatement update = db.compileStatement("UPDATE " + table + " SET " + column + " = ?, "
+				+ SQLCipherAdapter.KEY_KEY_VER + " = ? WHERE " + SQLCipherAdapter.KEY_ID + " = ? AND " + column + " = ?");
+		Cursor cursor = db.query(table, new String[]{SQLCipherAdapter.KEY_ID, column, SQLCipherAdapter.KEY_KEY_VER},
+				SQLCipherAdapter.KEY_ID + " > ?", new String[]{String.valueOf(afterId)},
+				null, null, SQLCipherAdapter.KEY_ID, String.valueOf(CHUNK_ROWS));
+		db.beginTransaction();
+		try {
+			while (cursor.moveToNext()) {
+				lastId = cursor.getLong(0);
+				if (cursor.getInt(2) == target) continue;
+
+				Object old = cursor.getType(1) == Cursor.FIELD_TYPE_BLOB ? cursor.getBlob(1) : cursor.getString(1);
+				Object encoded = FieldCipher.encodeText(SQLCipherAdapter.readText(cursor, 1));
+				SQLCipherAdapter.bindEncoded(update, 1, encoded);
+				update.bindLong(2, FieldCipher.keyVersionOf(encoded));
+				update.bindLong(3, lastId);
+				SQLCipherAdapter.bindEncoded(update, 4, old);
+				rotated += update.executeUpdateDelete();
+
+				db.yieldIfContendedSafely(); // commits what we have and lets a waiting writer in
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+			cursor.close();
+			update.close();
+		}
+		return new long[]{lastId, rotated};
+	}
+}
@@ -91,6 +91,7 @@ public class LatestIdeaWidget extends AppWidgetProvider {
         private final AppWidgetManager appWidgetManager;
         private final int appWidgetId;
         private final RemoteViews views;
+        private final long start = Metrics.now(); // refresh time is from the update request to the views being applied
         
         public LoadLatestIdeaTask(Context context, AppWidgetManager appWidgetManager, int appWidgetId, RemoteViews views) {
             this.context = context;
@@ -129,6 +130,7 @@ public class LatestIdeaWidget extends AppWidgetProvider {
                 
                 // Apply the updated RemoteViews to the widget
                 appWidgetManager.updateAppWidget(appWidgetId, views);
+                Metrics.WIDGET_REFRESH.since(start);
                 
                 Log.i(LOG_TAG, "Widget updated with latest idea: " + latestIdeaText.substring(0, Math.min(50, latestIdeaText.length())) + "...");
                 
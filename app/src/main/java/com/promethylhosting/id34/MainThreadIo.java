@@ -0,0 +1,281 @@
+package com.promethylhosting.id34;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Debug-build detector for disk and network I/O on the main thread.
+ *
+ * The I/O entry points call begin() before and end() after the work: cursor window fills
+ * (through the CursorFactory the database is opened with), the adapter's statement helpers and
+ * open(), and Iserver's HTTP requests. Off the main thread, or in a release build, begin() is a
+ * field read and end() returns at once. On it, each call is recorded with its duration, the SQL
+ * or URL, and the calling stack. Calls are aggregated per (kind, SQL/URL, first app frame
+ * outside the data layer), so a test can drive the app and then assert on report().
+ *
+ * Each new finding is also logged once as a warning with its stack.
+ */
+public final class MainThreadIo {
+
+	public static final String SQL = "sql";
+	public static final String HTTP = "http";
+
+	private static final String LOG_TAG = "id34";
+	private static final int MAX_FINDINGS = 256;
+	private static final int STACK_FRAMES = 12;
+	private static final long NOT_TIMED = 0;
+
+	// frames of these classes are the instrumentation or the data layer itself, not the caller to blame
+	private static final String[] INFRASTRUCTURE = {
+		MainThreadIo.class.getName(), SQLCipherAdapter.class.getName(), DecodingCursor.class.getName(),
+		StatementCache.class.getName(), SlowQueryLog.class.getName(), "com.promethylhosting.id34.iserver.Iserver",
+	};
+
+	/** One (kind, what, site) seen on the main thread, with its totals. */
+	public static final class Finding {
+		public final String kind;  // SQL or HTTP
+		public final String what;  // the SQL, or the URL without its query string
+		public final String site;  // first app frame outside the data layer, Class.method:line
+		public final String stack; // of the first occurrence
+		private int count;
+		private long totalNanos;
+		private long maxNanos;
+
+		Finding(String kind, String what, String site, String stack) {
+			this.kind = kind;
+			this.what = what;
+			this.site = site;
+			this.stack = stack;
+		}
+
+		public int getCount() { return count; }
+		public long getTotalMillis() { return totalNanos / 1000000; }
+		public long getMaxMillis() { return maxNanos / 1000000; }
+
+		Finding copy() {
+			Finding copy = new Finding(kind, what, site, stack);
+			copy.count = count;
+			copy.totalNanos = totalNanos;
+			copy.maxNanos = maxNanos;
+			return copy;
+		}
+
+		@Override
+		public String toString() {
+			return count + "x " + kind + " " + getTotalMillis() + "ms (max " + getMaxMillis() + "ms) at " + site + ": " + what;
+		}
+	}
+
+	/** A snapshot of the findings, most main-thread time first. */
+	public static final class Report {
+		public final List<Finding> findings;
+		public final int dropped; // calls not recorded once MAX_FINDINGS distinct ones were kept
+
+		Report(List<Finding> findings, int dropped) {
+			this.findings = Collections.unmodifiableList(findings);
+			this.dropped = dropped;
+		}
+
+		/** Main-thread I/O calls, all findings together. */
+		public int calls() {
+			int calls = dropped;
+			for (Finding finding : findings) calls += finding.count;
+			return calls;
+		}
+
+		public long totalMillis() {
+			long nanos = 0;
+			for (Finding finding : findings) nanos += finding.totalNanos;
+			return nanos / 1000000;
+		}
+
+		public boolean isClean() { return calls() == 0; }
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder("Main-thread I/O: " + calls() + " calls, " + totalMillis() + "ms");
+			for (Finding finding : findings) report.append('\n').append(finding);
+			if (dropped > 0) report.append('\n').append(dropped).append(" more not recorded");
+			return report.toString();
+		}
+	}
+
+	private static volatile boolean enabled = false;
+	private static final Map<String, Finding> findings = new HashMap<String, Finding>();
+	private static int dropped = 0;
+
+	private MainThreadIo() {}
+
+	/** Turn detection on for debuggable builds. */
+	public static void init(Context context) {
+		if ((context.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0) enabled = true;
+	}
+
+	/** For tests: detect regardless of the build type, or stop. */
+	public static void setEnabled(boolean on) { enabled = on; }
+
+	public static boolean isEnabled() { return enabled; }
+
+	/** Start of an I/O call: a token for end(), NOT_TIMED unless detecting on the main thread. */
+	public static long begin() {
+		if (!enabled || Looper.myLooper() != Looper.getMainLooper()) return NOT_TIMED;
+		return System.nanoTime();
+	}
+
+	/** End of the call begin() returned token for; what is the SQL or URL. */
+	public static void end(long token, String kind, String what) {
+		if (token == NOT_TIMED) return;
+		long nanos = Math.max(1, System.nanoTime() - token);
+		StackTraceElement[] frames = new Throwable().getStackTrace();
+		String site = site(frames);
+		String key = kind + '\n' + what + '\n' + site;
+		synchronized (findings) {
+			Finding finding = findings.get(key);
+			if (finding == null) {
+				if (findings.size() == MAX_FINDINGS) {
+					dropped++;
+					return;
+				}
+				finding = new Finding(kind, what, site, stack(frames));
+				findings.put(key, finding);
+				Log.w(LOG_TAG, "Main-thread " + kind + " (" + (nanos / 1000000) + "ms) at " + site + ": " + what + "\n" + finding.stack);
+			}
+			finding.count++;
+			finding.totalNanos += nanos;
+			finding.maxNanos = Math.max(finding.maxNanos, nanos);
+		}
+	}
+
+	public static Report report() {
+		List<Finding> copies = new ArrayList<Finding>();
+		int droppedNow;
+		synchronized (findings) {
+			for (Finding finding : findings.values()) copies.add(finding.copy());
+			droppedNow = dropped;
+		}
+		Collections.sort(copies, new Comparator<Finding>() {
+			@Override
+			public int compare(Finding a, Finding b) {
+				return a.totalNanos == b.totalNanos ? 0 : (a.totalNanos > b.totalNanos ? -1 : 1);
+			}
+		});
+		return new Report(copies, droppedNow);
+	}
+
+	public static void reset() {
+		synchronized (findings) {
+			findings.clear();
+			dropped = 0;
+		}
+	}
+
+	/**
+	 * For SQLiteOpenHelper: cursors that time their window fills while detecting, and their first
+	 * fill (the query itself) always, for SlowQueryLog.
+	 */
+	public static SQLiteDatabase.CursorFactory cursorFactory() {
+		return new SQLiteDatabase.CursorFactory() {
+			@Override
+			public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+				return new TimedCursor(driver, editTable, query);
+			}
+		};
+	}
+
+	/**
+	 * A query reads the database when its cursor fills a window: at the first getCount(), which
+	 * runs the query and counts its rows, and when moving past the rows the window holds. Those,
+	 * and only those, are timed.
+	 */
+	private static final class TimedCursor extends SQLiteCursor {
+		private final String sql;
+		private boolean counted = false;
+
+		TimedCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+			super(driver, editTable, query);
+			sql = query.toString().replaceFirst("^SQLiteQuery: ", "");
+		}
+
+		@Override
+		public int getCount() {
+			if (counted) return super.getCount();
+			counted = true;
+			long token = begin();
+			long start = System.nanoTime();
+			int count;
+			try {
+				count = super.getCount();
+			} finally {
+				end(token, SQL, sql);
+			}
+			SlowQueryLog.record(getDatabase(), sql, null, count, System.nanoTime() - start);
+			return count;
+		}
+
+		@Override
+		public boolean onMove(int oldPosition, int newPosition) {
+			CursorWindow window = getWindow();
+			if (window != null && newPosition >= window.getStartPosition()
+					&& newPosition < window.getStartPosition() + window.getNumRows()) {
+				return super.onMove(oldPosition, newPosition);
+			}
+			long token = begin();
+			try {
+				return super.onMove(oldPosition, newPosition);
+			} finally {
+				end(token, SQL, sql);
+			}
+		}
+	}
+
+	private static boolean isInfrastructure(StackTraceElement frame) {
+		String name = frame.getClassName();
+		for (String infrastructure : INFRASTRUCTURE) {
+			if (name.equals(infrastructure) || name.startsWith(infrastructure + "$")) return true;
+		}
+		return false;
+	}
+
+	// the first frame in our code that isn't the data layer; else the first outside it at all
+	private static String site(StackTraceElement[] frames) {
+		StackTraceElement fallback = null;
+		for (StackTraceElement frame : frames) {
+			if (isInfrastructure(frame)) continue;
+			if (frame.getClassName().startsWith("com.promethylhosting.id34.")) return format(frame);
+			if (fallback == null) fallback = frame;
+		}
+		return fallback == null ? "unknown" : format(fallback);
+	}
+
+	private static String stack(StackTraceElement[] frames) {
+		StringBuilder stack = new StringBuilder();
+		int shown = 0;
+		for (StackTraceElement frame : frames) {
+			if (shown == STACK_FRAMES) break;
+			if (frame.getClassName().startsWith(MainThreadIo.class.getName())) continue;
+			if (shown++ > 0) stack.append('\n');
+			stack.append("  at ").append(frame);
+		}
+		return stack.toString();
+	}
+
+	private static String format(StackTraceElement frame) {
+		String name = frame.getClassName();
+		return name.substring(name.lastIndexOf('.') + 1) + "." + frame.getMethodName() + ":" + frame.getLineNumber();
+	}
+}
@@ -0,0 +1,199 @@
+package com.promethylhosting.id34;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Daily housekeeping that keeps the database the size of its live data.
+ *
+ * Deleting an idea only marks it deleted, and SQLite never gives freed pages back on its own,
+ * so without this both the rows and the file grow for as long as the app is used. Each run:
+ * - purges tombstones the server has acknowledged (DIRTY_DELETED clear), with their blind
+ *   index tokens; a local delete not yet seen by the server stays until it has been
+ * - drops tblCategoryStats rows that count nothing for a category no longer here, and blind
+ *   index rows left behind by rows that are gone. Category ids in ideas are left alone: a
+ *   category missing here may only be late (a failed or partial sync), and sync wouldn't put
+ *   the ids back; deleteCategoryById clears them when a category really is deleted
+ * - when the device is idle, hands free pages back with incremental_vacuum, a bounded number
+ *   per run
+ *
+ * Runs from an inexact, non-waking daily alarm (MaintenanceReceiver), so it happens alongside
+ * other wakeups, and stops at TIME_BUDGET_MS; whatever is left waits for the next run. The one
+ * unbounded step, converting a database created before auto_vacuum was on with a full VACUUM,
+ * is convertToIncrementalVacuum(), run with the other one-off jobs at app start instead.
+ */
+public class MaintenanceJob {
+
+	static final String ACTION_MAINTAIN = "com.promethylhosting.id34.action.MAINTAIN";
+
+	private static final String LOG_TAG = "id34";
+	private static final String PREF_LAST_RUN = "maintenance_last_run";
+	private static final long INTERVAL_MS = AlarmManager.INTERVAL_DAY;
+	private static final long TIME_BUDGET_MS = 20 * 1000; // well inside a background broadcast's minute
+	private static final int PURGE_CHUNK = 500;           // tombstones per transaction
+	private static final int VACUUM_STEP_PAGES = 128;     // per incremental_vacuum, holding the write lock
+	private static final int VACUUM_BUDGET_PAGES = 4096;  // per run: 16MB at 4K pages
+	private static final long PAUSE_MS = 50;
+	private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+	private static final String IDEAS = SQLCipherAdapter.MYDATABASE_TABLE_IDEA;
+	private static final String CATEGORIES = SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY;
+	private static final String IDEA_KINDS = BlindIndex.KIND_IDEA_TAG + "," + BlindIndex.KIND_IDEA_TRIGRAM + ","
+			+ BlindIndex.KIND_IDEA_CID;
+	private static final String CATEGORY_KINDS = BlindIndex.KIND_CAT_NAME + "," + BlindIndex.KIND_CAT_PREFIX + ","
+			+ BlindIndex.KIND_CAT_TRIGRAM;
+
+	private final Context context;
+	private final SharedPreferences prefs;
+
+	public MaintenanceJob(Context context) {
+		this.context = context.getApplicationContext();
+		prefs = this.context.getSharedPreferences(SQLCipherAdapter.PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/** Set the daily alarm unless it is already set. */
+	public static void schedule(Context context) {
+		Context app = context.getApplicationContext();
+		Intent intent = new Intent(app, MaintenanceReceiver.class).setAction(ACTION_MAINTAIN);
+		if (PendingIntent.getBroadcast(app, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) return;
+		AlarmManager alarms = (AlarmManager) app.getSystemService(Context.ALARM_SERVICE);
+		alarms.setInexactRepeating(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + INTERVAL_MS, INTERVAL_MS,
+				PendingIntent.getBroadcast(app, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT));
+		Log.i(LOG_TAG, "Maintenance alarm set");
+	}
+
+	public boolean isDue() {
+		return System.currentTimeMillis() - prefs.getLong(PREF_LAST_RUN, 0) >= INTERVAL_MS / 2; // inexact alarms drift
+	}
+
+	/**
+	 * One maintenance pass. idle: nobody is using the device, so the orphan sweep over the blind
+	 * index and the vacuum, which hold the write lock longest, may run too.
+	 * @return false if it ran out of time before finishing
+	 */
+	public boolean run(SQLiteDatabase db, boolean idle) {
+		long start = System.currentTimeMillis();
+		long deadline = start + TIME_BUDGET_MS;
+		int purged = purgeTombstones(db, deadline);
+		int orphans = removeOrphans(db, idle);
+		SchemaMigrations.createLiveIndexes(db); // after an OS update brought a newer SQLite
+		int freed = idle ? vacuum(db, deadline) : 0;
+		boolean finished = System.currentTimeMillis() < deadline;
+		if (finished) prefs.edit().putLong(PREF_LAST_RUN, System.currentTimeMillis()).commit();
+		Log.i(LOG_TAG, "Maintenance" + (idle ? " (idle)" : "") + ": " + purged + " tombstones purged, " + orphans
+				+ " orphans removed, " + freed + " pages freed in " + (System.currentTimeMillis() - start) + "ms");
+		return finished;
+	}
+
+	private int purgeTombstones(SQLiteDatabase db, long deadline) {
+		int purged = 0;
+		while (System.currentTimeMillis() < deadline) {
+			String ids = ids(db, "SELECT " + SQLCipherAdapter.KEY_ID + " FROM " + IDEAS + " WHERE "
+					+ SQLCipherAdapter.KEY_DELETED + " = 1 AND (" + SQLCipherAdapter.KEY_DIRTY + " & "
+					+ SQLCipherAdapter.DIRTY_DELETED + ") = 0 LIMIT " + PURGE_CHUNK);
+			if (ids.length() == 0) break;
+			db.beginTransaction();
+			try {
+				db.execSQL("DELETE FROM " + BlindIndex.TABLE + " WHERE ref IN (" + ids + ") AND kind IN (" + IDEA_KINDS + ")");
+				purged += db.delete(IDEAS, SQLCipherAdapter.KEY_ID + " IN (" + ids + ")", null);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		}
+		return purged;
+	}
+
+	private int removeOrphans(SQLiteDatabase db, boolean idle) {
+		String categoryIds = " IN (SELECT " + SQLCipherAdapter.KEY_ID + " FROM " + CATEGORIES + ")";
+		// rows still counting live ideas stay: their category may yet arrive, and the triggers keep them right
+		int removed = execute(db, "DELETE FROM " + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS + " WHERE cid NOT" + categoryIds
+				+ " AND active = 0 AND completed = 0");
+		if (idle) {
+			// every path that removes a row now takes its tokens along; this catches older leftovers
+			// and costs a pass over the index, so it waits for an idle window
+			removed += execute(db, "DELETE FROM " + BlindIndex.TABLE + " WHERE kind IN (" + IDEA_KINDS + ") AND ref NOT IN (SELECT "
+					+ SQLCipherAdapter.KEY_ID + " FROM " + IDEAS + ")");
+			removed += execute(db, "DELETE FROM " + BlindIndex.TABLE + " WHERE kind IN (" + CATEGORY_KINDS + ") AND ref NOT"
+					+ categoryIds);
+		}
+		return removed;
+	}
+
+	private static int execute(SQLiteDatabase db, String sql) {
+		SQLiteStatement statement = db.compileStatement(sql);
+		try {
+			return statement.executeUpdateDelete();
+		} finally {
+			statement.close();
+		}
+	}
+
+	// comma-separated ids returned by sql, "" if none
+	private static String ids(SQLiteDatabase db, String sql) {
+		StringBuilder ids = new StringBuilder();
+		Cursor cursor = db.rawQuery(sql, null);
+		try {
+			while (cursor.moveToNext()) {
+				if (ids.length() > 0) ids.append(',');
+				ids.append(cursor.getLong(0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return ids.toString();
+	}
+
+	/**
+	 * SQLiteHelper asks for incremental auto_vacuum, but a database that already had tables only
+	 * switches over with a full VACUUM: once, rewriting the whole file, for as long as that takes.
+	 * Not for the maintenance broadcast; meant for a background thread that may run long.
+	 * @return true if it converted the database now
+	 */
+	public boolean convertToIncrementalVacuum(SQLiteDatabase db) {
+		if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == AUTO_VACUUM_INCREMENTAL) return false;
+		long start = System.currentTimeMillis();
+		db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+		db.execSQL("VACUUM");
+		Log.i(LOG_TAG, "Database converted to incremental auto_vacuum in " + (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	/**
+	 * Give up to VACUUM_BUDGET_PAGES free pages back to the file system, VACUUM_STEP_PAGES at a
+	 * time with a pause between so writers get the lock. Nothing until the database has been
+	 * converted to incremental auto_vacuum.
+	 */
+	private int vacuum(SQLiteDatabase db, long deadline) {
+		if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) return 0;
+		int freed = 0;
+		while (freed < VACUUM_BUDGET_PAGES && System.currentTimeMillis() < deadline) {
+			long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+			if (free == 0) break;
+			int pages = (int) Math.min(free, Math.min(VACUUM_STEP_PAGES, VACUUM_BUDGET_PAGES - freed));
+			// a row-less pragma that frees a page per step, so walk it rather than execSQL it
+			Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+			try {
+				while (cursor.moveToNext()) { }
+			} finally {
+				cursor.close();
+			}
+			freed += pages;
+			try {
+				Thread.sleep(PAUSE_MS);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return freed;
+	}
+}
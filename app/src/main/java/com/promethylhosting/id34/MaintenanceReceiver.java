@@ -0,0 +1,51 @@
+package com.promethylhosting.id34;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * The daily maintenance alarm, and setting it again after boot or an app update. The database
+ * work runs on its own thread while the broadcast is held open.
+ */
+public class MaintenanceReceiver extends BroadcastReceiver {
+
+	private static final String LOG_TAG = "id34";
+
+	@Override
+	public void onReceive(final Context context, final Intent intent) {
+		if (!MaintenanceJob.ACTION_MAINTAIN.equals(intent.getAction())) {
+			MaintenanceJob.schedule(context);
+			return;
+		}
+		final MaintenanceJob job = new MaintenanceJob(context);
+		if (!job.isDue()) return;
+		final boolean idle = !isInteractive(context);
+		final PendingResult result = goAsync();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				try {
+					SQLCipherAdapter sql = new SQLCipherAdapter(context);
+					sql.runMaintenance(job, idle);
+					sql.close();
+				} catch (Exception e) {
+					Log.e(LOG_TAG, "Maintenance failed: " + e.getMessage());
+					e.printStackTrace();
+				} finally {
+					result.finish();
+				}
+			}
+		}).start();
+	}
+
+	@SuppressWarnings("deprecation")
+	private static boolean isInteractive(Context context) {
+		PowerManager power = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH ? power.isInteractive() : power.isScreenOn();
+	}
+}
@@ -0,0 +1,190 @@
+package com.promethylhosting.id34;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Process-wide performance metrics: counters, gauges and latency histograms, dumped as JSON by
+ * MetricsProvider for as long as the process runs (adb shell dumpsys activity provider
+ * com.promethylhosting.id34/.MetricsProvider).
+ *
+ * Metrics are created once, as the static final fields below or held by their owner (each
+ * PostSaveHooks hook has its own), and recording is a few atomic
+ * operations on primitives: nothing is allocated and nothing is looked up by name on the hot
+ * path. A Histogram is a fixed array of log-scale buckets, two per
+ * power of two, so it takes the same 1KB whether it has seen ten values or ten million, and
+ * a percentile it reports is at least the true value and less than one and a half times it.
+ */
+public final class Metrics {
+
+	private static final List<Metric> registry = new ArrayList<Metric>(); // before the metrics below, which it holds
+
+	// latencies in microseconds
+	public static final Histogram SYNC_DURATION = histogram("sync.duration_us");
+	public static final Counter SYNC_ROWS = counter("sync.rows");
+	public static final Gauge SYNC_ROWS_PER_SEC = gauge("sync.last_rows_per_sec");
+	public static final Counter SYNC_FAILURES = counter("sync.failures");
+	public static final Counter TOGGLES_SENT = counter("toggles.sent");
+	public static final Counter TOGGLES_FAILURES = counter("toggles.failures");
+	public static final Histogram NET_REQUEST = histogram("net.request_us");
+	public static final Counter NET_BYTES_IN = counter("net.bytes_in");
+	public static final Counter NET_FAILURES = counter("net.failures");
+	public static final Histogram QUERY_IDEAS_BY_CAT = histogram("query.queryIdeasByCatName_us");
+	public static final Histogram QUERY_CATS = histogram("query.queryCats_us");
+	public static final Histogram QUERY_CAT_NAMES_BY_PREFIX = histogram("query.queryCatNamesByPrefix_us");
+	public static final Histogram QUERY_SEARCH_IDEAS = histogram("query.searchIdeas_us");
+	public static final Histogram QUERY_SEARCH_CAT_NAMES = histogram("query.searchCatNames_us");
+	public static final Histogram QUERY_MOST_RECENT = histogram("query.getMostRecentIdeaText_us");
+	public static final Histogram SAVE_IDEA = histogram("save.saveIdeaLocal_us");
+	public static final Histogram SAVE_UPDATE = histogram("save.updateIdeaById_us");
+	public static final Histogram WIDGET_REFRESH = histogram("widget.refresh_us");
+
+	private Metrics() {}
+
+	abstract static class Metric {
+		final String name;
+
+		Metric(String name) {
+			this.name = name;
+		}
+
+		abstract Object toJson() throws JSONException;
+	}
+
+	/** A count that only goes up. */
+	public static final class Counter extends Metric {
+		private final AtomicLong value = new AtomicLong();
+
+		Counter(String name) { super(name); }
+
+		public void inc() { value.incrementAndGet(); }
+
+		public void add(long n) { value.addAndGet(n); }
+
+		public long get() { return value.get(); }
+
+		@Override
+		Object toJson() { return value.get(); }
+	}
+
+	/** The latest value of something. */
+	public static final class Gauge extends Metric {
+		private volatile long value;
+
+		Gauge(String name) { super(name); }
+
+		public void set(long v) { value = v; }
+
+		public long get() { return value; }
+
+		@Override
+		Object toJson() { return value; }
+	}
+
+	/** Latencies in microseconds (or any non-negative values), in log-scale buckets. */
+	public static final class Histogram extends Metric {
+		// bucket 0 holds 0; then two per power of two: [2^m, 1.5 * 2^m) and [1.5 * 2^m, 2^(m+1))
+		private static final int BUCKETS = 128;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name) { super(name); }
+
+		public void record(long value) {
+			if (value < 0) value = 0;
+			buckets.incrementAndGet(bucket(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long seen;
+			while (value > (seen = max.get()) && !max.compareAndSet(seen, value)) { }
+		}
+
+		/** Record the microseconds since startNanos, a now() taken before the work. */
+		public void since(long startNanos) {
+			record((System.nanoTime() - startNanos) / 1000);
+		}
+
+		public long count() { return count.get(); }
+
+		/** Upper bound of the bucket holding the p-th percentile (0 < p <= 100), 0 if empty. */
+		public long percentile(double p) {
+			long total = count.get();
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(total * p / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) return Math.min(upperBound(i), max.get());
+			}
+			return max.get();
+		}
+
+		static int bucket(long value) {
+			if (value == 0) return 0;
+			int msb = 63 - Long.numberOfLeadingZeros(value);
+			int half = msb == 0 ? 0 : (int) ((value >>> (msb - 1)) & 1);
+			return 1 + 2 * msb + half;
+		}
+
+		static long upperBound(int bucket) {
+			if (bucket == 0) return 0;
+			int msb = (bucket - 1) / 2;
+			int half = (bucket - 1) % 2;
+			if (msb == 0) return 1;
+			long width = 1L << (msb - 1);
+			return (1L << msb) + half * width + width - 1;
+		}
+
+		@Override
+		Object toJson() throws JSONException {
+			long n = count.get();
+			return new JSONObject()
+					.put("count", n)
+					.put("mean", n == 0 ? 0 : sum.get() / n)
+					.put("p50", percentile(50))
+					.put("p90", percentile(90))
+					.put("p99", percentile(99))
+					.put("max", max.get());
+		}
+	}
+
+	static Counter counter(String name) { return register(new Counter(name)); }
+
+	static Gauge gauge(String name) { return register(new Gauge(name)); }
+
+	static Histogram histogram(String name) { return register(new Histogram(name)); }
+
+	/** A start time for Histogram.since(). */
+	public static long now() { return System.nanoTime(); }
+
+	private static <T extends Metric> T register(T metric) {
+		synchronized (registry) {
+			for (Metric existing : registry) {
+				if (existing.name.equals(metric.name)) throw new IllegalArgumentException("Metric " + metric.name + " registered twice");
+			}
+			registry.add(metric);
+		}
+		return metric;
+	}
+
+	/** Every metric by name; histograms as {count, mean, p50, p90, p99, max} in their unit. */
+	public static String toJson() {
+		JSONObject json = new JSONObject();
+		try {
+			synchronized (registry) {
+				for (Metric metric : registry) json.put(metric.name, metric.toJson());
+			}
+			return json.toString(2);
+		} catch (JSONException e) {
+			return "{\"error\": " + JSONObject.quote(e.getMessage()) + "}";
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package com.promethylhosting.id34;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Where dumpsys reaches Metrics and Tracer. A provider is created with the process and lives as
+ * long as it does, which is exactly as long as the in-memory metrics exist, unlike
+ * ServerInteractionService that stops after every sync. Holds no data; not exported.
+ *
+ *   adb shell dumpsys activity provider com.promethylhosting.id34/.MetricsProvider
+ *   adb shell dumpsys activity provider com.promethylhosting.id34/.MetricsProvider trace
+ *
+ * The first prints every metric as JSON, the second the Tracer buffer as a Chrome trace.
+ */
+public class MetricsProvider extends ContentProvider {
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+		if (args != null && args.length > 0 && "trace".equals(args[0])) writer.println(Tracer.toChromeJson());
+		else writer.println(Metrics.toJson());
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		return null;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return null;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+}
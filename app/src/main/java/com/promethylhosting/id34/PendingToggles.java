@@ -0,0 +1,79 @@
+package com.promethylhosting.id34;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Sends the server the completed and deleted toggles of changes made here. The server only
+ * has per-idea toggle endpoints (Body=!complete&id=, Body=!delete&id=), so a bulk action is
+ * one request per idea, which nobody should wait for: the action commits and shows at once,
+ * and kick() has them sent on one background thread.
+ *
+ * The queue is the row itself, a DIRTY_SEND_ bit next to the change's DIRTY_ bit, so it
+ * outlives the process; undoing a change before its toggle is sent clears the bit again, and
+ * nothing goes out. When the server doesn't answer, the rest wait RETRY_DELAY_MS, doubling up
+ * to MAX_RETRY_DELAY_MS, or the next kick(): every local toggle, the end of a sync and
+ * SQLCipherAdapter.prepare() at launch. The sync that brings a change back clears its DIRTY_
+ * bit (SyncMerge), after which MaintenanceJob purges a deleted idea's tombstone.
+ * Metrics: toggles.sent, toggles.failures (drains that stopped short).
+ */
+public final class PendingToggles {
+
+	private static final String LOG_TAG = "id34";
+	static final long RETRY_DELAY_MS = 30 * 1000;
+	static final long MAX_RETRY_DELAY_MS = 60 * 60 * 1000;
+
+	private static final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+	private static ScheduledFuture<?> retry; // a drain waiting out its delay
+	private static long delayMs = RETRY_DELAY_MS;
+
+	private PendingToggles() {}
+
+	/** Send what is queued now, rather than at the next retry. Returns at once. */
+	public static synchronized void kick(Context context) {
+		if (retry != null) retry.cancel(false);
+		retry = null;
+		schedule(context.getApplicationContext(), 0);
+	}
+
+	private static void schedule(final Context context, long delay) {
+		ScheduledFuture<?> drain = worker.schedule(new Runnable() {
+			@Override
+			public void run() {
+				drain(context);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		if (delay > 0) retry = drain;
+	}
+
+	private static void drain(Context context) {
+		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+		Tracer.Span span = Tracer.begin("toggles.send");
+		boolean sent = false;
+		SQLCipherAdapter sql = new SQLCipherAdapter(context);
+		try {
+			sent = sql.sendQueuedToggles();
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			sql.close();
+			span.end();
+		}
+		synchronized (PendingToggles.class) {
+			if (sent) {
+				delayMs = RETRY_DELAY_MS;
+				return;
+			}
+			Metrics.TOGGLES_FAILURES.inc();
+			if (retry != null) retry.cancel(false); // one retry at a time
+			Log.w(LOG_TAG, "Queued toggles not all sent, trying again in " + (delayMs / 1000) + "s");
+			schedule(context, delayMs);
+			delayMs = Math.min(delayMs * 2, MAX_RETRY_DELAY_MS);
+		}
+	}
+}
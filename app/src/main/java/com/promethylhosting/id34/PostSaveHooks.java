@@ -0,0 +1,162 @@
+package com.promethylhosting.id34;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * Work that follows saving an idea but that the user shouldn't wait for. saveIdeaLocal() and
+ * updateIdeaById() return once their transaction commits; saved() then queues every registered
+ * hook that wants the idea, and they run in order on one background thread.
+ *
+ * A hook that throws is tried again after RETRY_DELAY_MS, doubling each time, until it has
+ * been tried its number of attempts; hooks must therefore be safe to run twice. Each hook has
+ * its own metrics, hook.NAME.run_us (successful runs), hook.NAME.failures (attempts that threw)
+ * and hook.NAME.given_up, and a Tracer span per attempt.
+ *
+ * Registered from the start: the widget, the tag use counts behind hashtag suggestions
+ * (HashtagIndex) and outbound posts of #twitter/#tweet ideas. The search index (BlindIndex) is
+ * not a hook: it is written in the save's own transaction, so search and the category lists
+ * find an idea as soon as it is committed.
+ */
+public final class PostSaveHooks {
+
+	private static final String LOG_TAG = "id34";
+	static final long RETRY_DELAY_MS = 2000;
+
+	/** The saved idea, as committed. */
+	public static final class Saved {
+		public final long ideaId;
+		public final String text;
+		public final String previousText; // the text it replaced; null for a new idea
+		public final boolean edited; // an existing idea's new text, not a new idea
+		public final long savedAt;
+
+		Saved(long ideaId, String text, String previousText) {
+			this.ideaId = ideaId;
+			this.text = text;
+			this.previousText = previousText;
+			this.edited = previousText != null;
+			this.savedAt = System.currentTimeMillis();
+		}
+	}
+
+	/** One thing to do after a save. run() may be called again for the same save if it threw. */
+	public abstract static class Hook {
+		public final String name;
+		final int attempts;
+		final Metrics.Histogram runs;
+		final Metrics.Counter failures;
+		final Metrics.Counter givenUp;
+
+		protected Hook(String name, int attempts) {
+			this.name = name;
+			this.attempts = Math.max(1, attempts);
+			this.runs = Metrics.histogram("hook." + name + ".run_us");
+			this.failures = Metrics.counter("hook." + name + ".failures");
+			this.givenUp = Metrics.counter("hook." + name + ".given_up");
+		}
+
+		/** Whether there is anything to do for this save; all of them by default. */
+		protected boolean wants(Saved saved) { return true; }
+
+		protected abstract void run(Context context, Saved saved) throws Exception;
+	}
+
+	private static final List<Hook> hooks = new CopyOnWriteArrayList<Hook>();
+	private static final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
+
+	static {
+		register(new Hook("widget", 3) {
+			@Override
+			protected void run(Context context, Saved saved) {
+				LatestIdeaWidget.updateAllWidgets(context);
+			}
+		});
+		register(new Hook("tag_stats", 1) {
+			@Override
+			protected void run(Context context, Saved saved) {
+				// a use is a tag put on an idea: an edit counts only the tags it added
+				Set<String> had = new HashSet<String>();
+				if (saved.previousText != null) {
+					for (String tag : BlindIndex.extractTags(saved.previousText)) had.add(tag.toLowerCase(Locale.US));
+				}
+				for (String tag : BlindIndex.extractTags(saved.text)) {
+					if (!had.contains(tag.toLowerCase(Locale.US))) HashtagIndex.get().used(tag, saved.savedAt);
+				}
+			}
+		});
+		register(new Hook("outbound_post", 5) {
+			@Override
+			protected boolean wants(Saved saved) {
+				return saved.text.contains("#twitter") || saved.text.contains("#tweet");
+			}
+
+			@Override
+			protected void run(final Context context, Saved saved) {
+				// Twitter functionality disabled for basic APK build
+				Log.i(LOG_TAG, "Twitter posting not available in basic build: " + saved.text);
+				new Handler(Looper.getMainLooper()).post(new Runnable() {
+					@Override
+					public void run() {
+						Toast.makeText(context, "Twitter posting not available in basic build", Toast.LENGTH_LONG).show();
+					}
+				});
+			}
+		});
+	}
+
+	private PostSaveHooks() {}
+
+	/** Add a hook, run after those registered before it. */
+	public static void register(Hook hook) {
+		hooks.add(hook);
+	}
+
+	/** An idea was committed, new or replacing previousText: queue the hooks that want it. Returns at once. */
+	public static void saved(Context context, long ideaId, String text, String previousText) {
+		Context app = context.getApplicationContext();
+		Saved saved = new Saved(ideaId, text, previousText);
+		for (Hook hook : hooks) {
+			if (hook.wants(saved)) submit(app, hook, saved, 1, 0);
+		}
+	}
+
+	private static void submit(final Context context, final Hook hook, final Saved saved, final int attempt, long delayMs) {
+		worker.schedule(new Runnable() {
+			@Override
+			public void run() {
+				android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+				long start = Metrics.now();
+				Tracer.Span span = Tracer.begin("hook." + hook.name);
+				try {
+					hook.run(context, saved);
+					hook.runs.since(start);
+				} catch (Exception e) {
+					hook.failures.inc();
+					if (attempt < hook.attempts) {
+						Log.w(LOG_TAG, "Hook " + hook.name + " failed for idea " + saved.ideaId + " (attempt " + attempt + "), retrying: " + e.getMessage());
+						submit(context, hook, saved, attempt + 1, RETRY_DELAY_MS << (attempt - 1));
+					} else {
+						hook.givenUp.inc();
+						Log.e(LOG_TAG, "Hook " + hook.name + " gave up on idea " + saved.ideaId + " after " + attempt + " attempts: " + e.getMessage());
+						e.printStackTrace();
+					}
+				} finally {
+					span.end();
+				}
+			}
+		}, delayMs, TimeUnit.MILLISECONDS);
+	}
+}
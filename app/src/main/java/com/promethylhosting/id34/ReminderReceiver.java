@@ -0,0 +1,39 @@
+package com.promethylhosting.id34;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * The reminder alarm going off, and the broadcasts after which it has to be set again (boot,
+ * app update). The database work runs on its own thread while the broadcast is held open.
+ */
+public class ReminderReceiver extends BroadcastReceiver {
+
+	private static final String LOG_TAG = "id34";
+
+	@Override
+	public void onReceive(final Context context, final Intent intent) {
+		final PendingResult result = goAsync();
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SQLCipherAdapter sql = new SQLCipherAdapter(context);
+					if (ReminderScheduler.ACTION_DUE.equals(intent.getAction())) {
+						sql.fireDueReminders();
+					} else {
+						sql.rescheduleReminders(true);
+					}
+					sql.close();
+				} catch (Exception e) {
+					Log.e(LOG_TAG, "Reminder " + intent.getAction() + " failed: " + e.getMessage());
+					e.printStackTrace();
+				} finally {
+					result.finish();
+				}
+			}
+		}).start();
+	}
+}
@@ -0,0 +1,164 @@
+package com.promethylhosting.id34;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.app.AlarmManager;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Reminders from tblIdea.reminder, driven by a single alarm.
+ *
+ * Only the earliest pending reminder is ever armed: reschedule() finds it with one probe of the
+ * reminder index and sets (or replaces, or cancels) the one alarm, so the number of ideas with
+ * reminders doesn't matter to AlarmManager or to battery. When the alarm goes off, fire() posts
+ * everything due up to BATCH_WINDOW ahead as one notification and arms the next.
+ *
+ * Progress is a high-water mark, fired_through: reminders at or before it have been shown.
+ * Setting a reminder (sync, import) only needs reschedule(); moving one to before the mark
+ * doesn't re-show it. The mark starts at the first run, so old reminders on an existing
+ * database don't all go off at once.
+ */
+public class ReminderScheduler {
+
+	static final String ACTION_DUE = "com.promethylhosting.id34.action.REMINDER_DUE";
+
+	private static final String LOG_TAG = "id34";
+	private static final String PREF_FIRED_THROUGH = "reminders_fired_through";
+	private static final String PREF_ARMED_FOR = "reminders_armed_for";
+	private static final long BATCH_WINDOW = 60 * 1000;  // due within a minute of each other: one notification
+	private static final int NOTIFICATION_LINES = 5;
+	private static final int NOTIFICATION_ID = 3401;
+	private static final String CHANNEL_ID = "reminders";
+
+	private static final String PENDING = SQLCipherAdapter.KEY_REMINDER + " > ? AND "
+			+ SQLCipherAdapter.KEY_DELETED + " = 0 AND " + SQLCipherAdapter.KEY_COMPLETED + " = 0";
+
+	private final Context context;
+	private final SharedPreferences prefs;
+
+	public ReminderScheduler(Context context) {
+		this.context = context.getApplicationContext();
+		prefs = this.context.getSharedPreferences(SQLCipherAdapter.PREFS_NAME, Context.MODE_PRIVATE);
+	}
+
+	/**
+	 * Arm the alarm for the earliest pending reminder, or cancel it if there is none.
+	 * @return the time armed, TimeFormat.NONE if none
+	 */
+	public long reschedule(SQLiteDatabase db) {
+		long next = nextDue(db, firedThrough());
+		if (next == prefs.getLong(PREF_ARMED_FOR, TimeFormat.NONE)) return next; // already armed for it
+
+		AlarmManager alarms = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+		PendingIntent due = PendingIntent.getBroadcast(context, 0,
+				new Intent(context, ReminderReceiver.class).setAction(ACTION_DUE), PendingIntent.FLAG_UPDATE_CURRENT);
+		if (next == TimeFormat.NONE) {
+			alarms.cancel(due);
+		} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+			alarms.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, next, due);
+		} else {
+			alarms.setExact(AlarmManager.RTC_WAKEUP, next, due);
+		}
+		prefs.edit().putLong(PREF_ARMED_FOR, next).commit();
+		Log.i(LOG_TAG, "Reminder alarm " + (next == TimeFormat.NONE ? "cancelled" : "armed for " + TimeFormat.toWire(next)));
+		return next;
+	}
+
+	/** The armed alarm is gone (reboot, app update); the next reschedule() sets it again. */
+	public void forgetAlarm() {
+		prefs.edit().remove(PREF_ARMED_FOR).commit();
+	}
+
+	/**
+	 * Show every reminder due by now (and within BATCH_WINDOW after), then arm the next one.
+	 * @return reminders shown
+	 */
+	public int fire(SQLiteDatabase db) {
+		long from = firedThrough();
+		long through = System.currentTimeMillis() + BATCH_WINDOW;
+		int due = 0;
+		List<String> lines = new ArrayList<String>(NOTIFICATION_LINES);
+		Cursor cursor = db.query(SQLCipherAdapter.MYDATABASE_TABLE_IDEA, new String[]{SQLCipherAdapter.KEY_NAME},
+				PENDING + " AND " + SQLCipherAdapter.KEY_REMINDER + " <= ?",
+				new String[]{String.valueOf(from), String.valueOf(through)}, null, null, SQLCipherAdapter.KEY_REMINDER);
+		try {
+			while (cursor.moveToNext()) {
+				if (due++ < NOTIFICATION_LINES) lines.add(SQLCipherAdapter.readText(cursor, 0)); // the rest are only counted
+			}
+		} finally {
+			cursor.close();
+		}
+		if (due > 0) notify(due, lines);
+		prefs.edit().putLong(PREF_FIRED_THROUGH, through).remove(PREF_ARMED_FOR).commit();
+		reschedule(db);
+		return due;
+	}
+
+	private long firedThrough() {
+		long through = prefs.getLong(PREF_FIRED_THROUGH, TimeFormat.NONE);
+		if (through == TimeFormat.NONE) {
+			through = System.currentTimeMillis();
+			prefs.edit().putLong(PREF_FIRED_THROUGH, through).commit();
+		}
+		return through;
+	}
+
+	// one probe of idx_idea_pending_reminder; on SQLite before 3.8 idx_idea_reminder, walked from the
+	// mark past any deleted/completed ones on the way
+	private static long nextDue(SQLiteDatabase db, long after) {
+		SQLiteStatement next = db.compileStatement("SELECT " + SQLCipherAdapter.KEY_REMINDER + " FROM "
+				+ SQLCipherAdapter.MYDATABASE_TABLE_IDEA + " WHERE " + PENDING + " ORDER BY " + SQLCipherAdapter.KEY_REMINDER + " LIMIT 1");
+		try {
+			next.bindLong(1, after);
+			return next.simpleQueryForLong();
+		} catch (SQLiteDoneException e) {
+			return TimeFormat.NONE;
+		} finally {
+			next.close();
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private void notify(int due, List<String> lines) {
+		NotificationManager notifications = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+		Notification.Builder builder;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+			notifications.createNotificationChannel(new NotificationChannel(CHANNEL_ID,
+					context.getString(R.string.reminders_channel), NotificationManager.IMPORTANCE_DEFAULT));
+			builder = new Notification.Builder(context, CHANNEL_ID);
+		} else {
+			builder = new Notification.Builder(context).setDefaults(Notification.DEFAULT_ALL);
+		}
+		Intent open = new Intent(context, IdeaListActivity.class).setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+		builder.setSmallIcon(R.drawable.ic_launcher)
+				.setAutoCancel(true)
+				.setWhen(System.currentTimeMillis())
+				.setContentIntent(PendingIntent.getActivity(context, 0, open, PendingIntent.FLAG_UPDATE_CURRENT));
+
+		if (due == 1) {
+			builder.setContentTitle(context.getString(R.string.reminder_one)).setContentText(lines.get(0))
+					.setStyle(new Notification.BigTextStyle().bigText(lines.get(0)));
+		} else {
+			String title = context.getString(R.string.reminders_many, due);
+			Notification.InboxStyle inbox = new Notification.InboxStyle().setBigContentTitle(title);
+			for (String line : lines) inbox.addLine(line);
+			if (due > lines.size()) inbox.setSummaryText(context.getString(R.string.reminders_more, due - lines.size()));
+			builder.setContentTitle(title).setContentText(lines.get(0)).setNumber(due).setStyle(inbox);
+		}
+		// one id: a batch replaces the last one rather than stacking up
+		notifications.notify(NOTIFICATION_ID, builder.build());
+	}
+}
@@ -8,12 +8,18 @@ import org.json.JSONObject;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import com.promethylhosting.id34.iserver.BinarySyncDecoder;
 import com.promethylhosting.id34.iserver.Iserver;
 
 public class SQLCipherAdapter {
@@ -22,12 +28,13 @@ public class SQLCipherAdapter {
 	 public static final String MYDATABASE_TABLE_CATEGORY = "tblCategory";
 	 public static final String MYDATABASE_TABLE_IDEA = "tblIdea";
 	 public static final String MYDATABASE_TABLE_RESPONSES = "tblResponses"; // needed?
-	 public static final int MYDATABASE_VERSION = 2;
+	 public static final String MYDATABASE_TABLE_CATEGORY_STATS = "tblCategoryStats"; // per-category idea counts, kept by triggers
+	 public static final int MYDATABASE_VERSION = 11; // add a SchemaMigrations step with every bump
 	 public static final String KEY_ID = "id";
 	 public static final String KEY_CAT = "cat";
-	 public static final String KEY_CREATED = "created";
+	 public static final String KEY_CREATED = "created";   // timestamps are epoch ms (schema v5), see TimeFormat
 	 public static final String KEY_UPDATED = "updated";
-	 public static final String KEY_REMINDER = "reminder";
+	 public static final String KEY_REMINDER = "reminder"; // TimeFormat.NONE when not set
 	 public static final String KEY_UID = "uid";
 	 public static final String KEY_DELETED = "deleted";
 	 public static final String KEY_COMPLETED = "completed";
@@ -38,18 +45,40 @@ public class SQLCipherAdapter {
 	 public static final String KEY_CID3 = "cid3";
 	 public static final String KEY_CID4 = "cid4";
 	 public static final String KEY_NUM = "num";
+	 public static final String KEY_KEY_VER = "key_ver"; // FieldCipher key version of the row's text, 0 = not encrypted
+	 public static final String KEY_DIRTY = "dirty";           // DIRTY_* bits: fields edited here and not yet seen back from the server
+	 public static final String KEY_SYNCED = "synced";         // server `updated` of the version the row is based on, 0 if local
+	 public static final String KEY_TEXT_TOKEN = "text_token"; // BlindIndex.fingerprint of the text, so sync can compare without decrypting
+	 public static final int DIRTY_TEXT = 1;      // name/cat, and the cids that follow from its hashtags
+	 public static final int DIRTY_COMPLETED = 2;
+	 public static final int DIRTY_DELETED = 4;
+	 // the server toggle for a DIRTY_COMPLETED/DIRTY_DELETED change, queued and not yet sent (PendingToggles)
+	 public static final int DIRTY_SEND_COMPLETED = 8;
+	 public static final int DIRTY_SEND_DELETED = 16;
 	 private static final String LOG_TAG = "id34";
+	 static final String PREFS_NAME = "com.promethylhosting.id34";
 	 
-	 // drop tables to upgrade.;)
-	 private static final String SCRIPT_DROP_ALL_TABLES = "drop `tblCategory`; drop `tblIdea`; drop `tblResponse`\n";
+	 // only for databases too old for SchemaMigrations; one statement each, execSQL runs just the first
+	 private static final String[] SCRIPT_DROP_ALL_TABLES = {
+	  "DROP TABLE IF EXISTS `tblCategory`",
+	  "DROP TABLE IF EXISTS `tblIdea`",
+	  "DROP TABLE IF EXISTS `tblResponses`",
+	  "DROP TABLE IF EXISTS `" + IdeaTextCodec.TABLE_DICT + "`",
+	  "DROP TABLE IF EXISTS `" + BlindIndex.TABLE + "`",
+	  "DROP TABLE IF EXISTS `" + MYDATABASE_TABLE_CATEGORY_STATS + "`",
+	  "DROP TABLE IF EXISTS `" + DatabaseState.TABLE + "`",
+	 };
 	 //create table MY_DATABASE (ID integer primary key, Content text not null);
+	 // The v2 base schema; SchemaMigrations takes it from there (the timestamp defaults are v2's
+	 // text, every write supplies epoch ms since v5)
 	 private static final String SCRIPT_CREATE_DATABASE_1 =
 	  "CREATE TABLE `tblCategory` (\n" + 
 	  "  `id` unsigned int(8) PRIMARY KEY NOT NULL,\n" + 
 	  "  `uid` unsigned int(8) NOT NULL,\n" +
 	  "  `updated` timestamp NOT NULL default '1970-01-01 06:00:00',\n" +
 	  "  `num` unsigned int(8) NOT NULL,\n" + 
-	  "  `cat` varchar(57) NOT NULL\n" + 
+	  "  `cat` varchar(57) NOT NULL,\n" + 
+	  "  `key_ver` INTEGER NOT NULL default 0\n" + 
 	  //"  KEY `cat` (`cat`,`num`)\n" + 
 	  ") ;\n";
 	 private static final String SCRIPT_CREATE_DATABASE_2 =
@@ -67,7 +96,8 @@ public class SQLCipherAdapter {
 	  "  `cid3` unsigned int(8) NOT NULL,\n" + 
 	  "  `cid4` unsigned int(8) NOT NULL,\n" + 
 	  "  `deleted` tinyint(1) NOT NULL default '0', \n" +
-	  "  `completed` tinyint(1) NOT NULL default '0' \n" + 
+	  "  `completed` tinyint(1) NOT NULL default '0', \n" + 
+	  "  `key_ver` INTEGER NOT NULL default 0\n" + 
 	  //"  KEY `cid0` (`cid0`,`cid1`,`cid2`,`cid3`,`cid4`)\n" + // NO INDEXES!!!
 	  "); \n" ;
 	 
@@ -77,13 +107,32 @@ public class SQLCipherAdapter {
 	  "  `msg` varchar(25) NOT NULL\n" + 
 	  ");\n" ;
 	 
+	 // One helper and connection per process, shared by every adapter. Each adapter holds at most
+	 // one reference from openToRead/openToWrite until close(); the last close() closes the database.
 	 private static SQLiteHelper sqLiteHelper;
 	 private static SQLiteDatabase sqLiteDatabase;
+	 private static StatementCache statements;
+	 private static int openCount = 0;
+	 private static final int STATEMENT_CACHE_SIZE = 16;
+	 // Every operation on the shared connection holds this shared (so does a reader of a cursor one
+	 // returned, see acquire()); replaceDatabaseFile holds it exclusively. A swap so never closes the
+	 // connection under a query, and nothing still holds the old one after it.
+	 private static final java.util.concurrent.locks.ReentrantReadWriteLock connectionLock =
+			 new java.util.concurrent.locks.ReentrantReadWriteLock();
+	 private static final long SWAP_WAIT_MS = 5000;
+	 private static final long SWAP_POLL_MS = 20;
 
 	 private static Context context;
+	 private static boolean bUpgradeBackupChecked = false; // guarded by upgradeBackupLock
+	 private static final Object upgradeBackupLock = new Object();
+	 private boolean bOpen = false;
 	 
 	 public SQLCipherAdapter(Context c){
 	  context = c;
+	  FieldCipher.init(c);
+	  BlindIndex.init(c);
+	  MainThreadIo.init(c);
+	  SlowQueryLog.init(c);
 	  
 	    Thread iserverinit = new Thread() {
 	        @Override
@@ -100,31 +149,309 @@ public class SQLCipherAdapter {
 	 }
 	 
 	 public SQLCipherAdapter openToRead() throws android.database.SQLException {
-	  sqLiteHelper = new SQLiteHelper(context, MYDATABASE_NAME, null, MYDATABASE_VERSION);
-	  sqLiteDatabase = sqLiteHelper.getReadableDatabase();
-	  return this; 
+	  return open(); // the shared connection is writable; readable-only would only differ on a full disk
 	 }
 	 
 	 public SQLCipherAdapter openToWrite() throws android.database.SQLException {
-	  sqLiteHelper = new SQLiteHelper(context, MYDATABASE_NAME, null, MYDATABASE_VERSION);
-	  sqLiteDatabase = sqLiteHelper.getWritableDatabase();
+	  return open();
+	 }
+	 
+	 /**
+	  * Take the pre-upgrade backup and run any schema upgrade now, on the calling (worker) thread,
+	  * so the first open on the main thread finds the database ready. Splash calls it while it shows.
+	  */
+	 public static void prepare(Context c) {
+	  SQLCipherAdapter sql = new SQLCipherAdapter(c);
+	  boolean unreadable = false;
+	  try {
+		  sql.openToWrite();
+	  } catch (android.database.sqlite.SQLiteDatabaseCorruptException e) {
+		  Log.e(LOG_TAG, "Database corrupt on open: " + e.getMessage());
+		  unreadable = true;
+	  } finally {
+		  sql.close();
+	  }
+	  if (unreadable || c.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getBoolean(PREF_DB_CORRUPT, false)) {
+		  recoverFromCorruption(c, unreadable);
+	  }
+	  PendingToggles.kick(c); // toggles a previous run left queued
+	 }
+	 
+	 private static final String PREF_DB_CORRUPT = "db_corrupt";
+	 
+	 // Go back to the latest backup; the sync after it fetches what the server has had since. With
+	 // no backup, or none that restores, a file that won't open is deleted like Android's default
+	 // handler does, and the sync refills it; one that still opens is kept and tried again next launch.
+	 private static void recoverFromCorruption(Context c, boolean unreadable) {
+	  SharedPreferences prefs = c.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	  int seq = new BackupEngine(c, MYDATABASE_NAME).lastSeq();
+	  SQLCipherAdapter sql = new SQLCipherAdapter(c);
+	  try {
+		  if (seq > 0 && sql.restoreBackup(seq)) {
+			  prefs.edit().remove(PREF_DB_CORRUPT).commit();
+			  return;
+		  }
+	  } finally {
+		  sql.close();
+	  }
+	  if (!unreadable) return;
+	  Log.e(LOG_TAG, "No backup to restore, starting over with an empty database");
+	  synchronized (SQLCipherAdapter.class) {
+		  c.deleteDatabase(MYDATABASE_NAME);
+		  forgetReplacedFile(true);
+	  }
+	  prefs.edit().remove(PREF_DB_CORRUPT).remove(PREF_LAST_SYNC).commit();
+	 }
+	 
+	 private SQLCipherAdapter open() {
+	  backupBeforeUpgradeOnce();
+	  synchronized (SQLCipherAdapter.class) {
+	   if (!bOpen) {
+		   bOpen = true;
+		   openCount++;
+	   }
+	   if (sqLiteDatabase == null || !sqLiteDatabase.isOpen()) {
+		   long io = MainThreadIo.begin();
+		   try {
+			   openDatabase();
+		   } finally {
+			   MainThreadIo.end(io, MainThreadIo.SQL, "open " + MYDATABASE_NAME);
+		   }
+	   }
+	  }
 	  return this; 
 	 }
 	 
 	 public void close(){
-	  sqLiteHelper.close();
+	  synchronized (SQLCipherAdapter.class) {
+	   if (!bOpen) return;
+	   bOpen = false;
+	   if (--openCount == 0) closeDatabase();
+	  }
+	 }
+
+	 /**
+	  * Keep the connection from being swapped out (a restore, the encrypted copy cutover) until
+	  * release(): while reading a cursor queryIdeasByCatName returned, say. Release in a finally.
+	  */
+	 public void acquire() {
+	  connectionLock.readLock().lock();
+	 }
+
+	 public void release() {
+	  connectionLock.readLock().unlock();
+	 }
+
+	 private static void openDatabase() {
+	  if (sqLiteHelper == null) {
+		  // cursors time their queries for SlowQueryLog, and in debug builds every fill for MainThreadIo
+		  sqLiteHelper = new SQLiteHelper(context.getApplicationContext(), MYDATABASE_NAME,
+				  MainThreadIo.cursorFactory(), MYDATABASE_VERSION);
+	  }
+	  sqLiteDatabase = sqLiteHelper.getWritableDatabase();
+	  statements = new StatementCache(sqLiteDatabase, STATEMENT_CACHE_SIZE);
+	 }
+	 
+	 private static void closeDatabase() {
+	  if (statements != null) statements.close();
+	  if (sqLiteHelper != null) sqLiteHelper.close();
+	 }
+	 
+	 /** Cached statements on the shared connection, reopened if it was closed under this adapter. */
+	 private StatementCache statements() {
+	  if (sqLiteDatabase == null || !sqLiteDatabase.isOpen()) open();
+	  return statements;
+	 }
+	 
+	 private static void replaceDatabaseFile(java.io.File replacement) throws java.io.IOException {
+		 replaceDatabaseFile(replacement, null);
+	 }
+	 
+	 // Swap in a new database file under every open adapter, once the operations in flight on the
+	 // shared connection are done. SQLiteOpenHelper.close() checkpoints the WAL into the old file,
+	 // which is then replaced in a single rename. The class lock keeps open() from reaching the old
+	 // file in between, so a migration's cutover() there sees its last write.
+	 private static void replaceDatabaseFile(java.io.File replacement, DatabaseMigrationJob migration) throws java.io.IOException {
+	  if (connectionLock.getReadHoldCount() > 0) throw new IllegalStateException("Database file swap from inside an operation on it");
+	  lockForSwap();
+	  try {
+		  synchronized (SQLCipherAdapter.class) {
+			  java.io.File dbFile = context.getDatabasePath(MYDATABASE_NAME);
+			  closeDatabase();
+			  try {
+				  if (migration != null) migration.cutover(dbFile);
+				  new java.io.File(dbFile.getPath() + "-wal").delete();
+				  new java.io.File(dbFile.getPath() + "-shm").delete();
+				  if (!replacement.renameTo(dbFile)) throw new java.io.IOException("Cannot replace " + dbFile);
+				  forgetReplacedFile(migration == null);
+			  } finally {
+				  if (openCount > 0) openDatabase(); // the new file, or the old one if that failed
+			  }
+		  }
+	  } finally {
+		  connectionLock.writeLock().unlock();
+	  }
+	 }
+
+	 // Drop what was read from the old file, before openDatabase() reads the new one (the codec's
+	 // dictionaries come back in onOpen, the rest on first use). A restored file may predate the
+	 // encrypted copy: one begun from the old file is of no use, the next run starts over.
+	 private static void forgetReplacedFile(boolean restored) {
+	  IdeaTextCodec.get().reset();
+	  HashtagIndex.get().reset();
+	  CategoryDetailLoader.get().invalidate();
+	  blindIndexBuilt = null;
+	  catNames = new java.util.HashMap<Long, Object[]>();
+	  if (restored) new DatabaseMigrationJob(context).abandon();
+	 }
+
+	 // Wait for the operations in flight to finish. tryLock() doesn't queue, so those starting
+	 // meanwhile (the UI's) aren't held up behind the swap; one still running after SWAP_WAIT_MS
+	 // (a sync, a key rotation) makes the swap fail instead, for its caller to retry later.
+	 private static void lockForSwap() throws java.io.IOException {
+	  long deadline = System.currentTimeMillis() + SWAP_WAIT_MS;
+	  while (!connectionLock.writeLock().tryLock()) {
+		  if (System.currentTimeMillis() > deadline) throw new java.io.IOException("Database busy, file not replaced");
+		  try {
+			  Thread.sleep(SWAP_POLL_MS);
+		  } catch (InterruptedException e) {
+			  Thread.currentThread().interrupt();
+			  throw new java.io.InterruptedIOException("Database file swap interrupted");
+		  }
+	  }
+	 }
+	 
+	 // The helper may be about to change the schema: take a (usually small, incremental) backup
+	 // first. Copying can take seconds, so it is never done on the main thread; there only the
+	 // version in the file header is read. On a launch prepare() has taken it already, from Splash's
+	 // worker; a main-thread open that gets there first upgrades without one, and says so.
+	 private static void backupBeforeUpgradeOnce() {
+		 synchronized (upgradeBackupLock) {
+			 if (bUpgradeBackupChecked) return;
+			 bUpgradeBackupChecked = true;
+			 try {
+				 BackupEngine backups = new BackupEngine(context, MYDATABASE_NAME);
+				 if (!backups.mayNeedUpgrade(MYDATABASE_VERSION)) return;
+				 if (android.os.Looper.myLooper() == android.os.Looper.getMainLooper()) {
+					 Log.w(LOG_TAG, "Schema upgrade reached on the main thread before prepare(), no pre-upgrade backup");
+					 return;
+				 }
+				 backups.backupBeforeUpgrade(MYDATABASE_VERSION);
+			 } catch (Exception e) {
+				 Log.e(LOG_TAG, "Pre-upgrade backup failed: " + e.getMessage());
+				 e.printStackTrace();
+			 }
+		 }
+	 }
+	 
+	 private static final String PREF_LAST_BACKUP = "last_backup_at";
+	 private static final long BACKUP_INTERVAL_MS = 24L * 60 * 60 * 1000;
+	 
+	 /** Take the daily incremental backup if it is due. Meant for a background thread. */
+	 public boolean backupIfDue() {
+		 android.content.SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		 if (System.currentTimeMillis() - prefs.getLong(PREF_LAST_BACKUP, 0) < BACKUP_INTERVAL_MS) return false;
+		 if (prefs.getBoolean(PREF_DB_CORRUPT, false)) return false; // a delta of the bad pages would spoil the chain
+		 connectionLock.readLock().lock();
+		 try {
+			 if (new BackupEngine(context, MYDATABASE_NAME).backup("daily") == null) return false;
+			 prefs.edit().putLong(PREF_LAST_BACKUP, System.currentTimeMillis()).commit();
+			 return true;
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Backup failed: " + e.getMessage());
+			 e.printStackTrace();
+			 return false;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
+	 
+	 /**
+	  * Replace the database with backup seq. The backup is rebuilt and checked in a side file
+	  * first, so a bad chain leaves the current database untouched. prepare() calls it after
+	  * corruption; close() the adapter after, like any other call. Not from inside acquire().
+	  */
+	 public boolean restoreBackup(int seq) {
+		 java.io.File dbFile = context.getDatabasePath(MYDATABASE_NAME);
+		 java.io.File restored = new java.io.File(dbFile.getPath() + ".restore");
+		 try {
+			 new BackupEngine(context, MYDATABASE_NAME).restore(seq, restored);
+			 boolean hadTags = HashtagIndex.get().isLoaded();
+			 replaceDatabaseFile(restored);
+			 Log.i(LOG_TAG, "Database restored from backup #" + seq);
+			 // the server has had changes since the backup: the next sync fetches everything again
+			 context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().remove(PREF_LAST_SYNC).commit();
+			 rescheduleReminders(true); // the alarm was for the old file's reminders
+			 if (hadTags) {
+				 openToRead();
+				 loadHashtagIndexIfNeeded();
+			 }
+			 return true;
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Restore failed: " + e.getMessage());
+			 e.printStackTrace();
+			 restored.delete();
+			 return false;
+		 }
+	 }
+	
+	 /**
+	  * Move a database still holding plaintext rows into a freshly written, fully encrypted copy
+	  * (see DatabaseMigrationJob), then swap it in with one rename. Until then the old file stays
+	  * in use; an interrupted copy resumes on the next call. The database is closed from the
+	  * job's cutover to the rename, so opens wait out that (short) step.
+	  */
+	 public boolean migrateToEncryptedCopy(DatabaseMigrationJob job) {
+		 try {
+			 connectionLock.readLock().lock();
+			 try {
+				 openToWrite();
+				 if (!job.isMigrationNeeded(sqLiteDatabase)) return true;
+				 if (!job.run(sqLiteDatabase)) return false;
+			 } finally {
+				 connectionLock.readLock().unlock(); // the swap waits for every holder, this thread too
+			 }
+			 replaceDatabaseFile(job.getCopyFile(), job); // cutover() copies what was written since run()
+			 job.markDone();
+			 Log.i(LOG_TAG, "Database migrated to encrypted copy");
+			 return true;
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Encrypted copy migration failed: " + e.getMessage());
+			 e.printStackTrace();
+			 return false;
+		 }
 	 }
 	
 	 public String getCatIdFromCatName(String catname) {
 		 String strRetVal = "-1";
+		  connectionLock.readLock().lock();
 		  try {
-			Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, new String[]{KEY_ID}, 
+			  // Names may be encrypted: probe the blind index, then confirm on the (few) candidates.
+			  // The token ignores case but the match doesn't: #Work and #work are two categories.
+			  Cursor cursor = sqLiteDatabase.rawQuery("SELECT c." + KEY_ID + ", c." + KEY_CAT + " FROM " + MYDATABASE_TABLE_CATEGORY + " c JOIN "
+					  + BlindIndex.TABLE + " b ON b.ref = c." + KEY_ID + " WHERE b.token = ? AND b.kind = " + BlindIndex.KIND_CAT_NAME,
+					  new String[]{String.valueOf(BlindIndex.token(BlindIndex.KIND_CAT_NAME, catname))});
+			  try {
+				  while (cursor.moveToNext()) {
+					  if (catname.equals(readText(cursor, 1))) return cursor.getString(0);
+				  }
+			  } finally {
+				  cursor.close();
+			  }
+			  
+			  // rows written before the index existed
+			  cursor = sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, new String[]{KEY_ID}, 
 					  KEY_CAT + "=?", new String[]{catname}, null, null, null);
-			  cursor.moveToFirst();
-			  return String.valueOf(cursor.getInt(0)); // first one is the bingo
+			  try {
+				  if (cursor.moveToFirst()) return String.valueOf(cursor.getInt(0)); // first one is the bingo
+			  } finally {
+				  cursor.close();
+			  }
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			connectionLock.readLock().unlock();
 		}
 		 return strRetVal;
 		 
@@ -132,141 +459,445 @@ public class SQLCipherAdapter {
 	 
 	 
 	 public String getCatNameFromCatId(String catid) {
-		 Log.i(LOG_TAG, "GetCatNameFromCatId(" + catid + ")");
-		 String strRetVal = "Unknown";
-		  try {
-			Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, new String[]{KEY_CAT}, 
-					  KEY_ID + "=?", new String[]{catid}, null, null, null);
-			  cursor.moveToFirst();
-			  return cursor.getString(0); // first one is the bingo
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		 return strRetVal;
-		 
+		 connectionLock.readLock().lock();
+		 try {
+			 return textById(SQL_CAT_NAME_BY_ID, Long.parseLong(catid), "Unknown");
+		 } catch (Exception e) {
+			 e.printStackTrace();
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+		 return "Unknown";
 	 }
 
 	 
-	 public Cursor getCursorOnCatsForAutoCompleteTextView() {
-		 
-		 Cursor cursor=null;
-		 
-		  try {
-			cursor = sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, new String[]{KEY_ID+" _ID", KEY_CAT}, null, null, null, null, null);
-			  return cursor; // first one is the bingo
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		 return cursor;
-		 
+	 
+	 /** Stage one JSON idea row from the server; merge.apply() writes it. */
+	 private void stageIdea(SyncMerge merge, JSONObject jsonRow) throws JSONException {
+		  long now = System.currentTimeMillis();
+		  long[] cids = new long[]{jsonRow.getLong(KEY_CID0), jsonRow.getLong(KEY_CID1), jsonRow.getLong(KEY_CID2),
+				  jsonRow.getLong(KEY_CID3), jsonRow.getLong(KEY_CID4)};
+		  merge.stageIdea(jsonRow.getLong(KEY_ID), jsonRow.getLong(KEY_UID), jsonRow.getLong(KEY_NUM), cids,
+				  TimeFormat.fromWire(jsonRow.getString(KEY_CREATED), now), TimeFormat.fromWire(jsonRow.getString(KEY_UPDATED), now),
+				  TimeFormat.fromWire(jsonRow.getString(KEY_REMINDER), TimeFormat.NONE),
+				  jsonRow.getBoolean(KEY_DELETED), jsonRow.getBoolean(KEY_COMPLETED), jsonRow.getString(KEY_NAME));
 	 }
-
+	
+	 /** Stage one JSON category row from the server; merge.apply() writes it. */
+	 private void stageCat(SyncMerge merge, JSONObject jsonRow) throws JSONException {
+		  merge.stageCategory(jsonRow.getLong(KEY_ID), jsonRow.getLong(KEY_UID), jsonRow.getLong(KEY_NUM),
+				  TimeFormat.fromWire(jsonRow.getString(KEY_UPDATED), System.currentTimeMillis()), jsonRow.getString(KEY_CAT));
+	 }
+	 
+	 // Typed writes and lookups on the hot paths, through cached statements with primitive binds
 	 
+	 // local writes mark what they change dirty, so a sync doesn't overwrite it (see SyncMerge)
+	 private static final String SQL_INSERT_IDEA = ideaInsertSql("INSERT");
+	 private static final String SQL_INSERT_CATEGORY = categoryInsertSql("INSERT");
+	 private static final String SQL_UPDATE_IDEA_TEXT = "UPDATE " + MYDATABASE_TABLE_IDEA + " SET " + KEY_NAME + " = ?, "
+			 + KEY_KEY_VER + " = ?, " + KEY_UPDATED + " = ?, " + KEY_CID0 + " = ?, " + KEY_CID1 + " = ?, " + KEY_CID2 + " = ?, "
+			 + KEY_CID3 + " = ?, " + KEY_CID4 + " = ?, " + KEY_TEXT_TOKEN + " = ?, " + KEY_DIRTY + " = " + KEY_DIRTY + " | " + DIRTY_TEXT
+			 + " WHERE " + KEY_ID + " = ?";
+	 // (changes the server has to hear of also queue its toggle; SET reads the row as it was)
+	 private static final String SQL_SET_DELETED = "UPDATE " + MYDATABASE_TABLE_IDEA + " SET " + KEY_DELETED + " = 1, "
+			 + KEY_DIRTY + " = CASE WHEN " + KEY_DELETED + " = 0 THEN " + KEY_DIRTY + " | " + (DIRTY_DELETED | DIRTY_SEND_DELETED)
+			 + " ELSE " + KEY_DIRTY + " END, " + KEY_UPDATED + " = ? WHERE " + KEY_ID + " = ?";
+	 private static final String SQL_TOGGLE_COMPLETED = "UPDATE " + MYDATABASE_TABLE_IDEA + " SET " + KEY_COMPLETED + " = 1 - "
+			 + KEY_COMPLETED + ", " + KEY_DIRTY + " = " + toggleQueued(DIRTY_COMPLETED, DIRTY_SEND_COMPLETED) + ", "
+			 + KEY_UPDATED + " = ? WHERE " + KEY_ID + " = ?";
+	 private static final String SQL_TOGGLES_QUEUED = "SELECT " + KEY_ID + ", " + KEY_DIRTY + " FROM " + MYDATABASE_TABLE_IDEA
+			 + " WHERE (" + KEY_DIRTY + " & " + (DIRTY_SEND_COMPLETED | DIRTY_SEND_DELETED) + ") <> 0 ORDER BY " + KEY_ID;
+	 private static final String SQL_IDEA_NAME_BY_ID = "SELECT " + packedText(KEY_NAME) + " FROM " + MYDATABASE_TABLE_IDEA
+			 + " WHERE " + KEY_ID + " = ?";
+	 private static final String SQL_CAT_NAME_BY_ID = "SELECT " + packedText(KEY_CAT) + " FROM " + MYDATABASE_TABLE_CATEGORY
+			 + " WHERE " + KEY_ID + " = ?";
 	 
-	 public long insertIdea(JSONObject jsonRow) throws JSONException {
-		  ContentValues contentValues = new ContentValues();
-		  contentValues.put(KEY_ID, jsonRow.getInt(KEY_ID));
-		  contentValues.put(KEY_UID, jsonRow.getInt(KEY_UID));
-		  contentValues.put(KEY_CID0, jsonRow.getInt(KEY_CID0));
-		  contentValues.put(KEY_CID1, jsonRow.getInt(KEY_CID1));
-		  contentValues.put(KEY_CID2, jsonRow.getInt(KEY_CID2));
-		  contentValues.put(KEY_CID3, jsonRow.getInt(KEY_CID3));
-		  contentValues.put(KEY_CID4, jsonRow.getInt(KEY_CID4));
-		  contentValues.put(KEY_NAME, jsonRow.getString(KEY_NAME));
-		  contentValues.put(KEY_NUM, jsonRow.getString(KEY_NUM));
-		  contentValues.put(KEY_CREATED, jsonRow.getString(KEY_CREATED));
-		  contentValues.put(KEY_UPDATED, jsonRow.getString(KEY_UPDATED));
-		  contentValues.put(KEY_REMINDER, jsonRow.getString(KEY_REMINDER));
-		  contentValues.put(KEY_DELETED, jsonRow.getBoolean(KEY_DELETED));
-		  contentValues.put(KEY_COMPLETED, jsonRow.getBoolean(KEY_COMPLETED));
-		  return sqLiteDatabase.replace(MYDATABASE_TABLE_IDEA, null, contentValues);
-		  //return sqLiteDatabase.insertWithOnConflict(MYDATABASE_TABLE_IDEA, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
+	 private static String ideaInsertSql(String verb) {
+		 return verb + " INTO " + MYDATABASE_TABLE_IDEA + " (" + KEY_ID + "," + KEY_UID + "," + KEY_NAME + "," + KEY_KEY_VER + ","
+				 + KEY_CREATED + "," + KEY_UPDATED + "," + KEY_REMINDER + "," + KEY_NUM + "," + KEY_CID0 + "," + KEY_CID1 + ","
+				 + KEY_CID2 + "," + KEY_CID3 + "," + KEY_CID4 + "," + KEY_DELETED + "," + KEY_COMPLETED + "," + KEY_TEXT_TOKEN + "," + KEY_DIRTY
+				 + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
 	 }
-	
-	 public long insertCat(JSONObject jsonRow) throws JSONException {
-		  ContentValues contentValues = new ContentValues();
-		  contentValues.put(KEY_ID, jsonRow.getInt(KEY_ID));
-		  contentValues.put(KEY_UID, jsonRow.getInt(KEY_UID));
-		  contentValues.put(KEY_UPDATED, jsonRow.getString(KEY_UPDATED));
-		  contentValues.put(KEY_CAT, jsonRow.getString(KEY_CAT));
-		  contentValues.put(KEY_NUM, jsonRow.getString(KEY_NUM));
-		  //return sqLiteDatabase.insertWithOnConflict(MYDATABASE_TABLE_CATEGORY, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
-		  return sqLiteDatabase.replace(MYDATABASE_TABLE_CATEGORY, null, contentValues);
-		 
+	 
+	 private static String categoryInsertSql(String verb) {
+		 return verb + " INTO " + MYDATABASE_TABLE_CATEGORY + " (" + KEY_ID + "," + KEY_UID + "," + KEY_UPDATED + ","
+				 + KEY_NUM + "," + KEY_CAT + "," + KEY_KEY_VER + "," + KEY_TEXT_TOKEN + "," + KEY_DIRTY + ") VALUES (?,?,?,?,?,?,?,?)";
+	 }
+	 
+	 private long writeIdea(String sql, long id, long uid, String text, long created, long updated, long reminder,
+			 long num, long[] cids, boolean deleted, boolean completed, int dirty) {
+		 StatementCache cache = statements();
+		 synchronized (cache) {
+			 SQLiteStatement statement = cache.get(sql);
+			 statement.bindLong(1, id);
+			 statement.bindLong(2, uid);
+			 bindText(statement, 3, 4, text);
+			 statement.bindLong(5, created);
+			 statement.bindLong(6, updated);
+			 statement.bindLong(7, reminder);
+			 statement.bindLong(8, num);
+			 for (int i = 0; i < cids.length; i++) statement.bindLong(9 + i, cids[i]);
+			 statement.bindLong(14, deleted ? 1 : 0);
+			 statement.bindLong(15, completed ? 1 : 0);
+			 statement.bindLong(16, BlindIndex.fingerprint(text));
+			 statement.bindLong(17, dirty);
+			 long io = MainThreadIo.begin();
+			 long start = System.nanoTime();
+			 try {
+				 return statement.executeInsert();
+			 } finally {
+				 MainThreadIo.end(io, MainThreadIo.SQL, sql);
+				 SlowQueryLog.record(sqLiteDatabase, sql, null, 1, System.nanoTime() - start);
+				 CategoryDetailLoader.get().invalidate();
+			 }
+		 }
+	 }
+	 
+	 private long writeCategory(String sql, long id, long uid, long updated, long num, String name, int dirty) {
+		 StatementCache cache = statements();
+		 synchronized (cache) {
+			 SQLiteStatement statement = cache.get(sql);
+			 statement.bindLong(1, id);
+			 statement.bindLong(2, uid);
+			 statement.bindLong(3, updated);
+			 statement.bindLong(4, num);
+			 bindText(statement, 5, 6, name);
+			 statement.bindLong(7, BlindIndex.fingerprint(name));
+			 statement.bindLong(8, dirty);
+			 long io = MainThreadIo.begin();
+			 try {
+				 return statement.executeInsert();
+			 } finally {
+				 MainThreadIo.end(io, MainThreadIo.SQL, sql);
+			 }
+		 }
+	 }
+	 
+	 /** UPDATE sql with (updated, id) parameters; returns the rows changed. */
+	 private int updateIdeaRow(String sql, long id) {
+		 StatementCache cache = statements();
+		 synchronized (cache) {
+			 SQLiteStatement statement = cache.get(sql);
+			 long now = System.currentTimeMillis();
+			 statement.bindLong(1, now);
+			 statement.bindLong(2, id);
+			 long io = MainThreadIo.begin();
+			 long start = System.nanoTime();
+			 int changed;
+			 try {
+				 changed = statement.executeUpdateDelete();
+			 } finally {
+				 MainThreadIo.end(io, MainThreadIo.SQL, sql);
+			 }
+			 long nanos = System.nanoTime() - start;
+			 if (SlowQueryLog.isSlow(nanos)) SlowQueryLog.record(sqLiteDatabase, sql, new Object[]{now, id}, changed, nanos);
+			 if (changed > 0) CategoryDetailLoader.get().invalidate();
+			 return changed;
+		 }
 	 }
 	 
-		public Boolean updateDBCats(String dtSyncDate) { // TODO: MOVE THIS TO SERVCE
+	 private String textById(String sql, long id, String missing) {
+		 StatementCache cache = statements();
+		 synchronized (cache) {
+			 SQLiteStatement statement = cache.get(sql);
+			 statement.bindLong(1, id);
+			 long io = MainThreadIo.begin();
+			 long start = System.nanoTime();
+			 try {
+				 String packed = statement.simpleQueryForString();
+				 return packed == null ? missing : unpackText(packed);
+			 } catch (SQLiteDoneException e) {
+				 return missing;
+			 } finally {
+				 MainThreadIo.end(io, MainThreadIo.SQL, sql);
+				 long nanos = System.nanoTime() - start;
+				 if (SlowQueryLog.isSlow(nanos)) SlowQueryLog.record(sqLiteDatabase, sql, new Object[]{id}, 1, nanos);
+			 }
+		 }
+	 }
+	 
+	 // A compiled statement can only return a single string, so text columns are read as
+	 // 'b' + hex for BLOB values (compressed or encrypted) and 't' + the text otherwise
+	 private static String packedText(String column) {
+		 return "CASE typeof(" + column + ") WHEN 'blob' THEN 'b' || hex(" + column + ") ELSE 't' || " + column + " END";
+	 }
+	 
+	 private static String unpackText(String packed) {
+		 if (packed.charAt(0) != 'b') return packed.substring(1);
+		 byte[] bytes = new byte[(packed.length() - 1) / 2];
+		 for (int i = 0; i < bytes.length; i++) {
+			 bytes[i] = (byte) ((Character.digit(packed.charAt(1 + 2 * i), 16) << 4) | Character.digit(packed.charAt(2 + 2 * i), 16));
+		 }
+		 return FieldCipher.decodeText(bytes);
+	 }
+	 
+	 // dirty with dirtyBit set and the server toggle sendBit queued, or, when one was queued and
+	 // not sent, cancelled: the change undoes it (XOR, which SQLite lacks)
+	 static String toggleQueued(int dirtyBit, int sendBit) {
+		 return "((" + KEY_DIRTY + " | " + (dirtyBit | sendBit) + ") - (" + KEY_DIRTY + " & " + sendBit + "))";
+	 }
+	 
+	 private static long[] cidsOf(java.util.List<String> categoryIds) {
+		 long[] cids = new long[CategoryResolver.MAX_CATEGORIES_PER_IDEA];
+		 for (int i = 0; i < cids.length && i < categoryIds.size(); i++) cids[i] = Long.parseLong(categoryIds.get(i));
+		 return cids;
+	 }
+	 
+		// Held by a sync from fetching its pages to merging them and by each queued toggle sent, so a
+		// page never predates a toggle sent before it is merged (SyncMerge would take it as the answer)
+		private static final Object serverOrder = new Object();
+		
+		public Boolean updateDBCats(long syncSince) {
+			synchronized (serverOrder) {
+				return syncCats(syncSince);
+			}
+		}
+		
+		private Boolean syncCats(long syncSince) { // TODO: MOVE THIS TO SERVCE
 			// TODO: Implement timestamp to limit entries returned
-			JSONArray jsonArray = Iserver.getJSONFromRemote("Body=hh&syncdate=" + URLEncoder.encode(dtSyncDate.toString()), context);
+			String body = "Body=hh&syncdate=" + URLEncoder.encode(TimeFormat.toWire(syncSince));
+			byte[] payload = Iserver.getSyncFromRemote(body, context);
+			if (BinarySyncDecoder.isBinary(payload)) {
+				if (applyBinarySync(payload)) {
+					rescheduleReminders(false);
+					return false;
+				}
+				Iserver.stopAskingForWire(); // rolled back; the same page again, as JSON
+				payload = Iserver.getSyncFromRemote(body, context);
+			}
+			JSONArray jsonArray;
+			Tracer.Span parse = Tracer.begin("sync.parse");
+			try {
+				jsonArray = Iserver.parseJSONArray(payload);
+			} finally {
+				parse.end();
+			}
 			JSONObject jsonRow = null;
-			String cat = "";
 			Boolean hasError= false;
-			Log.e(LOG_TAG, "updateDBCats()" + dtSyncDate.toString() + " " +  jsonArray.length());
+			Log.e(LOG_TAG, "updateDBCats()" + syncSince + " " +  jsonArray.length());
+			Metrics.SYNC_ROWS.add(jsonArray.length());
 			
-			for (int i =0; i< jsonArray.length(); i++) {
-				
+			Tracer.Span merging = Tracer.begin("sync.merge");
+			connectionLock.readLock().lock();
+			try {
+				sqLiteDatabase.beginTransaction(); // SyncMerge's stage lives on this transaction's connection
+				SyncMerge merge = null;
 				try {
-					jsonRow = jsonArray.getJSONObject(i);
+					merge = new SyncMerge(sqLiteDatabase);
+					Tracer.Span staging = Tracer.begin("sync.stage");
+					int bad = 0;
+					String firstError = null;
+					for (int i =0; i< jsonArray.length(); i++) {
 					
-					cat = jsonRow.getString("cat");
-					Log.e(LOG_TAG, jsonRow.toString(4));
-					Log.i(LOG_TAG, "Category: " + cat);
-					insertCat(jsonRow);
-				} catch (JSONException e) {
-					// TODO Auto-generated catch block
-					Log.e(LOG_TAG, e.getMessage());
-					e.printStackTrace();
-					hasError=true;
-				} 
-				
+						try {
+							jsonRow = jsonArray.getJSONObject(i);
+							stageCat(merge, jsonRow);
+						} catch (JSONException e) {
+							if (bad++ == 0) firstError = e.getMessage();
+							hasError=true;
+						} 
+					
+					}
+					staging.end();
+					// counts only: a page is thousands of rows, and they hold the user's text
+					Log.i(LOG_TAG, "updateDBCats() staged " + (jsonArray.length() - bad) + " of " + jsonArray.length() + " rows");
+					if (bad > 0) Log.e(LOG_TAG, "updateDBCats() skipped " + bad + " malformed rows, first: " + firstError);
+					Tracer.Span applying = Tracer.begin("sync.apply");
+					merge.apply();
+					applying.end();
+					sqLiteDatabase.setTransactionSuccessful();
+				} catch (android.database.SQLException e) {
+					Log.e(LOG_TAG, "updateDBCats() merge failed: " + e.getMessage());
+					hasError = true;
+				} finally {
+					Tracer.Span commit = Tracer.begin("sync.commit");
+					sqLiteDatabase.endTransaction();
+					commit.end();
+					if (merge != null) merge.close();
+					CategoryDetailLoader.get().invalidate(); // once committed, so no load caches the old rows
+					merging.end();
+				}
+			} finally {
+				connectionLock.readLock().unlock();
 			}
 			return hasError;
 		}
 
-		public String getServerDateTime() {
-			String strServerDT = Iserver.getServerDateTime();
-			
-			return strServerDT;
+		public long getServerTimeMillis() {
+			return Iserver.getServerTimeMillis();
 		}
 		
-		public Boolean updateDBIdeas(String dtSyncDate) { // TODO: MOVE THIS TO SERVCE
+		private static final String PREF_LAST_SYNC = "last_sync_ms";
+		private static final String PREF_LAST_SYNC_FAIL = "last_sync_fail_ms";
+		private static final String PREF_LAST_SYNC_TEXT = "LastUpdateSuccessDT"; // before v5, server time as text
+		
+		/** Server time of the last successful sync, the high-water mark for the next one; 0 if none. */
+		public static long getLastSyncMillis(SharedPreferences prefs) {
+			long last = prefs.getLong(PREF_LAST_SYNC, TimeFormat.NONE);
+			if (last == TimeFormat.NONE && prefs.contains(PREF_LAST_SYNC_TEXT)) {
+				last = TimeFormat.fromWire(prefs.getString(PREF_LAST_SYNC_TEXT, null), TimeFormat.NONE);
+				prefs.edit().putLong(PREF_LAST_SYNC, last).remove(PREF_LAST_SYNC_TEXT).remove("LastUpdateFailDT").commit();
+			}
+			return last;
+		}
+		
+		/** Record the outcome of a sync that started from lastSync; the mark only ever moves forward. */
+		public static void setSyncResult(SharedPreferences prefs, long lastSync, long serverTime, boolean ok) {
+			if (!ok) prefs.edit().putLong(PREF_LAST_SYNC_FAIL, serverTime).commit();
+			else if (serverTime > lastSync) prefs.edit().putLong(PREF_LAST_SYNC, serverTime).commit();
+		}
+		
+		public Boolean updateDBIdeas(long syncSince) {
+			Boolean hasError;
+			synchronized (serverOrder) {
+				hasError = syncIdeas(syncSince);
+			}
+			PendingToggles.kick(context); // anything left queued, now the server is reachable again
+			return hasError;
+		}
+		
+		private Boolean syncIdeas(long syncSince) { // TODO: MOVE THIS TO SERVCE
 			// TODO: Implement timestamp to limit entries returned
 			
 			Boolean hasError= false;
 			
-			JSONArray jsonArray = Iserver.getJSONFromRemote("Einstein=plus&syncdate=" + URLEncoder.encode(dtSyncDate.toString()), context);
+			String body = "Einstein=plus&syncdate=" + URLEncoder.encode(TimeFormat.toWire(syncSince));
+			byte[] payload = Iserver.getSyncFromRemote(body, context);
+			if (BinarySyncDecoder.isBinary(payload)) {
+				if (applyBinarySync(payload)) {
+					rescheduleReminders(false);
+					return false;
+				}
+				Iserver.stopAskingForWire(); // rolled back; the same page again, as JSON
+				payload = Iserver.getSyncFromRemote(body, context);
+			}
+			JSONArray jsonArray;
+			Tracer.Span parse = Tracer.begin("sync.parse");
+			try {
+				jsonArray = Iserver.parseJSONArray(payload);
+			} finally {
+				parse.end();
+			}
 			JSONObject jsonRow = null;
 			
-			Log.e(LOG_TAG, "updateDBIdeas()" + dtSyncDate.toString() + " " +  jsonArray.length());
+			Log.e(LOG_TAG, "updateDBIdeas()" + syncSince + " " +  jsonArray.length());
+			Metrics.SYNC_ROWS.add(jsonArray.length());
 			
-			for (int i =0; i< jsonArray.length(); i++) {
-				
+			Tracer.Span merging = Tracer.begin("sync.merge");
+			connectionLock.readLock().lock();
+			try {
+				sqLiteDatabase.beginTransaction(); // SyncMerge's stage lives on this transaction's connection
+				SyncMerge merge = null;
 				try {
-					jsonRow = jsonArray.getJSONObject(i);
+					merge = new SyncMerge(sqLiteDatabase);
+					Tracer.Span staging = Tracer.begin("sync.stage");
+					int bad = 0;
+					String firstError = null;
+					for (int i =0; i< jsonArray.length(); i++) {
 					
-					Log.e(LOG_TAG, jsonRow.toString(4));
-					Log.i(LOG_TAG, "Category: " + jsonRow.getString("name"));
-					insertIdea(jsonRow);
-				} catch (JSONException e) {
-					// TODO Auto-generated catch block
-					Log.e(LOG_TAG, e.getMessage());
-					e.printStackTrace();
-					hasError=true;
+						try {
+							jsonRow = jsonArray.getJSONObject(i);
+							stageIdea(merge, jsonRow);
+						} catch (JSONException e) {
+							if (bad++ == 0) firstError = e.getMessage();
+							hasError=true;
+						}
+					}
+					staging.end();
+					Log.i(LOG_TAG, "updateDBIdeas() staged " + (jsonArray.length() - bad) + " of " + jsonArray.length() + " rows");
+					if (bad > 0) Log.e(LOG_TAG, "updateDBIdeas() skipped " + bad + " malformed rows, first: " + firstError);
+					Tracer.Span applying = Tracer.begin("sync.apply");
+					merge.apply();
+					applying.end();
+					sqLiteDatabase.setTransactionSuccessful();
+				} catch (android.database.SQLException e) {
+					Log.e(LOG_TAG, "updateDBIdeas() merge failed: " + e.getMessage());
+					hasError = true;
+				} finally {
+					Tracer.Span commit = Tracer.begin("sync.commit");
+					sqLiteDatabase.endTransaction();
+					commit.end();
+					if (merge != null) merge.close();
+					CategoryDetailLoader.get().invalidate(); // once committed, so no load caches the old rows
+					merging.end();
 				}
+			} finally {
+				connectionLock.readLock().unlock();
 			}
+			rescheduleReminders(false); // synced ideas may carry new reminders
 			return hasError;
 		}
 	
 		
+
+		/**
+		 * Apply a binary sync page: rows are staged straight from the decoder's reused row, then
+		 * merged in one transaction (see SyncMerge).
+		 */
+		public boolean applyBinarySync(byte[] payload) {
+			Tracer.Span merging = Tracer.begin("sync.merge");
+			connectionLock.readLock().lock();
+			try {
+				sqLiteDatabase.beginTransaction();
+				SyncMerge merge = null;
+				try {
+					merge = new SyncMerge(sqLiteDatabase);
+					final SyncMerge stage = merge;
+					final long[] cids = new long[CategoryResolver.MAX_CATEGORIES_PER_IDEA];
+					Tracer.Span decoding = Tracer.begin("sync.decode"); // staging as it decodes
+					int rows = new BinarySyncDecoder().decode(payload, new BinarySyncDecoder.RowSink() {
+						@Override
+						public void onCategory(BinarySyncDecoder.Row row) {
+							stage.stageCategory(row.id, row.uid, row.num, row.updated * 1000L, row.name); // seconds on the wire
+						}
+
+						@Override
+						public void onIdea(BinarySyncDecoder.Row row) {
+							cids[0] = row.cid0;
+							cids[1] = row.cid1;
+							cids[2] = row.cid2;
+							cids[3] = row.cid3;
+							cids[4] = row.cid4;
+							stage.stageIdea(row.id, row.uid, row.num, cids, row.created * 1000L, row.updated * 1000L,
+									row.reminder * 1000L, row.deleted, row.completed, row.name);
+						}
+					});
+					decoding.end();
+					Tracer.Span applying = Tracer.begin("sync.apply");
+					int changed = merge.apply();
+					applying.end();
+					sqLiteDatabase.setTransactionSuccessful();
+					Metrics.SYNC_ROWS.add(rows);
+					Log.i(LOG_TAG, "applyBinarySync() merged " + rows + " rows (" + changed + " changed) from " + payload.length + " bytes");
+					return true;
+				} catch (Exception e) {
+					Log.e(LOG_TAG, "applyBinarySync() failed: " + e.getMessage());
+					e.printStackTrace();
+					return false;
+				} finally {
+					Tracer.Span commit = Tracer.begin("sync.commit");
+					sqLiteDatabase.endTransaction();
+					commit.end();
+					if (merge != null) merge.close();
+					CategoryDetailLoader.get().invalidate(); // once committed, so no load caches the old rows
+					merging.end();
+				}
+			} finally {
+				connectionLock.readLock().unlock();
+			}
+		}
 	 
 	 
  public long insert(String content){
   
-  ContentValues contentValues = new ContentValues();
-  contentValues.put(KEY_ID, content);
-  return sqLiteDatabase.insert(MYDATABASE_TABLE_CATEGORY, null, contentValues);
+  connectionLock.readLock().lock();
+  try {
+   ContentValues contentValues = new ContentValues();
+   contentValues.put(KEY_ID, content);
+   return sqLiteDatabase.insert(MYDATABASE_TABLE_CATEGORY, null, contentValues);
+  } finally {
+   connectionLock.readLock().unlock();
+  }
  }
  
 // Add demo item if database is empty
@@ -288,130 +919,82 @@ public void createDemoItemIfEmpty() {
     }
 }
 
-// Migrate existing ideas to link them with categories based on hashtags in their text
-public void migrateExistingIdeasToCategories() {
+// Link ideas saved before hashtag categories existed; see HashtagBackfillJob
+public boolean backfillHashtags(HashtagBackfillJob job) {
+    connectionLock.readLock().lock();
     try {
-        Log.i(LOG_TAG, "MIGRATION: Starting migration of existing ideas to categories...");
         openToWrite();
-        
-        // Find all ideas with CID0=0 (not linked to categories)
-        Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_IDEA, 
-            new String[]{KEY_ID, KEY_NAME}, 
-            KEY_CID0 + " = ?", new String[]{"0"}, 
-            null, null, null);
-            
-        Log.i(LOG_TAG, "MIGRATION: Found " + cursor.getCount() + " ideas to migrate");
-        
-        if (cursor.getCount() > 0) {
-            cursor.moveToFirst();
-            do {
-                String ideaId = cursor.getString(0);
-                String ideaText = cursor.getString(1);
-                
-                Log.i(LOG_TAG, "MIGRATION: Processing idea ID " + ideaId + ": " + ideaText);
-                
-                // Extract categories and get their IDs
-                java.util.List<String> categoryIds = extractAndSaveCategoriesWithIds(ideaText);
-                
-                if (categoryIds.size() > 0) {
-                    // Update the idea with category IDs
-                    ContentValues contentValues = new ContentValues();
-                    contentValues.put(KEY_CID0, categoryIds.size() > 0 ? Integer.parseInt(categoryIds.get(0)) : 0);
-                    contentValues.put(KEY_CID1, categoryIds.size() > 1 ? Integer.parseInt(categoryIds.get(1)) : 0);
-                    contentValues.put(KEY_CID2, categoryIds.size() > 2 ? Integer.parseInt(categoryIds.get(2)) : 0);
-                    contentValues.put(KEY_CID3, categoryIds.size() > 3 ? Integer.parseInt(categoryIds.get(3)) : 0);
-                    contentValues.put(KEY_CID4, categoryIds.size() > 4 ? Integer.parseInt(categoryIds.get(4)) : 0);
-                    
-                    int updatedRows = sqLiteDatabase.update(MYDATABASE_TABLE_IDEA, contentValues, 
-                        KEY_ID + "=?", new String[]{ideaId});
-                        
-                    Log.i(LOG_TAG, "MIGRATION: Updated idea " + ideaId + " with categories: " + categoryIds + " (" + updatedRows + " rows)");
-                } else {
-                    Log.w(LOG_TAG, "MIGRATION: No categories found for idea " + ideaId);
-                }
-                
-            } while (cursor.moveToNext());
-        }
-        
-        cursor.close();
-        Log.i(LOG_TAG, "MIGRATION: Migration completed successfully");
-        // Note: Don't close the database here as it may be needed by other threads
-        
+        boolean done = job.run(sqLiteDatabase);
+        CategoryDetailLoader.get().invalidate(); // ideas gained categories
+        return done;
     } catch (Exception e) {
-        Log.e(LOG_TAG, "MIGRATION: Error during migration: " + e.getMessage());
+        Log.e(LOG_TAG, "Hashtag backfill failed: " + e.getMessage());
         e.printStackTrace();
+        return false;
+    } finally {
+        connectionLock.readLock().unlock();
     }
 }
  
 // Save new idea directly to local database
 public long saveIdeaLocal(String ideaText) {
+    long start = Metrics.now();
+    Tracer.Span span = Tracer.begin("save.saveIdeaLocal");
+    connectionLock.readLock().lock();
     try {
         Log.i(LOG_TAG, "OFFLINE MODE: Saving idea to local database: " + ideaText);
         openToWrite();
         
-        // First extract and save hashtags as categories to get their IDs
-        java.util.List<String> categoryIds = extractAndSaveCategoriesWithIds(ideaText);
-        
         // Generate a unique ID (using timestamp + random)
         long uniqueId = System.currentTimeMillis() % 100000000; // Keep within 8 digits
-        String timestamp = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.US).format(new java.util.Date());
-        String defaultTimestamp = "1970-01-01 06:00:00";
-        
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(KEY_ID, uniqueId); // Required PRIMARY KEY
-        contentValues.put(KEY_NAME, ideaText);
-        contentValues.put(KEY_CREATED, timestamp);
-        contentValues.put(KEY_UPDATED, timestamp);
-        contentValues.put(KEY_REMINDER, defaultTimestamp); // Required NOT NULL field
-        contentValues.put(KEY_UID, 1); // Required NOT NULL field  
-        contentValues.put(KEY_NUM, 0); // Required NOT NULL field
-        
-        // Set category IDs in CID columns (up to 5 categories supported)
-        contentValues.put(KEY_CID0, categoryIds.size() > 0 ? Integer.parseInt(categoryIds.get(0)) : 0);
-        contentValues.put(KEY_CID1, categoryIds.size() > 1 ? Integer.parseInt(categoryIds.get(1)) : 0);
-        contentValues.put(KEY_CID2, categoryIds.size() > 2 ? Integer.parseInt(categoryIds.get(2)) : 0);
-        contentValues.put(KEY_CID3, categoryIds.size() > 3 ? Integer.parseInt(categoryIds.get(3)) : 0);
-        contentValues.put(KEY_CID4, categoryIds.size() > 4 ? Integer.parseInt(categoryIds.get(4)) : 0);
-        
-        contentValues.put(KEY_DELETED, 0); // 0 = false
-        contentValues.put(KEY_COMPLETED, 0); // 0 = false
+        long now = System.currentTimeMillis();
+        java.util.List<String> categoryIds;
+        long result;
         
-        long result = sqLiteDatabase.insert(MYDATABASE_TABLE_IDEA, null, contentValues);
+        // the categories, the idea and its search tokens in one commit; everything else is a PostSaveHooks hook
+        sqLiteDatabase.beginTransaction();
+        try {
+            // First extract and save hashtags as categories to get their IDs
+            categoryIds = extractAndSaveCategoriesWithIds(ideaText);
+            
+            // uid 1, num 0, no reminder, up to 5 categories in the CID columns, not deleted or completed
+            Tracer.Span write = Tracer.begin("save.writeIdea");
+            result = writeIdea(SQL_INSERT_IDEA, uniqueId, 1, ideaText, now, now, TimeFormat.NONE,
+                    0, cidsOf(categoryIds), false, false, DIRTY_TEXT);
+            write.end();
+            if (result != -1) indexIdea(uniqueId, ideaText);
+            sqLiteDatabase.setTransactionSuccessful();
+        } finally {
+            Tracer.Span commit = Tracer.begin("save.commit");
+            sqLiteDatabase.endTransaction();
+            commit.end();
+            CategoryDetailLoader.get().invalidate(); // once committed, so no load caches the old rows
+        }
         Log.i(LOG_TAG, "OFFLINE MODE: Idea saved with ID: " + result + " (uniqueId: " + uniqueId + ") linked to categories: " + categoryIds);
+        if (result != -1) PostSaveHooks.saved(context, uniqueId, ideaText, null);
         
-        close();
         return result;
         
     } catch (Exception e) {
         Log.e(LOG_TAG, "Error saving idea locally: " + e.getMessage());
         e.printStackTrace();
         return -1;
+    } finally {
+        Metrics.SAVE_IDEA.since(start);
+        span.end();
+        connectionLock.readLock().unlock();
     }
 }
  
 // Extract hashtags from idea text and save them as categories, returning their IDs
 private java.util.List<String> extractAndSaveCategoriesWithIds(String ideaText) {
     java.util.List<String> categoryIds = new java.util.ArrayList<String>();
+    Tracer.Span span = Tracer.begin("save.extractTags");
     try {
         Log.i(LOG_TAG, "OFFLINE MODE: Extracting categories from: " + ideaText);
         
-        // Find all hashtags (words starting with #)
-        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("#\\w+");
-        java.util.regex.Matcher matcher = pattern.matcher(ideaText);
-        
-        java.util.Set<String> categories = new java.util.HashSet<String>();
-        
-        while (matcher.find()) {
-            String hashtag = matcher.group().substring(1); // Remove the # symbol
-            categories.add(hashtag);
-            Log.i(LOG_TAG, "Found hashtag: #" + hashtag);
-        }
-        
-        // If no hashtags found, create a general category
-        if (categories.isEmpty()) {
-            categories.add("General");
-            Log.i(LOG_TAG, "No hashtags found, using General category");
-        }
+        // Hashtags (words starting with #), or the General category when there are none
+        java.util.Set<String> categories = BlindIndex.extractTags(ideaText);
         
         // Save each unique category and collect their IDs
         for (String category : categories) {
@@ -426,222 +1009,578 @@ private java.util.List<String> extractAndSaveCategoriesWithIds(String ideaText)
     } catch (Exception e) {
         Log.e(LOG_TAG, "Error extracting categories: " + e.getMessage());
         e.printStackTrace();
+    } finally {
+        span.end();
     }
     return categoryIds;
 }
 
-// Extract hashtags from idea text and save them as categories
-private void extractAndSaveCategories(String ideaText) {
-    try {
-        Log.i(LOG_TAG, "OFFLINE MODE: Extracting categories from: " + ideaText);
-        
-        // Find all hashtags (words starting with #)
-        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("#\\w+");
-        java.util.regex.Matcher matcher = pattern.matcher(ideaText);
-        
-        java.util.Set<String> categories = new java.util.HashSet<String>();
-        
-        while (matcher.find()) {
-            String hashtag = matcher.group().substring(1); // Remove the # symbol
-            categories.add(hashtag);
-            Log.i(LOG_TAG, "Found hashtag: #" + hashtag);
-        }
-        
-        // If no hashtags found, create a general category
-        if (categories.isEmpty()) {
-            categories.add("General");
-            Log.i(LOG_TAG, "No hashtags found, using General category");
-        }
-        
-        // Save each unique category
-        for (String category : categories) {
-            saveCategoryIfNotExists(category);
-        }
-        
-    } catch (Exception e) {
-        Log.e(LOG_TAG, "Error extracting categories: " + e.getMessage());
-        e.printStackTrace();
-    }
-}
- 
  // Save category to database if it doesn't already exist
  private void saveCategoryIfNotExists(String categoryName) {
      try {
          // Check if category already exists
-         Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, 
-             new String[]{KEY_ID}, KEY_CAT + "=?", new String[]{categoryName}, 
-             null, null, null);
-             
-         if (cursor.getCount() == 0) {
+         if (getCatIdFromCatName(categoryName).equals("-1")) {
              // Category doesn't exist, create it
              long catId = System.currentTimeMillis() % 100000000; // Unique ID
-             String timestamp = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.US).format(new java.util.Date());
-             
-             ContentValues catValues = new ContentValues();
-             catValues.put(KEY_ID, catId);
-             catValues.put(KEY_CAT, categoryName);
-             catValues.put(KEY_UID, 1);
-             catValues.put(KEY_NUM, 0);
-             catValues.put(KEY_UPDATED, timestamp);
              
-             long result = sqLiteDatabase.insert(MYDATABASE_TABLE_CATEGORY, null, catValues);
+             long result = writeCategory(SQL_INSERT_CATEGORY, catId, 1, System.currentTimeMillis(), 0, categoryName, DIRTY_TEXT);
+             BlindIndex.indexCategory(sqLiteDatabase, catId, categoryName);
+             HashtagIndex.get().add(catId, categoryName);
              Log.i(LOG_TAG, "OFFLINE MODE: Category saved: " + categoryName + " with ID: " + result);
          } else {
              Log.i(LOG_TAG, "Category already exists: " + categoryName);
          }
          
-         cursor.close();
-         
      } catch (Exception e) {
          Log.e(LOG_TAG, "Error saving category " + categoryName + ": " + e.getMessage());
          e.printStackTrace();
      }
  }
 	 
+	 // Idea text and category names go through FieldCipher/IdeaTextCodec on the way in and out;
+	 // callers only ever see Strings
+	 // (each table has one such column, so the row's key_ver is written alongside it)
+	 static void bindText(SQLiteStatement statement, int index, int keyVerIndex, String text) {
+		 Object encoded = FieldCipher.encodeText(text);
+		 bindEncoded(statement, index, encoded);
+		 statement.bindLong(keyVerIndex, FieldCipher.keyVersionOf(encoded));
+	 }
+
+	 static void bindEncoded(SQLiteStatement statement, int index, Object encoded) {
+		 if (encoded instanceof byte[]) statement.bindBlob(index, (byte[]) encoded);
+		 else if (encoded == null) statement.bindNull(index);
+		 else statement.bindString(index, (String) encoded);
+	 }
+
+	 static String readText(Cursor cursor, int index) {
+		 return cursor.getType(index) == Cursor.FIELD_TYPE_BLOB
+				 ? FieldCipher.decodeText(cursor.getBlob(index)) : cursor.getString(index);
+	 }
+
+	 /**
+	  * Train (or retrain) the idea text compression dictionary once enough ideas exist. Rows
+	  * already stored keep decoding with the dictionary version they were written with. Stored
+	  * dictionaries not yet under the current field key are encrypted first (IdeaTextCodec.seal).
+	  */
+	 public boolean trainCompressionDictionaryIfNeeded() {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToWrite();
+			 return IdeaTextCodec.get().trainIfNeeded(sqLiteDatabase);
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Error training compression dictionary: " + e.getMessage());
+			 e.printStackTrace();
+			 return false;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
+	 
+	 /**
+	  * Start a key rotation when the current key is due, and/or carry an unfinished one forward
+	  * from its last checkpoint. Meant for a background thread; see KeyRotationJob.
+	  */
+	 public boolean rotateKeysIfDue(KeyRotationJob job) {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToWrite();
+			 return job.runIfDue(sqLiteDatabase);
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Error rotating field keys: " + e.getMessage());
+			 e.printStackTrace();
+			 return false;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
+	 
+	 /**
+	  * Purge acknowledged tombstones, clear orphaned references and, when idle, return free
+	  * pages to the file system. Meant for a background thread; see MaintenanceJob.
+	  */
+	 public boolean runMaintenance(MaintenanceJob job, boolean idle) {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToWrite();
+			 return job.run(sqLiteDatabase, idle);
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Maintenance failed: " + e.getMessage());
+			 e.printStackTrace();
+			 return false;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
+	 
+	 /**
+	  * Switch a database from before auto_vacuum to incremental, with one full VACUUM; nothing
+	  * once it has been. Can take as long as rewriting the file, so it is a background job of its
+	  * own rather than part of the time-boxed maintenance run.
+	  */
+	 public boolean convertAutoVacuumIfNeeded(MaintenanceJob job) {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToWrite();
+			 return job.convertToIncrementalVacuum(sqLiteDatabase);
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "auto_vacuum conversion failed: " + e.getMessage());
+			 e.printStackTrace();
+			 return false;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
+	 
+	 /**
+	  * Point the reminder alarm at the earliest pending reminder; cheap when it hasn't changed.
+	  * alarmLost: the alarm was cleared (boot, app update) and has to be set even if it has.
+	  */
+	 public long rescheduleReminders(boolean alarmLost) {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToRead();
+			 ReminderScheduler reminders = new ReminderScheduler(context);
+			 if (alarmLost) reminders.forgetAlarm();
+			 return reminders.reschedule(sqLiteDatabase);
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Error scheduling reminders: " + e.getMessage());
+			 e.printStackTrace();
+			 return TimeFormat.NONE;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
+	 
+	 /** Notify the reminders that are due and arm the next; see ReminderScheduler. */
+	 public int fireDueReminders() {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToRead();
+			 return new ReminderScheduler(context).fire(sqLiteDatabase);
+		 } catch (Exception e) {
+			 Log.e(LOG_TAG, "Error firing reminders: " + e.getMessage());
+			 e.printStackTrace();
+			 return 0;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
+	 
 	 public int deleteAll(){
-	  return sqLiteDatabase.delete(MYDATABASE_TABLE_CATEGORY, null, null);
+	  connectionLock.readLock().lock();
+	  try {
+		  return sqLiteDatabase.delete(MYDATABASE_TABLE_CATEGORY, null, null);
+	  } finally {
+		  connectionLock.readLock().unlock();
+	  }
 	 }
 	 
 	 public String queueAll(){
-	  String[] columns = new String[]{KEY_ID};
-	  Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, columns, 
-	    null, null, null, null, null);
-	  String result = "";
-	  
-	  int index_CONTENT = cursor.getColumnIndex(KEY_ID);
-	  for(cursor.moveToFirst(); !(cursor.isAfterLast()); cursor.moveToNext()){
-	   result = result + cursor.getString(index_CONTENT) + "\n";
+	  connectionLock.readLock().lock();
+	  try {
+		  String[] columns = new String[]{KEY_ID};
+		  Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, columns, 
+		    null, null, null, null, null);
+		  StringBuilder result = new StringBuilder();
+		  try {
+		   int index_CONTENT = cursor.getColumnIndex(KEY_ID);
+		   for(cursor.moveToFirst(); !(cursor.isAfterLast()); cursor.moveToNext()){
+		    result.append(cursor.getString(index_CONTENT)).append('\n');
+		   }
+		  } finally {
+		   cursor.close();
+		  }
+	 
+		  return result.toString();
+	  } finally {
+		  connectionLock.readLock().unlock();
 	  }
+	 }
+	 
+	 /** Stream every idea (and, for NDJSON, category) to out; see IdeaTransfer. */
+	 public int exportIdeas(java.io.OutputStream out, int format) throws java.io.IOException {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToRead();
+			 return new IdeaTransfer(sqLiteDatabase).export(out, format);
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
+	 }
 	 
-	  return result;
+	 /** Bulk-import ideas from NDJSON or one-per-line text; see IdeaTransfer. */
+	 public int importIdeas(java.io.InputStream in, int format) throws java.io.IOException {
+		 connectionLock.readLock().lock();
+		 try {
+			 openToWrite();
+			 int imported = new IdeaTransfer(sqLiteDatabase).importFrom(in, format);
+			 CategoryDetailLoader.get().invalidate();
+			 rescheduleReminders(false);
+			 return imported;
+		 } finally {
+			 connectionLock.readLock().unlock();
+		 }
 	 }
 	 
-	 public class SQLiteHelper extends SQLiteOpenHelper {
+	 // Android's default handler deletes a corrupt file. When there is a backup to go back to, it
+	 // is only noted instead, and prepare() restores the backup on the next launch.
+	 private static class CorruptionHandler implements android.database.DatabaseErrorHandler {
+	  private final Context context;
+
+	  CorruptionHandler(Context context) {
+	   this.context = context;
+	  }
+
+	  @Override
+	  public void onCorruption(SQLiteDatabase db) {
+	   if (new BackupEngine(context, MYDATABASE_NAME).lastSeq() == 0) {
+		   new android.database.DefaultDatabaseErrorHandler().onCorruption(db);
+		   return;
+	   }
+	   Log.e(LOG_TAG, "Database corrupt, the latest backup is restored on the next launch");
+	   context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().putBoolean(PREF_DB_CORRUPT, true).commit();
+	  }
+	 }
+
+	 public static class SQLiteHelper extends SQLiteOpenHelper {
 
 	  public SQLiteHelper(Context context, String name,
 	    CursorFactory factory, int version) {
-	   super(context, name, factory, version);
+	   super(context, name, factory, version, new CorruptionHandler(context));
+	  }
+
+	  @Override
+	  public void onConfigure(SQLiteDatabase db) {
+	   // WAL lets BackupEngine copy the file while writers carry on
+	   db.enableWriteAheadLogging();
+	   // so INSERT OR REPLACE fires the delete triggers for the row it replaces (tblCategoryStats)
+	   db.execSQL("PRAGMA recursive_triggers = ON");
+	   // lets MaintenanceJob hand free pages back; takes effect on a new file, an existing one
+	   // switches over at its next VACUUM
+	   db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
 	  }
 
 	  @Override
 	  public void onCreate(SQLiteDatabase db) {
-	   // TODO Auto-generated method stub
 	   db.execSQL(SCRIPT_CREATE_DATABASE_1);
 	   db.execSQL(SCRIPT_CREATE_DATABASE_2);
 	   db.execSQL(SCRIPT_CREATE_DATABASE_3);
+	   // everything after the base schema comes from the same steps an upgrade runs
+	   SchemaMigrations.migrate(db, SchemaMigrations.BASE_VERSION, MYDATABASE_VERSION);
 	   db.execSQL("create temp table search as select * from "  + MYDATABASE_TABLE_IDEA);
 	  }
 
 	  @Override
-	  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-	   // TODO Auto-generated method stub
-		  db.execSQL(SCRIPT_DROP_ALL_TABLES);
-
-		  this.onCreate(db);
+	  public void onOpen(SQLiteDatabase db) {
+	   super.onOpen(db);
+	   IdeaTextCodec.get().load(db);
+	  }
 
+	  @Override
+	  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+	   if (SchemaMigrations.migrate(db, oldVersion, newVersion)) return;
+	   Log.w(LOG_TAG, "Database v" + oldVersion + " predates in-place upgrades, rebuilding");
+	   for (String drop : SCRIPT_DROP_ALL_TABLES) db.execSQL(drop);
+	   this.onCreate(db);
 	  }
 
 	 }
 
 	public Cursor queryIdeasByCatName(String strCatName) {
-		// Fixed SQL injection vulnerability - using parameterized queries
-		  String[] columns = new String[]{KEY_ID + " _id",  KEY_NAME, KEY_COMPLETED, KEY_DELETED};
-		  
-		  String catid = getCatIdFromCatName(strCatName);
-		  
-		  Log.i(LOG_TAG, "Searching cat id #: " + catid + " (" + strCatName + ") " );
-		  
-		  String strDeleted01 = "0";
-		  String strCompleted01 = "0";
-		  
-		  // Use parameterized query to prevent SQL injection
-		  String selection = "(" + KEY_CID0 + " = ? OR " +  
-						  KEY_CID1 + " = ? OR " + 
-						  KEY_CID2 + " = ? OR " + 
-						  KEY_CID3 + " = ? OR " + 
-						  KEY_CID4 + " = ?) AND deleted = ?";
-		  String[] selectionArgs = new String[]{catid, catid, catid, catid, catid, strDeleted01};
-		  
-		  Log.i(LOG_TAG, "DEBUG QUERY: " + selection + " with args: [" + catid + "," + catid + "," + catid + "," + catid + "," + catid + "," + strDeleted01 + "]");
-		  
-		  Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_IDEA, columns, 
-				  selection, selectionArgs, null, null, null);
-		  
-		  Log.i(LOG_TAG, "QUERY RESULT: Found " + cursor.getCount() + " ideas for category '" + strCatName + "' (ID: " + catid + ")");
+		  connectionLock.readLock().lock();
+		  try {
+			  long start = Metrics.now();
+			  String[] columns = new String[]{KEY_ID + " _id",  KEY_NAME, KEY_COMPLETED, KEY_DELETED, KEY_REMINDER};
+			  Cursor cursor;
 		  
-		  // Debug: Show what we found
-		  if (cursor.getCount() > 0) {
-			  cursor.moveToFirst();
-			  do {
-				  Log.i(LOG_TAG, "Found idea: " + cursor.getString(cursor.getColumnIndex(KEY_NAME)));
-			  } while (cursor.moveToNext());
-			  cursor.moveToFirst(); // Reset cursor position
-		  } else {
-			  Log.w(LOG_TAG, "No ideas found for category " + strCatName + " - checking if ideas exist at all...");
-			  // Debug: Check if any ideas exist
-			  Cursor debugCursor = sqLiteDatabase.query(MYDATABASE_TABLE_IDEA, new String[]{KEY_ID, KEY_NAME, KEY_CID0, KEY_CID1, KEY_CID2, KEY_CID3, KEY_CID4}, null, null, null, null, null);
-			  Log.i(LOG_TAG, "Total ideas in database: " + debugCursor.getCount());
-			  if (debugCursor.getCount() > 0) {
-				  debugCursor.moveToFirst();
-				  do {
-					  Log.i(LOG_TAG, "Idea ID: " + debugCursor.getInt(0) + " Name: " + debugCursor.getString(1) + " CIDs: [" + debugCursor.getInt(2) + "," + debugCursor.getInt(3) + "," + debugCursor.getInt(4) + "," + debugCursor.getInt(5) + "," + debugCursor.getInt(6) + "]");
-				  } while (debugCursor.moveToNext());
+			  if (isBlindIndexBuilt()) {
+				  // Equality probes on the tag token and on the category id: an idea is in a category when
+				  // its text has the hashtag or its cid columns hold it (from the server, or a move).
+				  // Only the matching ideas are ever read and decoded.
+				  String token = String.valueOf(BlindIndex.token(BlindIndex.KIND_IDEA_TAG, strCatName));
+				  String catid = getCatIdFromCatName(strCatName);
+				  cursor = new DecodingCursor(sqLiteDatabase.query(MYDATABASE_TABLE_IDEA, columns, 
+						  KEY_ID + " IN (SELECT ref FROM " + BlindIndex.TABLE + " WHERE token = ? AND kind = " + BlindIndex.KIND_IDEA_TAG
+						  + " UNION SELECT ref FROM " + BlindIndex.TABLE + " WHERE token = ? AND kind = " + BlindIndex.KIND_IDEA_CID + ") AND deleted = ?",
+						  new String[]{token, catid, "0"}, null, null, null), KEY_NAME);
+			  } else {
+				  // index not built yet on this install, fall back to the category id columns
+				  String catid = getCatIdFromCatName(strCatName);
+				  String selection = "(" + KEY_CID0 + " = ? OR " +  
+								  KEY_CID1 + " = ? OR " + 
+								  KEY_CID2 + " = ? OR " + 
+								  KEY_CID3 + " = ? OR " + 
+								  KEY_CID4 + " = ?) AND deleted = ?";
+				  cursor = new DecodingCursor(sqLiteDatabase.query(MYDATABASE_TABLE_IDEA, columns, 
+						  selection, new String[]{catid, catid, catid, catid, catid, "0"}, null, null, null), KEY_NAME);
 			  }
-			  debugCursor.close();
-		  }
 		  
-		  return cursor;
+			  // Row text is decoded lazily by the adapter, don't walk the cursor here just to log it
+			  Log.i(LOG_TAG, "QUERY RESULT: Found " + cursor.getCount() + " ideas for category '" + strCatName + "'");
+			  Metrics.QUERY_IDEAS_BY_CAT.since(start); // after getCount, which runs the query
+		  
+			  return cursor;
 		
+		  } finally {
+			  connectionLock.readLock().unlock();
+		  }
 	}
 
 	
+	public static final int CAT_ORDER_NAME = 0;
+	public static final int CAT_ORDER_ACTIVE = 1; // most open ideas first
+	public static final int CAT_ORDER_RECENT = 2; // most recently touched first
+
 	public Cursor queryCats() {
-		// TODO Auto-generated method stub
-		  String[] columns = new String[]{KEY_ID + " _id",  KEY_CAT};
+		return queryCats(CAT_ORDER_NAME);
+	}
+
+	// Decoded category names by id, each with the text_token (keyed fingerprint of the name) of the
+	// row it was decoded from. Every category write sets the token, so a renamed or rewritten row
+	// no longer matches and is decoded again: the write invalidates its own entry, whoever makes it.
+	private static java.util.Map<Long, Object[]> catNames = new java.util.HashMap<Long, Object[]>();
+
+	/**
+	 * Categories with their idea counts: _id, cat, active, completed, touched. The counts come
+	 * from tblCategoryStats, so no ideas are read, and names are only decoded when they changed.
+	 */
+	public Cursor queryCats(final int order) {
+		  connectionLock.readLock().lock();
+		  try {
+			  Log.i(LOG_TAG, "Searching for categories in database." );
+			  long start = Metrics.now();
 		  
-		  Log.i(LOG_TAG, "Searching for categories in database." );
+			  // Names may be encrypted, so SQL can't order them; sort the (small) decoded list instead
+			  Cursor cursor = sqLiteDatabase.rawQuery("SELECT c." + KEY_ID + ", c." + KEY_CAT
+					  + ", IFNULL(s.active, 0), IFNULL(s.completed, 0), IFNULL(s.touched, 0), c." + KEY_TEXT_TOKEN + " FROM " + MYDATABASE_TABLE_CATEGORY
+					  + " c LEFT JOIN " + MYDATABASE_TABLE_CATEGORY_STATS + " s ON s.cid = c." + KEY_ID, null);
+			  final java.util.List<Object[]> rows = new java.util.ArrayList<Object[]>(cursor.getCount());
+			  java.util.Map<Long, Object[]> names = new java.util.HashMap<Long, Object[]>(cursor.getCount() * 2);
+			  java.util.Map<Long, Object[]> cached;
+			  synchronized (SQLCipherAdapter.class) {
+				  cached = catNames;
+			  }
+			  int decoded = 0;
+			  try {
+				  while (cursor.moveToNext()) {
+					  long id = cursor.getLong(0);
+					  Long token = cursor.isNull(5) ? null : cursor.getLong(5); // NULL: from before v7, never cached
+					  Object[] name = cached.get(id);
+					  if (name == null || token == null || !token.equals(name[0])) {
+						  name = new Object[]{token, readText(cursor, 1)};
+						  decoded++;
+					  }
+					  if (token != null) names.put(id, name);
+					  rows.add(new Object[]{id, name[1], cursor.getLong(2), cursor.getLong(3), cursor.getLong(4)});
+				  }
+			  } finally {
+				  cursor.close();
+			  }
+			  if (decoded > 0) {
+				  synchronized (SQLCipherAdapter.class) {
+					  catNames = names; // only the categories that still exist
+				  }
+			  }
+			  java.util.Collections.sort(rows, new java.util.Comparator<Object[]>() {
+				  @Override
+				  public int compare(Object[] a, Object[] b) {
+					  int result = 0;
+					  if (order == CAT_ORDER_ACTIVE) result = ((Long) b[2]).compareTo((Long) a[2]);
+					  else if (order == CAT_ORDER_RECENT) result = ((Long) b[4]).compareTo((Long) a[4]);
+					  return result != 0 ? result : ((String) a[1]).compareToIgnoreCase((String) b[1]);
+				  }
+			  });
 		  
-		  return sqLiteDatabase.query(MYDATABASE_TABLE_CATEGORY, columns, null, null, null, null, "lower(" + KEY_CAT + ")");
+			  MatrixCursor result = new MatrixCursor(new String[]{"_id", KEY_CAT, "active", "completed", "touched"}, rows.size());
+			  for (Object[] row : rows) result.addRow(row);
+			  Metrics.QUERY_CATS.since(start);
+			  return result;
 		
+		  } finally {
+			  connectionLock.readLock().unlock();
+		  }
+	}
+
+	/** Fill HashtagIndex from the categories and their stats unless it already is. */
+	public void loadHashtagIndexIfNeeded() {
+		if (HashtagIndex.get().isLoaded()) return;
+		Cursor cursor = queryCats();
+		try {
+			HashtagIndex.get().load(cursor);
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Category names starting with prefix (case-insensitive), for autocomplete. Uses the prefix
+	 * tokens, so only candidate categories are decoded.
+	 */
+	public java.util.List<String> queryCatNamesByPrefix(String prefix, int limit) {
+		connectionLock.readLock().lock();
+		try {
+			java.util.List<String> names = new java.util.ArrayList<String>();
+			if (prefix == null || prefix.length() == 0) return names;
+			long start = Metrics.now();
+			String lower = prefix.toLowerCase(java.util.Locale.US);
+			Cursor cursor = sqLiteDatabase.rawQuery("SELECT c." + KEY_CAT + " FROM " + MYDATABASE_TABLE_CATEGORY + " c JOIN "
+					+ BlindIndex.TABLE + " b ON b.ref = c." + KEY_ID + " WHERE b.token = ? AND b.kind = " + BlindIndex.KIND_CAT_PREFIX,
+					new String[]{String.valueOf(BlindIndex.prefixToken(prefix))});
+			try {
+				while (cursor.moveToNext() && names.size() < limit) {
+					String name = readText(cursor, 0);
+					// recheck: prefixes past the token length and the odd 64-bit collision
+					if (name.toLowerCase(java.util.Locale.US).startsWith(lower)) names.add(name);
+				}
+			} finally {
+				cursor.close();
+			}
+			Metrics.QUERY_CAT_NAMES_BY_PREFIX.since(start);
+			return names;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Ideas matching query despite typos, closest first: _id, name, completed, deleted like
+	 * queryIdeasByCatName, without the reminder. See FuzzySearch.
+	 */
+	public Cursor searchIdeas(String query, int limit) {
+		connectionLock.readLock().lock();
+		try {
+			long start = Metrics.now();
+			java.util.List<FuzzySearch.Hit> hits = FuzzySearch.ideas(sqLiteDatabase, query, limit);
+			MatrixCursor cursor = new MatrixCursor(new String[]{"_id", KEY_NAME, KEY_COMPLETED, KEY_DELETED}, hits.size());
+			for (FuzzySearch.Hit hit : hits) cursor.addRow(new Object[]{hit.id, hit.text, hit.completed ? 1 : 0, 0});
+			Metrics.QUERY_SEARCH_IDEAS.since(start);
+			return cursor;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+
+	/** Category names matching query despite typos, closest first. */
+	public java.util.List<String> searchCatNames(String query, int limit) {
+		connectionLock.readLock().lock();
+		try {
+			long start = Metrics.now();
+			java.util.List<String> names = new java.util.ArrayList<String>();
+			for (FuzzySearch.Hit hit : FuzzySearch.categories(sqLiteDatabase, query, limit)) names.add(hit.text);
+			Metrics.QUERY_SEARCH_CAT_NAMES.since(start);
+			return names;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+
+	private static final String STATE_BLIND_INDEX_BUILT = "blind_index_v2_built"; // v2 added trigram tokens
+	private static final int BLIND_INDEX_CHUNK = 200;
+	private static volatile Boolean blindIndexBuilt; // from tblState, forgotten when the file is replaced
+
+	// the marker is in the file (DatabaseState), so a restored backup from before the rebuild gets one
+	private boolean isBlindIndexBuilt() {
+		Boolean built = blindIndexBuilt;
+		if (built == null) {
+			DatabaseState.adopt(sqLiteDatabase, context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE), STATE_BLIND_INDEX_BUILT);
+			blindIndexBuilt = built = DatabaseState.isSet(sqLiteDatabase, STATE_BLIND_INDEX_BUILT);
+		}
+		return built;
+	}
+
+	/**
+	 * Build blind index tokens for rows stored before the index existed. Runs in id-ordered
+	 * chunks, one transaction each, so it never holds the write lock for long.
+	 */
+	public void rebuildBlindIndexIfNeeded() {
+		connectionLock.readLock().lock();
+		try {
+			openToWrite();
+			if (isBlindIndexBuilt()) return;
+			rebuildBlindIndex(MYDATABASE_TABLE_CATEGORY, KEY_CAT, false);
+			rebuildBlindIndex(MYDATABASE_TABLE_IDEA, KEY_NAME, true);
+			DatabaseState.put(sqLiteDatabase, STATE_BLIND_INDEX_BUILT, 1);
+			blindIndexBuilt = true;
+			Log.i(LOG_TAG, "Blind index built");
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Error building blind index: " + e.getMessage());
+			e.printStackTrace();
+		} finally {
+			connectionLock.readLock().unlock();
+		}
 	}
 
-	public String toggleCompleted(long id) {
-		return Iserver.getStringFromRemote("Body=!complete&id=" + id);
+	private void rebuildBlindIndex(String table, String column, boolean ideas) {
+		long lastId = Long.MIN_VALUE;
+		while (true) {
+			Cursor cursor = sqLiteDatabase.query(table, new String[]{KEY_ID, column}, KEY_ID + " > ?",
+					new String[]{String.valueOf(lastId)}, null, null, KEY_ID, String.valueOf(BLIND_INDEX_CHUNK));
+			int count = 0;
+			BlindIndex.Writer writer = new BlindIndex.Writer(sqLiteDatabase); // one per chunk, as for its transaction
+			sqLiteDatabase.beginTransaction();
+			try {
+				while (cursor.moveToNext()) {
+					lastId = cursor.getLong(0);
+					String text = readText(cursor, 1);
+					if (text == null) text = "";
+					if (ideas) writer.reindexIdea(lastId, text);
+					else writer.reindexCategory(lastId, text);
+					count++;
+				}
+				sqLiteDatabase.setTransactionSuccessful();
+			} finally {
+				sqLiteDatabase.endTransaction();
+				cursor.close();
+				writer.close();
+			}
+			if (count < BLIND_INDEX_CHUNK) return;
+		}
 	}
 
-	public String toggleDeleted(long id) {
-		return Iserver.getStringFromRemote("Body=!delete&id=" + id);
+	/** Flip an idea's completed flag here and queue the server's !complete toggle (PendingToggles). */
+	public boolean toggleCompleted(long id) {
+		connectionLock.readLock().lock();
+		try {
+			openToWrite();
+			if (updateIdeaRow(SQL_TOGGLE_COMPLETED, id) == 0) return false;
+			rescheduleReminders(false); // completed ideas don't remind
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Error toggling completed on " + id + ": " + e.getMessage());
+			return false;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+		PendingToggles.kick(context);
+		return true;
 	}
 
 	public String getIdeaNameFromId(final long intIdIdea) {
-		 String strRetVal = "Unknown";
-		 String strIdIdea = String.valueOf(intIdIdea);
-		  try {
-			Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_IDEA, new String[]{KEY_NAME}, 
-					  KEY_ID + "=?", new String[]{strIdIdea}, null, null, null);
-			//if (cursor.getCount()=0) return "";
-			cursor.moveToFirst();
-			return cursor.getString(0); // first one is the bingo
+		connectionLock.readLock().lock();
+		try {
+			return textById(SQL_IDEA_NAME_BY_ID, intIdIdea, "Unknown");
 		} catch (Exception e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			connectionLock.readLock().unlock();
 		}
-		return strRetVal;
+		return "Unknown";
 	}
 	
 	/**
 	 * Get the most recent idea text for widget display
 	 */
 	public String getMostRecentIdeaText() {
+		long start = Metrics.now();
+		connectionLock.readLock().lock();
 		try {
 			String[] columns = new String[]{KEY_NAME};
 			Cursor cursor = sqLiteDatabase.query(MYDATABASE_TABLE_IDEA, columns, 
-					KEY_DELETED + " = ?", new String[]{"0"}, 
+					KEY_DELETED + " = 0", null, // literal, so idx_idea_live_created applies
 					null, null, KEY_CREATED + " DESC", "1");
 					
 			if (cursor != null && cursor.getCount() > 0) {
 				cursor.moveToFirst();
-				String result = cursor.getString(0);
+				String result = readText(cursor, 0);
 				cursor.close();
 				return result;
 			}
@@ -649,6 +1588,9 @@ private void extractAndSaveCategories(String ideaText) {
 		} catch (Exception e) {
 			Log.e(LOG_TAG, "Error getting most recent idea: " + e.getMessage());
 			e.printStackTrace();
+		} finally {
+			Metrics.QUERY_MOST_RECENT.since(start);
+			connectionLock.readLock().unlock();
 		}
 		return null;
 	}
@@ -657,36 +1599,77 @@ private void extractAndSaveCategories(String ideaText) {
 	 * Update an existing idea by ID
 	 */
 	public boolean updateIdeaById(long ideaId, String newText) {
+		long start = Metrics.now();
+		Tracer.Span span = Tracer.begin("save.updateIdeaById");
+		connectionLock.readLock().lock();
 		try {
 			Log.i(LOG_TAG, "Updating idea ID " + ideaId + " with text: " + newText);
 			openToWrite();
-			
-			String timestamp = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.US).format(new java.util.Date());
-			
-			// Extract new categories from updated text
-			java.util.List<String> categoryIds = extractAndSaveCategoriesWithIds(newText);
-			
-			ContentValues contentValues = new ContentValues();
-			contentValues.put(KEY_NAME, newText);
-			contentValues.put(KEY_UPDATED, timestamp);
-			
-			// Update category associations
-			contentValues.put(KEY_CID0, categoryIds.size() > 0 ? Integer.parseInt(categoryIds.get(0)) : 0);
-			contentValues.put(KEY_CID1, categoryIds.size() > 1 ? Integer.parseInt(categoryIds.get(1)) : 0);
-			contentValues.put(KEY_CID2, categoryIds.size() > 2 ? Integer.parseInt(categoryIds.get(2)) : 0);
-			contentValues.put(KEY_CID3, categoryIds.size() > 3 ? Integer.parseInt(categoryIds.get(3)) : 0);
-			contentValues.put(KEY_CID4, categoryIds.size() > 4 ? Integer.parseInt(categoryIds.get(4)) : 0);
-			
-			int rowsAffected = sqLiteDatabase.update(MYDATABASE_TABLE_IDEA, contentValues, 
-					KEY_ID + " = ?", new String[]{String.valueOf(ideaId)});
-					
-			close();
-			return rowsAffected > 0;
+			boolean updated;
+			String oldText;
+			sqLiteDatabase.beginTransaction();
+			try {
+				oldText = textById(SQL_IDEA_NAME_BY_ID, ideaId, "");
+				updated = rewriteIdeaText(ideaId, newText) > 0;
+				if (updated) indexIdea(ideaId, newText);
+				sqLiteDatabase.setTransactionSuccessful();
+			} finally {
+				Tracer.Span commit = Tracer.begin("save.commit");
+				sqLiteDatabase.endTransaction();
+				commit.end();
+				CategoryDetailLoader.get().invalidate(); // once committed, so no load caches the old rows
+			}
+			if (updated) PostSaveHooks.saved(context, ideaId, newText, oldText);
+			return updated;
 			
 		} catch (Exception e) {
 			Log.e(LOG_TAG, "Error updating idea: " + e.getMessage());
 			e.printStackTrace();
 			return false;
+		} finally {
+			Metrics.SAVE_UPDATE.since(start);
+			span.end();
+			connectionLock.readLock().unlock();
+		}
+	}
+	
+	// new text for an idea, with the categories that follow from it; returns the rows changed. The caller
+	// brings the transaction and the idea's blind index tokens.
+	private int rewriteIdeaText(long ideaId, String newText) {
+		// Extract new categories from updated text
+		long[] cids = cidsOf(extractAndSaveCategoriesWithIds(newText));
+		
+		int rowsAffected;
+		Tracer.Span write = Tracer.begin("save.writeIdea");
+		StatementCache cache = statements();
+		synchronized (cache) {
+			SQLiteStatement statement = cache.get(SQL_UPDATE_IDEA_TEXT);
+			bindText(statement, 1, 2, newText);
+			statement.bindLong(3, System.currentTimeMillis());
+			for (int i = 0; i < cids.length; i++) statement.bindLong(4 + i, cids[i]); // category associations
+			statement.bindLong(9, BlindIndex.fingerprint(newText));
+			statement.bindLong(10, ideaId);
+			long io = MainThreadIo.begin();
+			long executed = System.nanoTime();
+			try {
+				rowsAffected = statement.executeUpdateDelete();
+			} finally {
+				MainThreadIo.end(io, MainThreadIo.SQL, SQL_UPDATE_IDEA_TEXT);
+			}
+			SlowQueryLog.record(sqLiteDatabase, SQL_UPDATE_IDEA_TEXT, null, rowsAffected, System.nanoTime() - executed);
+		}
+		write.end();
+		return rowsAffected;
+	}
+	
+	// the idea's blind index tokens, which a category's list and search go by; in the caller's
+	// transaction, so the idea is never committed without them
+	private void indexIdea(long ideaId, String text) {
+		Tracer.Span span = Tracer.begin("save.blindIndex");
+		try {
+			BlindIndex.indexIdea(sqLiteDatabase, ideaId, text);
+		} finally {
+			span.end();
 		}
 	}
 	
@@ -694,46 +1677,316 @@ private void extractAndSaveCategories(String ideaText) {
 	 * Delete an idea by ID (soft delete - set deleted=1)
 	 */
 	public boolean deleteIdeaById(long ideaId) {
+		connectionLock.readLock().lock();
 		try {
 			Log.i(LOG_TAG, "Deleting idea ID: " + ideaId);
 			openToWrite();
 			
-			ContentValues contentValues = new ContentValues();
-			contentValues.put(KEY_DELETED, 1); // Soft delete
-			contentValues.put(KEY_UPDATED, new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.US).format(new java.util.Date()));
-			
-			int rowsAffected = sqLiteDatabase.update(MYDATABASE_TABLE_IDEA, contentValues, 
-					KEY_ID + " = ?", new String[]{String.valueOf(ideaId)});
-					
-			close();
+			int rowsAffected = updateIdeaRow(SQL_SET_DELETED, ideaId); // Soft delete, the server's !delete queued
+			if (rowsAffected > 0) {
+				rescheduleReminders(false);
+				PendingToggles.kick(context);
+			}
 			return rowsAffected > 0;
 			
 		} catch (Exception e) {
 			Log.e(LOG_TAG, "Error deleting idea: " + e.getMessage());
 			e.printStackTrace();
 			return false;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+	
+	// === bulk actions on selected ideas: one statement or transaction here, the server's toggles queued ===
+	
+	/**
+	 * Mark ideas completed (or not) in one UPDATE and queue the server's !complete toggle for each
+	 * idea that actually changed; PendingToggles sends them in the background. Returns the rows
+	 * changed, -1 if the update failed.
+	 */
+	public int setCompleted(long[] ids, boolean completed) {
+		if (ids.length == 0) return 0;
+		long[] changed;
+		connectionLock.readLock().lock();
+		try {
+			openToWrite();
+			changed = changeIdeas(KEY_COMPLETED + " = " + (completed ? 1 : 0) + ", "
+					+ KEY_DIRTY + " = " + toggleQueued(DIRTY_COMPLETED, DIRTY_SEND_COMPLETED),
+					ids, KEY_COMPLETED + " != " + (completed ? 1 : 0));
+			if (changed.length > 0) rescheduleReminders(false); // completed ideas don't remind
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Error completing " + ids.length + " ideas: " + e.getMessage());
+			e.printStackTrace();
+			return -1;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+		if (changed.length > 0) PendingToggles.kick(context);
+		return changed.length;
+	}
+	
+	/** Soft delete ideas in one UPDATE, queueing the !delete toggle for each one changed. Returns the rows changed, -1 on failure. */
+	public int deleteIdeas(long[] ids) {
+		if (ids.length == 0) return 0;
+		long[] changed;
+		connectionLock.readLock().lock();
+		try {
+			openToWrite();
+			changed = changeIdeas(KEY_DELETED + " = 1, " + KEY_DIRTY + " = " + KEY_DIRTY + " | " + (DIRTY_DELETED | DIRTY_SEND_DELETED),
+					ids, KEY_DELETED + " = 0");
+			if (changed.length > 0) rescheduleReminders(false);
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Error deleting " + ids.length + " ideas: " + e.getMessage());
+			e.printStackTrace();
+			return -1;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+		if (changed.length > 0) PendingToggles.kick(context);
+		return changed.length;
+	}
+	
+	// the ids among ids that match where, then updateIdeas on just those, in one transaction: the
+	// server's endpoints toggle, so exactly the rows that changed here may be queued
+	private long[] changeIdeas(String set, long[] ids, String where) {
+		sqLiteDatabase.beginTransaction();
+		try {
+			Cursor cursor = sqLiteDatabase.rawQuery("SELECT " + KEY_ID + " FROM " + MYDATABASE_TABLE_IDEA + " WHERE "
+					+ KEY_ID + " IN (" + joinIds(ids) + ") AND " + where, null);
+			long[] changing;
+			try {
+				changing = new long[cursor.getCount()];
+				for (int i = 0; cursor.moveToNext(); i++) changing[i] = cursor.getLong(0);
+			} finally {
+				cursor.close();
+			}
+			if (changing.length > 0) updateIdeas(set, changing, where);
+			sqLiteDatabase.setTransactionSuccessful();
+			return changing;
+		} finally {
+			sqLiteDatabase.endTransaction();
+		}
+	}
+	
+	private static final int[] SEND_BITS = {DIRTY_SEND_DELETED, DIRTY_SEND_COMPLETED};
+	private static final String[] SEND_COMMANDS = {"!delete", "!complete"};
+	
+	/**
+	 * Send the toggles queued by local changes, Body=command&id= each, for PendingToggles. A
+	 * toggle's bit clears once the server answers; its DIRTY_ bit stays until a sync brings the
+	 * change back. Nothing is held while a request is out. Each is sent under serverOrder, so a
+	 * sync never merges a page fetched before a toggle it has just seen sent (see SyncMerge).
+	 * @return false at the first empty answer (offline, an HTTP error); the rest wait for a retry
+	 */
+	public boolean sendQueuedToggles() {
+		long[] ids;
+		int[] dirty;
+		connectionLock.readLock().lock();
+		try {
+			openToRead();
+			Cursor cursor = sqLiteDatabase.rawQuery(SQL_TOGGLES_QUEUED, null);
+			try {
+				ids = new long[cursor.getCount()];
+				dirty = new int[ids.length];
+				for (int i = 0; cursor.moveToNext(); i++) {
+					ids[i] = cursor.getLong(0);
+					dirty[i] = cursor.getInt(1);
+				}
+			} finally {
+				cursor.close();
+			}
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Error reading queued toggles: " + e.getMessage());
+			return false;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+		for (int i = 0; i < ids.length; i++) {
+			for (int b = 0; b < SEND_BITS.length; b++) {
+				if ((dirty[i] & SEND_BITS[b]) == 0) continue;
+				synchronized (serverOrder) {
+					if (!stillQueued(ids[i], SEND_BITS[b])) continue; // undone, or a sync saw the server agree
+					if (Iserver.getStringFromRemote("Body=" + SEND_COMMANDS[b] + "&id=" + ids[i]).length() == 0) {
+						Log.w(LOG_TAG, "Server did not answer " + SEND_COMMANDS[b] + " for idea " + ids[i]
+								+ ", " + (ids.length - i) + " ideas still queued");
+						return false;
+					}
+					Metrics.TOGGLES_SENT.inc();
+					clearQueued(ids[i], SEND_BITS[b]);
+				}
+			}
+		}
+		if (ids.length > 0) Log.i(LOG_TAG, "Sent the queued toggles of " + ids.length + " ideas");
+		return true;
+	}
+	
+	private boolean stillQueued(long id, int sendBit) {
+		connectionLock.readLock().lock();
+		try {
+			openToRead();
+			return DatabaseUtils.longForQuery(sqLiteDatabase, "SELECT COUNT(*) FROM " + MYDATABASE_TABLE_IDEA + " WHERE "
+					+ KEY_ID + " = ? AND (" + KEY_DIRTY + " & " + sendBit + ") <> 0", new String[]{String.valueOf(id)}) > 0;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+	
+	private void clearQueued(long id, int sendBit) {
+		connectionLock.readLock().lock();
+		try {
+			openToWrite();
+			sqLiteDatabase.execSQL("UPDATE " + MYDATABASE_TABLE_IDEA + " SET " + KEY_DIRTY + " = " + KEY_DIRTY + " & ~" + sendBit
+					+ " WHERE " + KEY_ID + " = ?", new Object[]{id});
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Replace hashtag fromTag with toTag in each idea's text, or just add toTag when fromTag is
+	 * null or not there: moving ideas to a category, or tagging them. All of it is one transaction.
+	 * The text is encrypted per row, so unlike the flags it can't be one UPDATE. The server has no
+	 * endpoint for an edit and sync only downloads, so the new texts stay on this device, marked
+	 * dirty so that sync doesn't overwrite them. Returns the new texts in ids' order,
+	 * null where an idea was missing or already tagged; null altogether if it failed.
+	 */
+	public String[] retagIdeas(long[] ids, String fromTag, String toTag) {
+		String[] texts = new String[ids.length];
+		connectionLock.readLock().lock();
+		try {
+			openToWrite();
+			BlindIndex.Writer tokens = new BlindIndex.Writer(sqLiteDatabase);
+			sqLiteDatabase.beginTransaction();
+			try {
+				for (int i = 0; i < ids.length; i++) {
+					String text = textById(SQL_IDEA_NAME_BY_ID, ids[i], null);
+					if (text == null) continue;
+					String retagged = retagText(text, fromTag, toTag);
+					if (retagged.equals(text) || rewriteIdeaText(ids[i], retagged) == 0) continue;
+					tokens.reindexIdea(ids[i], retagged); // in the commit: the page diff assumes it
+					texts[i] = retagged;
+				}
+				sqLiteDatabase.setTransactionSuccessful();
+			} finally {
+				sqLiteDatabase.endTransaction();
+				tokens.close();
+				CategoryDetailLoader.get().invalidate(); // once committed, or rolled back
+			}
+			for (String retagged : texts) {
+				if (retagged != null) {
+					HashtagIndex.get().used(toTag, System.currentTimeMillis());
+					break;
+				}
+			}
+			return texts;
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Error retagging " + ids.length + " ideas: " + e.getMessage());
+			e.printStackTrace();
+			return null;
+		} finally {
+			connectionLock.readLock().unlock();
+		}
+	}
+	
+	/** text with #fromTag (case aside) replaced by #toTag, or #toTag appended unless already there. */
+	static String retagText(String text, String fromTag, String toTag) {
+		boolean tagged = false;
+		for (String tag : BlindIndex.extractTags(text)) tagged |= tag.equalsIgnoreCase(toTag);
+		java.util.regex.Matcher matcher = BlindIndex.HASHTAG.matcher(text);
+		StringBuffer retagged = new StringBuffer();
+		while (matcher.find()) {
+			if (fromTag == null || !matcher.group().substring(1).equalsIgnoreCase(fromTag)) continue;
+			matcher.appendReplacement(retagged, tagged ? "" : java.util.regex.Matcher.quoteReplacement("#" + toTag));
+			while (tagged && retagged.length() > 0 && retagged.charAt(retagged.length() - 1) == ' ') retagged.setLength(retagged.length() - 1);
+			tagged = true;
 		}
+		matcher.appendTail(retagged);
+		if (!tagged) retagged.append(" #").append(toTag);
+		return retagged.toString().trim();
+	}
+	
+	// UPDATE tblIdea SET set, updated = now WHERE _id IN (ids) AND where: one statement however many
+	// ids; they are numbers, so inline rather than bound, and not limited to SQLite's 999 parameters
+	private int updateIdeas(String set, long[] ids, String where) {
+		String sql = "UPDATE " + MYDATABASE_TABLE_IDEA + " SET " + set + ", " + KEY_UPDATED + " = ? WHERE "
+				+ KEY_ID + " IN (" + joinIds(ids) + ") AND " + where;
+		SQLiteStatement statement = sqLiteDatabase.compileStatement(sql);
+		try {
+			statement.bindLong(1, System.currentTimeMillis());
+			long io = MainThreadIo.begin();
+			long start = System.nanoTime();
+			int changed;
+			try {
+				changed = statement.executeUpdateDelete();
+			} finally {
+				MainThreadIo.end(io, MainThreadIo.SQL, sql);
+			}
+			SlowQueryLog.record(sqLiteDatabase, sql, null, changed, System.nanoTime() - start);
+			if (changed > 0) CategoryDetailLoader.get().invalidate();
+			return changed;
+		} finally {
+			statement.close();
+		}
+	}
+	
+	private static String joinIds(long[] ids) {
+		StringBuilder joined = new StringBuilder(ids.length * 9);
+		for (int i = 0; i < ids.length; i++) {
+			if (i > 0) joined.append(',');
+			joined.append(ids[i]);
+		}
+		return joined.toString();
 	}
 	
 	/**
 	 * Delete a category by ID (soft delete - remove from category table)
 	 */
 	public boolean deleteCategoryById(String categoryId) {
+		connectionLock.readLock().lock();
 		try {
 			Log.i(LOG_TAG, "Deleting category ID: " + categoryId);
 			openToWrite();
 			
 			// For categories, we can do a hard delete since they're just hashtags
-			int rowsAffected = sqLiteDatabase.delete(MYDATABASE_TABLE_CATEGORY, 
-					KEY_ID + " = ?", new String[]{categoryId});
-					
-			close();
+			int rowsAffected;
+			long ref = Long.parseLong(categoryId);
+			sqLiteDatabase.beginTransaction();
+			try {
+				rowsAffected = sqLiteDatabase.delete(MYDATABASE_TABLE_CATEGORY, 
+						KEY_ID + " = ?", new String[]{categoryId});
+				if (rowsAffected > 0) {
+					// known gone, so the ideas' ids for it go too (the triggers move stats and tokens)
+					StringBuilder set = new StringBuilder();
+					StringBuilder where = new StringBuilder();
+					for (String cid : new String[]{KEY_CID0, KEY_CID1, KEY_CID2, KEY_CID3, KEY_CID4}) {
+						if (set.length() > 0) {
+							set.append(", ");
+							where.append(" OR ");
+						}
+						set.append(cid).append(" = CASE WHEN ").append(cid).append(" = ").append(ref).append(" THEN 0 ELSE ").append(cid).append(" END");
+						where.append(cid).append(" = ").append(ref);
+					}
+					sqLiteDatabase.execSQL("UPDATE " + MYDATABASE_TABLE_IDEA + " SET " + set + " WHERE " + where);
+				}
+				BlindIndex.remove(sqLiteDatabase, BlindIndex.KIND_CAT_NAME, ref);
+				BlindIndex.remove(sqLiteDatabase, BlindIndex.KIND_CAT_PREFIX, ref);
+				BlindIndex.remove(sqLiteDatabase, BlindIndex.KIND_CAT_TRIGRAM, ref);
+				sqLiteDatabase.setTransactionSuccessful();
+			} finally {
+				sqLiteDatabase.endTransaction();
+			}
+			HashtagIndex.get().remove(ref);
+			CategoryDetailLoader.get().invalidate();
+			
 			return rowsAffected > 0;
 			
 		} catch (Exception e) {
 			Log.e(LOG_TAG, "Error deleting category: " + e.getMessage());
 			e.printStackTrace();
 			return false;
+		} finally {
+			connectionLock.readLock().unlock();
 		}
 	}
 
@@ -0,0 +1,341 @@
+package com.promethylhosting.id34;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * In-place schema upgrades, one step per database version.
+ *
+ * Step n takes a version n-1 database to version n with ALTERs and CREATE ... IF NOT EXISTS,
+ * so data and indexes survive an upgrade and nothing has to be downloaded again. Steps run in
+ * order, each in its own transaction nested in the one SQLiteOpenHelper holds around onUpgrade,
+ * so a failing step leaves the database at its old version. Fresh installs create the
+ * BASE_VERSION tables and run the same steps, which keeps both paths on one schema.
+ *
+ * To change the schema: bump SQLCipherAdapter.MYDATABASE_VERSION and append a step for it.
+ * Never edit a step that has shipped. Once a version ships, add its database to
+ * scripts/make_schema_fixtures.py; SchemaMigrationsTest upgrades every one of them.
+ */
+public class SchemaMigrations {
+
+	/** Oldest version with an in-place path; anything older is rebuilt. */
+	public static final int BASE_VERSION = 2;
+
+	private static final String LOG_TAG = "id34";
+
+	public abstract static class Step {
+		final int version;
+		final String description;
+
+		Step(int version, String description) {
+			this.version = version;
+			this.description = description;
+		}
+
+		abstract void apply(SQLiteDatabase db);
+	}
+
+	private static final Step[] STEPS = {
+		new Step(3, "codec dictionary, blind index, key_ver columns, tblResponses") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				// until v3 these were patched in by onOpen, so an install may have any of them already
+				db.execSQL(IdeaTextCodec.SCRIPT_CREATE_DICT);
+				db.execSQL(BlindIndex.SCRIPT_CREATE);
+				db.execSQL(BlindIndex.SCRIPT_CREATE_INDEX_TOKEN);
+				db.execSQL(BlindIndex.SCRIPT_CREATE_INDEX_REF);
+				addColumnIfMissing(db, SQLCipherAdapter.MYDATABASE_TABLE_IDEA, SQLCipherAdapter.KEY_KEY_VER, "INTEGER NOT NULL default 0");
+				addColumnIfMissing(db, SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY, SQLCipherAdapter.KEY_KEY_VER, "INTEGER NOT NULL default 0");
+				// the v2 create script had this after another statement, and execSQL only runs the first
+				db.execSQL("CREATE TABLE IF NOT EXISTS `" + SQLCipherAdapter.MYDATABASE_TABLE_RESPONSES + "` (\n"
+						+ "  `msg` varchar(25) NOT NULL\n"
+						+ ");");
+			}
+		},
+		new Step(4, "tblCategoryStats and its triggers") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				createCategoryStats(db, "NOT NULL default ''");
+				createStatsTriggers(db);
+				seedCategoryStats(db);
+			}
+		},
+		new Step(5, "epoch-ms integer timestamps, created/updated indexes") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				// tblCategoryStats is derived; drop it (and its triggers, which would fire on every
+				// row below) and build it again with an integer touched column
+				db.execSQL("DROP TRIGGER IF EXISTS stats_idea_insert");
+				db.execSQL("DROP TRIGGER IF EXISTS stats_idea_delete");
+				db.execSQL("DROP TRIGGER IF EXISTS stats_idea_update");
+				db.execSQL("DROP TABLE IF EXISTS `" + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS + "`");
+
+				// the columns are declared `timestamp` (NUMERIC affinity), so integers written to them
+				// are stored as integers; no table rebuild needed
+				db.execSQL("UPDATE `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA + "` SET "
+						+ SQLCipherAdapter.KEY_CREATED + " = " + epochMillis(SQLCipherAdapter.KEY_CREATED) + ", "
+						+ SQLCipherAdapter.KEY_UPDATED + " = " + epochMillis(SQLCipherAdapter.KEY_UPDATED) + ", "
+						+ SQLCipherAdapter.KEY_REMINDER + " = " + epochMillis(SQLCipherAdapter.KEY_REMINDER));
+				db.execSQL("UPDATE `" + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY + "` SET "
+						+ SQLCipherAdapter.KEY_UPDATED + " = " + epochMillis(SQLCipherAdapter.KEY_UPDATED));
+				db.execSQL("CREATE INDEX IF NOT EXISTS idx_idea_updated ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+						+ "` (`" + SQLCipherAdapter.KEY_UPDATED + "`)");
+				db.execSQL("CREATE INDEX IF NOT EXISTS idx_idea_created ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+						+ "` (`" + SQLCipherAdapter.KEY_CREATED + "`)");
+
+				createCategoryStats(db, "INTEGER NOT NULL default 0");
+				createStatsTriggers(db);
+				seedCategoryStats(db);
+			}
+		},
+		new Step(6, "reminder index") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				// ReminderScheduler's next-due probe and due-range scan. Not partial: that needs SQLite
+				// 3.8 (API 21), and the range on reminder skips the unset (0) rows anyway.
+				db.execSQL("CREATE INDEX IF NOT EXISTS idx_idea_reminder ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+						+ "` (`" + SQLCipherAdapter.KEY_REMINDER + "`)");
+			}
+		},
+		new Step(7, "dirty, synced and text_token columns for SyncMerge") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				String[] tables = {SQLCipherAdapter.MYDATABASE_TABLE_IDEA, SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY};
+				for (String table : tables) {
+					addColumnIfMissing(db, table, SQLCipherAdapter.KEY_DIRTY, "INTEGER NOT NULL default 0");
+					addColumnIfMissing(db, table, SQLCipherAdapter.KEY_SYNCED, "INTEGER NOT NULL default 0");
+					// NULL until the row is next written: the first server version after this re-sends the text once
+					addColumnIfMissing(db, table, SQLCipherAdapter.KEY_TEXT_TOKEN, "INTEGER");
+					// everything so far came from the server or has been overwritten by it
+					db.execSQL("UPDATE `" + table + "` SET " + SQLCipherAdapter.KEY_SYNCED + " = " + SQLCipherAdapter.KEY_UPDATED);
+				}
+			}
+		},
+		new Step(8, "partial indexes over live ideas") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				createLiveIndexes(db);
+			}
+		},
+		new Step(9, "idea category ids in the blind index, and their triggers") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				createCidTriggers(db);
+				seedCidTokens(db);
+			}
+		},
+		new Step(10, "key_ver for codec dictionaries") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				// 0 = stored plaintext; IdeaTextCodec.seal() encrypts those once the field key is loaded
+				addColumnIfMissing(db, IdeaTextCodec.TABLE_DICT, SQLCipherAdapter.KEY_KEY_VER, "INTEGER NOT NULL default 0");
+			}
+		},
+		new Step(11, "tblState for the markers of jobs run over this file") {
+			@Override
+			void apply(SQLiteDatabase db) {
+				// the jobs move their markers over from prefs on first use (DatabaseState.adopt)
+				db.execSQL(DatabaseState.SCRIPT_CREATE);
+			}
+		},
+	};
+
+	private static final String[] CIDS = {SQLCipherAdapter.KEY_CID0, SQLCipherAdapter.KEY_CID1, SQLCipherAdapter.KEY_CID2,
+			SQLCipherAdapter.KEY_CID3, SQLCipherAdapter.KEY_CID4};
+
+	private static void createCategoryStats(SQLiteDatabase db, String touchedDefinition) {
+		db.execSQL("CREATE TABLE IF NOT EXISTS `" + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS + "` (\n"
+				+ "  `cid` INTEGER PRIMARY KEY NOT NULL,\n"
+				+ "  `active` INTEGER NOT NULL default 0,\n"    // not deleted, not completed
+				+ "  `completed` INTEGER NOT NULL default 0,\n" // not deleted, completed
+				+ "  `touched` " + touchedDefinition + "\n"     // latest `updated` of any idea in it
+				+ ");");
+	}
+
+	private static void createStatsTriggers(SQLiteDatabase db) {
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS stats_idea_insert AFTER INSERT ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` BEGIN " + statsAdd("NEW") + " END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS stats_idea_delete AFTER DELETE ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` BEGIN " + statsRemove("OLD") + " END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS stats_idea_update AFTER UPDATE OF "
+				+ SQLCipherAdapter.KEY_CID0 + ", " + SQLCipherAdapter.KEY_CID1 + ", " + SQLCipherAdapter.KEY_CID2 + ", "
+				+ SQLCipherAdapter.KEY_CID3 + ", " + SQLCipherAdapter.KEY_CID4 + ", " + SQLCipherAdapter.KEY_DELETED + ", "
+				+ SQLCipherAdapter.KEY_COMPLETED + ", " + SQLCipherAdapter.KEY_UPDATED + " ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` BEGIN " + statsRemove("OLD") + " " + statsAdd("NEW") + " END");
+	}
+
+	// existing ideas, counted once per distinct category like the triggers do
+	private static void seedCategoryStats(SQLiteDatabase db) {
+		StringBuilder links = new StringBuilder();
+		for (String cid : CIDS) {
+			if (links.length() > 0) links.append(" UNION ");
+			links.append("SELECT ").append(SQLCipherAdapter.KEY_ID).append(", ").append(cid).append(" AS cid, ")
+				.append(SQLCipherAdapter.KEY_DELETED).append(", ").append(SQLCipherAdapter.KEY_COMPLETED).append(", ")
+				.append(SQLCipherAdapter.KEY_UPDATED).append(" FROM `").append(SQLCipherAdapter.MYDATABASE_TABLE_IDEA).append('`');
+		}
+		db.execSQL("DELETE FROM `" + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS + "`");
+		db.execSQL("INSERT INTO `" + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS + "` (cid, active, completed, touched)"
+				+ " SELECT cid, SUM(" + active("") + "), SUM(" + completed("") + "), MAX(" + SQLCipherAdapter.KEY_UPDATED + ")"
+				+ " FROM (" + links + ") WHERE cid <> 0 GROUP BY cid");
+	}
+
+	// BlindIndex.KIND_IDEA_CID rows follow cid0..cid4 of every idea, whoever writes them
+	private static void createCidTriggers(SQLiteDatabase db) {
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS cid_idea_insert AFTER INSERT ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` BEGIN " + cidTokensAdd("NEW") + " END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS cid_idea_delete AFTER DELETE ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` BEGIN " + cidTokensRemove("OLD") + " END");
+		db.execSQL("CREATE TRIGGER IF NOT EXISTS cid_idea_update AFTER UPDATE OF "
+				+ SQLCipherAdapter.KEY_CID0 + ", " + SQLCipherAdapter.KEY_CID1 + ", " + SQLCipherAdapter.KEY_CID2 + ", "
+				+ SQLCipherAdapter.KEY_CID3 + ", " + SQLCipherAdapter.KEY_CID4 + " ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` BEGIN " + cidTokensRemove("OLD") + " " + cidTokensAdd("NEW") + " END");
+	}
+
+	private static void seedCidTokens(SQLiteDatabase db) {
+		StringBuilder links = new StringBuilder();
+		for (String cid : CIDS) {
+			if (links.length() > 0) links.append(" UNION ");
+			links.append("SELECT ").append(SQLCipherAdapter.KEY_ID).append(" AS ref, ").append(cid).append(" AS c FROM `")
+				.append(SQLCipherAdapter.MYDATABASE_TABLE_IDEA).append('`');
+		}
+		db.execSQL("DELETE FROM " + BlindIndex.TABLE + " WHERE kind = " + BlindIndex.KIND_IDEA_CID);
+		db.execSQL("INSERT INTO " + BlindIndex.TABLE + " (token, kind, ref) SELECT c, " + BlindIndex.KIND_IDEA_CID
+				+ ", ref FROM (" + links + ") WHERE c <> 0");
+	}
+
+	// UNION drops a category listed twice, like statsAdd's IN
+	private static String cidTokensAdd(String row) {
+		StringBuilder cids = new StringBuilder();
+		for (int i = 0; i < CIDS.length; i++) {
+			if (i > 0) cids.append(" UNION ");
+			cids.append("SELECT ").append(row).append('.').append(CIDS[i]).append(" AS c");
+		}
+		return "INSERT INTO " + BlindIndex.TABLE + " (token, kind, ref) SELECT c, " + BlindIndex.KIND_IDEA_CID + ", "
+				+ row + "." + SQLCipherAdapter.KEY_ID + " FROM (" + cids + ") WHERE c <> 0;";
+	}
+
+	private static String cidTokensRemove(String row) {
+		return "DELETE FROM " + BlindIndex.TABLE + " WHERE ref = " + row + "." + SQLCipherAdapter.KEY_ID
+				+ " AND kind = " + BlindIndex.KIND_IDEA_CID + ";";
+	}
+
+	// A v4 text timestamp column as epoch ms. SimpleDateFormat wrote it in the device's zone, so it
+	// is read back as local time ('utc' converts from it). The old 1970-01-01 default, and anything
+	// that doesn't parse, becomes TimeFormat.NONE.
+	private static String epochMillis(String column) {
+		return "CASE WHEN typeof(" + column + ") <> 'text' THEN " + column
+				+ " WHEN " + column + " < '1970-01-02' THEN " + TimeFormat.NONE
+				+ " ELSE IFNULL(CAST(strftime('%s', " + column + ", 'utc') AS INTEGER) * 1000, " + TimeFormat.NONE + ") END";
+	}
+
+	// 1 if the idea counts as active/completed, columns prefixed with prefix ("NEW.", "OLD." or "")
+	private static String active(String prefix) {
+		return "(" + prefix + SQLCipherAdapter.KEY_DELETED + " = 0 AND " + prefix + SQLCipherAdapter.KEY_COMPLETED + " = 0)";
+	}
+
+	private static String completed(String prefix) {
+		return "(" + prefix + SQLCipherAdapter.KEY_DELETED + " = 0 AND " + prefix + SQLCipherAdapter.KEY_COMPLETED + " <> 0)";
+	}
+
+	// Trigger statements adding/removing one idea row (NEW or OLD) to/from the stats of each of its
+	// categories. IN matches a category listed twice once, so an idea never counts double. Missing
+	// stats rows are created without a conflict clause, since inside a trigger an outer INSERT OR
+	// REPLACE would override it and reset the row.
+	private static String statsAdd(String row) {
+		StringBuilder ensure = new StringBuilder("INSERT INTO `" + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS + "` (cid) SELECT c FROM (");
+		for (int i = 0; i < CIDS.length; i++) {
+			if (i > 0) ensure.append(" UNION ");
+			ensure.append("SELECT ").append(row).append('.').append(CIDS[i]).append(" AS c");
+		}
+		ensure.append(") WHERE c <> 0 AND c NOT IN (SELECT cid FROM `").append(SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS).append("`)");
+		return ensure + "; " + statsUpdate(row, "+") + ", touched = max(touched, " + row + "." + SQLCipherAdapter.KEY_UPDATED + ")"
+				+ statsWhere(row) + ";";
+	}
+
+	private static String statsRemove(String row) {
+		return statsUpdate(row, "-") + statsWhere(row) + ";";
+	}
+
+	private static String statsUpdate(String row, String sign) {
+		return "UPDATE `" + SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY_STATS + "` SET active = active " + sign + " "
+				+ active(row + ".") + ", completed = completed " + sign + " " + completed(row + ".");
+	}
+
+	private static String statsWhere(String row) {
+		StringBuilder where = new StringBuilder(" WHERE cid IN (");
+		for (int i = 0; i < CIDS.length; i++) {
+			if (i > 0) where.append(", ");
+			where.append(row).append('.').append(CIDS[i]);
+		}
+		return where.append(')').toString();
+	}
+
+	/**
+	 * Upgrade db from version from to version to.
+	 * @return false if from is older than BASE_VERSION and the caller has to rebuild
+	 */
+	public static boolean migrate(SQLiteDatabase db, int from, int to) {
+		if (from < BASE_VERSION) return false;
+		int version = from;
+		for (Step step : STEPS) {
+			if (step.version <= from) continue;
+			if (step.version > to) break;
+			if (step.version != version + 1) {
+				throw new IllegalStateException("No schema step from v" + version + " to v" + (version + 1));
+			}
+			long start = System.currentTimeMillis();
+			db.beginTransaction();
+			try {
+				step.apply(db);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			version = step.version;
+			Log.i(LOG_TAG, "Schema v" + version + " (" + step.description + ") in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+		if (version != to) throw new IllegalStateException("No schema steps past v" + version + ", wanted v" + to);
+		return true;
+	}
+
+	/**
+	 * Indexes holding only the rows the hot queries read: live ideas by created (the widget's
+	 * latest idea) and pending reminders (ReminderScheduler), so they stay the size of the live
+	 * data however many tombstones and done ideas pile up. The queries have to spell out the
+	 * same literal conditions for SQLite to use them. Partial indexes need SQLite 3.8.0
+	 * (API 21); on older ones this does nothing and idx_idea_created/idx_idea_reminder serve.
+	 * Idempotent; MaintenanceJob calls it too, for devices whose SQLite got newer since.
+	 */
+	static void createLiveIndexes(SQLiteDatabase db) {
+		if (!supportsPartialIndexes(db)) return;
+		db.execSQL("CREATE INDEX IF NOT EXISTS idx_idea_live_created ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` (`" + SQLCipherAdapter.KEY_CREATED + "`) WHERE " + SQLCipherAdapter.KEY_DELETED + " = 0");
+		db.execSQL("CREATE INDEX IF NOT EXISTS idx_idea_pending_reminder ON `" + SQLCipherAdapter.MYDATABASE_TABLE_IDEA
+				+ "` (`" + SQLCipherAdapter.KEY_REMINDER + "`) WHERE " + SQLCipherAdapter.KEY_DELETED + " = 0 AND "
+				+ SQLCipherAdapter.KEY_COMPLETED + " = 0");
+		// only ReminderScheduler reads by reminder, and it always wants the pending ones
+		db.execSQL("DROP INDEX IF EXISTS idx_idea_reminder");
+	}
+
+	static boolean supportsPartialIndexes(SQLiteDatabase db) {
+		String[] version = DatabaseUtils.stringForQuery(db, "SELECT sqlite_version()", null).split("\\.");
+		int major = Integer.parseInt(version[0]);
+		int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+		return major > 3 || (major == 3 && minor >= 8);
+	}
+
+	static void addColumnIfMissing(SQLiteDatabase db, String table, String column, String definition) {
+		Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+		try {
+			while (cursor.moveToNext()) {
+				if (column.equals(cursor.getString(cursor.getColumnIndex("name")))) return;
+			}
+		} finally {
+			cursor.close();
+		}
+		db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+	}
+}
@@ -0,0 +1,135 @@
+package com.promethylhosting.id34;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * The app's own secrets (FieldCipher's key secrets, BlindIndex's HMAC key) as they sit in
+ * private preferences. On API 23+ each is encrypted with AES-GCM under KEY_ALIAS, a key that
+ * AndroidKeyStore generates and never lets out (in the TEE or secure element where the device
+ * has one), and only that wrapped form is stored: a copy of the data directory, database and
+ * prefs together, doesn't carry the keys to read it.
+ *
+ * Below API 23 there is no keystore AES, and a device whose keystore fails keeps working the
+ * same way: the secret is stored as plain Base64, as before, and the encryption then only keeps
+ * the text out of copies of the database file alone. isWrapping() says which it is.
+ *
+ * Stored form: WRAPPED + Base64(12-byte IV | ciphertext + tag), or plain Base64 for a secret
+ * that isn't wrapped. read() wraps a plain one the first time it sees it, when it can.
+ */
+final class SecretStore {
+
+	static final String KEY_ALIAS = "id34_master_key";
+
+	private static final String LOG_TAG = "id34";
+	private static final String KEYSTORE = "AndroidKeyStore";
+	private static final String WRAPPED = "ks1:";
+	private static final int IV_SIZE = 12;
+	private static final int TAG_BITS = 128;
+
+	private static SecretKey wrappingKey;
+	private static boolean unavailable = false; // the keystore failed once; don't retry on every secret
+
+	private SecretStore() {}
+
+	/** Whether new secrets are stored wrapped by the keystore, rather than as plain Base64. */
+	static synchronized boolean isWrapping() {
+		return wrappingKey() != null;
+	}
+
+	/** The secret stored under pref, or null if there is none. */
+	static synchronized byte[] read(SharedPreferences prefs, String pref) {
+		String stored = prefs.getString(pref, null);
+		if (stored == null) return null;
+		if (stored.startsWith(WRAPPED)) return unwrap(stored.substring(WRAPPED.length()));
+		byte[] secret = Base64.decode(stored, Base64.NO_WRAP);
+		if (wrappingKey() != null) {
+			// from before the keystore: take it out of the prefs now
+			prefs.edit().putString(pref, store(secret)).commit();
+			Log.i(LOG_TAG, "SecretStore wrapped " + pref + " with the keystore");
+		}
+		return secret;
+	}
+
+	/** Put a new secret in the editor, wrapped if the keystore can. The caller commits. */
+	static synchronized void write(SharedPreferences.Editor editor, String pref, byte[] secret) {
+		editor.putString(pref, store(secret));
+	}
+
+	// caller holds the lock
+	private static String store(byte[] secret) {
+		SecretKey key = wrappingKey();
+		if (key == null) return Base64.encodeToString(secret, Base64.NO_WRAP);
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, key); // the keystore picks the IV
+			byte[] iv = cipher.getIV();
+			byte[] sealed = cipher.doFinal(secret);
+			byte[] out = new byte[IV_SIZE + sealed.length];
+			System.arraycopy(iv, 0, out, 0, IV_SIZE);
+			System.arraycopy(sealed, 0, out, IV_SIZE, sealed.length);
+			return WRAPPED + Base64.encodeToString(out, Base64.NO_WRAP);
+		} catch (GeneralSecurityException e) {
+			Log.e(LOG_TAG, "SecretStore could not wrap, storing in the clear: " + e.getMessage());
+			e.printStackTrace();
+			return Base64.encodeToString(secret, Base64.NO_WRAP);
+		}
+	}
+
+	// caller holds the lock
+	private static byte[] unwrap(String wrapped) {
+		SecretKey key = wrappingKey();
+		if (key == null) throw new IllegalStateException("Secret is wrapped but the keystore key is unavailable");
+		byte[] in = Base64.decode(wrapped, Base64.NO_WRAP);
+		try {
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, in, 0, IV_SIZE));
+			return cipher.doFinal(in, IV_SIZE, in.length - IV_SIZE);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Secret unwrap failed (tampered prefs or lost keystore key)", e);
+		}
+	}
+
+	// caller holds the lock; null below API 23 or if the keystore doesn't work on this device
+	private static SecretKey wrappingKey() {
+		if (wrappingKey != null || unavailable) return wrappingKey;
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+			unavailable = true;
+			return null;
+		}
+		try {
+			KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+			keyStore.load(null);
+			SecretKey key = (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+			if (key == null) {
+				KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+				generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+						KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+						.setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+						.setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+						.setKeySize(256)
+						.build());
+				key = generator.generateKey();
+				Log.i(LOG_TAG, "SecretStore created keystore key " + KEY_ALIAS);
+			}
+			wrappingKey = key;
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "AndroidKeyStore unavailable, secrets stay in private prefs: " + e.getMessage());
+			e.printStackTrace();
+			unavailable = true;
+		}
+		return wrappingKey;
+	}
+}
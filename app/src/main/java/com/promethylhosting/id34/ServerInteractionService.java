@@ -51,22 +51,45 @@ public class ServerInteractionService extends Service {
 	            	
 	            	prefs = context.getSharedPreferences("com.promethylhosting.id34", Context.MODE_PRIVATE);
 	            	
-	            	String lastUpdate = prefs.getString("LastUpdateSuccessDT", "1970-01-01 00:06:00");
+	            	long lastUpdate = SQLCipherAdapter.getLastSyncMillis(prefs);
 	            	Log.i(LOG_TAG, "Service giant wakes up. Getting ready to update... " + lastUpdate);
 	            	
-	                sql = new SQLCipherAdapter(context);
-	                sql.openToWrite();
-	                Boolean bError1 = sql.updateDBCats(lastUpdate);
-	                Boolean bError2 = sql.updateDBIdeas(lastUpdate); // TEST THIS ~~~ /// TODO: 
-	                sql.close();
+	                long start = Metrics.now();
+	                long rowsBefore = Metrics.SYNC_ROWS.get();
+	                long syncTime;
+	                Boolean bError1;
+	                Boolean bError2;
+	                Tracer.Span span = Tracer.begin("sync");
+	                try {
+	                    sql = new SQLCipherAdapter(context);
+	                    // taken before the requests, so changes made while they run come with the next sync
+	                    syncTime = sql.getServerTimeMillis();
+	                    sql.openToWrite();
+	                    Tracer.Span cats = Tracer.begin("sync.categories");
+	                    try {
+	                        bError1 = sql.updateDBCats(lastUpdate);
+	                    } finally {
+	                        cats.end();
+	                    }
+	                    Tracer.Span ideas = Tracer.begin("sync.ideas");
+	                    try {
+	                        bError2 = sql.updateDBIdeas(lastUpdate); // TEST THIS ~~~ /// TODO: 
+	                    } finally {
+	                        ideas.end();
+	                    }
+	                    sql.close();
+	                } finally {
+	                    span.end();
+	                }
+	                long micros = (System.nanoTime() - start) / 1000;
+	                Metrics.SYNC_DURATION.record(micros);
+	                Metrics.SYNC_ROWS_PER_SEC.set((Metrics.SYNC_ROWS.get() - rowsBefore) * 1000000 / Math.max(1, micros));
+	                if (bError1 | bError2) Metrics.SYNC_FAILURES.inc();
 
 	                Log.e(LOG_TAG, "Sync Ran: bErr1:" + bError1 + " bErr2:" + bError2);
+	                SQLCipherAdapter.setSyncResult(prefs, lastUpdate, syncTime, !bError1 & !bError2);
 	                
 	                if (!bError1 & !bError2) {
-	                	lastUpdate =  sql.getServerDateTime();
-	                	if (lastUpdate.length()>8) { // only update with good date
-	                		prefs.edit().putString("LastUpdateSuccessDT", sql.getServerDateTime()).commit();
-	                	}
 
 		                // allow refresh only if the update succeeded -- send intent back to activity here if it ran as a reuslt of a command...
 		                if (bRefresh) {
@@ -78,12 +101,11 @@ public class ServerInteractionService extends Service {
 		                    startActivity(intentReturn);
 		                }
 
-	                } else {
-		                prefs.edit().putString("LastUpdateFailDT", sql.getServerDateTime()).commit();
 	                }
 	                
 	            } catch(Exception e) {
 	                // do nothing
+	            	Metrics.SYNC_FAILURES.inc();
 	            	Log.e(LOG_TAG, e.getMessage());
 	            } 
 	        
@@ -105,7 +127,7 @@ public class ServerInteractionService extends Service {
     }
     
     public void stopServer() { this.stopSelf(); }
-    
+
     @Override
     public void onDestroy() {
         // TODO Auto-generated method stub
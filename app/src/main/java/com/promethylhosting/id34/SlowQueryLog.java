@@ -0,0 +1,318 @@
+package com.promethylhosting.id34;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * The worst queries seen on this device, kept for the user to export (list menu, "Export slow
+ * queries") and send us: big accounts hit plans our fixtures never do.
+ *
+ * A query is slow when it takes at least the threshold, PREF_THRESHOLD_MS in the app's prefs
+ * (DEFAULT_THRESHOLD_MS if unset). Cursor queries are timed at their first fill, through the
+ * database's CursorFactory (see MainThreadIo.cursorFactory()), and the adapter's compiled
+ * statements around their execution. Queries are grouped by shape: the SQL with its literals
+ * and IN lists replaced by ?, which is also all of the SQL that is kept. The first time a shape
+ * is slow, its EXPLAIN QUERY PLAN is captured; after that only its count, and its details if
+ * the query was slower than the worst one so far, are updated. Bound values are never kept, only
+ * their types and sizes.
+ *
+ * At most MAX_ENTRIES shapes are kept, the slowest; the store survives restarts in FILE_NAME.
+ */
+public final class SlowQueryLog {
+
+	public static final String PREF_THRESHOLD_MS = "slow_query_ms";
+	public static final long DEFAULT_THRESHOLD_MS = 100;
+	public static final int MAX_ENTRIES = 50;
+
+	private static final String LOG_TAG = "id34";
+	private static final String FILE_NAME = "slow_queries.json";
+	private static final String EXPLAIN = "EXPLAIN QUERY PLAN ";
+
+	/** One statement shape that was slow, with its slowest run. */
+	public static final class Entry {
+		public final String sql;  // the shape
+		public final String plan; // EXPLAIN QUERY PLAN details, one per line; empty if it couldn't be had
+		private String args;      // redacted: the types and sizes of the bound values, or null if unknown
+		private int rows;         // returned or changed by the slowest run
+		private long nanos;       // of the slowest run
+		private String thread;
+		private long at;          // wall clock of the slowest run
+		private int count;        // runs over the threshold
+
+		Entry(String sql, String plan) {
+			this.sql = sql;
+			this.plan = plan;
+		}
+
+		public String getArgs() { return args; }
+		public int getRows() { return rows; }
+		public long getMillis() { return nanos / 1000000; }
+		public String getThread() { return thread; }
+		public long getAt() { return at; }
+		public int getCount() { return count; }
+
+		JSONObject toJson() throws JSONException {
+			return new JSONObject()
+					.put("sql", sql)
+					.put("args", args == null ? JSONObject.NULL : args)
+					.put("rows", rows)
+					.put("ms", getMillis())
+					.put("count", count)
+					.put("thread", thread)
+					.put("at", TimeFormat.toWire(at))
+					.put("plan", plan);
+		}
+
+		static Entry fromJson(JSONObject json) throws JSONException {
+			Entry entry = new Entry(json.getString("sql"), json.optString("plan", ""));
+			entry.args = json.isNull("args") ? null : json.getString("args");
+			entry.rows = json.getInt("rows");
+			entry.nanos = json.getLong("ms") * 1000000;
+			entry.count = json.getInt("count");
+			entry.thread = json.optString("thread", "");
+			entry.at = TimeFormat.fromWire(json.optString("at", null), TimeFormat.NONE);
+			return entry;
+		}
+	}
+
+	private static volatile long thresholdNanos = DEFAULT_THRESHOLD_MS * 1000000;
+	private static final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private static File file;      // null until init(); nothing is saved before
+	private static ExecutorService saver;
+	private static boolean saveQueued = false;
+
+	private SlowQueryLog() {}
+
+	/** Read the threshold and the stored entries; once per process. */
+	public static synchronized void init(Context context) {
+		if (file != null) return;
+		Context app = context.getApplicationContext();
+		setThresholdMillis(app.getSharedPreferences(SQLCipherAdapter.PREFS_NAME, Context.MODE_PRIVATE)
+				.getLong(PREF_THRESHOLD_MS, DEFAULT_THRESHOLD_MS));
+		file = new File(app.getFilesDir(), FILE_NAME);
+		saver = Executors.newSingleThreadExecutor();
+		load();
+	}
+
+	/** Queries taking at least ms are slow; 0 records every query (for a test or a bad session). */
+	public static void setThresholdMillis(long ms) { thresholdNanos = Math.max(0, ms) * 1000000; }
+
+	public static long getThresholdMillis() { return thresholdNanos / 1000000; }
+
+	/** Whether a query that took nanos should be recorded; cheap enough to call on every query. */
+	public static boolean isSlow(long nanos) { return nanos >= thresholdNanos; }
+
+	/**
+	 * A query that took nanos and returned or changed rows; args are its bound values, or null if
+	 * they aren't known here. Ignored unless isSlow(nanos). db is used for the plan.
+	 */
+	public static void record(SQLiteDatabase db, String sql, Object[] args, int rows, long nanos) {
+		if (!isSlow(nanos) || sql.startsWith(EXPLAIN)) return;
+		String shape = shape(sql);
+		synchronized (entries) {
+			Entry entry = entries.get(shape);
+			if (entry != null) {
+				entry.count++;
+				if (nanos > entry.nanos) update(entry, args, rows, nanos);
+				queueSave();
+				return;
+			}
+			if (entries.size() == MAX_ENTRIES && nanos <= fastest().nanos) return;
+		}
+		String plan = explain(db, sql); // outside the lock: it is a query itself
+		synchronized (entries) {
+			Entry entry = entries.get(shape);
+			if (entry == null) {
+				if (entries.size() == MAX_ENTRIES) entries.remove(fastest().sql);
+				entry = new Entry(shape, plan);
+				entries.put(shape, entry);
+				Log.w(LOG_TAG, "Slow query (" + (nanos / 1000000) + "ms, " + rows + " rows): " + shape + "\n" + plan);
+			}
+			entry.count++;
+			if (nanos > entry.nanos) update(entry, args, rows, nanos);
+			queueSave();
+		}
+	}
+
+	/** The kept entries, slowest first. */
+	public static List<Entry> entries() {
+		List<Entry> list;
+		synchronized (entries) {
+			list = new ArrayList<Entry>(entries.values());
+		}
+		Collections.sort(list, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return a.nanos == b.nanos ? 0 : (a.nanos > b.nanos ? -1 : 1);
+			}
+		});
+		return list;
+	}
+
+	public static void clear() {
+		synchronized (entries) {
+			entries.clear();
+			queueSave();
+		}
+	}
+
+	/** Write the entries, slowest first, as JSON; returns how many. */
+	public static int export(OutputStream out) throws IOException {
+		List<Entry> list = entries();
+		try {
+			JSONArray array = new JSONArray();
+			for (Entry entry : list) array.put(entry.toJson());
+			JSONObject json = new JSONObject()
+					.put("threshold_ms", getThresholdMillis())
+					.put("database_version", SQLCipherAdapter.MYDATABASE_VERSION)
+					.put("queries", array);
+			out.write(json.toString(2).getBytes("UTF-8"));
+			out.flush();
+			return list.size();
+		} catch (JSONException e) {
+			throw new IOException("Slow query export failed", e);
+		}
+	}
+
+	// caller holds entries
+	private static void update(Entry entry, Object[] args, int rows, long nanos) {
+		entry.args = redact(args);
+		entry.rows = rows;
+		entry.nanos = nanos;
+		entry.thread = Thread.currentThread().getName();
+		entry.at = System.currentTimeMillis();
+	}
+
+	// caller holds entries, which isn't empty
+	private static Entry fastest() {
+		Entry fastest = null;
+		for (Entry entry : entries.values()) {
+			if (fastest == null || entry.nanos < fastest.nanos) fastest = entry;
+		}
+		return fastest;
+	}
+
+	/** sql with string, blob and number literals as ?, IN lists as IN (?...) and spaces collapsed. */
+	static String shape(String sql) {
+		return sql.replaceAll("[xX]?'(?:[^']|'')*'", "?")
+				.replaceAll("(?<![\\w.])-?\\d+(?:\\.\\d+)?(?![\\w.])", "?")
+				.replaceAll("(?i)\\bIN\\s*\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)", "IN (?...)")
+				.replaceAll("\\s+", " ")
+				.trim();
+	}
+
+	/** The types and sizes of the values, never the values: [int, text(12), blob(48), null]. */
+	static String redact(Object[] args) {
+		if (args == null) return null;
+		StringBuilder redacted = new StringBuilder("[");
+		for (int i = 0; i < args.length; i++) {
+			if (i > 0) redacted.append(", ");
+			Object arg = args[i];
+			if (arg == null) redacted.append("null");
+			else if (arg instanceof byte[]) redacted.append("blob(").append(((byte[]) arg).length).append(')');
+			else if (arg instanceof Long || arg instanceof Integer || arg instanceof Boolean) redacted.append("int");
+			else if (arg instanceof Double || arg instanceof Float) redacted.append("real");
+			else redacted.append("text(").append(arg.toString().length()).append(')');
+		}
+		return redacted.append(']').toString();
+	}
+
+	// parameters are left unbound (NULL); the plan depends on the SQL, not the values
+	private static String explain(SQLiteDatabase db, String sql) {
+		if (db == null || !db.isOpen()) return "";
+		StringBuilder plan = new StringBuilder();
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery(EXPLAIN + sql, null);
+			int detail = cursor.getColumnIndex("detail");
+			while (cursor.moveToNext()) {
+				if (plan.length() > 0) plan.append('\n');
+				plan.append(cursor.getString(detail));
+			}
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "EXPLAIN QUERY PLAN failed: " + e.getMessage());
+		} finally {
+			if (cursor != null) cursor.close();
+		}
+		return plan.toString();
+	}
+
+	// caller holds entries; one save at a time, of whatever the entries are by then
+	private static void queueSave() {
+		if (saver == null || saveQueued) return;
+		saveQueued = true;
+		saver.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (entries) {
+					saveQueued = false;
+				}
+				save();
+			}
+		});
+	}
+
+	private static void save() {
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(tmp);
+			try {
+				export(out);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) Log.e(LOG_TAG, "Could not replace " + file);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Saving slow queries failed: " + e.getMessage());
+		}
+	}
+
+	private static void load() {
+		if (!file.exists()) return;
+		try {
+			InputStream in = new FileInputStream(file);
+			byte[] bytes;
+			try {
+				bytes = new byte[(int) file.length()];
+				int read = 0;
+				while (read < bytes.length) {
+					int n = in.read(bytes, read, bytes.length - read);
+					if (n < 0) break;
+					read += n;
+				}
+			} finally {
+				in.close();
+			}
+			JSONArray queries = new JSONObject(new String(bytes, "UTF-8")).getJSONArray("queries");
+			synchronized (entries) {
+				for (int i = 0; i < queries.length() && entries.size() < MAX_ENTRIES; i++) {
+					Entry entry = Entry.fromJson(queries.getJSONObject(i));
+					entries.put(entry.sql, entry);
+				}
+			}
+		} catch (Exception e) {
+			Log.e(LOG_TAG, "Reading slow queries failed, starting over: " + e.getMessage());
+		}
+	}
+}
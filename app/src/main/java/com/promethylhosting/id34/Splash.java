@@ -3,6 +3,7 @@ package com.promethylhosting.id34;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
+import android.util.Log;
 
 public class Splash extends Activity {
 	protected boolean _active = true;
@@ -18,7 +19,14 @@ public class Splash extends Activity {
 	        @Override
 	        public void run() {
 	            try {
-	                int waited = 0;
+	                // back up and upgrade the database here rather than on the list's main thread
+	                long started = System.currentTimeMillis();
+	                try {
+	                    SQLCipherAdapter.prepare(getApplicationContext());
+	                } catch (Exception e) {
+	                    Log.e("id34", "Database prepare failed: " + e.getMessage());
+	                }
+	                int waited = (int) (System.currentTimeMillis() - started);
 	                while(_active && (waited < _splashTime)) {
 	                    sleep(100);
 	                    if(_active) {
@@ -0,0 +1,56 @@
+package com.promethylhosting.id34;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Least-recently-used set of compiled statements on one database, keyed by their SQL.
+ *
+ * Compiling is most of the cost of a one-row insert, update or lookup; with the statement kept
+ * a call is a few primitive binds and one step, with no ContentValues or cursor allocated.
+ * A statement can only be used by one thread at a time, so hold the cache's lock from get()
+ * until done with it:
+ *
+ *     synchronized (cache) { SQLiteStatement s = cache.get(SQL); s.bindLong(1, id); s.execute(); }
+ */
+public class StatementCache {
+
+	private final SQLiteDatabase db;
+	private final LinkedHashMap<String, SQLiteStatement> statements;
+	private boolean closed = false;
+
+	public StatementCache(SQLiteDatabase db, final int capacity) {
+		this.db = db;
+		statements = new LinkedHashMap<String, SQLiteStatement>(capacity, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+				if (size() <= capacity) return false;
+				eldest.getValue().close();
+				return true;
+			}
+		};
+	}
+
+	/** The compiled statement for sql with no bindings. Call with the cache's lock held. */
+	public SQLiteStatement get(String sql) {
+		if (closed) throw new IllegalStateException("Statement cache closed");
+		SQLiteStatement statement = statements.get(sql);
+		if (statement == null) {
+			statement = db.compileStatement(sql);
+			statements.put(sql, statement);
+		} else {
+			statement.clearBindings();
+		}
+		return statement;
+	}
+
+	/** Close every statement; waits for a caller still using one. */
+	public synchronized void close() {
+		for (SQLiteStatement statement : statements.values()) statement.close();
+		statements.clear();
+		closed = true;
+	}
+}
@@ -0,0 +1,248 @@
+package com.promethylhosting.id34;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Applies a page of server rows, JSON or binary, with a few set-based statements instead of a
+ * REPLACE per row.
+ *
+ * Rows are staged in TEMP tables exactly as they would be stored: encrypted, with their text
+ * fingerprint. apply() then inserts the ids that aren't here yet with one INSERT ... SELECT per
+ * table and merges the rest with one UPDATE, which only touches rows whose server version
+ * (updated) is newer than the one they are based on (synced). A row sent again unchanged costs
+ * a lookup and no write, so writes, trigger runs and index churn follow the rows that changed.
+ *
+ * The merge is per field. A field edited here and not yet seen back from the server (its
+ * DIRTY_ bit) keeps the local value; the others take the server's. A dirty bit clears once the
+ * server sends the same value back. Completed and deleted are kept only while their toggle is
+ * still queued (DIRTY_SEND_, see PendingToggles): once it is sent, a newer server version is
+ * the answer to it, so it is taken and the bits clear even if it disagrees. Text is rewritten,
+ * and its blind index tokens rebuilt, only when its fingerprint differs.
+ *
+ * Construct, stage and apply() inside one transaction: TEMP tables belong to a connection, and
+ * only a transaction keeps every statement on the same one.
+ */
+public class SyncMerge {
+
+	private static final String LOG_TAG = "id34";
+	private static final String STAGE_IDEA = "stage_idea";
+	private static final String STAGE_CATEGORY = "stage_category";
+	private static final String IDEAS = SQLCipherAdapter.MYDATABASE_TABLE_IDEA;
+	private static final String CATEGORIES = SQLCipherAdapter.MYDATABASE_TABLE_CATEGORY;
+
+	private static final String IDEA_COLUMNS = SQLCipherAdapter.KEY_ID + "," + SQLCipherAdapter.KEY_UID + ","
+			+ SQLCipherAdapter.KEY_NUM + "," + SQLCipherAdapter.KEY_CID0 + "," + SQLCipherAdapter.KEY_CID1 + ","
+			+ SQLCipherAdapter.KEY_CID2 + "," + SQLCipherAdapter.KEY_CID3 + "," + SQLCipherAdapter.KEY_CID4 + ","
+			+ SQLCipherAdapter.KEY_CREATED + "," + SQLCipherAdapter.KEY_UPDATED + "," + SQLCipherAdapter.KEY_REMINDER + ","
+			+ SQLCipherAdapter.KEY_DELETED + "," + SQLCipherAdapter.KEY_COMPLETED + "," + SQLCipherAdapter.KEY_NAME + ","
+			+ SQLCipherAdapter.KEY_KEY_VER + "," + SQLCipherAdapter.KEY_TEXT_TOKEN;
+	private static final String CATEGORY_COLUMNS = SQLCipherAdapter.KEY_ID + "," + SQLCipherAdapter.KEY_UID + ","
+			+ SQLCipherAdapter.KEY_NUM + "," + SQLCipherAdapter.KEY_UPDATED + "," + SQLCipherAdapter.KEY_CAT + ","
+			+ SQLCipherAdapter.KEY_KEY_VER + "," + SQLCipherAdapter.KEY_TEXT_TOKEN;
+
+	private static final String[] CIDS = {SQLCipherAdapter.KEY_CID0, SQLCipherAdapter.KEY_CID1, SQLCipherAdapter.KEY_CID2,
+			SQLCipherAdapter.KEY_CID3, SQLCipherAdapter.KEY_CID4};
+
+	private final SQLiteDatabase db;
+	private final SQLiteStatement stageIdea;
+	private final SQLiteStatement stageCategory;
+	private int staged;
+
+	public SyncMerge(SQLiteDatabase db) {
+		this.db = db;
+		createStage(STAGE_IDEA, IDEA_COLUMNS);
+		createStage(STAGE_CATEGORY, CATEGORY_COLUMNS);
+		// a page may carry an id twice; the later row wins, as it did with REPLACE
+		stageIdea = db.compileStatement("INSERT OR REPLACE INTO " + STAGE_IDEA + " (" + IDEA_COLUMNS
+				+ ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+		stageCategory = db.compileStatement("INSERT OR REPLACE INTO " + STAGE_CATEGORY + " (" + CATEGORY_COLUMNS
+				+ ") VALUES (?,?,?,?,?,?,?)");
+	}
+
+	private void createStage(String stage, String columns) {
+		// untyped columns keep whatever is bound, the encrypted text blobs included
+		db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + stage + " (" + columns.replaceFirst(",", " INTEGER PRIMARY KEY,") + ")");
+		db.execSQL("DELETE FROM " + stage);
+	}
+
+	public void stageIdea(long id, long uid, long num, long[] cids, long created, long updated, long reminder,
+			boolean deleted, boolean completed, String text) {
+		stageIdea.bindLong(1, id);
+		stageIdea.bindLong(2, uid);
+		stageIdea.bindLong(3, num);
+		for (int i = 0; i < CIDS.length; i++) stageIdea.bindLong(4 + i, cids[i]);
+		stageIdea.bindLong(9, created);
+		stageIdea.bindLong(10, updated);
+		stageIdea.bindLong(11, reminder);
+		stageIdea.bindLong(12, deleted ? 1 : 0);
+		stageIdea.bindLong(13, completed ? 1 : 0);
+		SQLCipherAdapter.bindText(stageIdea, 14, 15, text);
+		stageIdea.bindLong(16, BlindIndex.fingerprint(text));
+		stageIdea.executeInsert();
+		staged++;
+	}
+
+	public void stageCategory(long id, long uid, long num, long updated, String name) {
+		stageCategory.bindLong(1, id);
+		stageCategory.bindLong(2, uid);
+		stageCategory.bindLong(3, num);
+		stageCategory.bindLong(4, updated);
+		SQLCipherAdapter.bindText(stageCategory, 5, 6, name);
+		stageCategory.bindLong(7, BlindIndex.fingerprint(name));
+		stageCategory.executeInsert();
+		staged++;
+	}
+
+	/**
+	 * Merge everything staged into tblCategory and tblIdea, then empty the stage.
+	 * @return rows inserted or changed
+	 */
+	public int apply() {
+		long start = System.currentTimeMillis();
+		int reindexed = reindex(STAGE_CATEGORY, CATEGORIES, SQLCipherAdapter.KEY_CAT, false);
+		int inserted = execute("INSERT INTO " + CATEGORIES + " (" + CATEGORY_COLUMNS + ","
+				+ SQLCipherAdapter.KEY_SYNCED + ") SELECT " + CATEGORY_COLUMNS + "," + SQLCipherAdapter.KEY_UPDATED
+				+ " FROM " + STAGE_CATEGORY + " WHERE " + notPresent(CATEGORIES));
+		int updated = execute("UPDATE " + CATEGORIES + " SET "
+				+ SQLCipherAdapter.KEY_UID + " = " + staged(STAGE_CATEGORY, CATEGORIES, SQLCipherAdapter.KEY_UID) + ", "
+				+ SQLCipherAdapter.KEY_NUM + " = " + staged(STAGE_CATEGORY, CATEGORIES, SQLCipherAdapter.KEY_NUM) + ", "
+				+ mergedText(STAGE_CATEGORY, CATEGORIES, SQLCipherAdapter.KEY_CAT) + ", "
+				+ mergedVersion(STAGE_CATEGORY, CATEGORIES) + ", "
+				+ SQLCipherAdapter.KEY_DIRTY + " = " + SQLCipherAdapter.KEY_DIRTY + " & ~("
+				+ acknowledged(STAGE_CATEGORY, CATEGORIES, SQLCipherAdapter.KEY_TEXT_TOKEN, SQLCipherAdapter.DIRTY_TEXT) + ")"
+				+ " WHERE " + newer(STAGE_CATEGORY, CATEGORIES));
+
+		reindexed += reindex(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_NAME, true);
+		// a tombstone for an idea that isn't here (never was, or MaintenanceJob purged it) stays out
+		inserted += execute("INSERT INTO " + IDEAS + " (" + IDEA_COLUMNS + ","
+				+ SQLCipherAdapter.KEY_SYNCED + ") SELECT " + IDEA_COLUMNS + "," + SQLCipherAdapter.KEY_UPDATED
+				+ " FROM " + STAGE_IDEA + " WHERE " + notPresent(IDEAS) + " AND " + SQLCipherAdapter.KEY_DELETED + " = 0");
+		StringBuilder cids = new StringBuilder();
+		for (String cid : CIDS) { // the cids follow the text's hashtags
+			cids.append(keepIfDirty(STAGE_IDEA, IDEAS, cid, SQLCipherAdapter.DIRTY_TEXT)).append(", ");
+		}
+		updated += execute("UPDATE " + IDEAS + " SET "
+				+ SQLCipherAdapter.KEY_UID + " = " + staged(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_UID) + ", "
+				+ SQLCipherAdapter.KEY_NUM + " = " + staged(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_NUM) + ", "
+				+ cids
+				+ SQLCipherAdapter.KEY_REMINDER + " = " + staged(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_REMINDER) + ", "
+				+ keepIfDirty(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_DELETED, SQLCipherAdapter.DIRTY_SEND_DELETED) + ", "
+				+ keepIfDirty(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_COMPLETED, SQLCipherAdapter.DIRTY_SEND_COMPLETED) + ", "
+				+ mergedText(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_NAME) + ", "
+				+ mergedVersion(STAGE_IDEA, IDEAS) + ", "
+				+ SQLCipherAdapter.KEY_DIRTY + " = " + SQLCipherAdapter.KEY_DIRTY + " & ~("
+				+ acknowledged(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_TEXT_TOKEN, SQLCipherAdapter.DIRTY_TEXT) + " | "
+				+ toggleSettled(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_COMPLETED, SQLCipherAdapter.DIRTY_COMPLETED,
+						SQLCipherAdapter.DIRTY_SEND_COMPLETED) + " | "
+				+ toggleSettled(STAGE_IDEA, IDEAS, SQLCipherAdapter.KEY_DELETED, SQLCipherAdapter.DIRTY_DELETED,
+						SQLCipherAdapter.DIRTY_SEND_DELETED) + ")"
+				+ " WHERE " + newer(STAGE_IDEA, IDEAS));
+
+		db.execSQL("DELETE FROM " + STAGE_IDEA);
+		db.execSQL("DELETE FROM " + STAGE_CATEGORY);
+		Log.i(LOG_TAG, "SyncMerge: " + staged + " staged, " + inserted + " inserted, " + updated + " updated, "
+				+ reindexed + " reindexed in " + (System.currentTimeMillis() - start) + "ms");
+		staged = 0;
+		return inserted + updated;
+	}
+
+	public void close() {
+		stageIdea.close();
+		stageCategory.close();
+	}
+
+	/**
+	 * Blind index tokens for the staged rows that will be new or get the server's text. Runs
+	 * before the merge, which makes the fingerprints equal.
+	 */
+	private int reindex(String stage, String table, String textColumn, boolean ideas) {
+		Cursor cursor = db.rawQuery("SELECT s." + SQLCipherAdapter.KEY_ID + ", s." + textColumn + ", t." + SQLCipherAdapter.KEY_ID
+				+ " FROM " + stage + " s LEFT JOIN " + table + " t ON t." + SQLCipherAdapter.KEY_ID + " = s." + SQLCipherAdapter.KEY_ID
+				+ " WHERE (t." + SQLCipherAdapter.KEY_ID + " IS NULL" + (ideas ? " AND s." + SQLCipherAdapter.KEY_DELETED + " = 0" : "")
+				+ ") OR (s." + SQLCipherAdapter.KEY_UPDATED + " > t." + SQLCipherAdapter.KEY_SYNCED
+				+ " AND (t." + SQLCipherAdapter.KEY_DIRTY + " & " + SQLCipherAdapter.DIRTY_TEXT + ") = 0"
+				+ " AND t." + SQLCipherAdapter.KEY_TEXT_TOKEN + " IS NOT s." + SQLCipherAdapter.KEY_TEXT_TOKEN + ")", null);
+		int count = 0;
+		BlindIndex.Writer writer = new BlindIndex.Writer(db);
+		try {
+			while (cursor.moveToNext()) {
+				long id = cursor.getLong(0);
+				String text = SQLCipherAdapter.readText(cursor, 1);
+				if (ideas) {
+					writer.reindexIdea(id, text);
+				} else {
+					writer.reindexCategory(id, text);
+					HashtagIndex.get().add(id, text);
+				}
+				count++;
+			}
+		} finally {
+			cursor.close();
+			writer.close();
+		}
+		return count;
+	}
+
+	private int execute(String sql) {
+		SQLiteStatement statement = db.compileStatement(sql);
+		try {
+			return statement.executeUpdateDelete();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static String notPresent(String table) {
+		return SQLCipherAdapter.KEY_ID + " NOT IN (SELECT " + SQLCipherAdapter.KEY_ID + " FROM " + table + ")";
+	}
+
+	// rows here that the stage has a newer server version of
+	private static String newer(String stage, String table) {
+		return SQLCipherAdapter.KEY_ID + " IN (SELECT s." + SQLCipherAdapter.KEY_ID + " FROM " + stage + " s, " + table
+				+ " t WHERE t." + SQLCipherAdapter.KEY_ID + " = s." + SQLCipherAdapter.KEY_ID
+				+ " AND s." + SQLCipherAdapter.KEY_UPDATED + " > t." + SQLCipherAdapter.KEY_SYNCED + ")";
+	}
+
+	// the staged value of column for the row being updated (UPDATE can't join, so a primary key probe)
+	private static String staged(String stage, String table, String column) {
+		return "(SELECT s." + column + " FROM " + stage + " s WHERE s." + SQLCipherAdapter.KEY_ID + " = "
+				+ table + "." + SQLCipherAdapter.KEY_ID + ")";
+	}
+
+	private static String keepIfDirty(String stage, String table, String column, int bit) {
+		return column + " = CASE WHEN " + SQLCipherAdapter.KEY_DIRTY + " & " + bit + " THEN " + column
+				+ " ELSE " + staged(stage, table, column) + " END";
+	}
+
+	// text, its key version and fingerprint: kept when dirty or unchanged (no re-encrypted copy), else the server's
+	private static String mergedText(String stage, String table, String textColumn) {
+		String keep = "(" + SQLCipherAdapter.KEY_DIRTY + " & " + SQLCipherAdapter.DIRTY_TEXT + ") OR "
+				+ SQLCipherAdapter.KEY_TEXT_TOKEN + " = " + staged(stage, table, SQLCipherAdapter.KEY_TEXT_TOKEN);
+		return textColumn + " = CASE WHEN " + keep + " THEN " + textColumn + " ELSE " + staged(stage, table, textColumn) + " END, "
+				+ SQLCipherAdapter.KEY_KEY_VER + " = CASE WHEN " + keep + " THEN " + SQLCipherAdapter.KEY_KEY_VER
+				+ " ELSE " + staged(stage, table, SQLCipherAdapter.KEY_KEY_VER) + " END, "
+				+ keepIfDirty(stage, table, SQLCipherAdapter.KEY_TEXT_TOKEN, SQLCipherAdapter.DIRTY_TEXT);
+	}
+
+	// updated is the later of a local edit and the server's; synced moves to the server's
+	private static String mergedVersion(String stage, String table) {
+		String server = staged(stage, table, SQLCipherAdapter.KEY_UPDATED);
+		return SQLCipherAdapter.KEY_UPDATED + " = MAX(" + SQLCipherAdapter.KEY_UPDATED + ", " + server + "), "
+				+ SQLCipherAdapter.KEY_SYNCED + " = " + server;
+	}
+
+	// bit, if the server now has the same column value as this row
+	private static String acknowledged(String stage, String table, String column, int bit) {
+		return "CASE WHEN " + column + " = " + staged(stage, table, column) + " THEN " + bit + " ELSE 0 END";
+	}
+
+	// bit and sendBit if the server agrees (a queued toggle would only undo it now); bit alone if
+	// the toggle was sent, the server's version being newer than it; nothing while it waits
+	private static String toggleSettled(String stage, String table, String column, int bit, int sendBit) {
+		return "CASE WHEN " + column + " = " + staged(stage, table, column) + " THEN " + (bit | sendBit)
+				+ " WHEN " + SQLCipherAdapter.KEY_DIRTY + " & " + sendBit + " THEN 0 ELSE " + bit + " END";
+	}
+}
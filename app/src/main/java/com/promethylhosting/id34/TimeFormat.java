@@ -0,0 +1,64 @@
+package com.promethylhosting.id34;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Timestamps are kept as epoch milliseconds everywhere: in the INTEGER columns, in prefs and in
+ * memory. Text only exists at the edges, the server's "yyyy-MM-dd HH:mm:ss" sync protocol and
+ * the screen, and is produced here by one formatter per thread that is reused rather than
+ * built per call (SimpleDateFormat is slow to create and not thread-safe).
+ */
+public final class TimeFormat {
+
+	/** No time set, e.g. an idea without a reminder. */
+	public static final long NONE = 0;
+
+	/** Local time with no zone; what the server sends and expects. */
+	public static final String WIRE_PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+	// the old text columns used 1970-01-01 06:00:00 for "not set"; anything that early means NONE
+	private static final long NOT_SET_BEFORE = 24L * 60 * 60 * 1000;
+
+	private static final ThreadLocal<SimpleDateFormat> WIRE = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat format = new SimpleDateFormat(WIRE_PATTERN, Locale.US);
+			format.setLenient(false);
+			return format;
+		}
+	};
+
+	private static final ThreadLocal<DateFormat> DISPLAY = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.SHORT);
+		}
+	};
+
+	private TimeFormat() {}
+
+	/** ms in the server's text format. */
+	public static String toWire(long ms) {
+		return WIRE.get().format(new Date(ms));
+	}
+
+	/** Server text to ms; NONE for the old "not set" default, fallback if it doesn't parse. */
+	public static long fromWire(String text, long fallback) {
+		if (text == null || text.length() == 0) return fallback;
+		try {
+			long ms = WIRE.get().parse(text).getTime();
+			return ms < NOT_SET_BEFORE ? NONE : ms;
+		} catch (ParseException e) {
+			return fallback;
+		}
+	}
+
+	/** ms for people, in the device's locale; empty for NONE. */
+	public static String display(long ms) {
+		return ms == NONE ? "" : DISPLAY.get().format(new Date(ms));
+	}
+}
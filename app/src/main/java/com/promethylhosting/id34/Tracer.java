@@ -0,0 +1,196 @@
+package com.promethylhosting.id34;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.os.Build;
+
+/**
+ * Nested trace spans around the stages of saving an idea, syncing and showing a category.
+ *
+ * Each span goes to android.os.Trace, so the stages show up in Perfetto/systrace next to the
+ * framework's, and once ended into a ring buffer of the last CAPACITY spans. That buffer is what
+ * toChromeJson() exports (chrome://tracing, ui.perfetto.dev) and what JVM tests assert on:
+ * spans() gives each span's parent, thread and timings, so a slow save can be pinned on a stage.
+ *
+ *   Tracer.Span span = Tracer.begin("save.extractTags");
+ *   try { ... } finally { span.end(); }
+ *
+ * Spans nest per thread. Ending a span also ends any span begun inside it that is still open,
+ * so an exception that skips an inner end() doesn't leave the thread's stack (or Trace's)
+ * unbalanced.
+ */
+public final class Tracer {
+
+	public static final int CAPACITY = 4096;
+	private static final int MAX_SECTION_NAME = 127; // Trace.beginSection's limit
+
+	/** One stage: open until end(), then immutable and in the buffer. */
+	public static final class Span {
+		public final String name;
+		public final Span parent;    // the span open on this thread when it began; null for a root
+		public final int depth;      // 0 for a root
+		public final long threadId;
+		public final String threadName;
+		public final long startNanos; // System.nanoTime()
+		private long endNanos = -1;
+
+		Span(String name, Span parent) {
+			this.name = name;
+			this.parent = parent;
+			this.depth = parent == null ? 0 : parent.depth + 1;
+			Thread thread = Thread.currentThread();
+			this.threadId = thread.getId();
+			this.threadName = thread.getName();
+			this.startNanos = System.nanoTime();
+		}
+
+		public boolean isOpen() { return endNanos < 0; }
+
+		public long getEndNanos() { return endNanos; }
+
+		public long getDurationNanos() { return isOpen() ? -1 : endNanos - startNanos; }
+
+		public long getDurationMillis() { return isOpen() ? -1 : getDurationNanos() / 1000000; }
+
+		/** Ends this span, and the spans begun inside it that are still open. Only its own thread may. */
+		public void end() {
+			if (!isOpen()) return;
+			List<Span> stack = STACKS.get();
+			if (!stack.contains(this)) return; // another thread's, or already unwound
+			long now = System.nanoTime();
+			while (true) {
+				Span top = stack.remove(stack.size() - 1);
+				top.endNanos = now;
+				if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) android.os.Trace.endSection();
+				record(top);
+				if (top == this) return;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name + " " + (isOpen() ? "open" : (getDurationNanos() / 1000) + "us") + " on " + threadName;
+		}
+	}
+
+	private static final ThreadLocal<List<Span>> STACKS = new ThreadLocal<List<Span>>() {
+		@Override
+		protected List<Span> initialValue() {
+			return new ArrayList<Span>();
+		}
+	};
+
+	private static final Span[] buffer = new Span[CAPACITY];
+	private static int next = 0;    // where the next ended span goes
+	private static long total = 0;  // spans ever recorded since reset()
+
+	private Tracer() {}
+
+	/** Start a span on this thread, inside the innermost one open here. */
+	public static Span begin(String name) {
+		List<Span> stack = STACKS.get();
+		Span span = new Span(name, stack.isEmpty() ? null : stack.get(stack.size() - 1));
+		stack.add(span);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+			android.os.Trace.beginSection(name.length() > MAX_SECTION_NAME ? name.substring(0, MAX_SECTION_NAME) : name);
+		}
+		return span;
+	}
+
+	private static void record(Span span) {
+		synchronized (buffer) {
+			buffer[next] = span;
+			next = (next + 1) % CAPACITY;
+			total++;
+		}
+	}
+
+	/** The ended spans still in the buffer, in order of start. */
+	public static List<Span> spans() {
+		List<Span> spans = new ArrayList<Span>();
+		synchronized (buffer) {
+			int held = (int) Math.min(total, CAPACITY);
+			for (int i = 0; i < held; i++) spans.add(buffer[(next - held + i + CAPACITY) % CAPACITY]);
+		}
+		Collections.sort(spans, new Comparator<Span>() {
+			@Override
+			public int compare(Span a, Span b) {
+				return a.startNanos == b.startNanos ? a.depth - b.depth : (a.startNanos < b.startNanos ? -1 : 1);
+			}
+		});
+		return spans;
+	}
+
+	/** The ended spans directly inside parent, in order of start. */
+	public static List<Span> children(Span parent) {
+		List<Span> children = new ArrayList<Span>();
+		for (Span span : spans()) {
+			if (span.parent == parent) children.add(span);
+		}
+		return children;
+	}
+
+	/** The most recent ended span called name, or null. */
+	public static Span last(String name) {
+		Span last = null;
+		for (Span span : spans()) {
+			if (span.name.equals(name)) last = span;
+		}
+		return last;
+	}
+
+	/** Empty the buffer; spans open now are recorded when they end. */
+	public static void reset() {
+		synchronized (buffer) {
+			java.util.Arrays.fill(buffer, null);
+			next = 0;
+			total = 0;
+		}
+	}
+
+	/**
+	 * The buffer in Chrome's trace event format: a complete ("X") event per span, timestamps in
+	 * microseconds, and the thread names as metadata.
+	 */
+	public static String toChromeJson() {
+		List<Span> spans = spans();
+		StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+		List<Long> named = new ArrayList<Long>();
+		boolean first = true;
+		for (Span span : spans) {
+			if (!first) json.append(',');
+			first = false;
+			json.append("\n{\"name\":").append(quote(span.name))
+					.append(",\"cat\":").append(quote(category(span.name)))
+					.append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(span.threadId)
+					.append(",\"ts\":").append(span.startNanos / 1000)
+					.append(",\"dur\":").append(span.getDurationNanos() / 1000).append('}');
+			if (!named.contains(span.threadId)) {
+				named.add(span.threadId);
+				json.append(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(span.threadId)
+						.append(",\"args\":{\"name\":").append(quote(span.threadName)).append("}}");
+			}
+		}
+		return json.append("\n],\"displayTimeUnit\":\"ms\"}").toString();
+	}
+
+	// "save.extractTags" is in category "save"
+	private static String category(String name) {
+		int dot = name.indexOf('.');
+		return dot < 0 ? name : name.substring(0, dot);
+	}
+
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') quoted.append('\\').append(c);
+			else if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+			else quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
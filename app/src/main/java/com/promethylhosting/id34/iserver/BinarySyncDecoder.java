@@ -0,0 +1,172 @@
+package com.promethylhosting.id34.iserver;
+
+import java.nio.charset.Charset;
+
+/**
+ * Decoder for the compact binary sync format (wire version 1).
+ *
+ * Layout, all integers unsigned LEB128 varints unless noted:
+ * <pre>
+ *   magic 'I' '3' '4' 'B'          (4 bytes)
+ *   version                        (1 byte)
+ *   kind                           (1 byte, KIND_CATEGORIES or KIND_IDEAS)
+ *   stringCount, then per string:  byteLength, UTF-8 bytes
+ *   rowCount, then per row:        rowLength, row body
+ *
+ *   category row: id, uid, num, updated (epoch seconds), cat (string table index)
+ *   idea row:     id, uid, num, cid0..cid4, created, updated, reminder (epoch seconds),
+ *                 flags (1 byte, bit0 deleted, bit1 completed), nameLength, UTF-8 name
+ * </pre>
+ *
+ * Rows are decoded straight out of the response buffer into a single reused {@link Row}
+ * and handed to a {@link RowSink}; no JSONObject, boxed value or map is created per row.
+ * The string table is decoded once per response, so category names are shared.
+ *
+ * Every count, length, string index and the flags byte is checked against the payload and the
+ * row it belongs to, so a truncated or corrupt payload is an IllegalArgumentException, never an
+ * index error or a huge allocation; the caller then asks for the same page as JSON.
+ */
+public class BinarySyncDecoder {
+
+	public static final int WIRE_VERSION = 1;
+	public static final int KIND_CATEGORIES = 1;
+	public static final int KIND_IDEAS = 2;
+
+	private static final byte[] MAGIC = { 'I', '3', '4', 'B' };
+	private static final int HEADER_SIZE = MAGIC.length + 2;
+	private static final int FLAG_DELETED = 1;
+	private static final int FLAG_COMPLETED = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Mutable row handed to the sink; only valid for the duration of the callback. */
+	public static final class Row {
+		public long id;
+		public long uid;
+		public long num;
+		public long cid0, cid1, cid2, cid3, cid4;
+		public long created;   // epoch seconds
+		public long updated;   // epoch seconds
+		public long reminder;  // epoch seconds
+		public boolean deleted;
+		public boolean completed;
+		public String name;    // idea text or category name
+	}
+
+	public interface RowSink {
+		void onCategory(Row row);
+		void onIdea(Row row);
+	}
+
+	private final Row row = new Row();
+	private byte[] buf;
+	private int pos;
+	private int end;
+
+	/** True if the payload starts with the binary magic, i.e. the server honoured the wire request. */
+	public static boolean isBinary(byte[] payload) {
+		if (payload == null || payload.length < HEADER_SIZE) return false;
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (payload[i] != MAGIC[i]) return false;
+		}
+		return true;
+	}
+
+	/** Wire version announced by a binary payload, or 0 for anything else. */
+	public static int versionOf(byte[] payload) {
+		return isBinary(payload) ? payload[MAGIC.length] & 0xff : 0;
+	}
+
+	/**
+	 * Decode the whole payload into the sink.
+	 * @return number of rows delivered
+	 * @throws IllegalArgumentException if the payload is truncated, corrupt or of an unsupported version
+	 */
+	public int decode(byte[] payload, RowSink sink) {
+		if (versionOf(payload) != WIRE_VERSION) {
+			throw new IllegalArgumentException("Unsupported sync wire version " + versionOf(payload));
+		}
+		buf = payload;
+		pos = MAGIC.length + 1;
+		end = payload.length;
+		try {
+			return decodeBody(sink);
+		} finally {
+			buf = null;
+		}
+	}
+
+	private int decodeBody(RowSink sink) {
+		int kind = buf[pos++] & 0xff; // within HEADER_SIZE, checked by versionOf
+		if (kind != KIND_CATEGORIES && kind != KIND_IDEAS) throw new IllegalArgumentException("Unknown sync kind " + kind);
+		String[] strings = new String[length(readVarint(), 1, "string count")]; // each takes at least its length byte
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = readUtf8(length(readVarint(), 1, "string length"));
+		}
+
+		int rowCount = length(readVarint(), 1, "row count");
+		int payloadEnd = end;
+		for (int i = 0; i < rowCount; i++) {
+			int rowLen = length(readVarint(), 1, "row " + i + " length");
+			int rowEnd = pos + rowLen;
+			end = rowEnd; // a row's fields can't run into the next one
+
+			if (kind == KIND_CATEGORIES) {
+				row.id = readVarint();
+				row.uid = readVarint();
+				row.num = readVarint();
+				row.updated = readVarint();
+				long cat = readVarint();
+				if (cat >= strings.length) throw new IllegalArgumentException("Row " + i + " names string " + cat + " of " + strings.length);
+				row.name = strings[(int) cat];
+				sink.onCategory(row);
+			} else if (kind == KIND_IDEAS) {
+				row.id = readVarint();
+				row.uid = readVarint();
+				row.num = readVarint();
+				row.cid0 = readVarint();
+				row.cid1 = readVarint();
+				row.cid2 = readVarint();
+				row.cid3 = readVarint();
+				row.cid4 = readVarint();
+				row.created = readVarint();
+				row.updated = readVarint();
+				row.reminder = readVarint();
+				if (pos >= end) throw new IllegalArgumentException("Truncated flags in row " + i);
+				int flags = buf[pos++] & 0xff;
+				row.deleted = (flags & FLAG_DELETED) != 0;
+				row.completed = (flags & FLAG_COMPLETED) != 0;
+				row.name = readUtf8(length(readVarint(), 1, "name length"));
+				sink.onIdea(row);
+			}
+			pos = rowEnd; // skip fields added by newer minor revisions of the same version
+			end = payloadEnd;
+		}
+		return rowCount;
+	}
+
+	// a count or length read from the wire, which the rest of the payload must have room for at perItem bytes each
+	private int length(long value, int perItem, String what) {
+		if (value < 0 || value > (end - pos) / perItem) throw new IllegalArgumentException("Bad " + what + " " + value + " at " + pos);
+		return (int) value;
+	}
+
+	private long readVarint() {
+		long result = 0;
+		int shift = 0;
+		while (true) {
+			if (pos >= end) throw new IllegalArgumentException("Truncated varint");
+			int b = buf[pos++];
+			result |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return result;
+			shift += 7;
+			if (shift > 63) throw new IllegalArgumentException("Malformed varint");
+		}
+	}
+
+	private String readUtf8(int len) {
+		if (pos + len > end) throw new IllegalArgumentException("Truncated string");
+		String s = new String(buf, pos, len, UTF8);
+		pos += len;
+		return s;
+	}
+}
@@ -1,14 +1,15 @@
 package com.promethylhosting.id34.iserver;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Arrays;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -20,6 +21,10 @@ import android.net.ConnectivityManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.promethylhosting.id34.MainThreadIo;
+import com.promethylhosting.id34.Metrics;
+import com.promethylhosting.id34.Tracer;
+
 public class Iserver {
 	static Context context=null;
 	static String baseurl = "";
@@ -28,17 +33,8 @@ public class Iserver {
 	static String sLastError ;
 	static SharedPreferences prefs;
 	static String gcmRegID = "";
-	public static String hashtags[] = {}; // fix fc on restart ?? ?
+	static boolean bWireSupported = true; // cleared once the server answers a wire request with JSON
 	
-	// only return items which arent null
-	public static String[] getHashTags() { 
-		//if (hashtags == null) return new String[] {}; // fix fc when restarting
-	return Arrays.copyOf(hashtags, hashtags.length); }
-
-	public static void setHashTags(String[] hashtags) {
-		Iserver.hashtags = hashtags;
-	}
-
 	public Iserver (Context context) {
 		super();
 		Log.i(LOG_TAG, "Construct Iserver.");
@@ -59,7 +55,6 @@ public class Iserver {
 		
 		if (baseurl.length()>5) { Log.d(LOG_TAG, "Already initialized. Do you want to add a return here --->"); }
 		
-		hashtags = new String[500];
 		Log.i(LOG_TAG, "Initialize Iserver with " + context);
 		
 		prefs = context.getSharedPreferences("com.promethylhosting.id34", Context.MODE_PRIVATE);
@@ -86,10 +81,10 @@ public class Iserver {
 		return this;
 	} 
 	
-	public static String getServerDateTime() {
+	public static long getServerTimeMillis() {
 		// OFFLINE MODE: Return current system time instead of server time
 		Log.i(LOG_TAG, "OFFLINE MODE: Using local system time instead of server time");
-	return new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm:ss", java.util.Locale.US).format(new java.util.Date());
+	return System.currentTimeMillis();
 	}
 
 	
@@ -118,16 +113,78 @@ public class Iserver {
 	return jsonArray;
 	}
 	
+	/**
+	 * Fetch a sync page, asking for the binary wire format when the server has not already
+	 * refused it. Servers that don't know the {@code wire} parameter answer with the usual JSON,
+	 * which the caller detects with {@link BinarySyncDecoder#isBinary(byte[])} and parses as before.
+	 */
+	public static byte[] getSyncFromRemote(String body, Context context) {
+		if (baseurl.length()<5) { init(context); }
+		String link = baseurl + "&" + body + "&json=1";
+		if (bWireSupported) link = link + "&wire=" + BinarySyncDecoder.WIRE_VERSION;
+		byte[] payload = getBytesFromRemote(link, context);
+		if (bWireSupported && payload.length > 0 && !BinarySyncDecoder.isBinary(payload)) {
+			Log.i(LOG_TAG, "Server answered JSON to a wire request, not asking again this session.");
+			bWireSupported = false;
+		}
+		return payload;
+	}
+	
+	/** A binary page couldn't be decoded: ask for JSON for the rest of the session. */
+	public static void stopAskingForWire() {
+		if (bWireSupported) Log.w(LOG_TAG, "Binary sync page failed to decode, using JSON this session.");
+		bWireSupported = false;
+	}
+	
+	public static JSONArray parseJSONArray(byte[] payload) {
+		JSONArray jsonArray = new JSONArray();
+		try {
+			jsonArray = new JSONArray(new String(payload, "UTF-8"));
+		} catch (JSONException e) {
+			e.printStackTrace();
+		} catch (UnsupportedEncodingException e) {
+			e.printStackTrace();
+		}
+	return jsonArray;
+	}
+	
 	// this should be a private function but it is used in class, new use should use getstring from remote
 	public static String getStringFromRemote(String link, Context context) { //legacy
+		try {
+			return new String(getBytesFromRemote(link, context), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return "";
+		}
+	}
+	
+	public static byte[] getBytesFromRemote(String link, Context context) {
+			long io = MainThreadIo.begin();
+			long start = Metrics.now();
+			Tracer.Span span = Tracer.begin("net.request");
+			try {
+				byte[] result = fetchBytes(link, context);
+				if (link != null && !link.startsWith("local://")) {
+					Metrics.NET_REQUEST.since(start);
+					if (result.length == 0) Metrics.NET_FAILURES.inc(); // offline, an HTTP error or an IOException
+					else Metrics.NET_BYTES_IN.add(result.length);
+				}
+				return result;
+			} finally {
+				// the query string carries the session and the idea text; the path is enough to attribute it
+				MainThreadIo.end(io, MainThreadIo.HTTP, link == null ? "null" : link.split("\\?", 2)[0]);
+				span.end();
+			}
+	}
+	
+	private static byte[] fetchBytes(String link, Context context) {
 			Log.d(LOG_TAG,"Getting:" + link);
 			
 			// CRASH FIX: Handle local:// URLs for offline mode
 			if (link != null && link.startsWith("local://")) {
 				Log.i(LOG_TAG, "OFFLINE MODE: Returning empty response for local URL: " + link);
-				return ""; // Return empty string for local URLs to prevent network calls
+				return new byte[0]; // Return empty response for local URLs to prevent network calls
 			}
-	       String dataReceived = "";
+	       byte[] dataReceived = new byte[0];
 	       ConnectivityManager connec =  (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
 	           if (connec.getNetworkInfo(0).isConnected() || connec.getNetworkInfo(1).isConnected()){
 	               try {
@@ -146,8 +203,8 @@ public class Iserver {
 	                           InputStream inputStream = null;
 	                           try {
 	                               inputStream = connection.getInputStream();
-	                               dataReceived = convertStreamToString(inputStream);
-	                               Log.d(LOG_TAG,"URL: "+link + "\nData Received: " + dataReceived);
+	                               dataReceived = readFully(inputStream);
+	                               Log.d(LOG_TAG,"URL: "+link + "\nBytes Received: " + dataReceived.length);
 	                           } catch (IOException e) {
 	                               Log.e("SAVING", "Could not load xml", e);
 	                           } finally {
@@ -178,6 +235,16 @@ public class Iserver {
 			
 		}
 
+		private static byte[] readFully(InputStream is) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+			byte[] chunk = new byte[8192];
+			int n;
+			while ((n = is.read(chunk)) != -1) {
+				out.write(chunk, 0, n);
+			}
+			return out.toByteArray();
+		}
+
 
 	   //support functino
 		public static void Toast(String msg) { Toast.makeText(context, msg, Toast.LENGTH_LONG).show(); }
@@ -0,0 +1,73 @@
+package com.promethylhosting.id34;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class MetricsTest {
+
+	// the smallest value in a bucket is one more than the largest in the one before
+	private static long lowerBound(int bucket) {
+		return bucket == 0 ? 0 : Metrics.Histogram.upperBound(bucket - 1) + 1;
+	}
+
+	@Test
+	public void zeroHasItsOwnBucket() {
+		assertEquals(0, Metrics.Histogram.bucket(0));
+		assertEquals(0, Metrics.Histogram.upperBound(0));
+		assertEquals(1, Metrics.Histogram.bucket(1));
+	}
+
+	@Test
+	public void everyValueFallsInsideItsBucket() {
+		int previous = 0;
+		for (long value = 0; value < 100000; value++) {
+			int bucket = Metrics.Histogram.bucket(value);
+			assertTrue("bucket order at " + value, bucket >= previous);
+			assertTrue(value + " above bucket " + bucket, value <= Metrics.Histogram.upperBound(bucket));
+			assertTrue(value + " below bucket " + bucket, value >= lowerBound(bucket));
+			previous = bucket;
+		}
+	}
+
+	@Test
+	public void bucketsAreContiguousUpToLongMax() {
+		// bucket 2 would be [1.5, 2): no integers, so it stays empty
+		for (int bucket = 3; bucket < Metrics.Histogram.bucket(Long.MAX_VALUE); bucket++) {
+			assertEquals(bucket, Metrics.Histogram.bucket(lowerBound(bucket)));
+			assertEquals(bucket, Metrics.Histogram.bucket(Metrics.Histogram.upperBound(bucket)));
+		}
+		assertTrue(Metrics.Histogram.bucket(Long.MAX_VALUE) < 128);
+	}
+
+	@Test
+	public void reportedBoundIsUnderOneAndAHalfTimesTheValue() {
+		for (int bucket = 3; bucket < Metrics.Histogram.bucket(Long.MAX_VALUE); bucket++) {
+			long upper = Metrics.Histogram.upperBound(bucket);
+			long lower = lowerBound(bucket);
+			assertTrue("bucket " + bucket + " is " + lower + ".." + upper, upper - lower < lower / 2); // no overflow
+		}
+	}
+
+	@Test
+	public void percentilesComeFromTheBuckets() {
+		Metrics.Histogram histogram = new Metrics.Histogram("test.percentiles");
+		assertEquals(0, histogram.percentile(50));
+		for (long value = 1; value <= 1000; value++) histogram.record(value);
+		assertEquals(1000, histogram.count());
+		long p50 = histogram.percentile(50);
+		assertTrue("p50 " + p50, p50 >= 500 && p50 < 500 * 1.5);
+		long p99 = histogram.percentile(99);
+		assertTrue("p99 " + p99, p99 >= 990 && p99 <= 1000);
+		assertEquals(1000, histogram.percentile(100)); // capped at the largest value seen
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		Metrics.Histogram histogram = new Metrics.Histogram("test.negative");
+		histogram.record(-5);
+		assertEquals(1, histogram.count());
+		assertEquals(0, histogram.percentile(100));
+	}
+}
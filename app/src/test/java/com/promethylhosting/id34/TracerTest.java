@@ -0,0 +1,152 @@
+package com.promethylhosting.id34;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TracerTest {
+
+	@Before
+	public void emptyBuffer() {
+		Tracer.reset();
+	}
+
+	@Test
+	public void spansNestAndLinkToTheirParent() throws InterruptedException {
+		Tracer.Span outer = Tracer.begin("test.outer");
+		Tracer.Span inner = Tracer.begin("test.inner");
+		Thread.sleep(5);
+		inner.end();
+		Tracer.Span second = Tracer.begin("test.second");
+		second.end();
+		outer.end();
+
+		assertNull(outer.parent);
+		assertEquals(0, outer.depth);
+		assertSame(outer, inner.parent);
+		assertEquals(1, inner.depth);
+		assertSame(outer, second.parent);
+
+		List<Tracer.Span> spans = Tracer.spans();
+		assertEquals(3, spans.size());
+		assertSame(outer, spans.get(0));
+		assertSame(inner, spans.get(1));
+		assertSame(second, spans.get(2));
+		List<Tracer.Span> children = Tracer.children(outer);
+		assertEquals(2, children.size());
+		assertSame(inner, children.get(0));
+		assertSame(second, children.get(1));
+		assertSame(inner, Tracer.last("test.inner"));
+	}
+
+	@Test
+	public void timingsFollowTheNesting() throws InterruptedException {
+		Tracer.Span outer = Tracer.begin("test.outer");
+		Tracer.Span inner = Tracer.begin("test.inner");
+		Thread.sleep(5);
+		inner.end();
+		outer.end();
+
+		assertTrue(inner.getDurationMillis() >= 5);
+		assertTrue(inner.startNanos >= outer.startNanos);
+		assertTrue(inner.getEndNanos() <= outer.getEndNanos());
+		assertTrue(outer.getDurationNanos() >= inner.getDurationNanos());
+	}
+
+	@Test
+	public void openSpanHasNoDuration() {
+		Tracer.Span span = Tracer.begin("test.open");
+		assertTrue(span.isOpen());
+		assertEquals(-1, span.getDurationNanos());
+		assertTrue(Tracer.spans().isEmpty()); // only ended spans are recorded
+		span.end();
+		assertFalse(span.isOpen());
+		assertEquals(1, Tracer.spans().size());
+	}
+
+	@Test
+	public void endingAParentClosesItsUnendedChildren() {
+		Tracer.Span outer = Tracer.begin("test.outer");
+		Tracer.Span middle = Tracer.begin("test.middle");
+		Tracer.Span inner = Tracer.begin("test.inner");
+		outer.end(); // as if an exception skipped the inner end()s
+
+		assertFalse(middle.isOpen());
+		assertFalse(inner.isOpen());
+		assertEquals(outer.getEndNanos(), inner.getEndNanos());
+		assertEquals(3, Tracer.spans().size());
+
+		inner.end(); // already closed: nothing changes
+		assertEquals(3, Tracer.spans().size());
+		Tracer.Span next = Tracer.begin("test.next");
+		assertNull(next.parent); // the thread's stack is empty again
+		next.end();
+	}
+
+	@Test
+	public void onlyTheOwningThreadEndsASpan() throws InterruptedException {
+		final Tracer.Span span = Tracer.begin("test.owned");
+		final Tracer.Span[] other = new Tracer.Span[1];
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				span.end(); // not this thread's: ignored
+				other[0] = Tracer.begin("test.other");
+				other[0].end();
+			}
+		}, "tracer-test");
+		thread.start();
+		thread.join();
+
+		assertTrue(span.isOpen());
+		assertNull(other[0].parent); // stacks are per thread
+		assertEquals("tracer-test", other[0].threadName);
+		span.end();
+		assertFalse(span.isOpen());
+	}
+
+	@Test
+	public void bufferKeepsTheLatestCapacitySpans() {
+		int extra = 10;
+		for (int i = 0; i < Tracer.CAPACITY + extra; i++) Tracer.begin("test.span" + i).end();
+
+		List<Tracer.Span> spans = Tracer.spans();
+		assertEquals(Tracer.CAPACITY, spans.size());
+		assertEquals("test.span" + extra, spans.get(0).name);
+		assertEquals("test.span" + (Tracer.CAPACITY + extra - 1), spans.get(spans.size() - 1).name);
+	}
+
+	@Test
+	public void chromeJsonHasACompleteEventPerSpan() {
+		Tracer.Span outer = Tracer.begin("save.\"quoted\"");
+		Tracer.begin("save.inner").end();
+		outer.end();
+
+		String json = Tracer.toChromeJson();
+		assertTrue(json, json.startsWith("{\"traceEvents\":["));
+		assertTrue(json, json.endsWith("],\"displayTimeUnit\":\"ms\"}"));
+		assertTrue(json, json.contains("{\"name\":\"save.\\\"quoted\\\"\",\"cat\":\"save\",\"ph\":\"X\",\"pid\":1,\"tid\":"
+				+ outer.threadId + ",\"ts\":" + outer.startNanos / 1000 + ",\"dur\":" + outer.getDurationNanos() / 1000 + "}"));
+		assertTrue(json, json.contains("\"name\":\"save.inner\""));
+		assertEquals(2, count(json, "\"ph\":\"X\""));
+		assertEquals(1, count(json, "\"thread_name\"")); // one thread, named once
+	}
+
+	@Test
+	public void chromeJsonOfAnEmptyBuffer() {
+		assertEquals("{\"traceEvents\":[\n],\"displayTimeUnit\":\"ms\"}", Tracer.toChromeJson());
+	}
+
+	private static int count(String s, String part) {
+		int n = 0;
+		for (int at = s.indexOf(part); at >= 0; at = s.indexOf(part, at + 1)) n++;
+		return n;
+	}
+}
@@ -0,0 +1,200 @@
+#!/usr/bin/env python3
+"""
+Write the databases SchemaMigrationsTest upgrades: one per past schema version, v2 to v8, each
+as that version of the app left it, with the same ideas and categories in it.
+
+    python3 scripts/make_schema_fixtures.py
+
+writes app/src/androidTest/assets/schema/v<N>.db. The schema of each version is spelled out
+here as it shipped (SchemaMigrations steps never change once shipped), so run it again only to
+add the next version, and add that version's rows to SchemaMigrationsTest too.
+
+Timestamps: up to v4 they are text in the device's zone, from v5 epoch ms. The ms written here
+are the same texts read as UTC; the test expects the local reading only where it converts text.
+"""
+
+import calendar
+import os
+import sqlite3
+import time
+
+OUT = os.path.join(os.path.dirname(os.path.abspath(__file__)), "..", "app", "src", "androidTest", "assets", "schema")
+
+CIDS = ["cid0", "cid1", "cid2", "cid3", "cid4"]
+OLD_DEFAULT = "1970-01-01 06:00:00"
+
+# id, cat
+CATEGORIES = [
+    (101, "#work", "2015-06-02 10:00:00"),
+    (102, "#home", "2015-06-03 11:15:00"),
+    (103, "#ideas", "2015-05-20 08:00:00"),
+]
+
+# id, name, created, updated, reminder, cids, deleted, completed
+IDEAS = [
+    (1, "finish the report #work", "2015-06-01 09:30:00", "2015-06-02 10:00:00", OLD_DEFAULT, [101], 0, 0),
+    (2, "paint the fence #home #work", "2015-06-01 12:00:00", "2015-06-03 11:15:00", OLD_DEFAULT, [102, 101], 0, 1),
+    (3, "an old note #ideas", "2015-05-20 08:00:00", "2015-05-21 08:00:00", OLD_DEFAULT, [103], 1, 0),
+    (4, "call mom #home", "2015-06-04 17:45:00", "2015-06-04 17:45:00", "2015-07-01 18:00:00", [102], 0, 0),
+    (5, "no tags at all", "2015-06-05 07:00:00", "2015-06-05 07:00:00", OLD_DEFAULT, [], 0, 0),
+    (6, "listed twice #work", "2015-06-06 06:54:44", "2015-06-06 06:54:44", OLD_DEFAULT, [101, 101], 0, 0),
+]
+
+
+def millis(text):
+    if text < "1970-01-02":
+        return 0  # TimeFormat.NONE
+    return calendar.timegm(time.strptime(text, "%Y-%m-%d %H:%M:%S")) * 1000
+
+
+# SQL as SchemaMigrations builds it
+
+def active(prefix):
+    return "(%sdeleted = 0 AND %scompleted = 0)" % (prefix, prefix)
+
+
+def completed(prefix):
+    return "(%sdeleted = 0 AND %scompleted <> 0)" % (prefix, prefix)
+
+
+def stats_where(row):
+    return " WHERE cid IN (" + ", ".join(row + "." + c for c in CIDS) + ")"
+
+
+def stats_update(row, sign):
+    return ("UPDATE `tblCategoryStats` SET active = active " + sign + " " + active(row + ".")
+            + ", completed = completed " + sign + " " + completed(row + "."))
+
+
+def stats_add(row):
+    ensure = ("INSERT INTO `tblCategoryStats` (cid) SELECT c FROM ("
+              + " UNION ".join("SELECT %s.%s AS c" % (row, c) for c in CIDS)
+              + ") WHERE c <> 0 AND c NOT IN (SELECT cid FROM `tblCategoryStats`)")
+    return (ensure + "; " + stats_update(row, "+") + ", touched = max(touched, " + row + ".updated)"
+            + stats_where(row) + ";")
+
+
+def stats_remove(row):
+    return stats_update(row, "-") + stats_where(row) + ";"
+
+
+def create_stats(db, touched):
+    db.execute("CREATE TABLE IF NOT EXISTS `tblCategoryStats` (\n"
+               "  `cid` INTEGER PRIMARY KEY NOT NULL,\n"
+               "  `active` INTEGER NOT NULL default 0,\n"
+               "  `completed` INTEGER NOT NULL default 0,\n"
+               "  `touched` " + touched + "\n"
+               ");")
+    db.execute("CREATE TRIGGER IF NOT EXISTS stats_idea_insert AFTER INSERT ON `tblIdea` BEGIN "
+               + stats_add("NEW") + " END")
+    db.execute("CREATE TRIGGER IF NOT EXISTS stats_idea_delete AFTER DELETE ON `tblIdea` BEGIN "
+               + stats_remove("OLD") + " END")
+    db.execute("CREATE TRIGGER IF NOT EXISTS stats_idea_update AFTER UPDATE OF "
+               "cid0, cid1, cid2, cid3, cid4, deleted, completed, updated ON `tblIdea` BEGIN "
+               + stats_remove("OLD") + " " + stats_add("NEW") + " END")
+
+
+def schema(db, version):
+    db.execute("CREATE TABLE `tblCategory` (\n"
+               "  `id` unsigned int(8) PRIMARY KEY NOT NULL,\n"
+               "  `uid` unsigned int(8) NOT NULL,\n"
+               "  `updated` timestamp NOT NULL default '1970-01-01 06:00:00',\n"
+               "  `num` unsigned int(8) NOT NULL,\n"
+               "  `cat` varchar(57) NOT NULL\n"
+               ") ;\n")
+    db.execute("CREATE TABLE `tblIdea` (\n"
+               "  `id` unsigned int(8) PRIMARY KEY NOT NULL,\n"
+               "  `uid` unsigned int(8) NOT NULL,\n"
+               "  `name` varchar(255) NOT NULL,\n"
+               "  `created` timestamp NOT NULL default CURRENT_TIMESTAMP,\n"
+               "  `updated` timestamp NOT NULL default '1970-01-01 06:00:00',\n"
+               "  `reminder` timestamp NOT NULL default '1970-01-01 06:00:00',\n"
+               "  `num` unsigned int(8) NOT NULL,\n"
+               "  `cid0` unsigned int(8) NOT NULL,\n"
+               "  `cid1` unsigned int(8) NOT NULL,\n"
+               "  `cid2` unsigned int(8) NOT NULL,\n"
+               "  `cid3` unsigned int(8) NOT NULL,\n"
+               "  `cid4` unsigned int(8) NOT NULL,\n"
+               "  `deleted` tinyint(1) NOT NULL default '0', \n"
+               "  `completed` tinyint(1) NOT NULL default '0' \n"
+               "); \n")
+    # v2's third script: execSQL ran its first statement only, so no tblResponses
+    db.execute("create index cid0 on tblIdea (`cid0`,`cid1`,`cid2`,`cid3`,`cid4`)")
+    if version >= 3:
+        db.execute("CREATE TABLE IF NOT EXISTS `tblCodecDict` (\n"
+                   "  `version` INTEGER PRIMARY KEY NOT NULL,\n"
+                   "  `dict` BLOB NOT NULL,\n"
+                   "  `trained_rows` INTEGER NOT NULL\n"
+                   ");")
+        db.execute("CREATE TABLE IF NOT EXISTS `tblBlindIndex` (\n"
+                   "  `token` INTEGER NOT NULL,\n"
+                   "  `kind` INTEGER NOT NULL,\n"
+                   "  `ref` INTEGER NOT NULL\n"
+                   ");")
+        db.execute("CREATE INDEX IF NOT EXISTS idx_blind_token ON `tblBlindIndex` (`token`, `kind`, `ref`);")
+        db.execute("CREATE INDEX IF NOT EXISTS idx_blind_ref ON `tblBlindIndex` (`ref`, `kind`);")
+        db.execute("ALTER TABLE tblIdea ADD COLUMN key_ver INTEGER NOT NULL default 0")
+        db.execute("ALTER TABLE tblCategory ADD COLUMN key_ver INTEGER NOT NULL default 0")
+        db.execute("CREATE TABLE IF NOT EXISTS `tblResponses` (\n  `msg` varchar(25) NOT NULL\n);")
+    if version >= 5:
+        db.execute("CREATE INDEX IF NOT EXISTS idx_idea_updated ON `tblIdea` (`updated`)")
+        db.execute("CREATE INDEX IF NOT EXISTS idx_idea_created ON `tblIdea` (`created`)")
+    if version >= 6:
+        db.execute("CREATE INDEX IF NOT EXISTS idx_idea_reminder ON `tblIdea` (`reminder`)")
+    if version >= 7:
+        for table in ("tblIdea", "tblCategory"):
+            db.execute("ALTER TABLE " + table + " ADD COLUMN dirty INTEGER NOT NULL default 0")
+            db.execute("ALTER TABLE " + table + " ADD COLUMN synced INTEGER NOT NULL default 0")
+            db.execute("ALTER TABLE " + table + " ADD COLUMN text_token INTEGER")
+    if version >= 8:
+        db.execute("CREATE INDEX IF NOT EXISTS idx_idea_live_created ON `tblIdea` (`created`) WHERE deleted = 0")
+        db.execute("CREATE INDEX IF NOT EXISTS idx_idea_pending_reminder ON `tblIdea` (`reminder`)"
+                   " WHERE deleted = 0 AND completed = 0")
+        db.execute("DROP INDEX IF EXISTS idx_idea_reminder")
+    # from v4 the triggers keep tblCategoryStats as the rows go in
+    if version >= 4:
+        create_stats(db, "INTEGER NOT NULL default 0" if version >= 5 else "NOT NULL default ''")
+
+
+def rows(db, version):
+    stamp = (lambda text: text) if version < 5 else millis
+    for cid, cat, updated in CATEGORIES:
+        values = {"id": cid, "uid": 7, "updated": stamp(updated), "num": 0, "cat": cat}
+        if version >= 7:
+            values["synced"] = values["updated"]
+        insert(db, "tblCategory", values)
+    for id, name, created, updated, reminder, cids, deleted, done in IDEAS:
+        values = {"id": id, "uid": 7, "name": name, "created": stamp(created), "updated": stamp(updated),
+                  "reminder": stamp(reminder), "num": 0, "deleted": deleted, "completed": done}
+        for i, c in enumerate(CIDS):
+            values[c] = cids[i] if i < len(cids) else 0
+        if version >= 7:
+            values["synced"] = values["updated"]
+        insert(db, "tblIdea", values)
+
+
+def insert(db, table, values):
+    columns = list(values)
+    db.execute("INSERT INTO " + table + " (" + ", ".join(columns) + ") VALUES ("
+               + ", ".join("?" * len(columns)) + ")", [values[c] for c in columns])
+
+
+def main():
+    os.makedirs(OUT, exist_ok=True)
+    for version in range(2, 9):
+        path = os.path.join(OUT, "v%d.db" % version)
+        if os.path.exists(path):
+            os.remove(path)
+        db = sqlite3.connect(path)
+        db.execute("PRAGMA recursive_triggers = ON")
+        schema(db, version)
+        rows(db, version)
+        db.execute("PRAGMA user_version = %d" % version)
+        db.commit()
+        db.execute("VACUUM")
+        db.close()
+        print("wrote", os.path.relpath(path))
+
+
+if __name__ == "__main__":
+    main()